@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of the per-request helpers, the main class of <code>target/benchmarks.jar</code>:
+ * <code><pre>
+ * mvn -pl core-benchmark -am package
+ * java -jar core-benchmark/target/benchmarks.jar
+ * </pre></code>
+ * All benchmarks run single threaded and with one thread per cpu (the {@link LRUCacheBenchmark} groups
+ * have a fixed number of threads), with the gc profiler reporting the bytes allocated per operation,
+ * and the results written to <code>jmh-result-&lt;threads&gt;-threads.json</code>. These are the baseline
+ * for changes of the request path.
+ * <p>
+ * All jmh options are supported and override these defaults, e.g. <code>-t 8</code> runs with 8 threads only,
+ * <code>SessionIdFormatBenchmark</code> runs only the matching benchmarks and
+ * <code>-f 1 -wi 3 -i 5</code> gives a quick run.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class CoreBenchmarks {
+
+    public static void main( final String[] args ) throws Exception {
+        final CommandLineOptions commandLine = new CommandLineOptions( args );
+        if ( commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListProfilers()
+                || commandLine.shouldListResultFormats() ) {
+            org.openjdk.jmh.Main.main( args );
+            return;
+        }
+
+        for ( final int threads : getThreadCounts( commandLine ) ) {
+            final ChainedOptionsBuilder options = new OptionsBuilder().parent( commandLine ).threads( threads );
+            if ( commandLine.getIncludes().isEmpty() ) {
+                options.include( CoreBenchmarks.class.getPackage().getName() + ".*Benchmark" );
+            }
+            if ( commandLine.getProfilers().isEmpty() ) {
+                options.addProfiler( GCProfiler.class );
+            }
+            if ( !commandLine.getResultFormat().hasValue() ) {
+                options.resultFormat( ResultFormatType.JSON );
+            }
+            if ( !commandLine.getResult().hasValue() ) {
+                options.result( "jmh-result-" + threads + "-threads.json" );
+            }
+            new Runner( options.build() ).run();
+        }
+    }
+
+    private static Set<Integer> getThreadCounts( final CommandLineOptions commandLine ) {
+        final Set<Integer> result = new LinkedHashSet<Integer>();
+        if ( commandLine.getThreads().hasValue() ) {
+            result.add( commandLine.getThreads().get() );
+        }
+        else {
+            result.add( 1 );
+            result.add( Runtime.getRuntime().availableProcessors() );
+        }
+        return result;
+    }
+
+}
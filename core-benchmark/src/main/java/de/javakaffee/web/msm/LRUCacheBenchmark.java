@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link LRUCache#get(Object)} and {@link LRUCache#put(Object, Object)}, which synchronize on
+ * the cache, single threaded and under contention of several threads reading, writing or both.
+ * Keys are chosen randomly from twice the cache size, so that about half of the gets are hits
+ * and puts of new keys evict the eldest entry.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+@State( Scope.Group )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 10, time = 1 )
+@Fork( 2 )
+public class LRUCacheBenchmark {
+
+    @Param( { "100", "10000" } )
+    public int size;
+
+    private LRUCache<String, Boolean> _cache;
+    private String[] _keys;
+
+    @Setup
+    public void setUp() {
+        _cache = new LRUCache<String, Boolean>( size );
+        _keys = new String[2 * size];
+        for ( int i = 0; i < _keys.length; i++ ) {
+            _keys[i] = "F0E1D2C3B4A59687" + i + "-n1";
+            if ( i % 2 == 0 ) {
+                _cache.put( _keys[i], Boolean.TRUE );
+            }
+        }
+    }
+
+    private String randomKey() {
+        return _keys[ThreadLocalRandom.current().nextInt( _keys.length )];
+    }
+
+    @Benchmark
+    @Group( "get" )
+    @GroupThreads( 1 )
+    public Boolean get() {
+        return _cache.get( randomKey() );
+    }
+
+    @Benchmark
+    @Group( "put" )
+    @GroupThreads( 1 )
+    public Boolean put() {
+        return _cache.put( randomKey(), Boolean.TRUE );
+    }
+
+    @Benchmark
+    @Group( "contendedGet" )
+    @GroupThreads( 4 )
+    public Boolean contendedGet() {
+        return _cache.get( randomKey() );
+    }
+
+    @Benchmark
+    @Group( "contendedPut" )
+    @GroupThreads( 4 )
+    public Boolean contendedPut() {
+        return _cache.put( randomKey(), Boolean.TRUE );
+    }
+
+    @Benchmark
+    @Group( "contendedGetPut" )
+    @GroupThreads( 3 )
+    public Boolean contendedGetPutGet() {
+        return _cache.get( randomKey() );
+    }
+
+    @Benchmark
+    @Group( "contendedGetPut" )
+    @GroupThreads( 1 )
+    public Boolean contendedGetPutPut() {
+        return _cache.put( randomKey(), Boolean.TRUE );
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.javakaffee.web.msm.NodeAvailabilityCache.CacheLoader;
+
+/**
+ * Measures {@link NodeIdService#getMemcachedNodeId()}, which selects the node for each new session,
+ * for the different {@link NodeSelectionPolicy}s with all nodes available or one node unavailable.
+ * The service is shared by all benchmark threads (<code>-t</code>) like in the session manager.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 10, time = 1 )
+@Fork( 2 )
+public class NodeIdServiceBenchmark {
+
+    /**
+     * The node selection policy, see {@link NodeSelectionPolicy#create(String, MemcachedNodesManager, net.spy.memcached.MemcachedClient)}.
+     */
+    @Param( { "random", "p2c", "weighted:n1=3 n2=1 n3=1 n4=1" } )
+    public String policy;
+
+    @Param( { "false", "true" } )
+    public boolean nodeUnavailable;
+
+    private NodeIdService _nodeIdService;
+
+    @Setup
+    public void setUp() {
+        final NodeAvailabilityCache<String> availabilityCache = new NodeAvailabilityCache<String>( 4, 60000, new CacheLoader<String>() {
+            @Override
+            public boolean isNodeAvailable( final String key ) {
+                return !( nodeUnavailable && "n1".equals( key ) );
+            }
+        } );
+        _nodeIdService = new NodeIdService( availabilityCache, NodeIdList.create( "n1", "n2", "n3", "n4" ), Collections.<String>emptyList() );
+        _nodeIdService.setNodeSelectionPolicy( "p2c".equals( policy )
+            ? new NodeSelectionPolicy.PowerOfTwoChoices( new NodeStatistics() )
+            : NodeSelectionPolicy.create( policy, null, null ) );
+    }
+
+    @TearDown
+    public void tearDown() {
+        _nodeIdService.shutdown();
+    }
+
+    @Benchmark
+    public String getMemcachedNodeId() {
+        return _nodeIdService.getMemcachedNodeId();
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.connector.Request;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link RequestTrackingHostValve#getURIWithQueryString(Request)}, which builds the request id
+ * used for logging, the ignore pattern and lock profiling. The request id is cached as request note,
+ * <code>uncached</code> measures the first invocation for a request, <code>cached</code> the following ones.
+ * A request is not thread-safe, so each benchmark thread has its own.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 10, time = 1 )
+@Fork( 2 )
+public class RequestIdBenchmark {
+
+    @Param( { "GET", "POST" } )
+    public String method;
+
+    private Request _request;
+
+    @Setup
+    public void setUp() {
+        final org.apache.coyote.Request coyoteRequest = new org.apache.coyote.Request();
+        coyoteRequest.method().setString( method );
+        coyoteRequest.requestURI().setString( "/app/orders/12345/items" );
+        coyoteRequest.queryString().setString( "page=2&sort=name" );
+        _request = new Request();
+        _request.setCoyoteRequest( coyoteRequest );
+    }
+
+    @Benchmark
+    public String uncached() {
+        _request.removeNote( RequestTrackingHostValve.MSM_REQUEST_ID );
+        return RequestTrackingHostValve.getURIWithQueryString( _request );
+    }
+
+    @Benchmark
+    public String cached() {
+        return RequestTrackingHostValve.getURIWithQueryString( _request );
+    }
+
+}
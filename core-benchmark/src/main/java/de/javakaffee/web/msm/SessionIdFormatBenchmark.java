@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the {@link SessionIdFormat} and {@link StorageKeyFormat} operations performed for each request
+ * with a session, for different storage key prefixes and session ids with and without jvm route.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 10, time = 1 )
+@Fork( 2 )
+public class SessionIdFormatBenchmark {
+
+    /**
+     * The storage key prefix configuration, see {@link StorageKeyFormat#of(String, String, String, String)}.
+     */
+    @Param( { "", "static:x", "host.hash,context.hash,webappVersion" } )
+    public String storageKeyPrefix;
+
+    @Param( { "false", "true" } )
+    public boolean jvmRoute;
+
+    private StorageKeyFormat _storageKeyFormat;
+    private SessionIdFormat _sessionIdFormat;
+    private String _sessionId;
+
+    @Setup
+    public void setUp() {
+        _storageKeyFormat = StorageKeyFormat.of( storageKeyPrefix, "localhost", "/app", "001" );
+        _sessionIdFormat = new SessionIdFormat( _storageKeyFormat );
+        _sessionId = _sessionIdFormat.createSessionId( "F0E1D2C3B4A5968778695A4B3C2D1E0F" + ( jvmRoute ? ".jvm1" : "" ), "n1" );
+    }
+
+    @Benchmark
+    public boolean isValid() {
+        return _sessionIdFormat.isValid( _sessionId );
+    }
+
+    @Benchmark
+    public String extractMemcachedId() {
+        return _sessionIdFormat.extractMemcachedId( _sessionId );
+    }
+
+    @Benchmark
+    public String createLockName() {
+        return _sessionIdFormat.createLockName( _sessionId );
+    }
+
+    @Benchmark
+    public String createValidityInfoKeyName() {
+        return _sessionIdFormat.createValidityInfoKeyName( _sessionId );
+    }
+
+    @Benchmark
+    public String formatStorageKey() {
+        return _storageKeyFormat.format( _sessionId );
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures encoding and decoding of the {@link SessionValidityInfo} that is stored/loaded for
+ * each request of non-sticky sessions.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 10, time = 1 )
+@Fork( 2 )
+public class SessionValidityInfoBenchmark {
+
+    private int _maxInactiveInterval;
+    private long _lastAccessedTime;
+    private long _thisAccessedTime;
+    private byte[] _data;
+
+    @Setup
+    public void setUp() {
+        _maxInactiveInterval = 1800;
+        _thisAccessedTime = System.currentTimeMillis();
+        _lastAccessedTime = _thisAccessedTime - 1000;
+        _data = SessionValidityInfo.encode( _maxInactiveInterval, _lastAccessedTime, _thisAccessedTime );
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return SessionValidityInfo.encode( _maxInactiveInterval, _lastAccessedTime, _thisAccessedTime );
+    }
+
+    @Benchmark
+    public SessionValidityInfo decode() {
+        return SessionValidityInfo.decode( _data );
+    }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.Configurations.ATTRIBUTE_PROFILING_INTERVAL_KEY;
+import static de.javakaffee.web.msm.Configurations.ATTRIBUTE_PROFILING_TOP_N_KEY;
+import static de.javakaffee.web.msm.Configurations.getSystemProperty;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Finds out which session attributes make sessions large or expensive to serialize. For a sampled fraction
+ * of session backups (one of {@link Configurations#ATTRIBUTE_PROFILING_INTERVAL_KEY} backups) each attribute
+ * is serialized separately, its size and serialization time are recorded in {@link Histogram}s per attribute
+ * name. The number of tracked attribute names is bounded, further names are recorded as {@value #OTHER}.
+ * <p>
+ * Additionally the largest sessions are kept (for all backups, this is a single volatile read for sessions
+ * that are smaller than the tracked ones), with the largest attribute if the session was sampled.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class AttributeProfiler {
+
+    private static final Log LOG = LogFactory.getLog( AttributeProfiler.class );
+
+    static final String OTHER = "<other>";
+    static final int MAX_ATTRIBUTES = 100;
+
+    private final int _sampleInterval;
+    private final int _topN;
+    private final AtomicLong _serializations = new AtomicLong();
+    private final ConcurrentMap<String, AttributeStats> _attributes = new ConcurrentHashMap<String, AttributeStats>();
+
+    private final Map<String, LargeSession> _largestSessions = new HashMap<String, LargeSession>();
+    private volatile long _minLargestSize;
+
+    /**
+     * @param sampleInterval profile one of <code>sampleInterval</code> serializations
+     * @param topN the number of attributes and sessions reported
+     */
+    public AttributeProfiler( final int sampleInterval, final int topN ) {
+        _sampleInterval = sampleInterval;
+        _topN = topN;
+    }
+
+    /**
+     * Creates the {@link AttributeProfiler} if {@link Configurations#ATTRIBUTE_PROFILING_INTERVAL_KEY} is set,
+     * otherwise returns <code>null</code>.
+     */
+    @CheckForNull
+    public static AttributeProfiler createFromSystemProperties() {
+        final int sampleInterval = getSystemProperty( ATTRIBUTE_PROFILING_INTERVAL_KEY, 0 );
+        if ( sampleInterval <= 0 ) {
+            return null;
+        }
+        return new AttributeProfiler( sampleInterval, getSystemProperty( ATTRIBUTE_PROFILING_TOP_N_KEY, 10 ) );
+    }
+
+    /**
+     * Invoked after the attributes of the given session were serialized, profiles the attributes if this
+     * serialization is sampled.
+     * @param session the session
+     * @param attributes the serialized attributes
+     * @param size the size of the serialized attributes
+     * @param transcoder used to serialize single attributes
+     */
+    public void onSerialized( @Nonnull final MemcachedBackupSession session, @Nonnull final Map<String, Object> attributes,
+            final int size, @Nonnull final SessionAttributesTranscoder transcoder ) {
+        final String largestAttribute = _serializations.incrementAndGet() % _sampleInterval == 0
+            ? profile( session, attributes, transcoder )
+            : null;
+        if ( size > _minLargestSize ) {
+            recordLargeSession( session.getIdInternal(), size, largestAttribute );
+        }
+    }
+
+    /**
+     * Serializes each attribute separately and records size and time.
+     * @return the name of the largest attribute
+     */
+    @CheckForNull
+    String profile( @Nonnull final MemcachedBackupSession session, @Nonnull final Map<String, Object> attributes,
+            @Nonnull final SessionAttributesTranscoder transcoder ) {
+        String result = null;
+        long largest = -1;
+        for ( final Map.Entry<String, Object> entry : attributes.entrySet() ) {
+            final long start = System.nanoTime();
+            final byte[] data;
+            try {
+                data = transcoder.serializeAttributes( session, Collections.singletonMap( entry.getKey(), entry.getValue() ) );
+            } catch ( final RuntimeException e ) {
+                if ( LOG.isDebugEnabled() ) {
+                    LOG.debug( "Could not serialize attribute " + entry.getKey() + " of session " + session.getIdInternal(), e );
+                }
+                continue;
+            }
+            getStats( entry.getKey() ).record( data.length, ( System.nanoTime() - start ) / 1000 );
+            if ( data.length > largest ) {
+                largest = data.length;
+                result = entry.getKey();
+            }
+        }
+        return result;
+    }
+
+    @Nonnull
+    private AttributeStats getStats( @Nonnull final String name ) {
+        AttributeStats result = _attributes.get( name );
+        if ( result == null ) {
+            final String key = _attributes.size() < MAX_ATTRIBUTES ? name : OTHER;
+            result = _attributes.get( key );
+            if ( result == null ) {
+                final AttributeStats stats = new AttributeStats( key );
+                result = _attributes.putIfAbsent( key, stats );
+                if ( result == null ) {
+                    result = stats;
+                }
+            }
+        }
+        return result;
+    }
+
+    private synchronized void recordLargeSession( @Nonnull final String sessionId, final long size, @Nullable final String largestAttribute ) {
+        final LargeSession existing = _largestSessions.get( sessionId );
+        _largestSessions.put( sessionId, new LargeSession( sessionId, size, largestAttribute != null ? largestAttribute
+                : existing != null ? existing.largestAttribute : null ) );
+        if ( _largestSessions.size() > _topN ) {
+            _largestSessions.remove( getSmallest().sessionId );
+        }
+        _minLargestSize = _largestSessions.size() < _topN ? 0 : getSmallest().size;
+    }
+
+    private LargeSession getSmallest() {
+        LargeSession result = null;
+        for ( final LargeSession session : _largestSessions.values() ) {
+            if ( result == null || session.size < result.size ) {
+                result = session;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the attributes with the highest overall serialized size, with count, avg/p99/max size in bytes
+     * and avg/p99 serialization time in micros.
+     */
+    @Nonnull
+    public String[] getTopAttributesInfo() {
+        final List<AttributeStats> attributes = new ArrayList<AttributeStats>( _attributes.values() );
+        Collections.sort( attributes, new Comparator<AttributeStats>() {
+            @Override
+            public int compare( final AttributeStats o1, final AttributeStats o2 ) {
+                final long s1 = o1.size.getSum();
+                final long s2 = o2.size.getSum();
+                return s1 < s2 ? 1 : s1 == s2 ? 0 : -1;
+            }
+        } );
+        final int count = Math.min( _topN, attributes.size() );
+        final String[] result = new String[count];
+        for ( int i = 0; i < count; i++ ) {
+            final AttributeStats stats = attributes.get( i );
+            result[i] = stats.name + ": Count = " + stats.size.getCount()
+                    + ", Avg size = " + Math.round( stats.size.getMean() )
+                    + ", P99 size = " + stats.size.getPercentile( 99 )
+                    + ", Max size = " + stats.size.getMax()
+                    + ", Avg micros = " + Math.round( stats.micros.getMean() )
+                    + ", P99 micros = " + stats.micros.getPercentile( 99 );
+        }
+        return result;
+    }
+
+    /**
+     * Returns the largest sessions with their size in bytes (and largest attribute, if known).
+     */
+    @Nonnull
+    public synchronized String[] getLargestSessionsInfo() {
+        final List<LargeSession> sessions = new ArrayList<LargeSession>( _largestSessions.values() );
+        Collections.sort( sessions, new Comparator<LargeSession>() {
+            @Override
+            public int compare( final LargeSession o1, final LargeSession o2 ) {
+                return o1.size < o2.size ? 1 : o1.size == o2.size ? 0 : -1;
+            }
+        } );
+        final String[] result = new String[sessions.size()];
+        for ( int i = 0; i < result.length; i++ ) {
+            final LargeSession session = sessions.get( i );
+            result[i] = session.sessionId + " = " + session.size
+                    + ( session.largestAttribute != null ? " (largest attribute: " + session.largestAttribute + ")" : "" );
+        }
+        return result;
+    }
+
+    /**
+     * The size (bytes) and serialization time (micros) of an attribute, package-private for testing.
+     */
+    @CheckForNull
+    Histogram[] getStatsOf( @Nonnull final String name ) {
+        final AttributeStats stats = _attributes.get( name );
+        return stats != null ? new Histogram[] { stats.size, stats.micros } : null;
+    }
+
+    private static final class AttributeStats {
+
+        final String name;
+        final Histogram size = new Histogram();
+        final Histogram micros = new Histogram();
+
+        AttributeStats( @Nonnull final String name ) {
+            this.name = name;
+        }
+
+        void record( final long bytes, final long micros ) {
+            size.record( bytes );
+            this.micros.record( micros );
+        }
+
+    }
+
+    private static final class LargeSession {
+
+        final String sessionId;
+        final long size;
+        final String largestAttribute;
+
+        LargeSession( @Nonnull final String sessionId, final long size, @Nullable final String largestAttribute ) {
+            this.sessionId = sessionId;
+            this.size = size;
+            this.largestAttribute = largestAttribute;
+        }
+
+    }
+
+}
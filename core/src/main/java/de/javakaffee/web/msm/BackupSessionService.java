@@ -28,10 +28,12 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import net.spy.memcached.MemcachedClient;
 
@@ -58,6 +60,10 @@ public class BackupSessionService {
     private final MemcachedClient _memcached;
     private final MemcachedNodesManager _memcachedNodesManager;
     private final Statistics _statistics;
+    private final CurrentRequest _currentRequest;
+    private final RemoteReplicationStream _remoteReplicationStream;
+    private final SessionJournal _sessionJournal;
+    private final SpillBuffer _spillBuffer;
 
     private final ExecutorService _executorService;
 
@@ -69,6 +75,10 @@ public class BackupSessionService {
      * @param memcached
      * @param memcachedNodesManager
      * @param failoverNodeIds
+     * @param currentRequest used to batch the lock release with other operations performed when the request is finished
+     * @param remoteReplicationStream replicates stored sessions to a remote datacenter, may be <code>null</code>
+     * @param sessionJournal the local journal of serialized sessions, may be <code>null</code>
+     * @param spillBuffer keeps sessions that cannot be stored until their memcached node is available, may be <code>null</code>
      */
     public BackupSessionService( final TranscoderService transcoderService,
             final boolean sessionBackupAsync,
@@ -76,17 +86,27 @@ public class BackupSessionService {
             final int backupThreadCount,
             final MemcachedClient memcached,
             final MemcachedNodesManager memcachedNodesManager,
-            final Statistics statistics ) {
+            final Statistics statistics,
+            final CurrentRequest currentRequest,
+            @Nullable final RemoteReplicationStream remoteReplicationStream,
+            @Nullable final SessionJournal sessionJournal,
+            @Nullable final SpillBuffer spillBuffer ) {
         _transcoderService = transcoderService;
         _sessionBackupAsync = sessionBackupAsync;
         _sessionBackupTimeout = sessionBackupTimeout;
         _memcached = memcached;
         _memcachedNodesManager = memcachedNodesManager;
         _statistics = statistics;
+        _currentRequest = currentRequest;
+        _remoteReplicationStream = remoteReplicationStream;
+        _sessionJournal = sessionJournal;
+        _spillBuffer = spillBuffer;
 
-        _executorService = sessionBackupAsync
-            ? Executors.newFixedThreadPool( backupThreadCount, new NamedThreadFactory("msm-storage") )
-            : new SynchronousExecutorService();
+        _executorService = !sessionBackupAsync
+            ? new SynchronousExecutorService()
+            : SharedResources.isEnabled()
+                ? SharedResources.acquireExecutor( "msm-storage", backupThreadCount )
+                : Executors.newFixedThreadPool( backupThreadCount, new NamedThreadFactory("msm-storage") );
 
     }
 
@@ -94,7 +114,16 @@ public class BackupSessionService {
      * Shutdown this service, this stops the possibly existing threads used for session backup.
      */
     public void shutdown() {
-        _executorService.shutdown();
+        SharedResources.shutdown( _executorService );
+    }
+
+    /**
+     * Returns the number of session backups waiting for a backup thread, <code>0</code> for synchronous backups.
+     */
+    public int getQueueSize() {
+        return _executorService instanceof ThreadPoolExecutor
+            ? ( (ThreadPoolExecutor) _executorService ).getQueue().size()
+            : 0;
     }
 
     /**
@@ -168,7 +197,7 @@ public class BackupSessionService {
             _log.debug( "Starting for session id " + session.getId() );
         }
 
-        final long start = System.currentTimeMillis();
+        final long start = System.nanoTime();
         try {
 
             if ( !_memcachedNodesManager.getSessionIdFormat().isValid( session.getId() ) ) {
@@ -230,7 +259,11 @@ public class BackupSessionService {
                 _sessionBackupTimeout,
                 _memcached,
                 _memcachedNodesManager,
-                _statistics );
+                _statistics,
+                _currentRequest,
+                _remoteReplicationStream,
+                _sessionJournal,
+                _spillBuffer );
     }
 
     private void releaseLock( @Nonnull final MemcachedBackupSession session ) {
@@ -239,9 +272,15 @@ public class BackupSessionService {
                 if ( _log.isDebugEnabled() ) {
                     _log.debug( "Releasing lock for session " + session.getIdInternal() );
                 }
-                final long start = System.currentTimeMillis();
-                _memcached.delete( _memcachedNodesManager.getSessionIdFormat().createLockName( session.getIdInternal() ) ).get();
-                _statistics.registerSince( RELEASE_LOCK, start );
+                final String lockName = _memcachedNodesManager.getSessionIdFormat().createLockName( session.getIdInternal() );
+                final MemcachedOperationBatch batch = _currentRequest.getOperationBatch();
+                if ( batch != null ) {
+                    batch.delete( _memcached, lockName, _sessionBackupTimeout, RELEASE_LOCK );
+                } else {
+                    final long start = System.nanoTime();
+                    _memcached.delete( lockName ).get();
+                    _statistics.registerSince( RELEASE_LOCK, start );
+                }
                 session.releaseLock();
             } catch( final Exception e ) {
                 _log.warn( "Caught exception when trying to release lock for session " + session.getIdInternal(), e );
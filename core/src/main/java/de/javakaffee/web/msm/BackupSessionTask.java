@@ -60,6 +60,10 @@ public class BackupSessionTask implements Callable<BackupResult> {
     private final MemcachedClient _memcached;
     private final MemcachedNodesManager _memcachedNodesManager;
     private final Statistics _statistics;
+    private final CurrentRequest _currentRequest;
+    private final RemoteReplicationStream _remoteReplicationStream;
+    private final SessionJournal _sessionJournal;
+    private final SpillBuffer _spillBuffer;
 
     /**
      * @param session
@@ -73,6 +77,10 @@ public class BackupSessionTask implements Callable<BackupResult> {
      *            node (the session id had been changed before in this case).
      * @param memcachedNodesManager
      * @param failoverNodeIds
+     * @param currentRequest used to batch the lock release if the task is executed by the request thread
+     * @param remoteReplicationStream replicates the stored session to a remote datacenter, may be <code>null</code>
+     * @param sessionJournal the local journal the serialized session is appended to, may be <code>null</code>
+     * @param spillBuffer keeps the serialized session if it cannot be stored, may be <code>null</code>
      */
     public BackupSessionTask( final MemcachedBackupSession session,
             final boolean sessionIdChanged,
@@ -81,7 +89,11 @@ public class BackupSessionTask implements Callable<BackupResult> {
             final int sessionBackupTimeout,
             final MemcachedClient memcached,
             final MemcachedNodesManager memcachedNodesManager,
-            final Statistics statistics ) {
+            final Statistics statistics,
+            final CurrentRequest currentRequest,
+            @Nullable final RemoteReplicationStream remoteReplicationStream,
+            @Nullable final SessionJournal sessionJournal,
+            @Nullable final SpillBuffer spillBuffer ) {
         _session = session;
         _force = sessionIdChanged;
         _transcoderService = transcoderService;
@@ -90,6 +102,10 @@ public class BackupSessionTask implements Callable<BackupResult> {
         _memcached = memcached;
         _memcachedNodesManager = memcachedNodesManager;
         _statistics = statistics;
+        _currentRequest = currentRequest;
+        _remoteReplicationStream = remoteReplicationStream;
+        _sessionJournal = sessionJournal;
+        _spillBuffer = spillBuffer;
     }
 
     /**
@@ -101,10 +117,13 @@ public class BackupSessionTask implements Callable<BackupResult> {
             _log.debug( "Starting for session id " + _session.getId() );
         }
 
+        final OperationEvent event = OperationEvent.begin( OperationEvent.Type.BACKUP );
+        BackupResultStatus status = BackupResultStatus.FAILURE;
+        long bytes = 0;
         _session.setBackupRunning( true );
         try {
 
-            final long startBackup = System.currentTimeMillis();
+            final long startBackup = System.nanoTime();
 
             final Map<String, Object> attributes = _session.getAttributesFiltered();
             final byte[] attributesData = serializeAttributes( _session, attributes );
@@ -116,6 +135,7 @@ public class BackupSessionTask implements Callable<BackupResult> {
 
                 _session.setLastBackupTime( System.currentTimeMillis() );
                 final byte[] data = _transcoderService.serialize( _session, attributesData );
+                bytes = data != null ? data.length : 0;
 
                 result = doBackupSession( _session, data, attributesData );
                 if ( result.isSuccess() ) {
@@ -146,11 +166,17 @@ public class BackupSessionTask implements Callable<BackupResult> {
                         ", returning status " + result.getStatus() );
             }
 
+            status = result.getStatus();
             return result;
 
         } finally {
             _session.setBackupRunning( false );
             releaseLock();
+            if ( event != null ) {
+                event.end( _session.getIdInternal(), _memcachedNodesManager.getNodeIdOfSession( _session.getIdInternal() ), bytes,
+                        status == BackupResultStatus.SUCCESS ? OperationEvent.Outcome.SUCCESS
+                            : status == BackupResultStatus.SKIPPED ? OperationEvent.Outcome.SKIPPED : OperationEvent.Outcome.FAILURE );
+            }
         }
 
     }
@@ -161,9 +187,15 @@ public class BackupSessionTask implements Callable<BackupResult> {
                 if ( _log.isDebugEnabled() ) {
                     _log.debug( "Releasing lock for session " + _session.getIdInternal() );
                 }
-                final long start = System.currentTimeMillis();
-                _memcached.delete( _memcachedNodesManager.getSessionIdFormat().createLockName( _session.getIdInternal() ) ).get();
-                _statistics.registerSince( RELEASE_LOCK, start );
+                final String lockName = _memcachedNodesManager.getSessionIdFormat().createLockName( _session.getIdInternal() );
+                final MemcachedOperationBatch batch = _currentRequest.getOperationBatch();
+                if ( batch != null ) {
+                    batch.delete( _memcached, lockName, _sessionBackupTimeout, RELEASE_LOCK );
+                } else {
+                    final long start = System.nanoTime();
+                    _memcached.delete( lockName ).get();
+                    _statistics.registerSince( RELEASE_LOCK, start );
+                }
                 _session.releaseLock();
             } catch( final Exception e ) {
                 _log.warn( "Caught exception when trying to release lock for session " + _session.getIdInternal(), e );
@@ -172,9 +204,13 @@ public class BackupSessionTask implements Callable<BackupResult> {
     }
 
     private byte[] serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
-        final long start = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
         final byte[] attributesData = _transcoderService.serializeAttributes( session, attributes );
-        _statistics.registerSince( ATTRIBUTES_SERIALIZATION, start );
+        _statistics.registerSince( ATTRIBUTES_SERIALIZATION, startNanos );
+        final RequestTimings timings = _currentRequest.getTimings();
+        if ( timings != null ) {
+            timings.addSince( RequestTimings.Phase.SERIALIZATION, startNanos );
+        }
         return attributesData;
     }
 
@@ -191,19 +227,23 @@ public class BackupSessionTask implements Callable<BackupResult> {
             _log.debug( "Trying to store session in memcached: " + session.getId() );
         }
 
+        if ( _sessionJournal != null ) {
+            _sessionJournal.append( session.getIdInternal(), data );
+        }
+
         try {
             storeSessionInMemcached( session, data );
             return new BackupResult( BackupResultStatus.SUCCESS, data, attributesData );
         } catch (final ExecutionException e) {
-            handleException(session, e);
+            handleException(session, data, e);
             return new BackupResult(BackupResultStatus.FAILURE, data, null);
         } catch (final TimeoutException e) {
-            handleException(session, e);
+            handleException(session, data, e);
             return new BackupResult(BackupResultStatus.FAILURE, data, null);
         }
     }
 
-    private void handleException(final MemcachedBackupSession session, final Exception e) {
+    private void handleException(final MemcachedBackupSession session, final byte[] data, final Exception e) {
         //if ( _log.isWarnEnabled() ) {
             String msg = "Could not store session " + session.getId() + " in memcached.";
             if ( _force ) {
@@ -213,6 +253,13 @@ public class BackupSessionTask implements Callable<BackupResult> {
             _log.warn(msg, e);
         //}
         _memcachedNodesManager.setNodeAvailableForSessionId(session.getId(), false);
+        if ( _spillBuffer != null ) {
+            final String nodeId = _memcachedNodesManager.isEncodeNodeIdInSessionId()
+                ? _memcachedNodesManager.getSessionIdFormat().extractMemcachedId( session.getId() )
+                : null;
+            _spillBuffer.spill( _memcachedNodesManager.getStorageKeyFormat().format( session.getId() ), nodeId,
+                    session.getMemcachedExpirationTimeToSet(), data );
+        }
     }
 
     private void storeSessionInMemcached( final MemcachedBackupSession session, final byte[] data) throws InterruptedException, ExecutionException, TimeoutException {
@@ -223,11 +270,13 @@ public class BackupSessionTask implements Callable<BackupResult> {
          * be valid in tomcat
          */
         final int expirationTime = session.getMemcachedExpirationTimeToSet();
-        final long start = System.currentTimeMillis();
+        final long start = System.nanoTime();
         try {
-            final Future<Boolean> future = _memcached.set(
-                    _memcachedNodesManager.getStorageKeyFormat().format(session.getId()),
-                    toMemcachedExpiration(expirationTime), data );
+            final String key = _memcachedNodesManager.getStorageKeyFormat().format(session.getId());
+            final SessionReplicator replicator = _memcachedNodesManager.getSessionReplicator();
+            final Future<Boolean> future = replicator != null
+                ? replicator.set( key, toMemcachedExpiration(expirationTime), data )
+                : _memcached.set( key, toMemcachedExpiration(expirationTime), data );
             if ( !_sessionBackupAsync ) {
                 future.get( _sessionBackupTimeout, TimeUnit.MILLISECONDS );
                 session.setLastMemcachedExpirationTime( expirationTime );
@@ -239,6 +288,12 @@ public class BackupSessionTask implements Callable<BackupResult> {
                 session.setLastMemcachedExpirationTime( expirationTime );
                 session.setLastBackupTime( System.currentTimeMillis() );
             }
+            if ( _spillBuffer != null ) {
+                _spillBuffer.remove( key );
+            }
+            if ( _remoteReplicationStream != null ) {
+                _remoteReplicationStream.enqueue( key, toMemcachedExpiration(expirationTime), data );
+            }
         } finally {
             _statistics.registerSince( MEMCACHED_UPDATE, start );
         }
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.Configurations.CIRCUIT_BREAKER_ERROR_RATE_KEY;
+import static de.javakaffee.web.msm.Configurations.CIRCUIT_BREAKER_MIN_OPERATIONS_KEY;
+import static de.javakaffee.web.msm.Configurations.CIRCUIT_BREAKER_OPEN_DURATION_KEY;
+import static de.javakaffee.web.msm.Configurations.CIRCUIT_BREAKER_P99_KEY;
+import static de.javakaffee.web.msm.Configurations.CIRCUIT_BREAKER_TRIALS_KEY;
+import static de.javakaffee.web.msm.Configurations.getSystemProperty;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Circuit breakers for memcached nodes. A node's breaker opens (trips) if the error rate or the
+ * p99 latency of its operations exceeds the configured threshold. While a breaker is open the node is
+ * treated as unavailable, so that new sessions and backups go to other nodes. After the open duration
+ * the breaker is half-open and lets a limited number of trial requests pass: if they all succeed in time
+ * the breaker is closed again, otherwise it's opened again.
+ * <p>
+ * Other than a node marked as unavailable in the {@link NodeAvailabilityCache}, a node with an open
+ * breaker may still be alive but too slow to be used.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class CircuitBreakers {
+
+    private static final Log LOG = LogFactory.getLog( CircuitBreakers.class );
+
+    public static enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final long EVALUATION_INTERVAL = 1000;
+
+    private final ConcurrentMap<String, CircuitBreaker> _breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+    private final double _errorRateThreshold;
+    private final long _latencyThresholdInMicros;
+    private final int _minOperations;
+    private final long _openDurationInMillis;
+    private final int _trials;
+
+    /**
+     * @param errorRateThreshold the error rate (0 to 1) that opens a breaker, <code>0</code> to ignore errors.
+     * @param latencyThresholdInMicros the p99 latency that opens a breaker, <code>0</code> to ignore latency.
+     * @param minOperations the min number of operations before error rate and latency are evaluated.
+     * @param openDurationInMillis the time a breaker stays open before trial requests are let through.
+     * @param trials the number of trial requests in half-open state.
+     */
+    public CircuitBreakers( final double errorRateThreshold, final long latencyThresholdInMicros, final int minOperations,
+            final long openDurationInMillis, final int trials ) {
+        _errorRateThreshold = errorRateThreshold;
+        _latencyThresholdInMicros = latencyThresholdInMicros;
+        _minOperations = Math.max( 1, minOperations );
+        _openDurationInMillis = openDurationInMillis;
+        _trials = Math.max( 1, trials );
+    }
+
+    /**
+     * Creates the circuit breakers as configured by system properties, returns <code>null</code>
+     * if neither {@value Configurations#CIRCUIT_BREAKER_ERROR_RATE_KEY} nor {@value Configurations#CIRCUIT_BREAKER_P99_KEY}
+     * is set.
+     */
+    @CheckForNull
+    public static CircuitBreakers createFromSystemProperties() {
+        final int errorRatePercent = getSystemProperty( CIRCUIT_BREAKER_ERROR_RATE_KEY, 0 );
+        final long p99InMillis = getSystemProperty( CIRCUIT_BREAKER_P99_KEY, 0L );
+        if ( errorRatePercent <= 0 && p99InMillis <= 0 ) {
+            return null;
+        }
+        return new CircuitBreakers( errorRatePercent / 100d, p99InMillis * 1000,
+                getSystemProperty( CIRCUIT_BREAKER_MIN_OPERATIONS_KEY, 20 ),
+                getSystemProperty( CIRCUIT_BREAKER_OPEN_DURATION_KEY, 5000L ),
+                getSystemProperty( CIRCUIT_BREAKER_TRIALS_KEY, 5 ) );
+    }
+
+    /**
+     * Determines if requests may be sent to the given node. In half-open state this
+     * consumes one of the trial requests.
+     */
+    public boolean allowRequest( @Nonnull final String node ) {
+        return allowRequest( node, System.currentTimeMillis() );
+    }
+
+    boolean allowRequest( final String node, final long now ) {
+        final CircuitBreaker breaker = _breakers.get( node );
+        return breaker == null || breaker.allowRequest( now );
+    }
+
+    /**
+     * Registers a completed operation of the given node.
+     */
+    public void register( @Nonnull final String node, final long latencyInMicros, final boolean error ) {
+        register( node, latencyInMicros, error, System.currentTimeMillis() );
+    }
+
+    void register( final String node, final long latencyInMicros, final boolean error, final long now ) {
+        getOrCreate( node, now ).register( latencyInMicros, error, now );
+    }
+
+    /**
+     * The state of the breaker of the given node.
+     */
+    @Nonnull
+    public State getState( @Nonnull final String node ) {
+        final CircuitBreaker breaker = _breakers.get( node );
+        return breaker != null ? breaker._state : State.CLOSED;
+    }
+
+    private CircuitBreaker getOrCreate( final String node, final long now ) {
+        CircuitBreaker result = _breakers.get( node );
+        if ( result == null ) {
+            final CircuitBreaker created = new CircuitBreaker( node, now );
+            result = _breakers.putIfAbsent( node, created );
+            if ( result == null ) {
+                result = created;
+            }
+        }
+        return result;
+    }
+
+    private final class CircuitBreaker {
+
+        private final String _node;
+        private volatile State _state = State.CLOSED;
+
+        private volatile Histogram _latencies = new Histogram();
+        private final AtomicLong _errors = new AtomicLong();
+        private volatile long _windowStart;
+
+        private volatile long _stateSince;
+        private final AtomicInteger _permits = new AtomicInteger();
+        private final AtomicInteger _successes = new AtomicInteger();
+
+        CircuitBreaker( final String node, final long now ) {
+            _node = node;
+            _windowStart = now;
+        }
+
+        boolean allowRequest( final long now ) {
+            switch ( _state ) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if ( now - _stateSince < _openDurationInMillis ) {
+                        return false;
+                    }
+                    halfOpen( State.OPEN, now );
+                    return _permits.getAndDecrement() > 0;
+                default:
+                    if ( now - _stateSince >= _openDurationInMillis ) {
+                        // the trials did not complete in time (e.g. they were not sent), start another round
+                        halfOpen( State.HALF_OPEN, now );
+                    }
+                    return _permits.getAndDecrement() > 0;
+            }
+        }
+
+        void register( final long latencyInMicros, final boolean error, final long now ) {
+            switch ( _state ) {
+                case CLOSED:
+                    _latencies.record( latencyInMicros );
+                    if ( error ) {
+                        _errors.incrementAndGet();
+                    }
+                    if ( now - _windowStart >= EVALUATION_INTERVAL ) {
+                        evaluate( now );
+                    }
+                    break;
+                case HALF_OPEN:
+                    if ( error || exceedsLatency( latencyInMicros ) ) {
+                        open( State.HALF_OPEN, now, "trial request " + ( error ? "failed" : "took " + latencyInMicros / 1000 + " ms" ) );
+                    }
+                    else if ( _successes.incrementAndGet() >= _trials ) {
+                        close( now );
+                    }
+                    break;
+                default:
+                    // operations sent before the breaker opened
+                    break;
+            }
+        }
+
+        private boolean exceedsLatency( final long latencyInMicros ) {
+            return _latencyThresholdInMicros > 0 && latencyInMicros > _latencyThresholdInMicros;
+        }
+
+        private synchronized void evaluate( final long now ) {
+            if ( _state != State.CLOSED || now - _windowStart < EVALUATION_INTERVAL ) {
+                return;
+            }
+            final Histogram latencies = _latencies;
+            final long count = latencies.getCount();
+            if ( count < _minOperations ) {
+                // keep collecting, but don't let old operations influence the decision too long
+                if ( now - _windowStart >= 10 * EVALUATION_INTERVAL ) {
+                    resetWindow( now );
+                }
+                return;
+            }
+            final double errorRate = (double) _errors.get() / count;
+            final long p99 = _latencyThresholdInMicros > 0 ? latencies.getPercentile( 99 ) : 0;
+            resetWindow( now );
+            if ( _errorRateThreshold > 0 && errorRate >= _errorRateThreshold ) {
+                open( State.CLOSED, now, "error rate " + Math.round( errorRate * 100 ) + "%" );
+            }
+            else if ( exceedsLatency( p99 ) ) {
+                open( State.CLOSED, now, "p99 latency " + p99 / 1000 + " ms" );
+            }
+        }
+
+        private void resetWindow( final long now ) {
+            _latencies = new Histogram();
+            _errors.set( 0 );
+            _windowStart = now;
+        }
+
+        private synchronized void open( final State expected, final long now, final String reason ) {
+            if ( _state != expected ) {
+                return;
+            }
+            _state = State.OPEN;
+            _stateSince = now;
+            LOG.warn( "Opening circuit breaker for memcached node " + _node + " (" + reason + "), the node is not used for "
+                    + _openDurationInMillis + " ms." );
+        }
+
+        private synchronized void halfOpen( final State expected, final long now ) {
+            if ( _state != expected || now - _stateSince < _openDurationInMillis ) {
+                return;
+            }
+            _permits.set( _trials );
+            _successes.set( 0 );
+            _stateSince = now;
+            _state = State.HALF_OPEN;
+            if ( LOG.isDebugEnabled() ) {
+                LOG.debug( "Circuit breaker for memcached node " + _node + " is half-open, allowing " + _trials + " trial requests." );
+            }
+        }
+
+        private synchronized void close( final long now ) {
+            if ( _state != State.HALF_OPEN ) {
+                return;
+            }
+            resetWindow( now );
+            _state = State.CLOSED;
+            _stateSince = now;
+            LOG.info( "Closing circuit breaker for memcached node " + _node + ", trial requests succeeded." );
+        }
+
+    }
+
+}
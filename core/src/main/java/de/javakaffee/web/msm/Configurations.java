@@ -30,10 +30,200 @@ public final class Configurations {
      * The TTL for {@link NodeAvailabilityCache} entries, in millis.
      */
     public static final String NODE_AVAILABILITY_CACHE_TTL_KEY = "msm.nodeAvailabilityCacheTTL";
+    /**
+     * The interval in millis to probe memcached nodes in the background, so that requests don't
+     * check node availability when the {@link NodeAvailabilityCache} entry expired.
+     * Default is <code>0</code> (no background probing).
+     */
+    public static final String NODE_AVAILABILITY_PROBE_INTERVAL_KEY = "msm.nodeAvailabilityProbeInterval";
+    /**
+     * The max interval in millis to probe unavailable memcached nodes (with exponential backoff),
+     * default is <code>30000</code>.
+     */
+    public static final String NODE_AVAILABILITY_MAX_PROBE_BACKOFF_KEY = "msm.nodeAvailabilityMaxProbeBackoff";
     /**
      * The max reconnect delay for the MemcachedClient, in seconds.
      */
     public static final String MAX_RECONNECT_DELAY_KEY = "msm.maxReconnectDelay";
+    /**
+     * Specifies if the binary protocol shall send sets as quiet sets (setq), so that
+     * memcached only responds on errors. Only used for the binary protocol, default is <code>false</code>.
+     */
+    public static final String BINARY_QUIET_WRITES_KEY = "msm.binaryQuietWrites";
+    /**
+     * The number of connections (memcached clients) per memcached node, default is <code>1</code>.
+     * Operations are routed by session id, see {@link ShardedMemcachedClient}.
+     */
+    public static final String CONNECTIONS_PER_NODE_KEY = "msm.connectionsPerNode";
+    /**
+     * The min size in bytes of session data that is stored via a separate bulk connection,
+     * default is <code>0</code> (no bulk connection).
+     */
+    public static final String BULK_CONNECTION_THRESHOLD_KEY = "msm.bulkConnectionThreshold";
+    /**
+     * Specifies if memcached clients and executors shall be shared by contexts with compatible
+     * configuration, see {@link SharedResources}. Default is <code>false</code>.
+     */
+    public static final String SHARED_RESOURCES_KEY = "msm.sharedResources";
+
+    /**
+     * The error rate in percent of operations to a memcached node that opens its circuit breaker,
+     * default is <code>0</code> (not evaluated). See {@link CircuitBreakers}.
+     */
+    public static final String CIRCUIT_BREAKER_ERROR_RATE_KEY = "msm.circuitBreakerErrorRate";
+    /**
+     * The p99 latency in millis of operations to a memcached node that opens its circuit breaker,
+     * default is <code>0</code> (not evaluated).
+     */
+    public static final String CIRCUIT_BREAKER_P99_KEY = "msm.circuitBreakerP99";
+    /**
+     * The min number of operations before a circuit breaker evaluates error rate and latency, default is <code>20</code>.
+     */
+    public static final String CIRCUIT_BREAKER_MIN_OPERATIONS_KEY = "msm.circuitBreakerMinOperations";
+    /**
+     * The time in millis a circuit breaker stays open before it lets trial requests pass, default is <code>5000</code>.
+     */
+    public static final String CIRCUIT_BREAKER_OPEN_DURATION_KEY = "msm.circuitBreakerOpenDuration";
+    /**
+     * The number of trial requests that must succeed to close a half-open circuit breaker, default is <code>5</code>.
+     */
+    public static final String CIRCUIT_BREAKER_TRIALS_KEY = "msm.circuitBreakerTrials";
+    /**
+     * The number of sessions per second that are relocated in the background when a memcached node
+     * becomes unavailable (sticky sessions only), default is <code>0</code> (sessions are only relocated
+     * with their next request).
+     */
+    public static final String RELOCATION_RATE_KEY = "msm.relocationRate";
+    /**
+     * The percentile (e.g. <code>95</code>) of the recent latency of a memcached node after which the secondary
+     * backup of a non-sticky session is requested as well when the session is loaded (hedged read),
+     * default is <code>0</code> (hedged reads disabled).
+     */
+    public static final String HEDGED_READ_PERCENTILE_KEY = "msm.hedgedReadPercentile";
+    /**
+     * The min time in millis to wait for the primary memcached node before the backup is requested, default is <code>2</code>.
+     */
+    public static final String HEDGED_READ_MIN_DELAY_KEY = "msm.hedgedReadMinDelay";
+    /**
+     * The weights of memcached nodes configured without node id (located by consistent hashing),
+     * e.g. <code>host1:11211=2,host2:11211=1</code>. The default weight is <code>1</code>.
+     */
+    public static final String NODE_WEIGHTS_KEY = "msm.nodeWeights";
+    /**
+     * The number of virtual nodes (points on the hash ring) of a memcached node with weight 1 if nodes are
+     * located by consistent hashing, default is <code>160</code>.
+     */
+    public static final String KETAMA_VIRTUAL_NODES_KEY = "msm.ketamaVirtualNodes";
+    /**
+     * The time in millis the former memcached nodes are kept after the memcached nodes were changed
+     * at runtime, so that sessions of removed nodes are migrated to the new nodes, default is <code>0</code>
+     * (the former nodes are dropped immediately, sessions of removed nodes are only recovered from backups).
+     */
+    public static final String TOPOLOGY_TRANSITION_PERIOD_KEY = "msm.topologyTransitionPeriod";
+    /**
+     * The number of sticky sessions per second that are migrated in the background from removed memcached
+     * nodes during a topology transition, default is <code>100</code>.
+     */
+    public static final String TOPOLOGY_MIGRATION_RATE_KEY = "msm.topologyMigrationRate";
+    /**
+     * The number of memcached nodes that store each session and its validity info (the primary node and its successors),
+     * default is <code>1</code> (no replication). Requires node ids encoded in session ids.
+     */
+    public static final String REPLICATION_FACTOR_KEY = "msm.replicationFactor";
+    /**
+     * The number of replicas that must acknowledge a write before a synchronous session backup is finished,
+     * default is the majority of the replication factor.
+     */
+    public static final String REPLICATION_WRITE_QUORUM_KEY = "msm.replicationWriteQuorum";
+    /**
+     * The memcached nodes of a remote datacenter (same format as the memcachedNodes) that sessions are
+     * replicated to asynchronously, see {@link RemoteReplicationStream}. Default is not set (no remote replication).
+     */
+    public static final String REMOTE_MEMCACHED_NODES_KEY = "msm.remoteMemcachedNodes";
+    /**
+     * The interval in millis in which pending sessions are replicated to the remote memcached nodes, default is <code>100</code>.
+     */
+    public static final String REMOTE_REPLICATION_INTERVAL_KEY = "msm.remoteReplicationInterval";
+    /**
+     * The max number of sessions that are sent to the remote memcached nodes in one batch, default is <code>100</code>.
+     */
+    public static final String REMOTE_REPLICATION_BATCH_SIZE_KEY = "msm.remoteReplicationBatchSize";
+    /**
+     * The max time in millis a session waits for replication to the remote memcached nodes before it's dropped,
+     * default is <code>60000</code>.
+     */
+    public static final String REMOTE_REPLICATION_MAX_LAG_KEY = "msm.remoteReplicationMaxLag";
+    /**
+     * The max number of sessions waiting for replication to the remote memcached nodes, further sessions
+     * are dropped. Default is <code>10000</code>.
+     */
+    public static final String REMOTE_REPLICATION_MAX_PENDING_KEY = "msm.remoteReplicationMaxPending";
+    /**
+     * The min size in bytes of sessions that are compressed when they're replicated to the remote memcached nodes,
+     * default is <code>1024</code>.
+     */
+    public static final String REMOTE_REPLICATION_COMPRESSION_THRESHOLD_KEY = "msm.remoteReplicationCompressionThreshold";
+    /**
+     * The directory of the local session journal (sticky sessions only), that is used to preload sessions
+     * after a restart, see {@link SessionJournal}. Default is not set (no journal).
+     */
+    public static final String JOURNAL_DIRECTORY_KEY = "msm.journalDirectory";
+    /**
+     * The size in bytes of a session journal segment file, default is <code>67108864</code> (64 MB).
+     */
+    public static final String JOURNAL_SEGMENT_SIZE_KEY = "msm.journalSegmentSize";
+    /**
+     * The interval in millis in which the session journal is compacted, default is <code>60000</code>.
+     */
+    public static final String JOURNAL_COMPACTION_INTERVAL_KEY = "msm.journalCompactionInterval";
+    /**
+     * The interval in millis in which the current session journal segment is flushed to disk, default is <code>1000</code>.
+     */
+    public static final String JOURNAL_FLUSH_INTERVAL_KEY = "msm.journalFlushInterval";
+    /**
+     * The number of preloaded sessions per second that are checked against memcached after a restart,
+     * default is <code>100</code>.
+     */
+    public static final String JOURNAL_VERIFICATION_RATE_KEY = "msm.journalVerificationRate";
+    /**
+     * The max overall size in bytes of sessions that are kept off-heap while their memcached node is not available,
+     * so that they're stored when the node is available again, see {@link SpillBuffer}. Default is <code>0</code>
+     * (sessions that cannot be stored are not kept).
+     */
+    public static final String SPILL_BUFFER_SIZE_KEY = "msm.spillBufferSize";
+    /**
+     * The number of spilled sessions per second that are stored when their memcached node is available again,
+     * default is <code>100</code>.
+     */
+    public static final String SPILL_REPLAY_RATE_KEY = "msm.spillReplayRate";
+    /**
+     * The class name of an {@link OperationListener} that is notified about session loads, backups, locks and
+     * (de)serialization, e.g. to emit them as Java Flight Recorder events. Default is not set (no events).
+     */
+    public static final String OPERATION_LISTENER_KEY = "msm.operationListener";
+    /**
+     * The min duration in millis of operations that are passed to the {@link OperationListener}, default is <code>0</code>.
+     */
+    public static final String OPERATION_EVENT_THRESHOLD_KEY = "msm.operationEventThreshold";
+    /**
+     * Profile the session attributes of one of this number of session backups (e.g. <code>100</code> for 1%),
+     * see {@link AttributeProfiler}. Default is <code>0</code> (no profiling).
+     */
+    public static final String ATTRIBUTE_PROFILING_INTERVAL_KEY = "msm.attributeProfilingInterval";
+    /**
+     * The number of attributes and largest sessions reported by the {@link AttributeProfiler}, default is <code>10</code>.
+     */
+    public static final String ATTRIBUTE_PROFILING_TOP_N_KEY = "msm.attributeProfilingTopN";
+    /**
+     * The number of requests with the highest lock wait time reported by the {@link LockContentionProfiler}
+     * (non-sticky sessions with locking). Default is <code>0</code> (no profiling).
+     */
+    public static final String LOCK_CONTENTION_TOP_K_KEY = "msm.lockContentionTopK";
+    /**
+     * Specifies if the time spent by msm per request (locking, loading, (de)serialization, backup) is sent
+     * as <code>Server-Timing</code> response header, see {@link RequestTimings}. Default is <code>false</code>.
+     */
+    public static final String SERVER_TIMING_KEY = "msm.serverTiming";
 
     private static final Log LOG = LogFactory.getLog(Configurations.class);
 
@@ -61,4 +251,12 @@ public final class Configurations {
         return defaultValue;
     }
 
+    public static boolean getSystemProperty(final String propName, final boolean defaultValue) {
+        final String value = System.getProperty(propName);
+        if(value != null) {
+            return Boolean.parseBoolean(value.trim());
+        }
+        return defaultValue;
+    }
+
 }
@@ -26,6 +26,17 @@ public class CurrentRequest {
 
     private final InheritableThreadLocal<Request> _requestsThreadLocal = new InheritableThreadLocal<Request>();
 
+    /*
+     * Not inheritable, operations must be batched only by the request thread
+     * that also flushes the batch.
+     */
+    private final ThreadLocal<MemcachedOperationBatch> _batchThreadLocal = new ThreadLocal<MemcachedOperationBatch>();
+
+    /*
+     * Not inheritable, only time spent in the request thread is recorded.
+     */
+    private final ThreadLocal<RequestTimings> _timingsThreadLocal = new ThreadLocal<RequestTimings>();
+
     public Request get() {
         return _requestsThreadLocal.get();
     }
@@ -38,4 +49,54 @@ public class CurrentRequest {
         _requestsThreadLocal.set(null);
     }
 
+    /**
+     * Binds a new {@link MemcachedOperationBatch} to the current thread and returns it.
+     */
+    public MemcachedOperationBatch startOperationBatch() {
+        final MemcachedOperationBatch batch = new MemcachedOperationBatch();
+        _batchThreadLocal.set(batch);
+        return batch;
+    }
+
+    /**
+     * Returns the {@link MemcachedOperationBatch} bound to the current thread, or <code>null</code>
+     * if operations shall not be batched.
+     */
+    public MemcachedOperationBatch getOperationBatch() {
+        return _batchThreadLocal.get();
+    }
+
+    /**
+     * Unbinds the {@link MemcachedOperationBatch} from the current thread and returns it.
+     */
+    public MemcachedOperationBatch endOperationBatch() {
+        final MemcachedOperationBatch batch = _batchThreadLocal.get();
+        _batchThreadLocal.remove();
+        return batch;
+    }
+
+    /**
+     * Binds new {@link RequestTimings} to the current thread and returns them.
+     */
+    public RequestTimings startTimings() {
+        final RequestTimings timings = new RequestTimings();
+        _timingsThreadLocal.set(timings);
+        return timings;
+    }
+
+    /**
+     * Returns the {@link RequestTimings} bound to the current thread, or <code>null</code>
+     * if timings are not recorded.
+     */
+    public RequestTimings getTimings() {
+        return _timingsThreadLocal.get();
+    }
+
+    /**
+     * Unbinds the {@link RequestTimings} from the current thread.
+     */
+    public void endTimings() {
+        _timingsThreadLocal.remove();
+    }
+
 }
@@ -28,6 +28,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import net.spy.memcached.MemcachedClient;
 
@@ -98,10 +99,10 @@ public class DummyMemcachedSessionService<T extends MemcachedSessionService.Sess
      */
     public Future<BackupResult> backupSession( final Session session, final boolean sessionIdChanged, final String requestURI ) {
         _log.info( "Serializing session data for session " + session.getIdInternal() );
-        final long startSerialization = System.currentTimeMillis();
+        final long startSerialization = System.nanoTime();
         final byte[] data = _transcoderService.serializeAttributes( (MemcachedBackupSession) session, ((MemcachedBackupSession) session).getAttributesFiltered() );
         _log.info( String.format( "Serializing %1$,.3f kb session data for session %2$s took %3$d ms.",
-                (double)data.length / 1000, session.getIdInternal(), System.currentTimeMillis() - startSerialization ) );
+                (double)data.length / 1000, session.getIdInternal(), TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - startSerialization ) ) );
         _sessionData.put( session.getIdInternal(), data );
         _statistics.registerSince( ATTRIBUTES_SERIALIZATION, startSerialization );
         _statistics.register( CACHED_DATA_SIZE, data.length );
@@ -142,14 +143,14 @@ public class DummyMemcachedSessionService<T extends MemcachedSessionService.Sess
         @Override
         public Void call() throws Exception {
             _log.info( String.format( "Deserializing %1$,.3f kb session data for session %2$s (asynchronously).", (double)_data.length / 1000, _id ) );
-            final long startDeserialization = System.currentTimeMillis();
+            final long startDeserialization = System.nanoTime();
             try {
                 _transcoderService.deserializeAttributes( _data );
             } catch( final Exception e ) {
                 _log.warn( "Could not deserialize session data.", e );
             }
             _log.info( String.format( "Deserializing %1$,.3f kb session data for session %2$s took %3$d ms.",
-                    (double)_data.length / 1000, _id, System.currentTimeMillis() - startDeserialization ) );
+                    (double)_data.length / 1000, _id, TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - startDeserialization ) ) );
             _statistics.registerSince( LOAD_FROM_MEMCACHED, startDeserialization );
             return null;
         }
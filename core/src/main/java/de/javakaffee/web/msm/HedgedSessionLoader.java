@@ -0,0 +1,293 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.Configurations.HEDGED_READ_MIN_DELAY_KEY;
+import static de.javakaffee.web.msm.Configurations.HEDGED_READ_PERCENTILE_KEY;
+import static de.javakaffee.web.msm.Configurations.getSystemProperty;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.GetCompletionListener;
+import net.spy.memcached.internal.GetFuture;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Loads non-sticky sessions with hedged reads: if the primary memcached node did not answer within
+ * a delay (the recent latency of the node at the configured percentile), the secondary backup of the
+ * session (see {@link SessionIdFormat#createBackupKey(String)}) is requested as well, and the first
+ * usable response is taken. This cuts the tail latency of session loads if a memcached node is slow
+ * (e.g. during a GC pause or a network hiccup), without waiting for the operation timeout.
+ * <p>
+ * The response of the primary node is authoritative: if it arrives, it's used (even if it's a miss).
+ * The backup is only used if its validity info (also stored in the secondary node) is valid and
+ * is not older than the backup session, i.e. the backup session and validity info were written by
+ * the same request. As the secondary backup is written asynchronously after the primary, the backup
+ * might miss the changes of a request that was just finished - the same is true if the session is loaded
+ * from the backup after a node failure.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class HedgedSessionLoader {
+
+    private static final Log LOG = LogFactory.getLog( HedgedSessionLoader.class );
+
+    private final MemcachedClient _memcached;
+    private final NodeStatistics _nodeStatistics;
+    private final SessionIdFormat _sessionIdFormat;
+    private final Statistics _statistics;
+    private final double _percentile;
+    private final long _minDelayInMillis;
+    private final boolean _encodeNodeIdInSessionId;
+
+    /**
+     * @param percentile the percentile of the recent latency of the primary node after which the backup is requested.
+     * @param minDelayInMillis the min delay before the backup is requested, also used if there are no recent latencies.
+     */
+    public HedgedSessionLoader( @Nonnull final MemcachedClient memcached, @Nonnull final NodeStatistics nodeStatistics,
+            @Nonnull final SessionIdFormat sessionIdFormat, @Nonnull final Statistics statistics,
+            final double percentile, final long minDelayInMillis ) {
+        this( memcached, nodeStatistics, sessionIdFormat, statistics, percentile, minDelayInMillis, true );
+    }
+
+    /**
+     * @param encodeNodeIdInSessionId specifies if session ids contain the node id, otherwise (nodes are located by
+     *      consistent hashing) the min delay is used.
+     */
+    public HedgedSessionLoader( @Nonnull final MemcachedClient memcached, @Nonnull final NodeStatistics nodeStatistics,
+            @Nonnull final SessionIdFormat sessionIdFormat, @Nonnull final Statistics statistics,
+            final double percentile, final long minDelayInMillis, final boolean encodeNodeIdInSessionId ) {
+        _memcached = memcached;
+        _nodeStatistics = nodeStatistics;
+        _sessionIdFormat = sessionIdFormat;
+        _statistics = statistics;
+        _percentile = percentile;
+        _minDelayInMillis = minDelayInMillis;
+        _encodeNodeIdInSessionId = encodeNodeIdInSessionId;
+    }
+
+    /**
+     * Creates the loader as configured by system properties, returns <code>null</code>
+     * if {@value Configurations#HEDGED_READ_PERCENTILE_KEY} is not set.
+     */
+    @CheckForNull
+    public static HedgedSessionLoader createFromSystemProperties( @Nonnull final MemcachedClient memcached,
+            @Nonnull final MemcachedNodesManager memcachedNodesManager, @Nonnull final Statistics statistics ) {
+        final int percentile = getSystemProperty( HEDGED_READ_PERCENTILE_KEY, 0 );
+        if ( percentile <= 0 ) {
+            return null;
+        }
+        return new HedgedSessionLoader( memcached, memcachedNodesManager.getNodeStatistics(), memcachedNodesManager.getSessionIdFormat(),
+                statistics, Math.min( percentile, 100 ), getSystemProperty( HEDGED_READ_MIN_DELAY_KEY, 2L ),
+                memcachedNodesManager.isEncodeNodeIdInSessionId() );
+    }
+
+    /**
+     * The time to wait for the given primary node before the backup is requested.
+     */
+    long getDelay( @CheckForNull final String nodeId ) {
+        final long latencyInMillis = nodeId != null ? _nodeStatistics.getRecentLatency( nodeId, _percentile ) / 1000 : 0;
+        return Math.max( _minDelayInMillis, latencyInMillis );
+    }
+
+    /**
+     * Loads the session data for the given session id.
+     *
+     * @param sessionId the session id, must contain the memcached node id.
+     * @param key the key of the session in the primary memcached node.
+     * @param timeoutInMillis the max time to wait for a response.
+     * @return the result, its data is <code>null</code> if the session was not found.
+     * @throws TimeoutException if neither the primary nor the backup answered in time.
+     * @throws ExecutionException if the primary failed and the backup could not be used.
+     */
+    @Nonnull
+    public Result load( @Nonnull final String sessionId, @Nonnull final String key, final long timeoutInMillis )
+            throws InterruptedException, ExecutionException, TimeoutException {
+        final long start = System.currentTimeMillis();
+        final Completions completions = new Completions();
+        final GetFuture<Object> primary = _memcached.asyncGet( key );
+        primary.addListener( completions );
+        final String nodeId = _encodeNodeIdInSessionId ? _sessionIdFormat.extractMemcachedId( sessionId ) : null;
+        final long delay = Math.min( getDelay( nodeId ), timeoutInMillis );
+        if ( completions.poll( start + delay ) == primary ) {
+            try {
+                return Result.primary( primary.get() );
+            } catch ( final ExecutionException e ) {
+                if ( LOG.isDebugEnabled() ) {
+                    LOG.debug( "Loading session " + sessionId + " from primary memcached failed, trying the backup", e.getCause() );
+                }
+            }
+        }
+
+        _statistics.hedgedRead();
+        final GetFuture<Object> backup = _memcached.asyncGet( _sessionIdFormat.createBackupKey( sessionId ) );
+        final GetFuture<Object> backupValidity = _memcached.asyncGet(
+                _sessionIdFormat.createBackupKey( _sessionIdFormat.createValidityInfoKeyName( sessionId ) ) );
+        backup.addListener( completions );
+        backupValidity.addListener( completions );
+
+        final long deadline = start + timeoutInMillis;
+        ExecutionException primaryFailure = primary.isDone() ? failure( primary ) : null;
+        int backupsDone = 0;
+        boolean backupUnusable = false;
+        Future<?> completed;
+        while ( ( completed = completions.poll( deadline ) ) != null ) {
+            if ( completed == primary ) {
+                try {
+                    return Result.primary( primary.get() );
+                } catch ( final ExecutionException e ) {
+                    primaryFailure = e;
+                }
+            }
+            else if ( ++backupsDone == 2 ) {
+                final Result result = toBackupResult( sessionId, backup, backupValidity );
+                if ( result != null ) {
+                    _statistics.hedgedReadFromBackup();
+                    return result;
+                }
+                backupUnusable = true;
+            }
+            if ( primaryFailure != null && backupUnusable ) {
+                throw primaryFailure;
+            }
+        }
+        primary.cancel( false );
+        backup.cancel( false );
+        backupValidity.cancel( false );
+        throw new TimeoutException( "Neither the primary nor the backup of session " + sessionId + " was loaded within " + timeoutInMillis + " ms." );
+    }
+
+    @CheckForNull
+    private static ExecutionException failure( final Future<Object> future ) throws InterruptedException {
+        try {
+            future.get();
+            return null;
+        } catch ( final ExecutionException e ) {
+            return e;
+        }
+    }
+
+    /**
+     * Creates the result from the backup and its validity info, both must be completed.
+     */
+    @CheckForNull
+    private Result toBackupResult( final String sessionId, final Future<Object> backup, final Future<Object> backupValidity )
+            throws InterruptedException {
+        try {
+            final Object data = backup.get();
+            if ( !( data instanceof byte[] ) ) {
+                return null;
+            }
+            final Object validityData = backupValidity.get();
+            if ( !( validityData instanceof byte[] ) ) {
+                return null;
+            }
+            final SessionValidityInfo validityInfo = SessionValidityInfo.decode( (byte[]) validityData );
+            if ( !validityInfo.isValid() || validityInfo.getThisAccessedTime() < TranscoderService.decodeThisAccessedTime( (byte[]) data ) ) {
+                if ( LOG.isDebugEnabled() ) {
+                    LOG.debug( "Backup of session " + sessionId + " is not valid or does not match its validity info, not using it" );
+                }
+                return null;
+            }
+            return Result.backup( (byte[]) data, validityInfo );
+        } catch ( final ExecutionException e ) {
+            LOG.debug( "Could not load backup of session " + sessionId, e.getCause() );
+            return null;
+        }
+    }
+
+    /**
+     * Collects the futures of a load as they complete. The futures are not waited for with Future.get and
+     * a timeout, as spymemcached marks the operation as timed out if the timeout is exceeded.
+     */
+    private static final class Completions implements GetCompletionListener {
+
+        private final BlockingQueue<Future<?>> _completed = new LinkedBlockingQueue<Future<?>>();
+
+        @Override
+        public void onComplete( final GetFuture<?> future ) {
+            _completed.add( future );
+        }
+
+        /**
+         * Waits until the next future completed, returns <code>null</code> if none completed before the deadline.
+         */
+        @CheckForNull
+        Future<?> poll( final long deadline ) throws InterruptedException {
+            return _completed.poll( Math.max( 0, deadline - System.currentTimeMillis() ), TimeUnit.MILLISECONDS );
+        }
+
+    }
+
+    /**
+     * The result of a hedged load.
+     */
+    public static final class Result {
+
+        private final Object _data;
+        private final SessionValidityInfo _backupValidityInfo;
+
+        private Result( final Object data, final SessionValidityInfo backupValidityInfo ) {
+            _data = data;
+            _backupValidityInfo = backupValidityInfo;
+        }
+
+        static Result primary( @CheckForNull final Object data ) {
+            return new Result( data, null );
+        }
+
+        static Result backup( @Nonnull final byte[] data, @Nonnull final SessionValidityInfo validityInfo ) {
+            return new Result( data, validityInfo );
+        }
+
+        /**
+         * The loaded data, <code>null</code> if the session was not found.
+         */
+        @CheckForNull
+        public Object getData() {
+            return _data;
+        }
+
+        /**
+         * Specifies if the data was loaded from the secondary backup.
+         */
+        public boolean isBackup() {
+            return _backupValidityInfo != null;
+        }
+
+        /**
+         * The validity info of the backup, <code>null</code> if the data was loaded from the primary node.
+         */
+        @CheckForNull
+        public SessionValidityInfo getBackupValidityInfo() {
+            return _backupValidityInfo;
+        }
+
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram for non negative values (e.g. durations) with log-linear buckets:
+ * each power of two is split into {@value #SUB_BUCKETS} buckets, so that percentiles are
+ * reported with a relative error of at most 12.5%. Recording a value is a bucket index
+ * calculation plus an atomic increment, reading percentiles iterates over the buckets.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = ( 64 - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS;
+
+    private final AtomicLongArray _buckets = new AtomicLongArray( BUCKETS );
+    private final AtomicLong _count = new AtomicLong();
+    private final AtomicLong _sum = new AtomicLong();
+    private final AtomicLong _max = new AtomicLong();
+
+    /**
+     * Records the given value, negative values are recorded as <code>0</code>.
+     */
+    public void record( final long value ) {
+        final long v = value < 0 ? 0 : value;
+        _buckets.incrementAndGet( bucketIndex( v ) );
+        _count.incrementAndGet();
+        _sum.addAndGet( v );
+        long max;
+        while ( v > ( max = _max.get() ) && !_max.compareAndSet( max, v ) ) {
+            // retry
+        }
+    }
+
+    /**
+     * Adds the values recorded by the given histogram to this histogram.
+     */
+    public void add( final Histogram other ) {
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            final long count = other._buckets.get( i );
+            if ( count > 0 ) {
+                _buckets.addAndGet( i, count );
+            }
+        }
+        _count.addAndGet( other._count.get() );
+        _sum.addAndGet( other._sum.get() );
+        final long otherMax = other._max.get();
+        long max;
+        while ( otherMax > ( max = _max.get() ) && !_max.compareAndSet( max, otherMax ) ) {
+            // retry
+        }
+    }
+
+    /**
+     * Returns the values recorded by this histogram since the given earlier copy of this histogram was
+     * taken (see {@link #add(Histogram)}). The max of the result is the upper bound of its highest bucket.
+     */
+    public Histogram subtract( final Histogram earlier ) {
+        final Histogram result = new Histogram();
+        long max = 0;
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            final long count = _buckets.get( i ) - earlier._buckets.get( i );
+            if ( count > 0 ) {
+                result._buckets.set( i, count );
+                max = Math.min( bucketUpperBound( i ), _max.get() );
+            }
+        }
+        result._count.set( _count.get() - earlier._count.get() );
+        result._sum.set( _sum.get() - earlier._sum.get() );
+        result._max.set( max );
+        return result;
+    }
+
+    /**
+     * The number of recorded values.
+     */
+    public long getCount() {
+        return _count.get();
+    }
+
+    /**
+     * The sum of the recorded values.
+     */
+    public long getSum() {
+        return _sum.get();
+    }
+
+    /**
+     * The max recorded value, <code>0</code> if no value was recorded.
+     */
+    public long getMax() {
+        return _max.get();
+    }
+
+    /**
+     * The mean of the recorded values, <code>0</code> if no value was recorded.
+     */
+    public double getMean() {
+        final long count = _count.get();
+        return count == 0 ? 0 : (double) _sum.get() / count;
+    }
+
+    /**
+     * Returns the (upper bound of the bucket of the) value at the given percentile.
+     * @param percentile the percentile, between 0 and 100, e.g. 99.9
+     * @return the value, or <code>0</code> if no values were recorded.
+     */
+    public long getPercentile( final double percentile ) {
+        return getPercentile( percentile, this );
+    }
+
+    /**
+     * Returns the value at the given percentile of the values recorded by all given histograms,
+     * without merging them into a new histogram.
+     * @see #getPercentile(double)
+     */
+    public static long getPercentile( final double percentile, final Histogram ... histograms ) {
+        long count = 0;
+        long max = 0;
+        for ( final Histogram histogram : histograms ) {
+            count += histogram._count.get();
+            max = Math.max( max, histogram._max.get() );
+        }
+        if ( count == 0 ) {
+            return 0;
+        }
+        final long rank = Math.max( 1, (long) Math.ceil( count * Math.min( percentile, 100 ) / 100 ) );
+        long seen = 0;
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            for ( final Histogram histogram : histograms ) {
+                seen += histogram._buckets.get( i );
+            }
+            if ( seen >= rank ) {
+                return Math.min( bucketUpperBound( i ), max );
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Clears all recorded values. Values recorded concurrently may be lost.
+     */
+    public void reset() {
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            _buckets.set( i, 0 );
+        }
+        _count.set( 0 );
+        _sum.set( 0 );
+        _max.set( 0 );
+    }
+
+    static int bucketIndex( final long value ) {
+        if ( value < SUB_BUCKETS ) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros( value );
+        final int subBucket = (int) ( value >>> ( exponent - SUB_BUCKET_BITS ) ) & ( SUB_BUCKETS - 1 );
+        return ( exponent - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketUpperBound( final int index ) {
+        if ( index < SUB_BUCKETS ) {
+            return index;
+        }
+        final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long subBucket = index % SUB_BUCKETS;
+        final long lower = ( 1L << exponent ) + ( subBucket << ( exponent - SUB_BUCKET_BITS ) );
+        return lower + ( 1L << ( exponent - SUB_BUCKET_BITS ) ) - 1;
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.Configurations.KETAMA_VIRTUAL_NODES_KEY;
+import static de.javakaffee.web.msm.Configurations.NODE_WEIGHTS_KEY;
+import static de.javakaffee.web.msm.Configurations.getSystemProperty;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+
+/**
+ * A ketama style consistent hashing {@link NodeLocator}, used if node ids are not encoded in the
+ * session id (see {@link MemcachedNodesManager#isEncodeNodeIdInSessionId()}). Each node is placed
+ * on a hash ring with a number of virtual nodes (points), proportional to its weight. A key is stored in
+ * the node owning the first point following the hash of the key, so that adding or removing one of N nodes only
+ * remaps about 1/N of the keys (instead of nearly all keys with modulo hashing).
+ * <p>
+ * The nodes following the primary node of a key on the ring form its successor list, which
+ * is used for failover (see {@link #getSequence(String)}) and to store secondary backups: a backup key
+ * (see {@link SessionIdFormat#createBackupKey(String)}) is located at the first successor of the
+ * primary node of the original key.
+ * </p>
+ * <p>
+ * Nodes are hashed by <code>host:port</code> as configured, the hash function is MD5 as in libketama.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+class KetamaNodeLocator implements NodeLocator {
+
+    static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+    private static final MessageDigest MD5;
+    static {
+        try {
+            MD5 = MessageDigest.getInstance( "MD5" );
+        } catch ( final NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( "MD5 not supported", e );
+        }
+    }
+
+    private final SessionIdFormat _sessionIdFormat;
+    private final Map<String, Double> _weights;
+    private final int _virtualNodes;
+
+    private volatile Ring _ring;
+
+    /**
+     * @param nodes the nodes to locate.
+     * @param sessionIdFormat used to recognize backup keys.
+     * @param weights the weights of nodes by <code>host:port</code>, the default weight is <code>1</code>.
+     * @param virtualNodes the number of points of a node with weight <code>1</code>.
+     */
+    KetamaNodeLocator( @Nonnull final List<MemcachedNode> nodes, @Nonnull final SessionIdFormat sessionIdFormat,
+            @Nonnull final Map<String, Double> weights, final int virtualNodes ) {
+        _sessionIdFormat = sessionIdFormat;
+        _weights = weights;
+        _virtualNodes = Math.max( 1, virtualNodes );
+        _ring = new Ring( nodes, weights, _virtualNodes );
+    }
+
+    /**
+     * Creates a locator with weights and virtual nodes as configured by the system properties
+     * {@value Configurations#NODE_WEIGHTS_KEY} and {@value Configurations#KETAMA_VIRTUAL_NODES_KEY}.
+     */
+    @Nonnull
+    static KetamaNodeLocator createFromSystemProperties( @Nonnull final List<MemcachedNode> nodes,
+            @Nonnull final SessionIdFormat sessionIdFormat ) {
+        final String weights = System.getProperty( NODE_WEIGHTS_KEY );
+        return new KetamaNodeLocator( nodes, sessionIdFormat,
+                weights != null ? NodeSelectionPolicy.parseWeights( weights ) : Collections.<String, Double>emptyMap(),
+                getSystemProperty( KETAMA_VIRTUAL_NODES_KEY, DEFAULT_VIRTUAL_NODES ) );
+    }
+
+    @Override
+    public MemcachedNode getPrimary( final String key ) {
+        final Ring ring = _ring;
+        if ( _sessionIdFormat.isBackupKey( key ) ) {
+            final List<MemcachedNode> nodes = ring.getNodes( _sessionIdFormat.stripBackupPrefix( key ), 2 );
+            return nodes.get( nodes.size() - 1 );
+        }
+        return ring.getNodes( key, 1 ).get( 0 );
+    }
+
+    /**
+     * Returns the nodes following the primary node of the given key, in the order of the ring.
+     */
+    @Override
+    public Iterator<MemcachedNode> getSequence( final String key ) {
+        final List<MemcachedNode> nodes = _ring.getNodes( key, Integer.MAX_VALUE );
+        return nodes.subList( 1, nodes.size() ).iterator();
+    }
+
+    /**
+     * Returns the primary node of the given key followed by up to <code>count - 1</code> distinct successors.
+     */
+    @Nonnull
+    List<MemcachedNode> getReplicas( @Nonnull final String key, final int count ) {
+        return _ring.getNodes( key, count );
+    }
+
+    @Override
+    public Collection<MemcachedNode> getAll() {
+        return _ring.nodes;
+    }
+
+    @Override
+    public NodeLocator getReadonlyCopy() {
+        final List<MemcachedNode> nodes = new ArrayList<MemcachedNode>();
+        for ( final MemcachedNode node : _ring.nodes ) {
+            nodes.add( new SuffixBasedNodeLocator.MyMemcachedNodeROImpl( node ) );
+        }
+        return new KetamaNodeLocator( nodes, _sessionIdFormat, _weights, _virtualNodes );
+    }
+
+    @Override
+    public void updateLocator( final List<MemcachedNode> nodes ) {
+        _ring = new Ring( nodes, _weights, _virtualNodes );
+    }
+
+    /**
+     * The name of the node used for hashing and weights: <code>host:port</code> as configured
+     * (the ip address if the node was configured by ip).
+     */
+    @Nonnull
+    static String getNodeName( @Nullable final SocketAddress socketAddress ) {
+        if ( !( socketAddress instanceof InetSocketAddress ) ) {
+            return String.valueOf( socketAddress );
+        }
+        final InetSocketAddress address = (InetSocketAddress) socketAddress;
+        // toString is "host/ip:port", or "/ip:port" if created from an ip (getHostString is not available in java 6)
+        final String value = address.toString();
+        final int idx = value.indexOf( '/' );
+        final String host = idx > 0 ? value.substring( 0, idx ) : value.substring( idx + 1, value.lastIndexOf( ':' ) );
+        return host + ":" + address.getPort();
+    }
+
+    static long hash( @Nonnull final String key ) {
+        final byte[] digest = md5( key );
+        return hash( digest, 0 );
+    }
+
+    private static long hash( final byte[] digest, final int offset ) {
+        return ( (long) ( digest[3 + offset] & 0xFF ) << 24 )
+                | ( (long) ( digest[2 + offset] & 0xFF ) << 16 )
+                | ( (long) ( digest[1 + offset] & 0xFF ) << 8 )
+                | ( digest[offset] & 0xFF );
+    }
+
+    private static byte[] md5( final String value ) {
+        final MessageDigest md5;
+        try {
+            md5 = (MessageDigest) MD5.clone();
+        } catch ( final CloneNotSupportedException e ) {
+            throw new IllegalStateException( "MD5 digest cannot be cloned", e );
+        }
+        return md5.digest( value.getBytes( UTF_8 ) );
+    }
+
+    /**
+     * The immutable hash ring: the sorted points and the node owning each point.
+     */
+    private static final class Ring {
+
+        private final List<MemcachedNode> nodes;
+        private final long[] points;
+        private final MemcachedNode[] owners;
+
+        Ring( final List<MemcachedNode> nodes, final Map<String, Double> weights, final int virtualNodes ) {
+            this.nodes = Collections.unmodifiableList( new ArrayList<MemcachedNode>( nodes ) );
+            final List<long[]> entries = new ArrayList<long[]>();
+            for ( int n = 0; n < nodes.size(); n++ ) {
+                final String name = getNodeName( nodes.get( n ).getSocketAddress() );
+                final Double weight = weights.get( name );
+                // each md5 digest provides 4 points
+                final int digests = Math.max( 1, (int) Math.round( virtualNodes * ( weight != null && weight > 0 ? weight : 1 ) / 4 ) );
+                for ( int i = 0; i < digests; i++ ) {
+                    final byte[] digest = md5( name + "-" + i );
+                    for ( int h = 0; h < 4; h++ ) {
+                        entries.add( new long[] { hash( digest, h * 4 ), n } );
+                    }
+                }
+            }
+            final long[][] sorted = entries.toArray( new long[entries.size()][] );
+            Arrays.sort( sorted, new Comparator<long[]>() {
+                @Override
+                public int compare( final long[] o1, final long[] o2 ) {
+                    return o1[0] < o2[0] ? -1 : o1[0] == o2[0] ? 0 : 1;
+                }
+            } );
+            points = new long[sorted.length];
+            owners = new MemcachedNode[sorted.length];
+            for ( int i = 0; i < sorted.length; i++ ) {
+                points[i] = sorted[i][0];
+                owners[i] = nodes.get( (int) sorted[i][1] );
+            }
+        }
+
+        /**
+         * Returns up to <code>count</code> distinct nodes, starting with the owner of the first point
+         * at or after the hash of the key.
+         */
+        List<MemcachedNode> getNodes( final String key, final int count ) {
+            if ( points.length == 0 ) {
+                throw new IllegalStateException( "No memcached nodes available." );
+            }
+            final int max = Math.min( count, nodes.size() );
+            final List<MemcachedNode> result = new ArrayList<MemcachedNode>( max );
+            int idx = Arrays.binarySearch( points, hash( key ) );
+            if ( idx < 0 ) {
+                idx = -idx - 1;
+            }
+            for ( int i = 0; i < owners.length && result.size() < max; i++ ) {
+                final MemcachedNode node = owners[( idx + i ) % owners.length];
+                if ( !result.contains( node ) ) {
+                    result.add( node );
+                }
+            }
+            return result;
+        }
+
+    }
+
+}
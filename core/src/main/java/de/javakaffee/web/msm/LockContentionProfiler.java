@@ -0,0 +1,192 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.Configurations.LOCK_CONTENTION_TOP_K_KEY;
+import static de.javakaffee.web.msm.Configurations.getSystemProperty;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Finds out which requests contend for session locks (non-sticky sessions). For each lock that could not
+ * be acquired at the first attempt the {@link LockingStrategy} records the wait time, the number of retries,
+ * if the lock timed out and (if known) the request holding the lock, attributed to the normalized request id
+ * (see {@link #normalize(String)}) of the current request.
+ * <p>
+ * Only the top K requests (by overall wait time) are kept, using the space saving algorithm: if the table is
+ * full, the request with the least wait time is replaced and the new request inherits its wait time for
+ * ranking. So requests that frequently wait for locks stay in the table, while the reported values only
+ * contain what was actually recorded for a request. Such requests are candidates for being made readonly
+ * (so that they are not locked with lockingMode <code>auto</code>) or for being excluded from locking with
+ * lockingMode <code>uriPattern</code> (see {@link LockingStrategyUriPattern}).
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class LockContentionProfiler {
+
+    static final String UNKNOWN = "<unknown>";
+    static final String OTHER = "<other>";
+    static final int MAX_HOLDERS = 5;
+
+    private static final Pattern ID_SEGMENT = Pattern.compile( "/(?:[0-9]+|[0-9a-fA-F-]{16,})(?=/|$)" );
+
+    private final int _topK;
+    private final int _capacity;
+    private final Map<String, Contention> _contentions = new HashMap<String, Contention>();
+
+    /**
+     * @param topK the number of requests reported, twice as many are tracked
+     */
+    public LockContentionProfiler( final int topK ) {
+        _topK = topK;
+        _capacity = topK * 2;
+    }
+
+    /**
+     * Creates the {@link LockContentionProfiler} if {@link Configurations#LOCK_CONTENTION_TOP_K_KEY} is set,
+     * otherwise returns <code>null</code>.
+     */
+    @CheckForNull
+    public static LockContentionProfiler createFromSystemProperties() {
+        final int topK = getSystemProperty( LOCK_CONTENTION_TOP_K_KEY, 0 );
+        return topK > 0 ? new LockContentionProfiler( topK ) : null;
+    }
+
+    /**
+     * Normalizes the given request id (as created by {@link RequestTrackingHostValve#getURIWithQueryString}) so
+     * that the number of distinct ids is bounded: the query string is removed and path segments that look like
+     * ids (numbers, hex strings, uuids) are replaced by <code>{id}</code>, e.g. <code>GET /orders/42?x=1</code>
+     * becomes <code>GET /orders/{id}</code>.
+     */
+    @Nonnull
+    static String normalize( @Nullable final String requestId ) {
+        if ( requestId == null ) {
+            return UNKNOWN;
+        }
+        final int queryStart = requestId.indexOf( '?' );
+        final String result = queryStart >= 0 ? requestId.substring( 0, queryStart ) : requestId;
+        return ID_SEGMENT.matcher( result ).replaceAll( "/{id}" );
+    }
+
+    /**
+     * Records a lock that was not acquired at the first attempt.
+     * @param requestId the normalized id of the request waiting for the lock
+     * @param holderId the normalized id of the request holding the lock, <code>null</code> if not known
+     * @param waitMillis the time waited for the lock
+     * @param retries the number of retries
+     * @param timedOut specifies if the lock could not be acquired at all
+     */
+    public synchronized void record( @Nonnull final String requestId, @Nullable final String holderId, final long waitMillis,
+            final int retries, final boolean timedOut ) {
+        Contention contention = _contentions.get( requestId );
+        if ( contention == null ) {
+            long inherited = 0;
+            if ( _contentions.size() >= _capacity ) {
+                final Contention min = Collections.min( _contentions.values(), BY_WEIGHT );
+                _contentions.remove( min.requestId );
+                inherited = min.weight;
+            }
+            contention = new Contention( requestId, inherited );
+            _contentions.put( requestId, contention );
+        }
+        contention.record( holderId, waitMillis, retries, timedOut );
+    }
+
+    /**
+     * Returns the requests with the highest overall lock wait time, with the number of contended locks, timeouts,
+     * retries, avg/max/total wait millis and the requests that held the lock.
+     */
+    @Nonnull
+    public synchronized String[] getTopContentionsInfo() {
+        final List<Contention> contentions = new ArrayList<Contention>( _contentions.values() );
+        Collections.sort( contentions, Collections.reverseOrder( BY_WEIGHT ) );
+        final int count = Math.min( _topK, contentions.size() );
+        final String[] result = new String[count];
+        for ( int i = 0; i < count; i++ ) {
+            final Contention contention = contentions.get( i );
+            result[i] = contention.requestId + ": Contended = " + contention.count
+                    + ", Timeouts = " + contention.timeouts
+                    + ", Retries = " + contention.retries
+                    + ", Avg wait = " + contention.waitMillis / contention.count
+                    + ", Max wait = " + contention.maxWaitMillis
+                    + ", Total wait = " + contention.waitMillis
+                    + ", Holders = " + contention.holders;
+        }
+        return result;
+    }
+
+    /**
+     * The number of contended locks and the wait millis recorded for the given request (not counting inherited
+     * wait time), package-private for testing.
+     */
+    @CheckForNull
+    synchronized long[] getContentionOf( @Nonnull final String requestId ) {
+        final Contention contention = _contentions.get( requestId );
+        return contention != null ? new long[] { contention.count, contention.waitMillis, contention.retries, contention.timeouts } : null;
+    }
+
+    private static final Comparator<Contention> BY_WEIGHT = new Comparator<Contention>() {
+        @Override
+        public int compare( final Contention o1, final Contention o2 ) {
+            return o1.weight < o2.weight ? -1 : o1.weight == o2.weight ? 0 : 1;
+        }
+    };
+
+    private static final class Contention {
+
+        final String requestId;
+        long weight;
+        long count;
+        long waitMillis;
+        long maxWaitMillis;
+        long retries;
+        long timeouts;
+        final Map<String, Integer> holders = new HashMap<String, Integer>();
+
+        Contention( @Nonnull final String requestId, final long inheritedWeight ) {
+            this.requestId = requestId;
+            weight = inheritedWeight;
+        }
+
+        void record( @Nullable final String holderId, final long waitMillis, final int retries, final boolean timedOut ) {
+            count++;
+            weight += waitMillis;
+            this.waitMillis += waitMillis;
+            maxWaitMillis = Math.max( maxWaitMillis, waitMillis );
+            this.retries += retries;
+            if ( timedOut ) {
+                timeouts++;
+            }
+            final String holder = holderId == null ? UNKNOWN
+                    : holders.size() < MAX_HOLDERS || holders.containsKey( holderId ) ? holderId : OTHER;
+            final Integer holderCount = holders.get( holder );
+            holders.put( holder, holderCount == null ? 1 : holderCount + 1 );
+        }
+
+    }
+
+}
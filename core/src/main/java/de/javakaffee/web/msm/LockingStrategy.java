@@ -38,6 +38,7 @@ import javax.annotation.Nullable;
 
 import net.spy.memcached.MemcachedClient;
 
+import org.apache.catalina.connector.Request;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
@@ -79,6 +80,8 @@ public abstract class LockingStrategy {
     protected final Statistics _stats;
     protected final CurrentRequest _currentRequest;
     protected final StorageKeyFormat _storageKeyFormat;
+    private final MemcachedNodesManager _memcachedNodesManager;
+    private volatile LockContentionProfiler _lockContentionProfiler;
 
     protected LockingStrategy( @Nonnull final MemcachedSessionService manager,
             @Nonnull final MemcachedNodesManager memcachedNodesManager,
@@ -94,7 +97,11 @@ public abstract class LockingStrategy {
         _stats = stats;
         _currentRequest = currentRequest;
         _storageKeyFormat = memcachedNodesManager.getStorageKeyFormat();
-        _executor = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), new NamedThreadFactory("msm-2ndary-backup") );
+        _memcachedNodesManager = memcachedNodesManager;
+        final int threads = Runtime.getRuntime().availableProcessors();
+        _executor = SharedResources.isEnabled()
+            ? SharedResources.acquireExecutor( "msm-2ndary-backup", threads )
+            : Executors.newFixedThreadPool( threads, new NamedThreadFactory("msm-2ndary-backup") );
     }
 
     /**
@@ -129,7 +136,20 @@ public abstract class LockingStrategy {
      * Shutdown this lockingStrategy, which frees all resources / releases threads.
      */
     public void shutdown() {
-        _executor.shutdown();
+        SharedResources.shutdown( _executor );
+    }
+
+    /**
+     * Sets the profiler that records locks that could not be acquired at the first attempt, <code>null</code>
+     * disables lock contention profiling.
+     */
+    public void setLockContentionProfiler( @Nullable final LockContentionProfiler lockContentionProfiler ) {
+        _lockContentionProfiler = lockContentionProfiler;
+    }
+
+    @CheckForNull
+    public LockContentionProfiler getLockContentionProfiler() {
+        return _lockContentionProfiler;
     }
 
     protected LockStatus lock( final String sessionId ) {
@@ -140,33 +160,69 @@ public abstract class LockingStrategy {
         if ( _log.isDebugEnabled() ) {
             _log.debug( "Locking session " + sessionId );
         }
-        final long start = System.currentTimeMillis();
+        final OperationEvent event = OperationEvent.begin( OperationEvent.Type.LOCK );
+        final RequestTimings timings = _currentRequest.getTimings();
+        final long startNanos = System.nanoTime();
+        final LockContentionProfiler profiler = _lockContentionProfiler;
+        final LockWait lockWait = profiler != null ? new LockWait( getCurrentRequestId() ) : null;
+        OperationEvent.Outcome outcome = OperationEvent.Outcome.FAILURE;
         try {
             acquireLock( sessionId, LOCK_RETRY_INTERVAL, LOCK_MAX_RETRY_INTERVAL, timeUnit.toMillis( timeout ),
-                    System.currentTimeMillis() );
-            _stats.registerSince( ACQUIRE_LOCK, start );
+                    System.currentTimeMillis(), lockWait );
+            _stats.registerSince( ACQUIRE_LOCK, startNanos );
             if ( _log.isDebugEnabled() ) {
                 _log.debug( "Locked session " + sessionId );
             }
+            outcome = OperationEvent.Outcome.SUCCESS;
             return LockStatus.LOCKED;
         } catch ( final TimeoutException e ) {
             _log.warn( "Reached timeout when trying to aquire lock for session " + sessionId
                     + ". Will use this session without this lock." );
-            _stats.registerSince( ACQUIRE_LOCK_FAILURE, start );
+            _stats.registerSince( ACQUIRE_LOCK_FAILURE, startNanos );
             return LockStatus.COULD_NOT_AQUIRE_LOCK;
         } catch ( final InterruptedException e ) {
             Thread.currentThread().interrupt();
             throw new RuntimeException( "Got interrupted while trying to lock session.", e );
         } catch ( final ExecutionException e ) {
             _log.warn( "An exception occurred when trying to aquire lock for session " + sessionId );
-            _stats.registerSince( ACQUIRE_LOCK_FAILURE, start );
+            _stats.registerSince( ACQUIRE_LOCK_FAILURE, startNanos );
             return LockStatus.COULD_NOT_AQUIRE_LOCK;
+        } finally {
+            endEvent( event, sessionId, outcome );
+            if ( timings != null ) {
+                timings.addSince( RequestTimings.Phase.LOCK, startNanos );
+            }
+            if ( lockWait != null && lockWait.retries > 0 ) {
+                profiler.record( lockWait.requestId, lockWait.holderId, TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - startNanos ), lockWait.retries,
+                        outcome != OperationEvent.Outcome.SUCCESS );
+            }
+        }
+    }
+
+    /**
+     * The normalized request id of the current request, used as lock value if lock contention is profiled.
+     */
+    @Nonnull
+    private String getCurrentRequestId() {
+        final Request request = _currentRequest.get();
+        return LockContentionProfiler.normalize( request != null ? RequestTrackingHostValve.getURIWithQueryString( request ) : null );
+    }
+
+    private void endEvent( @Nullable final OperationEvent event, @Nonnull final String sessionId, @Nonnull final OperationEvent.Outcome outcome ) {
+        if ( event != null ) {
+            event.end( sessionId, _memcachedNodesManager.getNodeIdOfSession( sessionId ), 0, outcome );
         }
     }
 
+    /**
+     * Acquires the lock, retrying with increasing intervals until the timeout is reached.
+     * @param lockWait if not <code>null</code> (lock contention is profiled) the request id is stored as lock value,
+     *          and retries and the request holding the lock are recorded
+     */
     protected void acquireLock( @Nonnull final String sessionId, final long retryInterval, final long maxRetryInterval,
-            final long timeout, final long start ) throws InterruptedException, ExecutionException, TimeoutException {
-        final Future<Boolean> result = _memcached.add( _sessionIdFormat.createLockName( sessionId ), 5, LOCK_VALUE );
+            final long timeout, final long start, @Nullable final LockWait lockWait ) throws InterruptedException, ExecutionException, TimeoutException {
+        final String lockName = _sessionIdFormat.createLockName( sessionId );
+        final Future<Boolean> result = _memcached.add( lockName, 5, lockWait != null ? lockWait.requestId : LOCK_VALUE );
         if ( result.get().booleanValue() ) {
             if ( _log.isDebugEnabled() ) {
                 _log.debug( "Locked session " + sessionId );
@@ -174,8 +230,28 @@ public abstract class LockingStrategy {
             return;
         }
         else {
+            if ( lockWait != null && lockWait.retries++ == 0 ) {
+                lockWait.holderId = getLockHolder( lockName );
+            }
             checkTimeoutAndWait( sessionId, retryInterval, timeout, start );
-            acquireLock( sessionId, min( retryInterval * 2, maxRetryInterval ), maxRetryInterval, timeout, start );
+            acquireLock( sessionId, min( retryInterval * 2, maxRetryInterval ), maxRetryInterval, timeout, start, lockWait );
+        }
+    }
+
+    /**
+     * Reads the request id of the request holding the lock, <code>null</code> if unknown (e.g. the lock holder
+     * does not profile lock contention).
+     */
+    @CheckForNull
+    private String getLockHolder( @Nonnull final String lockName ) {
+        try {
+            final Object value = _memcached.get( lockName );
+            return value instanceof String && !LOCK_VALUE.equals( value ) ? (String) value : null;
+        } catch ( final RuntimeException e ) {
+            if ( _log.isDebugEnabled() ) {
+                _log.debug( "Could not read lock holder of " + lockName, e );
+            }
+            return null;
         }
     }
 
@@ -192,15 +268,61 @@ public abstract class LockingStrategy {
     }
 
     protected void releaseLock( @Nonnull final String sessionId ) {
+        final OperationEvent event = OperationEvent.begin( OperationEvent.Type.RELEASE_LOCK );
+        OperationEvent.Outcome outcome = OperationEvent.Outcome.FAILURE;
         try {
             if ( _log.isDebugEnabled() ) {
                 _log.debug( "Releasing lock for session " + sessionId );
             }
-            final long start = System.currentTimeMillis();
+            final MemcachedOperationBatch batch = _currentRequest.getOperationBatch();
+            if ( batch != null ) {
+                batch.delete( _memcached, _sessionIdFormat.createLockName( sessionId ), _manager.getOperationTimeout(), RELEASE_LOCK );
+                outcome = OperationEvent.Outcome.SUCCESS;
+                return;
+            }
+            final long start = System.nanoTime();
             _memcached.delete( _sessionIdFormat.createLockName( sessionId ) ).get();
             _stats.registerSince( RELEASE_LOCK, start );
+            outcome = OperationEvent.Outcome.SUCCESS;
         } catch ( final Exception e ) {
             _log.warn( "Caught exception when trying to release lock for session " + sessionId, e );
+        } finally {
+            endEvent( event, sessionId, outcome );
+        }
+    }
+
+    /**
+     * Stores the validity info. If an operation batch is bound to the current request the set
+     * is added to this batch, so that it's sent together with the lock release (and for sync backups
+     * awaited together with it), otherwise it's sent directly.
+     */
+    private void storeValidityInfo( @Nonnull final String validityKey, final int exp, @Nonnull final byte[] validityData )
+            throws InterruptedException, ExecutionException, TimeoutException {
+        final long timeout = _manager.isSessionBackupAsync() ? 0 : _manager.getSessionBackupTimeout();
+        final SessionReplicator replicator = _memcachedNodesManager.getSessionReplicator();
+        final MemcachedOperationBatch batch = _currentRequest.getOperationBatch();
+        if ( batch != null ) {
+            batch.set( _memcached, validityKey, exp, validityData, timeout, null );
+            if ( replicator != null ) {
+                // replicas are not part of the batch, they're repaired on read if a write fails
+                replicator.setReplicas( validityKey, exp, validityData );
+            }
+            enqueueRemoteReplication( validityKey, exp, validityData );
+            return;
+        }
+        final Future<Boolean> validityResult = replicator != null
+            ? replicator.set( validityKey, exp, validityData )
+            : _memcached.set( validityKey, exp, validityData );
+        if ( timeout > 0 ) {
+            validityResult.get( timeout, TimeUnit.MILLISECONDS );
+        }
+        enqueueRemoteReplication( validityKey, exp, validityData );
+    }
+
+    private void enqueueRemoteReplication( @Nonnull final String validityKey, final int exp, @Nonnull final byte[] validityData ) {
+        final RemoteReplicationStream remoteReplicationStream = _manager.getRemoteReplicationStream();
+        if ( remoteReplicationStream != null ) {
+            remoteReplicationStream.enqueue( validityKey, exp, validityData );
         }
     }
 
@@ -225,7 +347,7 @@ public abstract class LockingStrategy {
 
         try {
 
-            final long start = System.currentTimeMillis();
+            final long start = System.nanoTime();
 
             final String validityKey = _sessionIdFormat.createValidityInfoKeyName( sessionId );
             final SessionValidityInfo validityInfo = loadSessionValidityInfoForValidityKey( validityKey );
@@ -239,10 +361,7 @@ public abstract class LockingStrategy {
                     System.currentTimeMillis() );
             // fix for #88, along with the change in session.getMemcachedExpirationTimeToSet
             final int expiration = maxInactiveInterval <= 0 ? 0 : maxInactiveInterval;
-            final Future<Boolean> validityResult = _memcached.set( validityKey, toMemcachedExpiration(expiration), validityData );
-            if ( !_manager.isSessionBackupAsync() ) {
-                validityResult.get( _manager.getSessionBackupTimeout(), TimeUnit.MILLISECONDS );
-            }
+            storeValidityInfo( validityKey, toMemcachedExpiration(expiration), validityData );
 
             /*
              * - ping session
@@ -279,7 +398,7 @@ public abstract class LockingStrategy {
 
         try {
 
-            final long start = System.currentTimeMillis();
+            final long start = System.nanoTime();
 
             final int maxInactiveInterval = session.getMaxInactiveInterval();
             final byte[] validityData = encode( maxInactiveInterval, session.getLastAccessedTimeInternal(),
@@ -287,15 +406,7 @@ public abstract class LockingStrategy {
             final String validityKey = _sessionIdFormat.createValidityInfoKeyName( session.getIdInternal() );
             // fix for #88, along with the change in session.getMemcachedExpirationTimeToSet
             final int expiration = maxInactiveInterval <= 0 ? 0 : maxInactiveInterval;
-            final Future<Boolean> validityResult = _memcached.set( validityKey, toMemcachedExpiration(expiration), validityData );
-            if ( !_manager.isSessionBackupAsync() ) {
-                // TODO: together with session backup wait not longer than sessionBackupTimeout.
-                // Details: Now/here we're waiting the whole session backup timeout, even if (perhaps) some time
-                // was spent before when waiting for session backup result.
-                // For sync session backup it would be better to set both the session data and
-                // validity info and afterwards wait for both results (but in sum no longer than sessionBackupTimeout)
-                validityResult.get( _manager.getSessionBackupTimeout(), TimeUnit.MILLISECONDS );
-            }
+            storeValidityInfo( validityKey, toMemcachedExpiration(expiration), validityData );
             if ( _log.isDebugEnabled() ) {
                 _log.debug( "Stored session validity info for session " + session.getIdInternal() );
             }
@@ -330,7 +441,19 @@ public abstract class LockingStrategy {
 
     @CheckForNull
     protected SessionValidityInfo loadSessionValidityInfoForValidityKey( @Nonnull final String validityInfoKey ) {
-        final byte[] validityInfo = (byte[]) _memcached.get( _storageKeyFormat.format( validityInfoKey ) );
+        final String key = _storageKeyFormat.format( validityInfoKey );
+        final SessionReplicator replicator = _memcachedNodesManager.getSessionReplicator();
+        final byte[] validityInfo;
+        if ( replicator != null ) {
+            try {
+                validityInfo = (byte[]) replicator.get( key, SessionReplicator.ValueType.VALIDITY_INFO, _manager.getOperationTimeout() );
+            } catch ( final Exception e ) {
+                throw new RuntimeException( "Could not load validity info " + key, e );
+            }
+        }
+        else {
+            validityInfo = (byte[]) _memcached.get( key );
+        }
         return validityInfo != null ? decode( validityInfo ) : null;
     }
 
@@ -359,7 +482,7 @@ public abstract class LockingStrategy {
             @Nullable final LockStatus lockStatus ) {
         session.setLockStatus( lockStatus );
 
-        final long start = System.currentTimeMillis();
+        final long start = System.nanoTime();
         final SessionValidityInfo info = loadSessionValidityInfo( session.getIdInternal() );
         if ( info != null ) {
             _stats.registerSince( NON_STICKY_AFTER_LOAD_FROM_MEMCACHED, start );
@@ -371,14 +494,42 @@ public abstract class LockingStrategy {
         }
     }
 
+    /**
+     * Invoked after a non-sticky session was loaded from its secondary backup by a hedged read
+     * (see {@link HedgedSessionLoader}), the validity info was loaded from the secondary backup as well.
+     */
+    protected void onAfterLoadFromBackup( @Nonnull final MemcachedBackupSession session,
+            @Nullable final LockStatus lockStatus, @Nonnull final SessionValidityInfo validityInfo ) {
+        session.setLockStatus( lockStatus );
+        session.setLastAccessedTimeInternal( validityInfo.getLastAccessedTime() );
+        session.setThisAccessedTimeInternal( validityInfo.getThisAccessedTime() );
+    }
+
+    /**
+     * Specifies if a backup of non-sticky sessions is stored in the secondary memcached node.
+     */
+    boolean isStoreSecondaryBackup() {
+        return _storeSecondaryBackup;
+    }
+
     /**
      * Invoked after a non-sticky session is removed from memcached.
      */
     protected void onAfterDeleteFromMemcached( @Nonnull final String sessionId ) {
-        final long start = System.currentTimeMillis();
+        final long start = System.nanoTime();
 
         final String validityInfoKey = _sessionIdFormat.createValidityInfoKeyName( sessionId );
-        _memcached.delete( validityInfoKey );
+        final SessionReplicator replicator = _memcachedNodesManager.getSessionReplicator();
+        if ( replicator != null ) {
+            replicator.delete( validityInfoKey );
+        }
+        else {
+            _memcached.delete( validityInfoKey );
+        }
+        final RemoteReplicationStream remoteReplicationStream = _manager.getRemoteReplicationStream();
+        if ( remoteReplicationStream != null ) {
+            remoteReplicationStream.delete( validityInfoKey );
+        }
 
         if (_storeSecondaryBackup) {
             _memcached.delete( _sessionIdFormat.createBackupKey( sessionId ) );
@@ -435,6 +586,21 @@ public abstract class LockingStrategy {
         }
     }
 
+    /**
+     * The state of a lock acquisition recorded for the {@link LockContentionProfiler}.
+     */
+    protected static final class LockWait {
+
+        final String requestId;
+        int retries;
+        String holderId;
+
+        LockWait( @Nonnull final String requestId ) {
+            this.requestId = requestId;
+        }
+
+    }
+
     private final class OnAfterBackupSessionTask implements Callable<Void> {
 
         private final MemcachedBackupSession _session;
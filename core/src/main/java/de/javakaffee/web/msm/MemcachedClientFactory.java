@@ -15,11 +15,19 @@
  */
 package de.javakaffee.web.msm;
 
+import static de.javakaffee.web.msm.Configurations.BULK_CONNECTION_THRESHOLD_KEY;
+import static de.javakaffee.web.msm.Configurations.CONNECTIONS_PER_NODE_KEY;
+import static de.javakaffee.web.msm.Configurations.getSystemProperty;
+
+import java.util.List;
+
 import net.spy.memcached.BinaryConnectionFactory;
 import net.spy.memcached.ConnectionFactory;
-import net.spy.memcached.ConnectionFactoryBuilder;
 import net.spy.memcached.DefaultConnectionFactory;
 import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+import net.spy.memcached.OperationFactory;
 import net.spy.memcached.auth.AuthDescriptor;
 import net.spy.memcached.auth.PlainCallbackHandler;
 
@@ -39,9 +47,17 @@ public class MemcachedClientFactory {
                 long maxReconnectDelay, Statistics statistics );
     }
 
+    /**
+     * Creates the {@link MemcachedClient}.
+     *
+     * @param quietWrites
+     *            if <code>true</code> and the binary protocol is used, the connection factory allows spymemcached
+     *            to send queued sets as quiet sets (setq, terminated by a noop), so that memcached only responds on
+     *            errors. Not used for couchbase buckets.
+     */
     protected MemcachedClient createMemcachedClient(final MemcachedNodesManager memcachedNodesManager,
             final String memcachedProtocol, final String username, final String password, final long operationTimeout,
-            final long maxReconnectDelay, final Statistics statistics ) {
+            final long maxReconnectDelay, final boolean quietWrites, final Statistics statistics ) {
         try {
             final ConnectionType connectionType = ConnectionType.valueOf(memcachedNodesManager.isCouchbaseBucketConfig(), username, password);
             if (connectionType.isCouchbaseBucketConfig()) {
@@ -49,7 +65,13 @@ public class MemcachedClientFactory {
                         statistics);
             }
             final ConnectionFactory connectionFactory = createConnectionFactory(memcachedNodesManager, connectionType, memcachedProtocol,
-                    username, password, operationTimeout, maxReconnectDelay, statistics);
+                    username, password, operationTimeout, maxReconnectDelay, quietWrites, statistics);
+            final int connectionsPerNode = getSystemProperty(CONNECTIONS_PER_NODE_KEY, 1);
+            final int bulkThreshold = getSystemProperty(BULK_CONNECTION_THRESHOLD_KEY, 0);
+            if (connectionsPerNode > 1 || bulkThreshold > 0) {
+                return new ShardedMemcachedClient(connectionFactory, memcachedNodesManager.getAllMemcachedAddresses(),
+                        Math.max(1, connectionsPerNode), bulkThreshold, memcachedNodesManager.getStorageKeyFormat());
+            }
             return new MemcachedClient(connectionFactory, memcachedNodesManager.getAllMemcachedAddresses());
         } catch (final Exception e) {
             throw new RuntimeException("Could not create memcached client", e);
@@ -69,38 +91,53 @@ public class MemcachedClientFactory {
 
     protected ConnectionFactory createConnectionFactory(final MemcachedNodesManager memcachedNodesManager,
             final ConnectionType connectionType, final String memcachedProtocol, final String username, final String password, final long operationTimeout,
-            final long maxReconnectDelay, final Statistics statistics ) {
+            final long maxReconnectDelay, final boolean quietWrites, final Statistics statistics ) {
         if (PROTOCOL_BINARY.equals( memcachedProtocol )) {
-            if (connectionType.isSASL()) {
-                final AuthDescriptor authDescriptor = new AuthDescriptor(new String[]{"PLAIN"}, new PlainCallbackHandler(username, password));
-                return memcachedNodesManager.isEncodeNodeIdInSessionId()
+            final AuthDescriptor authDescriptor = connectionType.isSASL()
+                    ? new AuthDescriptor(new String[]{"PLAIN"}, new PlainCallbackHandler(username, password))
+                    : null;
+            if (memcachedNodesManager.isEncodeNodeIdInSessionId()) {
+                return authDescriptor != null
                         ? new SuffixLocatorBinaryConnectionFactory( memcachedNodesManager,
                                 memcachedNodesManager.getSessionIdFormat(), statistics, operationTimeout, maxReconnectDelay,
-                                authDescriptor)
-                        : new ConnectionFactoryBuilder().setProtocol(ConnectionFactoryBuilder.Protocol.BINARY)
-                                .setAuthDescriptor(authDescriptor)
-                                .setOpTimeout(operationTimeout)
-                                .setMaxReconnectDelay(maxReconnectDelay)
-                                .build();
-            }
-            else {
-                return memcachedNodesManager.isEncodeNodeIdInSessionId() ? new SuffixLocatorBinaryConnectionFactory( memcachedNodesManager,
-                        memcachedNodesManager.getSessionIdFormat(),
-                        statistics, operationTimeout, maxReconnectDelay ) : new BinaryConnectionFactory() {
-                    @Override
-                    public long getOperationTimeout() {
-                        return operationTimeout;
-                    }
-                    @Override
-                    public long getMaxReconnectDelay() {
-                        return maxReconnectDelay;
-                    }
-                };
+                                quietWrites, authDescriptor)
+                        : new SuffixLocatorBinaryConnectionFactory( memcachedNodesManager,
+                                memcachedNodesManager.getSessionIdFormat(), statistics, operationTimeout, maxReconnectDelay, quietWrites );
             }
+            return new BinaryConnectionFactory() {
+                @Override
+                public NodeLocator createLocator(final List<MemcachedNode> nodes) {
+                    return KetamaNodeLocator.createFromSystemProperties(nodes, memcachedNodesManager.getSessionIdFormat());
+                }
+                @Override
+                public AuthDescriptor getAuthDescriptor() {
+                    return authDescriptor;
+                }
+                @Override
+                public long getOperationTimeout() {
+                    return operationTimeout;
+                }
+                @Override
+                public long getMaxReconnectDelay() {
+                    return maxReconnectDelay;
+                }
+                @Override
+                public boolean shouldOptimize() {
+                    return quietWrites;
+                }
+                @Override
+                public OperationFactory getOperationFactory() {
+                    return StatisticsOperationFactory.binary(memcachedNodesManager);
+                }
+            };
         }
         return memcachedNodesManager.isEncodeNodeIdInSessionId()
                 ? new SuffixLocatorConnectionFactory( memcachedNodesManager, memcachedNodesManager.getSessionIdFormat(), statistics, operationTimeout, maxReconnectDelay )
                 : new DefaultConnectionFactory() {
+                    @Override
+                    public NodeLocator createLocator(final List<MemcachedNode> nodes) {
+                        return KetamaNodeLocator.createFromSystemProperties(nodes, memcachedNodesManager.getSessionIdFormat());
+                    }
                     @Override
                     public long getOperationTimeout() {
                         return operationTimeout;
@@ -109,6 +146,10 @@ public class MemcachedClientFactory {
                     public long getMaxReconnectDelay() {
                         return maxReconnectDelay;
                     }
+                    @Override
+                    public OperationFactory getOperationFactory() {
+                        return StatisticsOperationFactory.ascii(memcachedNodesManager);
+                    }
                 };
     }
 
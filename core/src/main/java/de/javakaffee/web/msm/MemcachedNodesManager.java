@@ -16,16 +16,22 @@
 package de.javakaffee.web.msm;
 
 import static de.javakaffee.web.msm.Configurations.NODE_AVAILABILITY_CACHE_TTL_KEY;
+import static de.javakaffee.web.msm.Configurations.NODE_AVAILABILITY_MAX_PROBE_BACKOFF_KEY;
+import static de.javakaffee.web.msm.Configurations.NODE_AVAILABILITY_PROBE_INTERVAL_KEY;
 import static de.javakaffee.web.msm.Configurations.getSystemProperty;
 
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -37,6 +43,9 @@ import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
 import de.javakaffee.web.msm.NodeAvailabilityCache.CacheLoader;
+import de.javakaffee.web.msm.NodeAvailabilityCache.NodeAvailabilityListener;
+import de.javakaffee.web.msm.NodeStatistics.NodeStats;
+import de.javakaffee.web.msm.NodeStatistics.OperationType;
 
 
 /**
@@ -67,6 +76,12 @@ public class MemcachedNodesManager {
     private static final String SINGLE_NODE_REGEX = "([^:]+):([\\d]+)";
     private static final Pattern SINGLE_NODE_PATTERN = Pattern.compile( SINGLE_NODE_REGEX );
 
+    private static final String SHORT_NODE_REGEX = "([^:\\s,]+):([\\d]+)";
+    private static final Pattern SHORT_NODE_PATTERN = Pattern.compile( SHORT_NODE_REGEX );
+
+    private static final String SHORT_NODES_REGEX = SHORT_NODE_REGEX + "(?:(?:\\s+|,)" + SHORT_NODE_REGEX + ")+";
+    private static final Pattern SHORT_NODES_PATTERN = Pattern.compile( SHORT_NODES_REGEX );
+
     private static final String COUCHBASE_BUCKET_NODE_REGEX = "http://([^:]+):([\\d]+)/[\\w]+";
     private static final Pattern COUCHBASE_BUCKET_NODE_PATTERN = Pattern.compile( COUCHBASE_BUCKET_NODE_REGEX );
 
@@ -74,6 +89,8 @@ public class MemcachedNodesManager {
     private static final Pattern COUCHBASE_BUCKET_NODES_PATTERN = Pattern.compile( COUCHBASE_BUCKET_NODES_REGEX );
 
     private static final int NODE_AVAILABILITY_CACHE_TTL = getSystemProperty(NODE_AVAILABILITY_CACHE_TTL_KEY, 1000);
+    private static final long NODE_AVAILABILITY_PROBE_INTERVAL = getSystemProperty(NODE_AVAILABILITY_PROBE_INTERVAL_KEY, 0L);
+    private static final long NODE_AVAILABILITY_MAX_PROBE_BACKOFF = getSystemProperty(NODE_AVAILABILITY_MAX_PROBE_BACKOFF_KEY, 30000L);
 
 	private final String _memcachedNodes;
     private final NodeIdList _primaryNodeIds;
@@ -81,6 +98,12 @@ public class MemcachedNodesManager {
     private final LinkedHashMap<InetSocketAddress, String> _address2Ids;
     private final boolean _encodeNodeIdInSessionId;
     private final StorageKeyFormat _storageKeyFormat;
+    private final NodeStatistics _nodeStatistics = new NodeStatistics();
+    @Nullable
+    private final CircuitBreakers _circuitBreakers = CircuitBreakers.createFromSystemProperties();
+    private final List<MemcachedNodesManager> _attached = new CopyOnWriteArrayList<MemcachedNodesManager>();
+    @Nullable
+    private volatile SessionReplicator _sessionReplicator;
     @Nullable
 	private NodeIdService _nodeIdService;
 	private SessionIdFormat _sessionIdFormat;
@@ -104,15 +127,19 @@ public class MemcachedNodesManager {
 		_address2Ids = address2Ids;
 		_storageKeyFormat = storageKeyFormat;
 
-        _encodeNodeIdInSessionId = !((getCountNodes() <= 1 || isCouchbaseConfig(memcachedNodes)) && _primaryNodeIds.isEmpty());
+        _encodeNodeIdInSessionId = !((getCountNodes() <= 1 || isCouchbaseConfig(memcachedNodes) || !hasNodeIds(address2Ids))
+                && _primaryNodeIds.isEmpty());
 
 		if (_encodeNodeIdInSessionId) {
 			if (memcachedClientCallback == null) {
 				throw new IllegalArgumentException("The MemcachedClientCallback must not be null.");
 			}
 			_sessionIdFormat = new SessionIdFormat(storageKeyFormat);
-	        _nodeIdService = new NodeIdService( createNodeAvailabilityCache( getCountNodes(), NODE_AVAILABILITY_CACHE_TTL, memcachedClientCallback ),
-	        				primaryNodeIds, failoverNodeIds );
+	        final NodeAvailabilityCache<String> availabilityCache = createNodeAvailabilityCache( getCountNodes(), NODE_AVAILABILITY_CACHE_TTL,
+	        		memcachedClientCallback );
+	        availabilityCache.probe( getNodeIds( address2Ids ) );
+	        _nodeIdService = new NodeIdService( availabilityCache, primaryNodeIds, failoverNodeIds );
+	        _nodeIdService.setCircuitBreakers( _circuitBreakers );
 		}
 		else {
 			_sessionIdFormat = new SessionIdFormat(storageKeyFormat) {
@@ -121,10 +148,6 @@ public class MemcachedNodesManager {
 					return sessionId != null;
 				}
 				@Override
-				public String createBackupKey(final String origKey) {
-					throw new UnsupportedOperationException("Not supported for single node configuration without node id.");
-				}
-				@Override
 				public String createSessionId(final String sessionId, final String memcachedId) {
 					return sessionId;
 				}
@@ -137,6 +160,25 @@ public class MemcachedNodesManager {
 		}
 	}
 
+    private static List<String> getNodeIds(final Map<InetSocketAddress, String> address2Ids) {
+        final List<String> result = new ArrayList<String>();
+        for (final String nodeId : address2Ids.values()) {
+            if (nodeId != null) {
+                result.add(nodeId);
+            }
+        }
+        return result;
+    }
+
+    private static boolean hasNodeIds(final Map<InetSocketAddress, String> address2Ids) {
+        for (final String nodeId : address2Ids.values()) {
+            if (nodeId != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private boolean isCouchbaseConfig(final String memcachedNodes) {
         return memcachedNodes.startsWith("http://");
     }
@@ -155,7 +197,7 @@ public class MemcachedNodesManager {
                 }
             }
 
-        } );
+        }, NODE_AVAILABILITY_PROBE_INTERVAL, NODE_AVAILABILITY_MAX_PROBE_BACKOFF );
     }
 
 	/**
@@ -163,6 +205,8 @@ public class MemcachedNodesManager {
 	 * Supported memcachedNodes formats:
 	 * <ul>
 	 * <li><code>&lt;hostOrIPAddress&gt;:&lt;port&gt;</code> - e.g. <code>localhost:11211</code></li>
+	 * <li><code>&lt;hostOrIPAddress&gt;:&lt;port&gt;([ ,]&lt;hostOrIPAddress&gt;:&lt;port&gt;)+</code> - e.g. <code>host1:11211 host2:11211</code>,
+	 *     sessions are located by consistent hashing (see {@link KetamaNodeLocator})</li>
 	 * <li><code>&lt;http://hostOrIPAddress&gt;:&lt;port&gt;/&lt;path&gt;</code> - e.g. <code>http://localhost:8091/pools</code></li>
 	 * <li><code>&lt;nodeId&gt;:&lt;hostOrIPAddress&gt;:&lt;port&gt;</code> - e.g. <code>n1:localhost:11211</code></li>
 	 * <li><code>&lt;nodeId&gt;:&lt;hostOrIPAddress&gt;:&lt;port&gt;([ ,]&lt;nodeId&gt;:&lt;hostOrIPAddress&gt;:&lt;port&gt;)+</code> - e.g.
@@ -186,7 +230,8 @@ public class MemcachedNodesManager {
 		}
 
         if ( !NODES_PATTERN.matcher( memcachedNodes ).matches() && !SINGLE_NODE_PATTERN.matcher(memcachedNodes).matches()
-        		&& !COUCHBASE_BUCKET_NODES_PATTERN.matcher(memcachedNodes).matches()) {
+        		&& !COUCHBASE_BUCKET_NODES_PATTERN.matcher(memcachedNodes).matches()
+        		&& !SHORT_NODES_PATTERN.matcher(memcachedNodes).matches()) {
             throw new IllegalArgumentException( "Configured memcachedNodes attribute has wrong format, must match " + NODES_REGEX );
         }
 
@@ -213,6 +258,12 @@ public class MemcachedNodesManager {
                         + " this is a configuration failure. In this case, you probably want to leave out the failoverNodes.");
             }
         }
+        else if (SHORT_NODES_PATTERN.matcher(memcachedNodes).matches()) {    // multiple nodes without node ids
+            final Matcher matcher = SHORT_NODE_PATTERN.matcher(memcachedNodes);
+            while (matcher.find()) {
+                address2Ids.put(getSingleShortNodeDefinition(matcher), null);
+            }
+        }
         else { // If mutliple nodes are configured
             final Matcher matcher = NODE_PATTERN.matcher( memcachedNodes);
             while (matcher.find()) {
@@ -331,6 +382,169 @@ public class MemcachedNodesManager {
 		return result;
 	}
 
+	/**
+	 * Sets the listener that's notified when a memcached node became unavailable.
+	 */
+	public void setNodeAvailabilityListener(@Nullable final NodeAvailabilityListener<String> listener) {
+		if ( _nodeIdService != null ) {
+			_nodeIdService.setNodeAvailabilityListener(listener);
+		}
+	}
+
+	/**
+	 * Sets the replicator that stores sessions in several nodes of this configuration, or <code>null</code>
+	 * if sessions are not replicated.
+	 */
+	public void setSessionReplicator(@Nullable final SessionReplicator sessionReplicator) {
+		_sessionReplicator = sessionReplicator;
+	}
+
+	/**
+	 * Returns the replicator that stores sessions in several nodes, or <code>null</code> if sessions are not replicated.
+	 */
+	@CheckForNull
+	public SessionReplicator getSessionReplicator() {
+		return _sessionReplicator;
+	}
+
+	/**
+	 * Releases resources, e.g. stops probing memcached nodes in the background.
+	 */
+	public void shutdown() {
+		if ( _nodeIdService != null ) {
+			_nodeIdService.shutdown();
+		}
+		if ( _sessionReplicator != null ) {
+			_sessionReplicator.shutdown();
+		}
+	}
+
+	/**
+	 * Returns the name used for the given node in the {@link NodeStatistics}: the node id
+	 * if the address is known and has a node id, otherwise host:port.
+	 */
+	@Nonnull
+	public String getNodeName(@Nonnull final SocketAddress socketAddress) {
+		final String result = _address2Ids.get( socketAddress );
+		if ( result != null ) {
+			return result;
+		}
+		if ( socketAddress instanceof InetSocketAddress ) {
+			final InetSocketAddress address = (InetSocketAddress) socketAddress;
+			// avoid getHostName(), which might do a reverse lookup
+			final String host = address.getAddress() != null ? address.getAddress().getHostAddress() : address.getHostName();
+			return host + ":" + address.getPort();
+		}
+		return socketAddress.toString();
+	}
+
+	/**
+	 * Registers a completed memcached operation in the {@link NodeStatistics} and at the
+	 * node's circuit breaker (if circuit breakers are enabled).
+	 */
+	public void registerOperation(@Nonnull final SocketAddress socketAddress, final long latencyInMicros, final boolean error) {
+		registerOperation( socketAddress, null, latencyInMicros, error, false, 0, 0 );
+	}
+
+	/**
+	 * Registers a completed memcached operation of the given type with timeout and transferred bytes in the
+	 * {@link NodeStatistics} and at the node's circuit breaker (if circuit breakers are enabled).
+	 */
+	public void registerOperation(@Nonnull final SocketAddress socketAddress, @Nullable final OperationType type,
+			final long latencyInMicros, final boolean error, final boolean timeout, final int bytesIn, final int bytesOut) {
+		final String node = getNodeName( socketAddress );
+		_nodeStatistics.register( node, type, latencyInMicros, error, timeout, bytesIn, bytesOut );
+		if ( _circuitBreakers != null ) {
+			_circuitBreakers.register( node, latencyInMicros, error );
+		}
+		for ( final MemcachedNodesManager attached : _attached ) {
+			attached.registerOperation( socketAddress, type, latencyInMicros, error, timeout, bytesIn, bytesOut );
+		}
+	}
+
+	/**
+	 * Registers the spymemcached operation queues of the given node in the {@link NodeStatistics}.
+	 */
+	public void registerQueues(@Nonnull final SocketAddress socketAddress, @Nonnull final Collection<?> inputQueue,
+			@Nonnull final Collection<?> writeQueue, @Nonnull final Collection<?> readQueue) {
+		_nodeStatistics.setQueues( getNodeName( socketAddress ), inputQueue, writeQueue, readQueue );
+		for ( final MemcachedNodesManager attached : _attached ) {
+			attached.registerQueues( socketAddress, inputQueue, writeQueue, readQueue );
+		}
+	}
+
+	/**
+	 * Registers an established connection (with the number of reconnect attempts) in the {@link NodeStatistics}.
+	 */
+	public void registerConnectionEstablished(@Nonnull final SocketAddress socketAddress, final int reconnectCount) {
+		_nodeStatistics.connectionEstablished( getNodeName( socketAddress ), reconnectCount );
+		for ( final MemcachedNodesManager attached : _attached ) {
+			attached.registerConnectionEstablished( socketAddress, reconnectCount );
+		}
+	}
+
+	/**
+	 * Registers a lost connection in the {@link NodeStatistics}.
+	 */
+	public void registerConnectionLost(@Nonnull final SocketAddress socketAddress) {
+		_nodeStatistics.connectionLost( getNodeName( socketAddress ) );
+		for ( final MemcachedNodesManager attached : _attached ) {
+			attached.registerConnectionLost( socketAddress );
+		}
+	}
+
+	/**
+	 * Attaches the nodes manager of a context that uses a memcached client created for this nodes manager
+	 * (see {@link SharedResources}): operations, queues and connections of the client are then registered
+	 * at the attached nodes manager as well, so that its node statistics and circuit breakers see them.
+	 */
+	void attach(@Nonnull final MemcachedNodesManager memcachedNodesManager) {
+		_nodeStatistics.copyQueuesTo( memcachedNodesManager._nodeStatistics );
+		_attached.add( memcachedNodesManager );
+	}
+
+	/**
+	 * Detaches a nodes manager that was attached via {@link #attach(MemcachedNodesManager)}.
+	 */
+	void detach(@Nonnull final MemcachedNodesManager memcachedNodesManager) {
+		_attached.remove( memcachedNodesManager );
+	}
+
+	/**
+	 * Returns the statistics of the given memcached node (node id or host:port if the node has no id),
+	 * <code>null</code> if nothing was registered for the node yet.
+	 */
+	@CheckForNull
+	public NodeStats getNodeStats(@Nonnull final String nodeId) {
+		return _nodeStatistics.get( nodeId );
+	}
+
+	/**
+	 * The circuit breakers of the memcached nodes, <code>null</code> if not enabled.
+	 */
+	@CheckForNull
+	public CircuitBreakers getCircuitBreakers() {
+		return _circuitBreakers;
+	}
+
+	/**
+	 * Provides the latencies and errors of memcached operations per memcached node.
+	 */
+	@Nonnull
+	public NodeStatistics getNodeStatistics() {
+		return _nodeStatistics;
+	}
+
+	/**
+	 * Sets the policy used to select the memcached node for new sessions, <code>null</code>
+	 * selects a random available node.
+	 */
+	public void setNodeSelectionPolicy(@Nullable final NodeSelectionPolicy nodeSelectionPolicy) {
+		if ( _nodeIdService != null ) {
+			_nodeIdService.setNodeSelectionPolicy(nodeSelectionPolicy);
+		}
+	}
+
 	/**
      * Get the next node id for the given one, based on the primary node ids (memcachedNodes without failoverNodes).
      * For the last node id the first one is returned.
@@ -417,6 +631,23 @@ public class MemcachedNodesManager {
 		return _nodeIdService.isNodeAvailable(nodeId);
 	}
 
+	/**
+	 * Returns the nodes that are currently known to be unavailable (without checking nodes whose
+	 * cached availability expired), empty if node ids are not encoded in session ids.
+	 */
+	@Nonnull
+	public Set<String> getUnavailableNodeIds() {
+		return _nodeIdService != null ? _nodeIdService.getUnavailableNodeIds() : Collections.<String>emptySet();
+	}
+
+	/**
+	 * Returns the memcached node id encoded in the given session id, <code>null</code> if node ids are not encoded.
+	 */
+	@CheckForNull
+	public String getNodeIdOfSession(@Nonnull final String sessionId) {
+		return _encodeNodeIdInSessionId ? _sessionIdFormat.extractMemcachedId( sessionId ) : null;
+	}
+
 	/**
 	 * Can be used to determine if the given sessionId can be used to interact with memcached.
 	 * @see #canHitMemcached(String)
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import net.spy.memcached.MemcachedClient;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import de.javakaffee.web.msm.Statistics.StatsType;
+
+/**
+ * Collects the memcached write operations that are issued at the end of a request
+ * (like the update of the validity info or the release of the session lock) and that
+ * don't need to be sent and awaited one after another.
+ * <p>
+ * When the batch is {@link #flush(Statistics) flushed} all collected operations are sent
+ * back to back, so that spymemcached can write the operations queued for a memcached node
+ * with a single write, and afterwards the results of the operations that must be awaited
+ * are awaited with a common deadline. So instead of a roundtrip per operation there's
+ * a single roundtrip per node.
+ * </p>
+ * <p>
+ * A batch is bound to the current request via {@link CurrentRequest#startOperationBatch()},
+ * and is flushed by the {@link RequestTrackingHostValve} when the request is finished.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class MemcachedOperationBatch {
+
+    private static final Log LOG = LogFactory.getLog( MemcachedOperationBatch.class );
+
+    private final List<Operation> _operations = new ArrayList<Operation>( 4 );
+
+    /**
+     * Adds a set operation to this batch.
+     *
+     * @param memcached the client to use for this operation
+     * @param key the key to store
+     * @param exp the memcached expiration
+     * @param value the value to store
+     * @param timeoutInMillis the time to wait for the result when the batch is flushed,
+     *  use <code>0</code> if the result shall not be awaited.
+     * @param statsType the probe to update with the duration of the operation (measured from flush),
+     *  can be <code>null</code>.
+     */
+    public void set( @Nonnull final MemcachedClient memcached, @Nonnull final String key, final int exp, @Nonnull final Object value,
+            final long timeoutInMillis, @CheckForNull final StatsType statsType ) {
+        _operations.add( new Operation( memcached, key, timeoutInMillis, statsType ) {
+            @Override
+            Future<Boolean> submit() {
+                return _memcached.set( _key, exp, value );
+            }
+        } );
+    }
+
+    /**
+     * Adds a delete operation to this batch.
+     *
+     * @param memcached the client to use for this operation
+     * @param key the key to delete
+     * @param timeoutInMillis the time to wait for the result when the batch is flushed,
+     *  use <code>0</code> if the result shall not be awaited.
+     * @param statsType the probe to update with the duration of the operation (measured from flush),
+     *  can be <code>null</code>.
+     */
+    public void delete( @Nonnull final MemcachedClient memcached, @Nonnull final String key,
+            final long timeoutInMillis, @CheckForNull final StatsType statsType ) {
+        _operations.add( new Operation( memcached, key, timeoutInMillis, statsType ) {
+            @Override
+            Future<Boolean> submit() {
+                return _memcached.delete( _key );
+            }
+        } );
+    }
+
+    /**
+     * The number of operations that are not yet flushed.
+     */
+    public int size() {
+        return _operations.size();
+    }
+
+    /**
+     * Sends all collected operations and waits for the results of operations
+     * that were added with a timeout. Errors are logged and don't prevent
+     * other operations from being sent.
+     *
+     * @param statistics used to register the durations of the operations
+     * @return the number of operations that were sent.
+     */
+    public int flush( @Nonnull final Statistics statistics ) {
+        final int size = _operations.size();
+        if ( size == 0 ) {
+            return 0;
+        }
+
+        final long start = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>( size );
+        for ( int i = 0; i < size; i++ ) {
+            final Operation operation = _operations.get( i );
+            try {
+                futures.add( operation.submit() );
+            } catch ( final RuntimeException e ) {
+                LOG.warn( "Could not send batched operation for key " + operation._key, e );
+                futures.add( null );
+            }
+        }
+
+        for ( int i = 0; i < size; i++ ) {
+            final Operation operation = _operations.get( i );
+            final Future<Boolean> future = futures.get( i );
+            if ( future == null || operation._timeout <= 0 ) {
+                continue;
+            }
+            try {
+                future.get( Math.max( 0, start + operation._timeout - System.currentTimeMillis() ), TimeUnit.MILLISECONDS );
+                if ( operation._statsType != null ) {
+                    statistics.registerSince( operation._statsType, startNanos );
+                }
+            } catch ( final TimeoutException e ) {
+                LOG.warn( "Batched operation for key " + operation._key + " did not complete within " + operation._timeout + " millis." );
+            } catch ( final ExecutionException e ) {
+                LOG.warn( "Batched operation for key " + operation._key + " failed.", e );
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                LOG.warn( "Got interrupted while waiting for batched operations." );
+                break;
+            }
+        }
+
+        _operations.clear();
+        return size;
+    }
+
+    private static abstract class Operation {
+
+        protected final MemcachedClient _memcached;
+        protected final String _key;
+        private final long _timeout;
+        private final StatsType _statsType;
+
+        Operation( final MemcachedClient memcached, final String key, final long timeout, final StatsType statsType ) {
+            _memcached = memcached;
+            _key = key;
+            _timeout = timeout;
+            _statsType = statsType;
+        }
+
+        abstract Future<Boolean> submit();
+
+    }
+
+}
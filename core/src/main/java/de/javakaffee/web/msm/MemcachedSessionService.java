@@ -16,6 +16,7 @@
  */
 package de.javakaffee.web.msm;
 
+import static de.javakaffee.web.msm.Configurations.BINARY_QUIET_WRITES_KEY;
 import static de.javakaffee.web.msm.Configurations.MAX_RECONNECT_DELAY_KEY;
 import static de.javakaffee.web.msm.Configurations.getSystemProperty;
 import static de.javakaffee.web.msm.Statistics.StatsType.DELETE_FROM_MEMCACHED;
@@ -25,8 +26,14 @@ import static de.javakaffee.web.msm.Statistics.StatsType.SESSION_DESERIALIZATION
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
@@ -219,7 +226,11 @@ public class MemcachedSessionService {
 
 	private MemcachedNodesManager _memcachedNodesManager;
 
-    //private LRUCache<String, String> _relocatedSessions;
+    /**
+     * Maps the old ids of sessions relocated by the {@link SessionRelocator} to their new ids, so that
+     * requests with an old session id still get their session.
+     */
+    private final LRUCache<String, String> _relocatedSessions = new LRUCache<String, String>( 20000, 60 * 60 * 1000 );
 
     protected TranscoderService _transcoderService;
 
@@ -230,9 +241,19 @@ public class MemcachedSessionService {
     private boolean _sticky = true;
     private String _lockingMode;
     private LockingStrategy _lockingStrategy;
+    private volatile LockContentionProfiler _lockContentionProfiler;
+    private String _nodeSelectionPolicy;
+    private NodeSelectionPolicy _nodeSelectionPolicyInstance;
+    private SessionRelocator _sessionRelocator;
+    private volatile HedgedSessionLoader _hedgedSessionLoader;
+    private volatile TopologyTransition _topologyTransition;
+    private RemoteReplicationStream _remoteReplicationStream;
+    private SessionJournal _sessionJournal;
+    private SpillBuffer _spillBuffer;
+    private StatisticsView _statisticsView;
     private long _operationTimeout = 1000;
 
-    private CurrentRequest _currentRequest;
+    private final CurrentRequest _currentRequest = new CurrentRequest();
     private RequestTrackingHostValve _trackingHostValve;
     private RequestTrackingContextValve _trackingContextValve;
 
@@ -391,12 +412,45 @@ public class MemcachedSessionService {
         if ( _lockingStrategy != null ) {
             _lockingStrategy.shutdown();
         }
+        if ( _nodeSelectionPolicyInstance != null ) {
+            _nodeSelectionPolicyInstance.shutdown();
+            _nodeSelectionPolicyInstance = null;
+        }
+        if ( _sessionRelocator != null ) {
+            _sessionRelocator.shutdown();
+            _sessionRelocator = null;
+        }
+        if ( _topologyTransition != null ) {
+            _topologyTransition.shutdown();
+            _topologyTransition = null;
+        }
+        if ( _remoteReplicationStream != null ) {
+            _remoteReplicationStream.shutdown();
+            _remoteReplicationStream = null;
+        }
+        if ( _sessionJournal != null ) {
+            _sessionJournal.shutdown();
+            _sessionJournal = null;
+        }
+        if ( _spillBuffer != null ) {
+            _spillBuffer.shutdown();
+            _spillBuffer = null;
+        }
+        if ( _statisticsView != null ) {
+            _statisticsView.unregister();
+            _statisticsView = null;
+        }
+        MetricsValve.unregister( this );
         if ( _memcached != null ) {
-            _memcached.shutdown();
+            SharedResources.shutdown( _memcached, _memcachedNodesManager );
             _memcached = null;
         }
+        if ( _memcachedNodesManager != null ) {
+            _memcachedNodesManager.shutdown();
+        }
         _transcoderFactory = null;
         _invalidSessionsCache.clear();
+        _relocatedSessions.clear();
     }
 
     /**
@@ -425,21 +479,58 @@ public class MemcachedSessionService {
         if(_memcached == null) {
             _memcached = createMemcachedClient( _memcachedNodesManager, _statistics );
         }
+        _memcachedNodesManager.setSessionReplicator( SessionReplicator.createFromSystemProperties( _memcached,
+                _memcachedNodesManager, _statistics, _operationTimeout ) );
+
+        initNodeSelectionPolicy();
+        _hedgedSessionLoader = HedgedSessionLoader.createFromSystemProperties( _memcached, _memcachedNodesManager, _statistics );
 
         final String sessionCookieName = _manager.getSessionCookieName();
-        _currentRequest = new CurrentRequest();
         _trackingHostValve = createRequestTrackingHostValve(sessionCookieName, _currentRequest);
         final Context context = (Context) _manager.getContainer();
         context.getParent().getPipeline().addValve(_trackingHostValve);
         _trackingContextValve = createRequestTrackingContextValve(sessionCookieName);
         context.getPipeline().addValve( _trackingContextValve );
 
+        if ( _enableStatistics ) {
+            _statisticsView = StatisticsView.register( _statistics, context.getParent().getName(), context.getName() );
+            MetricsValve.register( context.getParent().getName() + context.getName(), this );
+        }
+
+        _lockContentionProfiler = LockContentionProfiler.createFromSystemProperties();
         initNonStickyLockingMode( _memcachedNodesManager );
 
         _transcoderService = createTranscoderService( _statistics );
+        _transcoderService.setAttributeProfiler( AttributeProfiler.createFromSystemProperties() );
+
+        _remoteReplicationStream = _enabled.get()
+            ? RemoteReplicationStream.createFromSystemProperties( _memcachedNodesManager.getStorageKeyFormat(),
+                    _memcachedProtocol, _username, _password, _operationTimeout, _statistics )
+            : null;
+        if ( _remoteReplicationStream != null ) {
+            _remoteReplicationStream.start();
+        }
+        _sessionJournal = _enabled.get() && _sticky
+            ? SessionJournal.createFromSystemProperties( context.getParent().getName() + context.getName() )
+            : null;
+        _spillBuffer = _enabled.get() ? SpillBuffer.createFromSystemProperties( this, _statistics, _operationTimeout ) : null;
+        if ( _spillBuffer != null ) {
+            _spillBuffer.start();
+        }
 
         _backupSessionService = new BackupSessionService( _transcoderService, _sessionBackupAsync, _sessionBackupTimeout,
-                _backupThreadCount, _memcached, _memcachedNodesManager, _statistics );
+                _backupThreadCount, _memcached, _memcachedNodesManager, _statistics, _currentRequest, _remoteReplicationStream,
+                _sessionJournal, _spillBuffer );
+
+        if ( _sessionJournal != null ) {
+            preloadFromJournal( _sessionJournal );
+        }
+
+        final int relocationRate = Configurations.getSystemProperty( Configurations.RELOCATION_RATE_KEY, 0 );
+        if ( relocationRate > 0 ) {
+            _sessionRelocator = new SessionRelocator( this, relocationRate, _sessionBackupTimeout );
+            _memcachedNodesManager.setNodeAvailabilityListener( _sessionRelocator );
+        }
 
         _log.info( "--------\n- " + getClass().getSimpleName() + " finished initialization:" +
                 "\n- sticky: "+ _sticky +
@@ -473,6 +564,59 @@ public class MemcachedSessionService {
 		};
 	}
 
+    /**
+     * Deserializes the sessions of the journal in parallel and adds the valid sessions of this tomcat,
+     * afterwards they're checked against memcached in the background.
+     */
+    private void preloadFromJournal( @Nonnull final SessionJournal journal ) {
+        final long start = System.currentTimeMillis();
+        final Map<String, byte[]> journaled = journal.readAll();
+        final String jvmRoute = _manager.getJvmRoute();
+        final Collection<String> preloaded = new ConcurrentLinkedQueue<String>();
+        final ExecutorService executor = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(),
+                new NamedThreadFactory( "msm-journal-preload" ) );
+        try {
+            final List<Future<?>> futures = new ArrayList<Future<?>>( journaled.size() );
+            for ( final Map.Entry<String, byte[]> entry : journaled.entrySet() ) {
+                futures.add( executor.submit( new Runnable() {
+                    @Override
+                    public void run() {
+                        final String sessionId = entry.getKey();
+                        if ( jvmRoute != null && !jvmRoute.equals( getSessionIdFormat().extractJvmRoute( sessionId ) ) ) {
+                            return;
+                        }
+                        final MemcachedBackupSession session = _transcoderService.deserialize( entry.getValue(), _manager );
+                        // don't use isValid(), it would expire (and delete) the session
+                        final int maxInactiveInterval = session.getMaxInactiveInterval();
+                        if ( maxInactiveInterval > 0
+                                && System.currentTimeMillis() - session.getThisAccessedTimeInternal() >= maxInactiveInterval * 1000L ) {
+                            return;
+                        }
+                        session.setSticky( true );
+                        addValidLoadedSession( session, true );
+                        preloaded.add( sessionId );
+                    }
+                } ) );
+            }
+            for ( final Future<?> future : futures ) {
+                try {
+                    future.get();
+                } catch ( final ExecutionException e ) {
+                    _log.warn( "Could not preload session from journal", e.getCause() );
+                }
+            }
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+        }
+        _log.info( "Preloaded " + preloaded.size() + " of " + journaled.size() + " journaled sessions in "
+                + ( System.currentTimeMillis() - start ) + " ms." );
+
+        journal.startVerification( _memcached, _memcachedNodesManager.getStorageKeyFormat(), _manager, preloaded,
+                Configurations.getSystemProperty( Configurations.JOURNAL_VERIFICATION_RATE_KEY, 100 ), _operationTimeout );
+    }
+
     protected MemcachedNodesManager createMemcachedNodesManager(final String memcachedNodes, final String failoverNodes) {
         final Context context = (Context) _manager.getContainer();
         final String webappVersion = Reflections.invoke(context, "getWebappVersion", null);
@@ -502,8 +646,20 @@ public class MemcachedSessionService {
         }
 
         final long maxReconnectDelay = getSystemProperty(MAX_RECONNECT_DELAY_KEY, DefaultConnectionFactory.DEFAULT_MAX_RECONNECT_DELAY);
+        final boolean quietWrites = getSystemProperty(BINARY_QUIET_WRITES_KEY, false);
+        if ( SharedResources.isEnabled() ) {
+            final String key = memcachedNodesManager.getMemcachedNodes() + "|" + memcachedNodesManager.getFailoverNodeIds() + "|" + _memcachedProtocol
+                    + "|" + _username + "|" + ( _password != null ? StorageKeyFormat.hashString( _password ) : null ) + "|" + _operationTimeout;
+            return SharedResources.acquireClient( key, memcachedNodesManager, statistics, new SharedResources.ClientFactory() {
+                @Override
+                public MemcachedClient create( final MemcachedNodesManager sharedNodesManager, final Statistics sharedStatistics ) {
+                    return new MemcachedClientFactory().createMemcachedClient(sharedNodesManager, _memcachedProtocol, _username, _password,
+                            _operationTimeout, maxReconnectDelay, quietWrites, sharedStatistics);
+                }
+            } );
+        }
         return new MemcachedClientFactory().createMemcachedClient(memcachedNodesManager, _memcachedProtocol, _username, _password, _operationTimeout,
-                maxReconnectDelay, statistics);
+                maxReconnectDelay, quietWrites, statistics);
     }
 
     private TranscoderFactory createTranscoderFactory() throws InstantiationException, IllegalAccessException, ClassNotFoundException {
@@ -794,14 +950,25 @@ public class MemcachedSessionService {
     }
 
     protected void deleteFromMemcached(final String sessionId) {
+        if ( _sessionJournal != null ) {
+            _sessionJournal.remove( sessionId );
+        }
+        if ( _spillBuffer != null && _memcachedNodesManager.isValidForMemcached( sessionId ) ) {
+            _spillBuffer.remove( _memcachedNodesManager.getStorageKeyFormat().format( sessionId ) );
+        }
         if ( _enabled.get() && _memcachedNodesManager.isValidForMemcached( sessionId ) ) {
             if ( _log.isDebugEnabled() ) {
                 _log.debug( "Deleting session from memcached: " + sessionId );
             }
             try {
-                final long start = System.currentTimeMillis();
-                _memcached.delete( _memcachedNodesManager.getStorageKeyFormat().format(sessionId) ).get();
+                final long start = System.nanoTime();
+                final String key = _memcachedNodesManager.getStorageKeyFormat().format(sessionId);
+                final SessionReplicator replicator = _memcachedNodesManager.getSessionReplicator();
+                ( replicator != null ? replicator.delete( key ) : _memcached.delete( key ) ).get();
                 _statistics.registerSince( DELETE_FROM_MEMCACHED, start );
+                if ( _remoteReplicationStream != null ) {
+                    _remoteReplicationStream.delete( key );
+                }
                 if ( !_sticky ) {
                     _lockingStrategy.onAfterDeleteFromMemcached( sessionId );
                 }
@@ -848,8 +1015,26 @@ public class MemcachedSessionService {
                         return newSessionId;
                     }
                 }
+                else if ( session == null ) {
+                    /* the session might have been relocated in the background already
+                     */
+                    final String relocatedSessionId = _relocatedSessions.get( requestedSessionId );
+                    if ( relocatedSessionId != null ) {
+                        final MemcachedBackupSession relocatedSession = _manager.getSessionInternal( relocatedSessionId );
+                        if ( relocatedSession != null && relocatedSession.isValid() ) {
+                            _log.debug( "Session " + requestedSessionId + " was relocated to " + relocatedSessionId );
+                            return relocatedSessionId;
+                        }
+                    }
+                    return migrateFromDrainingNode( requestedSessionId );
+                }
             } else {
 
+                final String migratedSessionId = migrateFromDrainingNode( requestedSessionId );
+                if ( migratedSessionId != null ) {
+                    return migratedSessionId;
+                }
+
                 /* for non-sticky sessions we check the validity info
                  */
                 final String nodeId = getSessionIdFormat().extractMemcachedId( requestedSessionId );
@@ -873,6 +1058,79 @@ public class MemcachedSessionService {
         return null;
     }
 
+    /**
+     * Relocates the given session if it's stored in the given (unavailable) memcached node and it's
+     * not used by a request currently. Used by the {@link SessionRelocator}, only supported for sticky sessions.
+     *
+     * @return the result of the backup of the relocated session, or <code>null</code> if the session was not relocated.
+     */
+    @CheckForNull
+    Future<BackupResult> relocateSession( @Nonnull final MemcachedBackupSession session, @Nonnull final String nodeId ) {
+        if ( !_sticky || !_memcachedNodesManager.isEncodeNodeIdInSessionId() ) {
+            return null;
+        }
+        final String oldSessionId = session.getIdInternal();
+        if ( oldSessionId == null || !nodeId.equals( getSessionIdFormat().extractMemcachedId( oldSessionId ) )
+                || !session.isValidInternal() || session.getRefCount() > 0 || session.isBackupRunning() ) {
+            return null;
+        }
+        final String newSessionId = _memcachedNodesManager.getNewSessionIdIfNodeFromSessionIdUnavailable( oldSessionId );
+        if ( newSessionId == null ) {
+            return null;
+        }
+        _log.debug( "Relocating session " + oldSessionId + " to " + newSessionId );
+        session.setIdForRelocate( newSessionId );
+        _relocatedSessions.put( oldSessionId, newSessionId );
+        return _backupSessionService.backupSession( session, true );
+    }
+
+    /**
+     * Migrates the session with the given id if it's stored in a memcached node that was removed
+     * from the configuration during a {@link TopologyTransition}: the session is read from the former node
+     * and added locally with a new session id, so that it's stored in the new node at the end of the request.
+     *
+     * @return the new session id, or <code>null</code> if the session was not migrated.
+     */
+    @CheckForNull
+    private String migrateFromDrainingNode( @Nonnull final String requestedSessionId ) {
+        final TopologyTransition topologyTransition = _topologyTransition;
+        if ( topologyTransition == null
+                || !topologyTransition.isDraining( getSessionIdFormat().extractMemcachedId( requestedSessionId ) ) ) {
+            return null;
+        }
+        final String migratedSessionId = _relocatedSessions.get( requestedSessionId );
+        if ( migratedSessionId != null ) {
+            _log.debug( "Session " + requestedSessionId + " was already migrated to " + migratedSessionId );
+            return migratedSessionId;
+        }
+        final String newSessionId = _memcachedNodesManager.getNewSessionIdIfNodeFromSessionIdUnavailable( requestedSessionId );
+        if ( newSessionId == null ) {
+            return null;
+        }
+        try {
+            final TopologyTransition.Result loaded = topologyTransition.load( requestedSessionId );
+            if ( loaded == null || !_sticky && ( loaded.getValidityInfo() == null || !loaded.getValidityInfo().isValid() ) ) {
+                _log.debug( "Session " + requestedSessionId + " not found (or not valid) in former memcached node." );
+                return null;
+            }
+            final MemcachedBackupSession session = _transcoderService.deserialize( loaded.getData(), _manager );
+            session.setSticky( _sticky );
+            if ( loaded.getValidityInfo() != null ) {
+                session.setLastAccessedTimeInternal( loaded.getValidityInfo().getLastAccessedTime() );
+                session.setThisAccessedTimeInternal( loaded.getValidityInfo().getThisAccessedTime() );
+            }
+            _log.info( "Session " + requestedSessionId + " loaded from former memcached node, migrating it to " + newSessionId );
+            session.setIdInternal( newSessionId );
+            _relocatedSessions.put( requestedSessionId, newSessionId );
+            addValidLoadedSession( session, true );
+            _statistics.requestWithMemcachedFailover();
+            return newSessionId;
+        } catch ( final Exception e ) {
+            _log.warn( "Could not migrate session " + requestedSessionId + " from former memcached node.", e );
+            return null;
+        }
+    }
+
     @CheckForNull
     private MemcachedBackupSession loadBackupSession( @Nonnull final String requestedSessionId ) {
 
@@ -1074,6 +1332,7 @@ public class MemcachedSessionService {
             _log.debug( "Loading session from memcached: " + sessionId );
         }
 
+        final OperationEvent event = OperationEvent.begin( OperationEvent.Type.LOAD );
         LockStatus lockStatus = null;
         try {
 
@@ -1081,7 +1340,8 @@ public class MemcachedSessionService {
                 lockStatus = _lockingStrategy.onBeforeLoadFromMemcached( sessionId );
             }
 
-            final long start = System.currentTimeMillis();
+            final long start = System.nanoTime();
+            final RequestTimings timings = _currentRequest.getTimings();
 
             /* In the previous version (<1.2) the session was completely serialized by
              * custom Transcoder implementations.
@@ -1089,26 +1349,51 @@ public class MemcachedSessionService {
              * they get deserialized by BaseSerializingTranscoder.deserialize or the appropriate
              * specializations.
              */
-            final Object object = _memcached.get( _memcachedNodesManager.getStorageKeyFormat().format( sessionId ) );
+            final String key = _memcachedNodesManager.getStorageKeyFormat().format( sessionId );
+            final Object object;
+            SessionValidityInfo backupValidityInfo = null;
+            final HedgedSessionLoader hedgedSessionLoader = _hedgedSessionLoader;
+            if ( !_sticky && hedgedSessionLoader != null && _lockingStrategy.isStoreSecondaryBackup() ) {
+                final HedgedSessionLoader.Result loaded = hedgedSessionLoader.load( sessionId, key, _operationTimeout );
+                object = loaded.getData();
+                backupValidityInfo = loaded.getBackupValidityInfo();
+            }
+            else if ( _memcachedNodesManager.getSessionReplicator() != null ) {
+                object = _memcachedNodesManager.getSessionReplicator().get( key, SessionReplicator.ValueType.SESSION, _operationTimeout );
+            }
+            else {
+                object = _memcached.get( key );
+            }
             _memcachedNodesManager.onLoadFromMemcachedSuccess( sessionId );
+            if ( timings != null ) {
+                timings.addSince( RequestTimings.Phase.GET, start );
+            }
 
             if ( object != null ) {
                 if ( !(object instanceof byte[]) ) {
                     throw new RuntimeException( "The loaded object for sessionId " + sessionId + " is not of required type byte[], but " + object.getClass().getName() );
                 }
-                final long startDeserialization = System.currentTimeMillis();
+                final long startDeserialization = System.nanoTime();
                 final MemcachedBackupSession result = _transcoderService.deserialize( (byte[]) object, _manager );
                 _statistics.registerSince( SESSION_DESERIALIZATION, startDeserialization );
+                if ( timings != null ) {
+                    timings.addSince( RequestTimings.Phase.DESERIALIZATION, startDeserialization );
+                }
                 _statistics.registerSince( LOAD_FROM_MEMCACHED, start );
 
                 result.setSticky( _sticky );
-                if ( !_sticky ) {
+                if ( backupValidityInfo != null ) {
+                    _log.debug( "Loaded session " + sessionId + " from the secondary backup, the primary memcached node was too slow." );
+                    _lockingStrategy.onAfterLoadFromBackup( result, lockStatus, backupValidityInfo );
+                }
+                else if ( !_sticky ) {
                     _lockingStrategy.onAfterLoadFromMemcached( result, lockStatus );
                 }
 
                 if ( _log.isDebugEnabled() ) {
                     _log.debug( "Found session with id " + sessionId );
                 }
+                endEvent( event, sessionId, ( (byte[]) object ).length, OperationEvent.Outcome.SUCCESS );
                 return result;
             }
             else {
@@ -1117,21 +1402,37 @@ public class MemcachedSessionService {
                 if ( _log.isDebugEnabled() ) {
                     _log.debug( "Session " + sessionId + " not found in memcached." );
                 }
+                endEvent( event, sessionId, 0, OperationEvent.Outcome.NOT_FOUND );
                 return null;
             }
         } catch ( final TranscoderDeserializationException e ) {
             _log.warn( "Could not deserialize session with id " + sessionId + " from memcached, session will be purged from storage.", e );
             releaseIfLocked( sessionId, lockStatus );
-            _memcached.delete( _memcachedNodesManager.getStorageKeyFormat().format(sessionId) );
+            final String key = _memcachedNodesManager.getStorageKeyFormat().format(sessionId);
+            final SessionReplicator replicator = _memcachedNodesManager.getSessionReplicator();
+            if ( replicator != null ) {
+                replicator.delete( key );
+            }
+            else {
+                _memcached.delete( key );
+            }
             _invalidSessionsCache.put( sessionId, Boolean.TRUE );
         } catch ( final Exception e ) {
             _log.warn( "Could not load session with id " + sessionId + " from memcached.", e );
             releaseIfLocked( sessionId, lockStatus );
         } finally {
         }
+        endEvent( event, sessionId, 0, OperationEvent.Outcome.FAILURE );
         return null;
     }
 
+    private void endEvent( @Nullable final OperationEvent event, @Nonnull final String sessionId, final long bytes,
+            @Nonnull final OperationEvent.Outcome outcome ) {
+        if ( event != null ) {
+            event.end( sessionId, _memcachedNodesManager.getNodeIdOfSession( sessionId ), bytes, outcome );
+        }
+    }
+
     protected void releaseIfLocked( final String sessionId, final LockStatus lockStatus ) {
         if ( lockStatus == LockStatus.LOCKED ) {
             _lockingStrategy.releaseLock( sessionId );
@@ -1145,7 +1446,8 @@ public class MemcachedSessionService {
      * </p>
      * <p>
      * When the memcached nodes are set when this manager is already initialized,
-     * the new configuration will be loaded.
+     * the new configuration will be loaded. If {@value Configurations#TOPOLOGY_TRANSITION_PERIOD_KEY}
+     * is set, sessions of removed nodes are migrated to the new nodes (see {@link TopologyTransition}).
      * </p>
      *
      * @param memcachedNodes
@@ -1180,20 +1482,46 @@ public class MemcachedSessionService {
          */
         final MemcachedNodesManager memcachedNodesManager = createMemcachedNodesManager( memcachedNodes, failoverNodes );
         final MemcachedClient memcachedClient = createMemcachedClient( memcachedNodesManager, _statistics );
+        memcachedNodesManager.setSessionReplicator( SessionReplicator.createFromSystemProperties( memcachedClient,
+                memcachedNodesManager, _statistics, _operationTimeout ) );
         final BackupSessionService backupSessionService = new BackupSessionService( _transcoderService, _sessionBackupAsync,
-                _sessionBackupTimeout, _backupThreadCount, memcachedClient, memcachedNodesManager, _statistics );
-
-        /* then assign new services
+                _sessionBackupTimeout, _backupThreadCount, memcachedClient, memcachedNodesManager, _statistics, _currentRequest,
+                _remoteReplicationStream, _sessionJournal, _spillBuffer );
+        final TopologyTransition topologyTransition = _memcached != null && _memcachedNodesManager != null
+            ? TopologyTransition.createFromSystemProperties( _memcached, _memcachedNodesManager, memcachedNodesManager,
+                    this, _operationTimeout, _sessionBackupTimeout )
+            : null;
+
+        /* then assign new services, the former memcached client and nodes manager
+         * are kept during a topology transition and shut down when it's finished
          */
-        if ( _memcached != null ) {
-            _memcached.shutdown();
+        if ( _topologyTransition != null ) {
+            _topologyTransition.shutdown();
+        }
+        _topologyTransition = topologyTransition;
+        if ( topologyTransition == null ) {
+            if ( _memcached != null ) {
+                SharedResources.shutdown( _memcached, _memcachedNodesManager );
+            }
+            if ( _memcachedNodesManager != null ) {
+                _memcachedNodesManager.shutdown();
+            }
         }
         _memcached = memcachedClient;
         _memcachedNodesManager = memcachedNodesManager;
         _backupSessionService = backupSessionService;
+        if ( _sessionRelocator != null ) {
+            _memcachedNodesManager.setNodeAvailabilityListener( _sessionRelocator );
+        }
 
+        initNodeSelectionPolicy();
+        _hedgedSessionLoader = HedgedSessionLoader.createFromSystemProperties( _memcached, _memcachedNodesManager, _statistics );
         initNonStickyLockingMode( memcachedNodesManager );
 
+        if ( topologyTransition != null ) {
+            topologyTransition.start();
+        }
+
         return memcachedNodesManager;
     }
 
@@ -1499,6 +1827,42 @@ public class MemcachedSessionService {
         }
     }
 
+    /**
+     * Specifies how the memcached node for a new session is selected from the available nodes:
+     * <ul>
+     * <li><code>random</code> - a random node is selected (default).</li>
+     * <li><code>p2c</code> - two random nodes are picked and the one with the lower recent p99 latency
+     * (increased by its error rate) is selected.</li>
+     * <li><code>weighted:&lt;nodeId&gt;=&lt;weight&gt;,...</code> - nodes are selected randomly by the given weights,
+     * e.g. <code>weighted:n1=3,n2=1</code>.</li>
+     * <li><code>capacity</code> - nodes are selected randomly weighted by their free memory as reported by memcached stats.</li>
+     * </ul>
+     * This only applies if node ids are encoded in the session id.
+     */
+    public void setNodeSelectionPolicy( @Nullable final String nodeSelectionPolicy ) {
+        _nodeSelectionPolicy = nodeSelectionPolicy;
+        if ( _manager.isInitialized() ) {
+            initNodeSelectionPolicy();
+        }
+    }
+
+    /**
+     * The configured node selection policy.
+     * @see #setNodeSelectionPolicy(String)
+     */
+    @CheckForNull
+    public String getNodeSelectionPolicy() {
+        return _nodeSelectionPolicy;
+    }
+
+    private void initNodeSelectionPolicy() {
+        if ( _nodeSelectionPolicyInstance != null ) {
+            _nodeSelectionPolicyInstance.shutdown();
+        }
+        _nodeSelectionPolicyInstance = NodeSelectionPolicy.create( _nodeSelectionPolicy, _memcachedNodesManager, _memcached );
+        _memcachedNodesManager.setNodeSelectionPolicy( _nodeSelectionPolicyInstance );
+    }
+
 	private void initNonStickyLockingMode( @Nonnull final MemcachedNodesManager config ) {
         if ( _sticky ) {
             setLockingMode( null, null, false );
@@ -1532,6 +1896,9 @@ public class MemcachedSessionService {
         _log.info( "Setting lockingMode to " + lockingMode + ( uriPattern != null ? " with pattern " + uriPattern.pattern() : "" ) );
         _lockingStrategy = LockingStrategy.create( lockingMode, uriPattern, _memcached, this, _memcachedNodesManager,
                 _invalidSessionsCache, storeSecondaryBackup, _statistics, _currentRequest );
+        if ( _lockingStrategy != null ) {
+            _lockingStrategy.setLockContentionProfiler( _lockContentionProfiler );
+        }
     }
 
     protected void updateExpirationInMemcached() {
@@ -1586,7 +1953,8 @@ public class MemcachedSessionService {
         if ( ( oldSessionBackupAsync != sessionBackupAsync ) && _manager.isInitialized() ) {
             _log.info( "SessionBackupAsync was changed to " + sessionBackupAsync + ", creating new BackupSessionService with new configuration." );
             _backupSessionService = new BackupSessionService( _transcoderService, _sessionBackupAsync, _sessionBackupTimeout,
-                    _backupThreadCount, _memcached, _memcachedNodesManager, _statistics );
+                    _backupThreadCount, _memcached, _memcachedNodesManager, _statistics, _currentRequest, _remoteReplicationStream,
+                _sessionJournal, _spillBuffer );
         }
     }
 
@@ -1629,6 +1997,56 @@ public class MemcachedSessionService {
         return _statistics;
     }
 
+    /**
+     * Returns the number of session backups waiting for a backup thread.
+     */
+    public int getBackupQueueSize() {
+        return _backupSessionService != null ? _backupSessionService.getQueueSize() : 0;
+    }
+
+    /**
+     * Returns the number of sessions that wait for their memcached node in the {@link SpillBuffer}.
+     */
+    public int getSpillBacklogSize() {
+        final SpillBuffer spillBuffer = _spillBuffer;
+        return spillBuffer != null ? spillBuffer.getBacklogSize() : 0;
+    }
+
+    /**
+     * Returns the overall size in bytes of sessions that wait for their memcached node in the {@link SpillBuffer}.
+     */
+    public long getSpillBacklogBytes() {
+        final SpillBuffer spillBuffer = _spillBuffer;
+        return spillBuffer != null ? spillBuffer.getBacklogBytes() : 0;
+    }
+
+    /**
+     * Returns the profiler of lock contention, <code>null</code> if not enabled via
+     * {@link Configurations#LOCK_CONTENTION_TOP_K_KEY}.
+     */
+    @CheckForNull
+    public LockContentionProfiler getLockContentionProfiler() {
+        return _lockContentionProfiler;
+    }
+
+    /**
+     * Returns the profiler of session attributes, <code>null</code> if not enabled via
+     * {@link Configurations#ATTRIBUTE_PROFILING_INTERVAL_KEY}.
+     */
+    @CheckForNull
+    public AttributeProfiler getAttributeProfiler() {
+        final TranscoderService transcoderService = _transcoderService;
+        return transcoderService != null ? transcoderService.getAttributeProfiler() : null;
+    }
+
+    /**
+     * Returns the stream that replicates sessions to remote memcached nodes, or <code>null</code> if not configured.
+     */
+    @CheckForNull
+    RemoteReplicationStream getRemoteReplicationStream() {
+        return _remoteReplicationStream;
+    }
+
 	public long getOperationTimeout() {
 		return _operationTimeout;
 	}
@@ -1647,7 +2065,8 @@ public class MemcachedSessionService {
     void setTranscoderService( final TranscoderService transcoderService ) {
         _transcoderService = transcoderService;
         _backupSessionService = new BackupSessionService( transcoderService, _sessionBackupAsync, _sessionBackupTimeout,
-                _backupThreadCount, _memcached, _memcachedNodesManager, _statistics );
+                _backupThreadCount, _memcached, _memcachedNodesManager, _statistics, _currentRequest, _remoteReplicationStream,
+                _sessionJournal, _spillBuffer );
     }
 
     /**
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.servlet.ServletException;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+
+import de.javakaffee.web.msm.NodeStatistics.NodeStats;
+import de.javakaffee.web.msm.NodeStatistics.OperationType;
+import de.javakaffee.web.msm.Statistics.Counter;
+import de.javakaffee.web.msm.Statistics.MinMaxAvgProbe;
+import de.javakaffee.web.msm.Statistics.StatsType;
+import de.javakaffee.web.msm.Statistics.Unit;
+
+/**
+ * Renders the metrics of all started memcached session managers (with statistics enabled) in the
+ * OpenMetrics text format, so that they can be scraped by Prometheus. This valve is optional, it's
+ * configured in the server.xml for the host (or engine), e.g.
+ * <code>&lt;Valve className="de.javakaffee.web.msm.MetricsValve" path="/msm-metrics" /&gt;</code>;
+ * requests for other paths are passed on. Access can be restricted via the RemoteAddrValve.
+ * <p>
+ * All metrics are labeled with the <code>context</code> (host name plus context path), these are rendered:
+ * <ul>
+ * <li>the {@link Statistics} counters as counters, e.g. <code>msm_requests_with_backup_failure_total</code></li>
+ * <li>the {@link Statistics} probes as summaries with p50/p90/p99/p99.9, durations in seconds, e.g.
+ * <code>msm_backup_seconds</code>, and sizes in bytes (<code>msm_cached_data_size_bytes</code>), including the lock
+ * probes <code>msm_acquire_lock_seconds</code>, <code>msm_acquire_lock_failure_seconds</code> and
+ * <code>msm_release_lock_seconds</code></li>
+ * <li>the availability of memcached nodes as known by the node availability cache, labeled with the <code>node</code> id</li>
+ * <li>the {@link NodeStatistics} per memcached <code>node</code>: latencies per <code>operation</code> as summary
+ * in seconds (<code>msm_memcached_node_latency_seconds</code>), errors, timeouts, read/written bytes and reconnects as counters and
+ * the sizes of the spymemcached operation queues (<code>msm_memcached_node_queue_size</code>, labeled with
+ * <code>queue</code> input/write/read)</li>
+ * <li>the number of session backups waiting for a backup thread, spilled sessions and sessions waiting for
+ * remote replication</li>
+ * </ul>
+ * Rendering reads the counters and histogram buckets in place and writes to the response directly, so
+ * that frequent scrapes don't create garbage beyond a few strings per metric.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class MetricsValve extends ValveBase {
+
+    static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private static final List<Pair<String, MemcachedSessionService>> SERVICES = new CopyOnWriteArrayList<Pair<String, MemcachedSessionService>>();
+
+    private static final ConcurrentMap<String, String> METRIC_NAMES = new ConcurrentHashMap<String, String>();
+    private static final double[] QUANTILES = { 50, 90, 99, 99.9 };
+    private static final String[] QUANTILE_LABELS = { "0.5", "0.9", "0.99", "0.999" };
+    private static final double NANOS_PER_SECOND = 1000000000d;
+    private static final double MICROS_PER_SECOND = 1000000d;
+
+    private String _path = "/msm-metrics";
+
+    /**
+     * The request uri that renders the metrics, default is <code>/msm-metrics</code>.
+     */
+    public void setPath( @Nonnull final String path ) {
+        _path = path;
+    }
+
+    public String getPath() {
+        return _path;
+    }
+
+    /**
+     * Registers the given service, so that its metrics are rendered.
+     * @param context the value of the context label
+     */
+    static void register( @Nonnull final String context, @Nonnull final MemcachedSessionService service ) {
+        SERVICES.add( Pair.of( context, service ) );
+    }
+
+    /**
+     * Unregisters the given service when it's stopped.
+     */
+    static void unregister( @Nonnull final MemcachedSessionService service ) {
+        for ( final Pair<String, MemcachedSessionService> item : SERVICES ) {
+            if ( item.getSecond() == service ) {
+                SERVICES.remove( item );
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invoke( final Request request, final Response response ) throws IOException, ServletException {
+        if ( !_path.equals( request.getRequestURI() ) ) {
+            getNext().invoke( request, response );
+            return;
+        }
+        response.setContentType( CONTENT_TYPE );
+        final Writer writer = response.getWriter();
+        render( SERVICES, writer );
+        writer.flush();
+    }
+
+    /**
+     * Renders the metrics of the given services (context label and service) in OpenMetrics text format.
+     */
+    static void render( @Nonnull final List<Pair<String, MemcachedSessionService>> services, @Nonnull final Writer out ) throws IOException {
+        if ( !services.isEmpty() ) {
+            renderCounters( services, out );
+            renderProbes( services, out );
+            renderNodes( services, out );
+            renderNodeStatistics( services, out );
+            renderGauges( services, out );
+        }
+        out.write( "# EOF\n" );
+    }
+
+    private static void renderCounters( final List<Pair<String, MemcachedSessionService>> services, final Writer out ) throws IOException {
+        for ( final String counter : services.get( 0 ).getSecond().getStatistics().getCounters().keySet() ) {
+            final String name = metricName( counter );
+            type( out, name, "counter" );
+            for ( final Pair<String, MemcachedSessionService> service : services ) {
+                final Counter value = service.getSecond().getStatistics().getCounters().get( counter );
+                if ( value != null ) {
+                    sample( out, name, "_total", service.getFirst() );
+                    out.write( Long.toString( value.get() ) );
+                    out.write( '\n' );
+                }
+            }
+        }
+    }
+
+    private static void renderProbes( final List<Pair<String, MemcachedSessionService>> services, final Writer out ) throws IOException {
+        for ( final StatsType statsType : StatsType.values() ) {
+            final boolean bytes = statsType.getUnit() == Unit.BYTES;
+            final String name = metricName( statsType.name() ) + ( bytes ? "_bytes" : "_seconds" );
+            final double divisor = bytes ? 1 : NANOS_PER_SECOND;
+            type( out, name, "summary" );
+            for ( final Pair<String, MemcachedSessionService> service : services ) {
+                final MinMaxAvgProbe probe = service.getSecond().getStatistics().getProbe( statsType );
+                for ( int i = 0; i < QUANTILES.length; i++ ) {
+                    sample( out, name, "", service.getFirst(), "quantile", QUANTILE_LABELS[i] );
+                    value( out, probe.getPercentile( QUANTILES[i] ), divisor );
+                }
+                sample( out, name, "_sum", service.getFirst() );
+                value( out, probe.getSum(), divisor );
+                sample( out, name, "_count", service.getFirst() );
+                out.write( Integer.toString( probe.getCount() ) );
+                out.write( '\n' );
+            }
+        }
+    }
+
+    private static void renderNodes( final List<Pair<String, MemcachedSessionService>> services, final Writer out ) throws IOException {
+        final String name = "msm_memcached_node_available";
+        type( out, name, "gauge" );
+        for ( final Pair<String, MemcachedSessionService> service : services ) {
+            final MemcachedNodesManager nodesManager = service.getSecond().getMemcachedNodesManager();
+            if ( nodesManager == null || !nodesManager.isEncodeNodeIdInSessionId() ) {
+                continue;
+            }
+            final Set<String> unavailable = nodesManager.getUnavailableNodeIds();
+            for ( final String nodeId : nodesManager.getPrimaryNodeIds() ) {
+                sample( out, name, "", service.getFirst(), "node", nodeId );
+                out.write( unavailable.contains( nodeId ) ? "0\n" : "1\n" );
+            }
+            for ( final String nodeId : nodesManager.getFailoverNodeIds() ) {
+                sample( out, name, "", service.getFirst(), "node", nodeId );
+                out.write( unavailable.contains( nodeId ) ? "0\n" : "1\n" );
+            }
+        }
+    }
+
+    private static void renderNodeStatistics( final List<Pair<String, MemcachedSessionService>> services, final Writer out ) throws IOException {
+        final String latency = "msm_memcached_node_latency_seconds";
+        type( out, latency, "summary" );
+        for ( final Pair<String, MemcachedSessionService> service : services ) {
+            final NodeStatistics nodeStatistics = getNodeStatistics( service.getSecond() );
+            for ( final String node : nodeStatistics != null ? nodeStatistics.getNodes() : Collections.<String>emptyList() ) {
+                final NodeStats stats = nodeStatistics.get( node );
+                for ( final OperationType operationType : OperationType.values() ) {
+                    final Histogram latencies = stats.getLatencies( operationType );
+                    if ( latencies.getCount() == 0 ) {
+                        continue;
+                    }
+                    final String operation = operationType.name().toLowerCase();
+                    for ( int i = 0; i < QUANTILES.length; i++ ) {
+                        sample( out, latency, "", service.getFirst(), "node", node, "operation", operation, "quantile", QUANTILE_LABELS[i] );
+                        value( out, latencies.getPercentile( QUANTILES[i] ), MICROS_PER_SECOND );
+                    }
+                    sample( out, latency, "_sum", service.getFirst(), "node", node, "operation", operation );
+                    value( out, latencies.getSum(), MICROS_PER_SECOND );
+                    sample( out, latency, "_count", service.getFirst(), "node", node, "operation", operation );
+                    out.write( Long.toString( latencies.getCount() ) );
+                    out.write( '\n' );
+                }
+            }
+        }
+        for ( final NodeCounter counter : NodeCounter.values() ) {
+            type( out, counter.name, "counter" );
+            for ( final Pair<String, MemcachedSessionService> service : services ) {
+                final NodeStatistics nodeStatistics = getNodeStatistics( service.getSecond() );
+                for ( final String node : nodeStatistics != null ? nodeStatistics.getNodes() : Collections.<String>emptyList() ) {
+                    sample( out, counter.name, "_total", service.getFirst(), "node", node );
+                    out.write( Long.toString( counter.get( nodeStatistics.get( node ) ) ) );
+                    out.write( '\n' );
+                }
+            }
+        }
+        final String queueSize = "msm_memcached_node_queue_size";
+        type( out, queueSize, "gauge" );
+        for ( final Pair<String, MemcachedSessionService> service : services ) {
+            final NodeStatistics nodeStatistics = getNodeStatistics( service.getSecond() );
+            for ( final String node : nodeStatistics != null ? nodeStatistics.getNodes() : Collections.<String>emptyList() ) {
+                final NodeStats stats = nodeStatistics.get( node );
+                sample( out, queueSize, "", service.getFirst(), "node", node, "queue", "input" );
+                out.write( Integer.toString( stats.getInputQueueSize() ) );
+                out.write( '\n' );
+                sample( out, queueSize, "", service.getFirst(), "node", node, "queue", "write" );
+                out.write( Integer.toString( stats.getWriteQueueSize() ) );
+                out.write( '\n' );
+                sample( out, queueSize, "", service.getFirst(), "node", node, "queue", "read" );
+                out.write( Integer.toString( stats.getReadQueueSize() ) );
+                out.write( '\n' );
+            }
+        }
+    }
+
+    @CheckForNull
+    private static NodeStatistics getNodeStatistics( final MemcachedSessionService service ) {
+        final MemcachedNodesManager nodesManager = service.getMemcachedNodesManager();
+        return nodesManager != null ? nodesManager.getNodeStatistics() : null;
+    }
+
+    /**
+     * The per node counters.
+     */
+    private static enum NodeCounter {
+        ERRORS( "msm_memcached_node_errors" ) {
+            @Override long get( final NodeStats stats ) { return stats.getErrors(); }
+        },
+        TIMEOUTS( "msm_memcached_node_timeouts" ) {
+            @Override long get( final NodeStats stats ) { return stats.getTimeouts(); }
+        },
+        READ_BYTES( "msm_memcached_node_read_bytes" ) {
+            @Override long get( final NodeStats stats ) { return stats.getBytesIn(); }
+        },
+        WRITTEN_BYTES( "msm_memcached_node_written_bytes" ) {
+            @Override long get( final NodeStats stats ) { return stats.getBytesOut(); }
+        },
+        RECONNECTS( "msm_memcached_node_reconnects" ) {
+            @Override long get( final NodeStats stats ) { return stats.getReconnects(); }
+        };
+
+        final String name;
+
+        private NodeCounter( final String name ) {
+            this.name = name;
+        }
+
+        abstract long get( NodeStats stats );
+    }
+
+    private static void renderGauges( final List<Pair<String, MemcachedSessionService>> services, final Writer out ) throws IOException {
+        type( out, "msm_backup_queue_size", "gauge" );
+        for ( final Pair<String, MemcachedSessionService> service : services ) {
+            sample( out, "msm_backup_queue_size", "", service.getFirst() );
+            out.write( Integer.toString( service.getSecond().getBackupQueueSize() ) );
+            out.write( '\n' );
+        }
+        type( out, "msm_spill_backlog_size", "gauge" );
+        for ( final Pair<String, MemcachedSessionService> service : services ) {
+            sample( out, "msm_spill_backlog_size", "", service.getFirst() );
+            out.write( Integer.toString( service.getSecond().getSpillBacklogSize() ) );
+            out.write( '\n' );
+        }
+        type( out, "msm_remote_replication_pending", "gauge" );
+        for ( final Pair<String, MemcachedSessionService> service : services ) {
+            final RemoteReplicationStream stream = service.getSecond().getRemoteReplicationStream();
+            sample( out, "msm_remote_replication_pending", "", service.getFirst() );
+            out.write( Integer.toString( stream != null ? stream.getPendingCount() : 0 ) );
+            out.write( '\n' );
+        }
+    }
+
+    /**
+     * Writes the given value divided by the given divisor (e.g. to convert nanos to seconds) and ends the sample.
+     */
+    private static void value( final Writer out, final long value, final double divisor ) throws IOException {
+        out.write( divisor == 1 ? Long.toString( value ) : Double.toString( value / divisor ) );
+        out.write( '\n' );
+    }
+
+    private static void type( final Writer out, final String name, final String type ) throws IOException {
+        out.write( "# TYPE " );
+        out.write( name );
+        out.write( ' ' );
+        out.write( type );
+        out.write( '\n' );
+    }
+
+    /**
+     * Writes the name and labels of a sample.
+     * @param labels further label names and values (alternating)
+     */
+    private static void sample( final Writer out, final String name, final String suffix, final String context,
+            final String ... labels ) throws IOException {
+        out.write( name );
+        out.write( suffix );
+        out.write( "{context=\"" );
+        writeLabelValue( out, context );
+        for ( int i = 0; i < labels.length; i += 2 ) {
+            out.write( "\"," );
+            out.write( labels[i] );
+            out.write( "=\"" );
+            writeLabelValue( out, labels[i + 1] );
+        }
+        out.write( "\"} " );
+    }
+
+    private static void writeLabelValue( final Writer out, final String value ) throws IOException {
+        for ( int i = 0; i < value.length(); i++ ) {
+            final char c = value.charAt( i );
+            switch ( c ) {
+                case '\\': out.write( "\\\\" ); break;
+                case '"': out.write( "\\\"" ); break;
+                case '\n': out.write( "\\n" ); break;
+                default: out.write( c );
+            }
+        }
+    }
+
+    /**
+     * Converts e.g. <code>requestsWithBackupFailure</code> or <code>ACQUIRE_LOCK</code> to
+     * <code>msm_requests_with_backup_failure</code> / <code>msm_acquire_lock</code>, the names are cached.
+     */
+    static String metricName( @Nonnull final String name ) {
+        String result = METRIC_NAMES.get( name );
+        if ( result == null ) {
+            final StringBuilder sb = new StringBuilder( "msm_" );
+            for ( int i = 0; i < name.length(); i++ ) {
+                final char c = name.charAt( i );
+                if ( Character.isUpperCase( c ) && i > 0 && Character.isLowerCase( name.charAt( i - 1 ) ) ) {
+                    sb.append( '_' );
+                }
+                sb.append( Character.toLowerCase( c ) );
+            }
+            result = sb.toString();
+            METRIC_NAMES.put( name, result );
+        }
+        return result;
+    }
+
+}
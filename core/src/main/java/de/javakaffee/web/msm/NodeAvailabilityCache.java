@@ -17,11 +17,19 @@
 package de.javakaffee.web.msm;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 
@@ -34,6 +42,13 @@ import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 /**
  * An LRUCache that supports a maximum number of cache entries and a time to
  * live for them. The TTL is measured from insertion time to access time.
+ * <p>
+ * If a probe interval is given, the availability of nodes is not loaded when an entry
+ * expired but maintained by a background prober instead: configured nodes are added via {@link #probe(Collection)},
+ * nodes that are requested without being known are added as well. Nodes are regarded as available until they
+ * were probed, they're probed periodically (with jitter, so that nodes are not probed all at once). Unavailable nodes are probed with exponential backoff up to
+ * a max delay. In this mode {@link #isNodeAvailable(Object)} only reads a snapshot of the node states.
+ * </p>
  *
  * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
  * @version $Id$
@@ -44,10 +59,19 @@ public class NodeAvailabilityCache<K> {
 
     private static final Log LOG = LogFactory.getLog( NodeAvailabilityCache.class );
 
+    private static final double JITTER = 0.2;
+
     private final long _ttl;
     private final ConcurrentHashMap<K, ManagedItem<Boolean>> _map;
     private final CacheLoader<K> _cacheLoader;
 
+    private final long _probeInterval;
+    private final long _maxProbeBackoff;
+    private final Random _random = new Random();
+    private volatile Map<K, Boolean> _snapshot = Collections.emptyMap();
+    private volatile NodeAvailabilityListener<K> _listener;
+    private ScheduledExecutorService _prober;
+
     /**
      * Create a new LRUCache with a maximum number of cache entries and a
      * specified time to live for cache entries. The TTL is measured from
@@ -61,9 +85,37 @@ public class NodeAvailabilityCache<K> {
      *            the cache loader to use
      */
     public NodeAvailabilityCache( final int size, final long ttlInMillis, final CacheLoader<K> cacheLoader ) {
+        this( size, ttlInMillis, cacheLoader, 0, 0 );
+    }
+
+    /**
+     * Create a new cache whose nodes are probed in the background, if the probe interval is &gt; 0.
+     *
+     * @param size
+     *            the maximum number of cached items
+     * @param ttlInMillis
+     *            the time to live in milli seconds. Specify -1 for no limit. Not used if nodes are probed.
+     * @param cacheLoader
+     *            the cache loader to use
+     * @param probeIntervalInMillis
+     *            the interval to probe available nodes, <code>0</code> to load nodes when their entry expired.
+     * @param maxProbeBackoffInMillis
+     *            the max interval to probe unavailable nodes.
+     */
+    public NodeAvailabilityCache( final int size, final long ttlInMillis, final CacheLoader<K> cacheLoader,
+            final long probeIntervalInMillis, final long maxProbeBackoffInMillis ) {
         _ttl = ttlInMillis;
         _map = new ConcurrentHashMap<K, ManagedItem<Boolean>>( size / 2 );
         _cacheLoader = cacheLoader;
+        _probeInterval = probeIntervalInMillis;
+        _maxProbeBackoff = Math.max( probeIntervalInMillis, maxProbeBackoffInMillis );
+    }
+
+    /**
+     * Specifies if node availability is maintained by a background prober.
+     */
+    public boolean isProbing() {
+        return _probeInterval > 0;
     }
 
     /**
@@ -91,11 +143,15 @@ public class NodeAvailabilityCache<K> {
     @CheckForNull
     @SuppressWarnings( "NP_BOOLEAN_RETURN_NULL" )
     public Boolean setNodeAvailable( final K key, final boolean available ) {
+        if ( isProbing() ) {
+            return updateSnapshotAndProbe( key, available );
+        }
         final ManagedItem<Boolean> item = _map.get( key );
         final Boolean availableObj = Boolean.valueOf( available );
         if ( item == null || item._value != availableObj ) {
             final ManagedItem<Boolean> previous =
                     _map.put( key, new ManagedItem<Boolean>( availableObj, System.currentTimeMillis() ) );
+            notifyIfUnavailable( key, previous != null ? previous._value : null, available );
             return previous != null
                 ? previous._value
                 : null;
@@ -106,19 +162,26 @@ public class NodeAvailabilityCache<K> {
 
     /**
      * Determines, if the node is available. If it's not cached, it's loaded
-     * from the cache loader.
+     * from the cache loader. If nodes are probed, an unknown node is regarded as available
+     * until it was probed in the background.
      *
      * @param key
      *            the key to check
      * @return <code>true</code> if the node is marked as available.
      */
     public boolean isNodeAvailable( @Nonnull final K key ) {
+        if ( isProbing() ) {
+            final Boolean available = _snapshot.get( key );
+            return available != null ? available.booleanValue() : addAndProbe( key );
+        }
         final ManagedItem<Boolean> item = _map.get( key );
         if ( item == null ) {
             return updateIsNodeAvailable( key );
         } else if ( isExpired( item ) ) {
             _map.remove( key );
-            return updateIsNodeAvailable( key );
+            final boolean result = updateIsNodeAvailable( key );
+            notifyIfUnavailable( key, item._value, result );
+            return result;
         } else {
             return item._value;
         }
@@ -139,12 +202,157 @@ public class NodeAvailabilityCache<K> {
         return result;
     }
 
+    /**
+     * Sets the listener that's notified when a node became unavailable.
+     */
+    public void setListener( @CheckForNull final NodeAvailabilityListener<K> listener ) {
+        _listener = listener;
+    }
+
+    private void notifyIfUnavailable( final K key, final Boolean previous, final boolean available ) {
+        final NodeAvailabilityListener<K> listener = _listener;
+        if ( listener != null && !available && ( previous == null || previous.booleanValue() ) ) {
+            try {
+                listener.onNodeUnavailable( key );
+            } catch ( final RuntimeException e ) {
+                LOG.warn( "Listener failed for unavailable node '" + key + "'.", e );
+            }
+        }
+    }
+
+    /**
+     * Adds the given nodes as available and probes them in the background (if nodes are probed), so that the
+     * availability of configured nodes is known before they're requested. The nodes are probed the first time
+     * after the probe interval, until then they're regarded as available.
+     *
+     * @param keys the nodes to probe.
+     */
+    public void probe( @Nonnull final Collection<K> keys ) {
+        if ( isProbing() ) {
+            for ( final K key : keys ) {
+                updateSnapshotAndProbe( key, true );
+            }
+        }
+    }
+
+    /**
+     * Adds a node that's requested the first time as available and schedules probing it, so that
+     * the request thread does not wait for the node.
+     */
+    private boolean addAndProbe( final K key ) {
+        updateSnapshotAndProbe( key, true );
+        return true;
+    }
+
+    @CheckForNull
+    @SuppressWarnings( "NP_BOOLEAN_RETURN_NULL" )
+    private Boolean updateSnapshotAndProbe( final K key, final boolean available ) {
+        final Boolean previous = updateSnapshot( key, available );
+        if ( previous == null ) {
+            scheduleProbe( new Probe( key, available ? 0 : 1 ) );
+        }
+        return previous;
+    }
+
+    private boolean load( final K key ) {
+        final boolean result = _cacheLoader.isNodeAvailable( key );
+        if ( LOG.isDebugEnabled() ) {
+            LOG.debug( "CacheLoader returned node availability '" + result + "' for node '" + key + "'." );
+        }
+        return result;
+    }
+
+    /**
+     * Updates the snapshot (copy on write) if the availability of the node changed.
+     * @return the previous availability or <code>null</code> if the node was not known.
+     */
+    @CheckForNull
+    @SuppressWarnings( "NP_BOOLEAN_RETURN_NULL" )
+    private synchronized Boolean updateSnapshot( final K key, final boolean available ) {
+        final Boolean previous = _snapshot.get( key );
+        if ( previous == null || previous.booleanValue() != available ) {
+            final Map<K, Boolean> snapshot = new HashMap<K, Boolean>( _snapshot );
+            snapshot.put( key, Boolean.valueOf( available ) );
+            _snapshot = Collections.unmodifiableMap( snapshot );
+            if ( previous != null && LOG.isInfoEnabled() ) {
+                LOG.info( "Node '" + key + "' is now " + ( available ? "available" : "unavailable" ) + "." );
+            }
+            notifyIfUnavailable( key, previous, available );
+        }
+        return previous;
+    }
+
+    private synchronized void scheduleProbe( final Probe probe ) {
+        if ( _prober == null ) {
+            _prober = Executors.newSingleThreadScheduledExecutor( new NamedThreadFactory( "msm-node-prober" ) );
+        }
+        if ( !_prober.isShutdown() ) {
+            try {
+                _prober.schedule( probe, probe.nextDelay(), TimeUnit.MILLISECONDS );
+            } catch ( final RejectedExecutionException e ) {
+                LOG.debug( "Node prober was shut down, not probing node " + probe._key );
+            }
+        }
+    }
+
+    /**
+     * Stops probing nodes.
+     */
+    public synchronized void shutdown() {
+        if ( _prober != null ) {
+            _prober.shutdownNow();
+        }
+    }
+
+    /**
+     * The delay until the next probe, with exponential backoff for unavailable nodes
+     * and +/- {@value #JITTER} jitter.
+     */
+    long nextProbeDelay( final int failures ) {
+        final long delay = failures == 0 ? _probeInterval : Math.min( _maxProbeBackoff, _probeInterval << Math.min( failures, 20 ) );
+        final double jitter = 1 + JITTER * ( 2 * _random.nextDouble() - 1 );
+        return Math.max( 1, (long) ( delay * jitter ) );
+    }
+
+    private final class Probe implements Runnable {
+
+        private final K _key;
+        private int _failures;
+
+        Probe( final K key, final int failures ) {
+            _key = key;
+            _failures = failures;
+        }
+
+        long nextDelay() {
+            return nextProbeDelay( _failures );
+        }
+
+        @Override
+        public void run() {
+            boolean available;
+            try {
+                available = load( _key );
+            } catch ( final RuntimeException e ) {
+                LOG.warn( "Could not probe node '" + _key + "'.", e );
+                available = false;
+            }
+            _failures = available ? 0 : _failures + 1;
+            updateSnapshot( _key, available );
+            scheduleProbe( this );
+        }
+
+    }
+
     /**
      * All known keys.
      *
      * @return a list of all keys, never <code>null</code>.
      */
     public List<K> getKeys() {
+        if ( isProbing() ) {
+            return new ArrayList<K>( _snapshot.keySet() );
+        }
         return new ArrayList<K>( _map.keySet() );
     }
 
@@ -155,6 +363,14 @@ public class NodeAvailabilityCache<K> {
      */
     public Set<K> getUnavailableNodes() {
         final Set<K> result = new HashSet<K>();
+        if ( isProbing() ) {
+            for ( final Map.Entry<K, Boolean> entry : _snapshot.entrySet() ) {
+                if ( !entry.getValue().booleanValue() ) {
+                    result.add( entry.getKey() );
+                }
+            }
+            return result;
+        }
         for ( final Map.Entry<K, ManagedItem<Boolean>> entry : _map.entrySet() ) {
             if ( !entry.getValue()._value.booleanValue() && !isExpired( entry.getValue() ) ) {
                 result.add( entry.getKey() );
@@ -191,4 +407,19 @@ public class NodeAvailabilityCache<K> {
 
     }
 
+    /**
+     * Is notified when a node became unavailable.
+     *
+     * @param <K>
+     *            the type of the key.
+     */
+    public static interface NodeAvailabilityListener<K> {
+
+        /**
+         * Invoked when the node was marked as unavailable, while it was available or unknown before.
+         */
+        void onNodeUnavailable( K key );
+
+    }
+
 }
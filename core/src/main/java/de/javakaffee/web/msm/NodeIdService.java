@@ -24,10 +24,13 @@ import java.util.Set;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
+import de.javakaffee.web.msm.NodeAvailabilityCache.NodeAvailabilityListener;
+
 
 /**
  * Provides services related to node ids.
@@ -57,6 +60,8 @@ public class NodeIdService {
     private final NodeAvailabilityCache<String> _nodeAvailabilityCache;
     private final NodeIdList _nodeIds;
     private final List<String> _failoverNodeIds;
+    private volatile NodeSelectionPolicy _nodeSelectionPolicy;
+    private CircuitBreakers _circuitBreakers;
 
     /**
      * Constructs a new {@link NodeIdService}.
@@ -82,13 +87,54 @@ public class NodeIdService {
         this( null, new NodeIdList( nodeIds ), failoverNodeIds );
     }
 
+    /**
+     * Sets the policy used by {@link #getMemcachedNodeId()}, <code>null</code> selects a random node.
+     */
+    public void setNodeSelectionPolicy( @Nullable final NodeSelectionPolicy nodeSelectionPolicy ) {
+        _nodeSelectionPolicy = nodeSelectionPolicy;
+    }
+
+    /**
+     * Sets the circuit breakers that are checked in addition to the {@link NodeAvailabilityCache},
+     * a node with an open breaker is not available.
+     */
+    public void setCircuitBreakers( @Nullable final CircuitBreakers circuitBreakers ) {
+        _circuitBreakers = circuitBreakers;
+    }
+
+    /**
+     * Sets the listener that's notified when a node became unavailable.
+     */
+    public void setNodeAvailabilityListener( @Nullable final NodeAvailabilityListener<String> listener ) {
+        _nodeAvailabilityCache.setListener( listener );
+    }
+
+    /**
+     * Stops probing nodes in the background, if the {@link NodeAvailabilityCache} does so.
+     */
+    public void shutdown() {
+        if ( _nodeAvailabilityCache != null ) {
+            _nodeAvailabilityCache.shutdown();
+        }
+    }
+
     /**
      * Determines, if the given nodeId is available.
      * @param nodeId the node to check, not <code>null</code>.
-     * @return <code>true</code>, if the node is marked as available
+     * @return <code>true</code>, if the node is marked as available and its circuit breaker (if any) allows requests
      */
     public boolean isNodeAvailable( @Nonnull final String nodeId ) {
-        return _nodeAvailabilityCache.isNodeAvailable( nodeId );
+        return _nodeAvailabilityCache.isNodeAvailable( nodeId )
+                && ( _circuitBreakers == null || _circuitBreakers.allowRequest( nodeId ) );
+    }
+
+    /**
+     * Returns the nodes that are currently known to be unavailable, without checking the availability of
+     * nodes whose cached availability expired.
+     */
+    @Nonnull
+    public Set<String> getUnavailableNodeIds() {
+        return _nodeAvailabilityCache.getUnavailableNodes();
     }
 
     /**
@@ -175,11 +221,21 @@ public class NodeIdService {
     }
 
     /**
-     * Get the next random, available node id. If no node is available, <code>null</code>
-     * is returned.
+     * Get the next available node id, selected by the {@link NodeSelectionPolicy} if one is set,
+     * otherwise randomly. If no node is available, <code>null</code> is returned.
      * @return a nodeId or <code>null</code>.
      */
     public String getMemcachedNodeId() {
+        final NodeSelectionPolicy nodeSelectionPolicy = _nodeSelectionPolicy;
+        if ( nodeSelectionPolicy != null ) {
+            final List<String> availableNodeIds = new ArrayList<String>( _nodeIds.size() );
+            for ( final String nodeId : _nodeIds ) {
+                if ( isNodeAvailable( nodeId ) ) {
+                    availableNodeIds.add( nodeId );
+                }
+            }
+            return !availableNodeIds.isEmpty() ? nodeSelectionPolicy.select( availableNodeIds ) : getAvailableNodeId( null );
+        }
         final String nodeId = _nodeIds.get( _random.nextInt( _nodeIds.size() ) );
         return isNodeAvailable( nodeId ) ? nodeId : getAvailableNodeId( nodeId );
     }
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.spy.memcached.MemcachedClient;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Selects the memcached node for a new session from the available primary nodes. The default
+ * (if no policy is configured) is to select a random node, the policies provided here prefer
+ * nodes according to their recent latency, a configured weight or their free capacity.
+ * <p>
+ * A policy only influences where new sessions are stored, the availability of nodes is still
+ * managed by the {@link NodeAvailabilityCache}: a slow node is avoided but not marked as unavailable.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public abstract class NodeSelectionPolicy {
+
+    protected static final Log LOG = LogFactory.getLog( NodeSelectionPolicy.class );
+
+    private static final String WEIGHTED_PREFIX = "weighted:";
+
+    protected final Random _random = new Random();
+
+    /**
+     * Creates the policy for the given configuration:
+     * <ul>
+     * <li><code>random</code> (or <code>null</code>): no policy, a random node is selected</li>
+     * <li><code>p2c</code>: picks two random nodes and selects the one with the lower recent p99 latency</li>
+     * <li><code>weighted:n1=3,n2=1</code>: selects nodes randomly by the given weights</li>
+     * <li><code>capacity</code>: selects nodes randomly weighted by their free memory (or their inverse item count)</li>
+     * </ul>
+     * @return the policy or <code>null</code> for the default (random) selection.
+     * @throws IllegalArgumentException if the configuration is not valid.
+     */
+    @CheckForNull
+    public static NodeSelectionPolicy create( @Nullable final String config, @Nonnull final MemcachedNodesManager memcachedNodesManager,
+            @Nonnull final MemcachedClient memcached ) throws IllegalArgumentException {
+        if ( config == null || config.trim().isEmpty() || "random".equals( config.trim() ) ) {
+            return null;
+        }
+        final String value = config.trim();
+        if ( "p2c".equals( value ) ) {
+            return new PowerOfTwoChoices( memcachedNodesManager.getNodeStatistics() );
+        }
+        if ( value.startsWith( WEIGHTED_PREFIX ) ) {
+            return new Weighted( parseWeights( value.substring( WEIGHTED_PREFIX.length() ) ) );
+        }
+        if ( "capacity".equals( value ) ) {
+            return new Capacity( memcachedNodesManager, memcached, Capacity.DEFAULT_REFRESH_INTERVAL );
+        }
+        throw new IllegalArgumentException( "Unknown node selection policy '" + config + "', supported are random, p2c, weighted:<nodeId>=<weight>,... and capacity." );
+    }
+
+    static Map<String, Double> parseWeights( final String weights ) {
+        final Map<String, Double> result = new HashMap<String, Double>();
+        for ( final String entry : weights.split( "[,\\s]+" ) ) {
+            if ( entry.isEmpty() ) {
+                continue;
+            }
+            final int idx = entry.indexOf( '=' );
+            if ( idx < 1 ) {
+                throw new IllegalArgumentException( "Invalid node weight '" + entry + "', expected <nodeId>=<weight>." );
+            }
+            try {
+                result.put( entry.substring( 0, idx ), Double.valueOf( entry.substring( idx + 1 ) ) );
+            } catch ( final NumberFormatException e ) {
+                throw new IllegalArgumentException( "Invalid node weight '" + entry + "', expected <nodeId>=<weight>." );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Selects one of the given node ids.
+     * @param availableNodeIds the available primary node ids, not empty.
+     */
+    @Nonnull
+    public abstract String select( @Nonnull List<String> availableNodeIds );
+
+    /**
+     * Releases resources held by this policy.
+     */
+    public void shutdown() {
+        // nothing to do by default
+    }
+
+    /**
+     * Selects a node randomly, the probability of a node is proportional to its weight. Nodes
+     * without (positive) weight are only selected if no node has a weight.
+     */
+    protected String selectWeighted( final List<String> nodeIds, final Map<String, Double> weights ) {
+        double total = 0;
+        for ( final String nodeId : nodeIds ) {
+            total += weight( weights, nodeId );
+        }
+        if ( total <= 0 ) {
+            return nodeIds.get( _random.nextInt( nodeIds.size() ) );
+        }
+        double value = _random.nextDouble() * total;
+        for ( final String nodeId : nodeIds ) {
+            value -= weight( weights, nodeId );
+            if ( value < 0 ) {
+                return nodeId;
+            }
+        }
+        return nodeIds.get( nodeIds.size() - 1 );
+    }
+
+    private static double weight( final Map<String, Double> weights, final String nodeId ) {
+        final Double weight = weights.get( nodeId );
+        return weight != null && weight > 0 ? weight : 0;
+    }
+
+    /**
+     * The "power of two choices": picks two random nodes and selects the one with the lower score,
+     * which is the recent p99 latency, increased by the recent error rate. This steers new sessions
+     * away from slow nodes without the herd behaviour of always selecting the fastest node.
+     */
+    static class PowerOfTwoChoices extends NodeSelectionPolicy {
+
+        private static final double PERCENTILE = 99;
+        private static final int ERROR_PENALTY = 10;
+
+        private final NodeStatistics _nodeStatistics;
+
+        PowerOfTwoChoices( @Nonnull final NodeStatistics nodeStatistics ) {
+            _nodeStatistics = nodeStatistics;
+        }
+
+        @Override
+        public String select( final List<String> availableNodeIds ) {
+            final int size = availableNodeIds.size();
+            if ( size == 1 ) {
+                return availableNodeIds.get( 0 );
+            }
+            final int first = _random.nextInt( size );
+            int second = _random.nextInt( size - 1 );
+            if ( second >= first ) {
+                second++;
+            }
+            final String a = availableNodeIds.get( first );
+            final String b = availableNodeIds.get( second );
+            return score( b ) < score( a ) ? b : a;
+        }
+
+        double score( final String nodeId ) {
+            return _nodeStatistics.getRecentLatency( nodeId, PERCENTILE ) * ( 1 + ERROR_PENALTY * _nodeStatistics.getRecentErrorRate( nodeId ) );
+        }
+
+    }
+
+    /**
+     * Selects nodes randomly by configured weights.
+     */
+    static class Weighted extends NodeSelectionPolicy {
+
+        private final Map<String, Double> _weights;
+
+        Weighted( @Nonnull final Map<String, Double> weights ) {
+            _weights = weights;
+        }
+
+        @Override
+        public String select( final List<String> availableNodeIds ) {
+            return selectWeighted( availableNodeIds, _weights );
+        }
+
+    }
+
+    /**
+     * Selects nodes randomly weighted by their free memory (<code>limit_maxbytes - bytes</code>),
+     * or by their inverse number of items if memory stats are not available. The stats
+     * are fetched periodically in the background, until they're available nodes are selected randomly.
+     */
+    static class Capacity extends NodeSelectionPolicy {
+
+        static final long DEFAULT_REFRESH_INTERVAL = 30000;
+
+        private final MemcachedNodesManager _memcachedNodesManager;
+        private final MemcachedClient _memcached;
+        private final ScheduledExecutorService _executor;
+        private volatile Map<String, Double> _weights = Collections.emptyMap();
+
+        Capacity( @Nonnull final MemcachedNodesManager memcachedNodesManager, @Nonnull final MemcachedClient memcached,
+                final long refreshIntervalInMillis ) {
+            _memcachedNodesManager = memcachedNodesManager;
+            _memcached = memcached;
+            _executor = Executors.newSingleThreadScheduledExecutor( new NamedThreadFactory( "msm-node-capacity" ) );
+            _executor.scheduleWithFixedDelay( new Runnable() {
+                @Override
+                public void run() {
+                    refresh();
+                }
+            }, 0, refreshIntervalInMillis, TimeUnit.MILLISECONDS );
+        }
+
+        @Override
+        public String select( final List<String> availableNodeIds ) {
+            return selectWeighted( availableNodeIds, _weights );
+        }
+
+        void refresh() {
+            try {
+                _weights = computeWeights( _memcached.getStats() );
+            } catch ( final RuntimeException e ) {
+                LOG.warn( "Could not fetch memcached stats for node capacities.", e );
+            }
+        }
+
+        Map<String, Double> computeWeights( final Map<SocketAddress, Map<String, String>> stats ) {
+            final Map<String, Double> result = new HashMap<String, Double>();
+            for ( final Entry<SocketAddress, Map<String, String>> entry : stats.entrySet() ) {
+                final long maxBytes = parseLong( entry.getValue().get( "limit_maxbytes" ) );
+                final long bytes = parseLong( entry.getValue().get( "bytes" ) );
+                final long items = parseLong( entry.getValue().get( "curr_items" ) );
+                final double weight;
+                if ( maxBytes > 0 && bytes >= 0 ) {
+                    weight = Math.max( 0, maxBytes - bytes );
+                }
+                else if ( items >= 0 ) {
+                    weight = 1d / ( items + 1 );
+                }
+                else {
+                    continue;
+                }
+                result.put( _memcachedNodesManager.getNodeName( entry.getKey() ), weight );
+            }
+            return result;
+        }
+
+        private static long parseLong( final String value ) {
+            if ( value == null ) {
+                return -1;
+            }
+            try {
+                return Long.parseLong( value.trim() );
+            } catch ( final NumberFormatException e ) {
+                return -1;
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            _executor.shutdownNow();
+        }
+
+    }
+
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Collects the latencies (in microseconds) and errors of memcached operations per memcached node.
+ * The operations are registered by the {@link StatisticsOperationFactory}.
+ * <p>
+ * Besides the totals, latencies and errors are kept for a recent time window (the current and the
+ * previous window of <code>windowInMillis</code>), so that e.g. the recent p99 latency of a node
+ * reflects its current state.
+ * </p>
+ * <p>
+ * Per node there are also latencies per {@link OperationType}, the number of timeouts, the bytes read and
+ * written, the number of reconnects and the sizes of the spymemcached operation queues (input, write, read),
+ * so that a slow memcached node can be identified.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class NodeStatistics {
+
+    private static final long DEFAULT_WINDOW = 10000;
+
+    /**
+     * The memcached operations with separate latencies.
+     */
+    public static enum OperationType {
+        GET,
+        /** A set or replace. */
+        SET,
+        ADD,
+        DELETE,
+        TOUCH
+    }
+
+    private final ConcurrentMap<String, NodeStats> _nodes = new ConcurrentHashMap<String, NodeStats>();
+    private final long _windowInMillis;
+
+    public NodeStatistics() {
+        this( DEFAULT_WINDOW );
+    }
+
+    public NodeStatistics( final long windowInMillis ) {
+        _windowInMillis = windowInMillis;
+    }
+
+    /**
+     * Registers a finished operation.
+     * @param node the node id (or the address if the node has no id)
+     * @param latencyInMicros the time from creation of the operation until its completion
+     * @param error specifies if the operation failed (e.g. it was cancelled or timed out).
+     */
+    public void register( @Nonnull final String node, final long latencyInMicros, final boolean error ) {
+        getOrCreate( node ).register( latencyInMicros, error, System.currentTimeMillis() );
+    }
+
+    /**
+     * Registers a finished operation of the given type.
+     * @param node the node id (or the address if the node has no id)
+     * @param type the type of operation, <code>null</code> if it's not one of the tracked types
+     * @param latencyInMicros the time from creation of the operation until its completion
+     * @param error specifies if the operation failed (e.g. it was cancelled or timed out).
+     * @param timeout specifies if the operation timed out
+     * @param bytesIn the number of value bytes read
+     * @param bytesOut the number of value bytes written
+     */
+    public void register( @Nonnull final String node, @Nullable final OperationType type, final long latencyInMicros,
+            final boolean error, final boolean timeout, final int bytesIn, final int bytesOut ) {
+        final NodeStats stats = getOrCreate( node );
+        stats.register( latencyInMicros, error, System.currentTimeMillis() );
+        stats.register( type, latencyInMicros, timeout, bytesIn, bytesOut );
+    }
+
+    /**
+     * Registers that the connection to the given node was established.
+     * @param reconnectCount the number of reconnect attempts, <code>0</code> for the initial connect
+     */
+    public void connectionEstablished( @Nonnull final String node, final int reconnectCount ) {
+        if ( reconnectCount > 0 ) {
+            getOrCreate( node )._reconnects.incrementAndGet();
+        }
+    }
+
+    /**
+     * Registers that the connection to the given node was lost.
+     */
+    public void connectionLost( @Nonnull final String node ) {
+        getOrCreate( node )._connectionsLost.incrementAndGet();
+    }
+
+    /**
+     * Registers the spymemcached operation queues of the given node, so that their sizes can be reported.
+     */
+    public void setQueues( @Nonnull final String node, @Nonnull final Collection<?> inputQueue,
+            @Nonnull final Collection<?> writeQueue, @Nonnull final Collection<?> readQueue ) {
+        final NodeStats stats = getOrCreate( node );
+        stats._inputQueue = inputQueue;
+        stats._writeQueue = writeQueue;
+        stats._readQueue = readQueue;
+    }
+
+    /**
+     * Registers the operation queues known by this instance at the given node statistics.
+     */
+    void copyQueuesTo( @Nonnull final NodeStatistics target ) {
+        for ( final Map.Entry<String, NodeStats> entry : _nodes.entrySet() ) {
+            final NodeStats stats = entry.getValue();
+            if ( stats._inputQueue != null ) {
+                target.setQueues( entry.getKey(), stats._inputQueue, stats._writeQueue, stats._readQueue );
+            }
+        }
+    }
+
+    /**
+     * The nodes for that operations were registered.
+     */
+    @Nonnull
+    public List<String> getNodes() {
+        return new ArrayList<String>( _nodes.keySet() );
+    }
+
+    /**
+     * Returns the statistics of all nodes (sorted by node), see {@link NodeStats#getInfo()}.
+     */
+    @Nonnull
+    public String[] getInfo() {
+        final List<String> nodes = getNodes();
+        Collections.sort( nodes );
+        final String[] result = new String[nodes.size()];
+        for ( int i = 0; i < result.length; i++ ) {
+            result[i] = nodes.get( i ) + ": " + _nodes.get( nodes.get( i ) ).getInfo();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the statistics of the given node or <code>null</code> if no operation was registered for it.
+     */
+    @CheckForNull
+    public NodeStats get( @Nonnull final String node ) {
+        return _nodes.get( node );
+    }
+
+    /**
+     * The recent latency of the given node at the given percentile in microseconds, <code>0</code>
+     * if no operation was registered recently.
+     */
+    public long getRecentLatency( @Nonnull final String node, final double percentile ) {
+        final NodeStats stats = _nodes.get( node );
+        return stats != null ? stats.getRecentLatency( percentile ) : 0;
+    }
+
+    /**
+     * The ratio of failed operations of the given node in the recent time window (0 to 1).
+     */
+    public double getRecentErrorRate( @Nonnull final String node ) {
+        final NodeStats stats = _nodes.get( node );
+        return stats != null ? stats.getRecentErrorRate() : 0;
+    }
+
+    private NodeStats getOrCreate( final String node ) {
+        NodeStats result = _nodes.get( node );
+        if ( result == null ) {
+            final NodeStats created = new NodeStats( _windowInMillis );
+            result = _nodes.putIfAbsent( node, created );
+            if ( result == null ) {
+                result = created;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The statistics of a single memcached node.
+     */
+    public static class NodeStats {
+
+        private final long _windowInMillis;
+        private final Histogram _latencies = new Histogram();
+        private final AtomicLong _errors = new AtomicLong();
+        private final Histogram[] _operationLatencies;
+        private final AtomicLong _timeouts = new AtomicLong();
+        private final AtomicLong _bytesIn = new AtomicLong();
+        private final AtomicLong _bytesOut = new AtomicLong();
+        private final AtomicLong _reconnects = new AtomicLong();
+        private final AtomicLong _connectionsLost = new AtomicLong();
+        private volatile Collection<?> _inputQueue;
+        private volatile Collection<?> _writeQueue;
+        private volatile Collection<?> _readQueue;
+
+        private volatile Window _current;
+        private volatile Window _previous;
+
+        NodeStats( final long windowInMillis ) {
+            _windowInMillis = windowInMillis;
+            _current = new Window( System.currentTimeMillis() );
+            _previous = new Window( 0 );
+            _operationLatencies = new Histogram[OperationType.values().length];
+            for ( int i = 0; i < _operationLatencies.length; i++ ) {
+                _operationLatencies[i] = new Histogram();
+            }
+        }
+
+        void register( final long latencyInMicros, final boolean error, final long now ) {
+            _latencies.record( latencyInMicros );
+            if ( error ) {
+                _errors.incrementAndGet();
+            }
+            final Window window = currentWindow( now );
+            window.latencies.record( latencyInMicros );
+            if ( error ) {
+                window.errors.incrementAndGet();
+            }
+        }
+
+        void register( @Nullable final OperationType type, final long latencyInMicros, final boolean timeout,
+                final int bytesIn, final int bytesOut ) {
+            if ( type != null ) {
+                _operationLatencies[type.ordinal()].record( latencyInMicros );
+            }
+            if ( timeout ) {
+                _timeouts.incrementAndGet();
+            }
+            if ( bytesIn > 0 ) {
+                _bytesIn.addAndGet( bytesIn );
+            }
+            if ( bytesOut > 0 ) {
+                _bytesOut.addAndGet( bytesOut );
+            }
+        }
+
+        private Window currentWindow( final long now ) {
+            final Window current = _current;
+            if ( now - current.start < _windowInMillis ) {
+                return current;
+            }
+            synchronized ( this ) {
+                if ( _current == current ) {
+                    _previous = current;
+                    _current = new Window( now );
+                }
+                return _current;
+            }
+        }
+
+        /**
+         * All latencies registered for this node, in microseconds.
+         */
+        public Histogram getLatencies() {
+            return _latencies;
+        }
+
+        /**
+         * The number of operations registered for this node.
+         */
+        public long getOperations() {
+            return _latencies.getCount();
+        }
+
+        /**
+         * The number of failed operations registered for this node.
+         */
+        public long getErrors() {
+            return _errors.get();
+        }
+
+        /**
+         * The latencies of operations of the given type, in microseconds.
+         */
+        @Nonnull
+        public Histogram getLatencies( @Nonnull final OperationType type ) {
+            return _operationLatencies[type.ordinal()];
+        }
+
+        /**
+         * The number of operations that timed out (these are also counted as errors).
+         */
+        public long getTimeouts() {
+            return _timeouts.get();
+        }
+
+        /**
+         * The number of value bytes read from this node (by gets).
+         */
+        public long getBytesIn() {
+            return _bytesIn.get();
+        }
+
+        /**
+         * The number of value bytes written to this node (by sets/adds).
+         */
+        public long getBytesOut() {
+            return _bytesOut.get();
+        }
+
+        /**
+         * The number of successful reconnects to this node.
+         */
+        public long getReconnects() {
+            return _reconnects.get();
+        }
+
+        /**
+         * The number of times the connection to this node was lost.
+         */
+        public long getConnectionsLost() {
+            return _connectionsLost.get();
+        }
+
+        /**
+         * The number of operations waiting to be sent to this node.
+         */
+        public int getInputQueueSize() {
+            return size( _inputQueue );
+        }
+
+        /**
+         * The number of operations being written to this node.
+         */
+        public int getWriteQueueSize() {
+            return size( _writeQueue );
+        }
+
+        /**
+         * The number of operations waiting for a response from this node.
+         */
+        public int getReadQueueSize() {
+            return size( _readQueue );
+        }
+
+        private static int size( @Nullable final Collection<?> queue ) {
+            return queue != null ? queue.size() : 0;
+        }
+
+        /**
+         * Returns operations, errors, timeouts, bytes, reconnects, queue sizes and the p50/p99 latencies
+         * per {@link OperationType} (in micros) as a single line.
+         */
+        @Nonnull
+        public String getInfo() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append( "Operations = " ).append( getOperations() )
+                .append( ", Errors = " ).append( getErrors() )
+                .append( ", Timeouts = " ).append( getTimeouts() )
+                .append( ", Bytes in = " ).append( getBytesIn() )
+                .append( ", Bytes out = " ).append( getBytesOut() )
+                .append( ", Reconnects = " ).append( getReconnects() )
+                .append( ", Queues (input/write/read) = " ).append( getInputQueueSize() )
+                .append( '/' ).append( getWriteQueueSize() ).append( '/' ).append( getReadQueueSize() );
+            for ( final OperationType type : OperationType.values() ) {
+                final Histogram latencies = getLatencies( type );
+                if ( latencies.getCount() > 0 ) {
+                    sb.append( ", " ).append( type ).append( " P50/P99 = " ).append( latencies.getPercentile( 50 ) )
+                        .append( '/' ).append( latencies.getPercentile( 99 ) );
+                }
+            }
+            return sb.toString();
+        }
+
+        /**
+         * The latency at the given percentile of the current and previous time window.
+         */
+        public long getRecentLatency( final double percentile ) {
+            final Window previous = _previous;
+            return Histogram.getPercentile( percentile, previous.latencies, currentWindow( System.currentTimeMillis() ).latencies );
+        }
+
+        /**
+         * The ratio of failed operations in the current and previous time window.
+         */
+        public double getRecentErrorRate() {
+            final Window previous = _previous;
+            final Window current = currentWindow( System.currentTimeMillis() );
+            final long count = previous.latencies.getCount() + current.latencies.getCount();
+            return count == 0 ? 0 : (double) ( previous.errors.get() + current.errors.get() ) / count;
+        }
+
+    }
+
+    private static final class Window {
+        private final long start;
+        private final Histogram latencies = new Histogram();
+        private final AtomicLong errors = new AtomicLong();
+        Window( final long start ) {
+            this.start = start;
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import java.net.SocketAddress;
+
+import javax.annotation.Nonnull;
+
+import net.spy.memcached.ConnectionObserver;
+
+/**
+ * Registers established (reconnected) and lost connections to memcached nodes in the
+ * {@link NodeStatistics} of the {@link MemcachedNodesManager}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+class NodeStatisticsConnectionObserver implements ConnectionObserver {
+
+    private final MemcachedNodesManager _memcachedNodesManager;
+
+    NodeStatisticsConnectionObserver( @Nonnull final MemcachedNodesManager memcachedNodesManager ) {
+        _memcachedNodesManager = memcachedNodesManager;
+    }
+
+    @Override
+    public void connectionEstablished( final SocketAddress sa, final int reconnectCount ) {
+        _memcachedNodesManager.registerConnectionEstablished( sa, reconnectCount );
+    }
+
+    @Override
+    public void connectionLost( final SocketAddress sa ) {
+        _memcachedNodesManager.registerConnectionLost( sa );
+    }
+
+}
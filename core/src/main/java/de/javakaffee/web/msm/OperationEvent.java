@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.Configurations.OPERATION_EVENT_THRESHOLD_KEY;
+import static de.javakaffee.web.msm.Configurations.OPERATION_LISTENER_KEY;
+import static de.javakaffee.web.msm.Configurations.getSystemProperty;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * A single session operation (load, backup, lock, (de)serialization) passed to the configured
+ * {@link OperationListener}. If no listener is configured (the default) {@link #begin(Type)} returns
+ * <code>null</code> and callers skip everything else, so that the instrumentation costs a volatile read.
+ * <p>
+ * Usage:
+ * <code><pre>
+ * final OperationEvent event = OperationEvent.begin( Type.LOAD );
+ * ...
+ * if ( event != null ) {
+ *     event.end( sessionId, nodeId, data.length, Outcome.SUCCESS );
+ * }
+ * </pre></code>
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public final class OperationEvent {
+
+    private static final Log LOG = LogFactory.getLog( OperationEvent.class );
+
+    /**
+     * The type of operation.
+     */
+    public static enum Type {
+        /** Loading a session from memcached, including deserialization. */
+        LOAD,
+        /** Storing a session in memcached, including serialization. */
+        BACKUP,
+        /** Acquiring the lock of a non-sticky session. */
+        LOCK,
+        /** Releasing the lock of a non-sticky session. */
+        RELEASE_LOCK,
+        /** Serializing session attributes. */
+        SERIALIZATION,
+        /** Deserializing session attributes. */
+        DESERIALIZATION
+    }
+
+    /**
+     * The outcome of an operation.
+     */
+    public static enum Outcome {
+        SUCCESS,
+        /** The session was not found in memcached. */
+        NOT_FOUND,
+        /** The backup was skipped because the session was not modified. */
+        SKIPPED,
+        FAILURE
+    }
+
+    private static volatile OperationListener _listener;
+    private static volatile long _thresholdNanos;
+
+    static {
+        init();
+    }
+
+    private final Type _type;
+    private final long _startNanos;
+    private final OperationListener _eventListener;
+    private int _sessionIdHash;
+    private String _nodeId;
+    private long _bytes;
+    private Outcome _outcome;
+    private long _durationNanos;
+    private Object _attachment;
+
+    private OperationEvent( @Nonnull final Type type, @Nonnull final OperationListener listener ) {
+        _type = type;
+        _eventListener = listener;
+        _startNanos = System.nanoTime();
+    }
+
+    /**
+     * Starts an event of the given type, returns <code>null</code> if no {@link OperationListener} is configured.
+     */
+    @CheckForNull
+    public static OperationEvent begin( @Nonnull final Type type ) {
+        final OperationListener listener = _listener;
+        if ( listener == null ) {
+            return null;
+        }
+        final OperationEvent result = new OperationEvent( type, listener );
+        try {
+            listener.begin( result );
+        } catch ( final RuntimeException e ) {
+            LOG.warn( "Operation listener failed", e );
+        }
+        return result;
+    }
+
+    /**
+     * Finishes this event, the {@link OperationListener} is notified if the duration reached the threshold.
+     * @param sessionId the session id, only its hash code is passed on
+     * @param nodeId the memcached node, if known
+     * @param bytes the size of the (serialized) session, <code>0</code> if not known
+     * @param outcome the outcome of the operation
+     */
+    public void end( @Nullable final String sessionId, @Nullable final String nodeId, final long bytes, @Nonnull final Outcome outcome ) {
+        _durationNanos = System.nanoTime() - _startNanos;
+        if ( _durationNanos < _thresholdNanos ) {
+            return;
+        }
+        _sessionIdHash = sessionId != null ? sessionId.hashCode() : 0;
+        _nodeId = nodeId;
+        _bytes = bytes;
+        _outcome = outcome;
+        try {
+            _eventListener.end( this );
+        } catch ( final RuntimeException e ) {
+            LOG.warn( "Operation listener failed", e );
+        }
+    }
+
+    @Nonnull
+    public Type getType() {
+        return _type;
+    }
+
+    /**
+     * The hash code of the session id, so that events of a session can be correlated without exposing the session id.
+     */
+    public int getSessionIdHash() {
+        return _sessionIdHash;
+    }
+
+    @CheckForNull
+    public String getNodeId() {
+        return _nodeId;
+    }
+
+    public long getBytes() {
+        return _bytes;
+    }
+
+    public Outcome getOutcome() {
+        return _outcome;
+    }
+
+    public long getDurationNanos() {
+        return _durationNanos;
+    }
+
+    /**
+     * An object attached by the {@link OperationListener}, e.g. a begun JFR event.
+     */
+    @CheckForNull
+    public Object getAttachment() {
+        return _attachment;
+    }
+
+    public void setAttachment( @Nullable final Object attachment ) {
+        _attachment = attachment;
+    }
+
+    /**
+     * Sets the listener notified about operations that took at least the given threshold, <code>null</code>
+     * disables events.
+     */
+    public static void setListener( @Nullable final OperationListener listener, final long thresholdMillis ) {
+        _thresholdNanos = TimeUnit.MILLISECONDS.toNanos( thresholdMillis );
+        _listener = listener;
+    }
+
+    /**
+     * Creates the listener configured via {@link Configurations#OPERATION_LISTENER_KEY}.
+     */
+    static void init() {
+        final String className = System.getProperty( OPERATION_LISTENER_KEY );
+        if ( className == null || className.trim().isEmpty() ) {
+            setListener( null, 0 );
+            return;
+        }
+        try {
+            final Class<? extends OperationListener> clazz = Class.forName( className.trim(), true, OperationEvent.class.getClassLoader() )
+                    .asSubclass( OperationListener.class );
+            setListener( clazz.newInstance(), getSystemProperty( OPERATION_EVENT_THRESHOLD_KEY, 0L ) );
+            LOG.info( "Notifying " + className + " about session operations." );
+        } catch ( final Exception e ) {
+            LOG.warn( "Could not create operation listener " + className, e );
+            setListener( null, 0 );
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Is notified about single session operations (load, backup, lock, (de)serialization) with their timing,
+ * e.g. to emit them as Java Flight Recorder events so that they can be correlated with GC or socket events.
+ * The listener is configured via {@link Configurations#OPERATION_LISTENER_KEY}, see {@link OperationEvent}.
+ * <p>
+ * Both methods are invoked by the thread performing the operation, so e.g. a JFR event can be begun in
+ * {@link #begin(OperationEvent)} (and kept as {@link OperationEvent#setAttachment(Object) attachment})
+ * and committed in {@link #end(OperationEvent)}. Implementations must be thread safe and fast.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public interface OperationListener {
+
+    /**
+     * Invoked when the operation starts, only the type of the event is set.
+     */
+    void begin( @Nonnull OperationEvent event );
+
+    /**
+     * Invoked when the operation finished, if its duration reached the configured threshold.
+     */
+    void end( @Nonnull OperationEvent event );
+
+}
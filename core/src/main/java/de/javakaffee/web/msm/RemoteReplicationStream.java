@@ -0,0 +1,331 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.Configurations.BINARY_QUIET_WRITES_KEY;
+import static de.javakaffee.web.msm.Configurations.MAX_RECONNECT_DELAY_KEY;
+import static de.javakaffee.web.msm.Configurations.REMOTE_MEMCACHED_NODES_KEY;
+import static de.javakaffee.web.msm.Configurations.REMOTE_REPLICATION_BATCH_SIZE_KEY;
+import static de.javakaffee.web.msm.Configurations.REMOTE_REPLICATION_COMPRESSION_THRESHOLD_KEY;
+import static de.javakaffee.web.msm.Configurations.REMOTE_REPLICATION_INTERVAL_KEY;
+import static de.javakaffee.web.msm.Configurations.REMOTE_REPLICATION_MAX_LAG_KEY;
+import static de.javakaffee.web.msm.Configurations.REMOTE_REPLICATION_MAX_PENDING_KEY;
+import static de.javakaffee.web.msm.Configurations.getSystemProperty;
+import static de.javakaffee.web.msm.Statistics.StatsType.REMOTE_REPLICATION_LAG;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.spy.memcached.DefaultConnectionFactory;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import de.javakaffee.web.msm.MemcachedNodesManager.MemcachedClientCallback;
+
+/**
+ * Replicates sessions that were stored in the local memcached nodes asynchronously to the memcached nodes
+ * of a remote datacenter (<code>msm.remoteMemcachedNodes</code>), so that a user who is failed over to the
+ * other datacenter keeps the session.
+ * <p>
+ * The already serialized session data is enqueued after a successful backup, the request thread never
+ * waits for the remote nodes. Pending values are coalesced per key, so that only the latest version of a
+ * session is sent if it was modified several times before it was replicated. A background thread sends
+ * the pending values in batches (pipelined by the memcached client) and waits for the batch before it sends
+ * the next one. Values are compressed with a lower threshold than the local ones (using the compression flag
+ * of the {@link SerializingTranscoder}, so that the remote memcached session manager reads them transparently).
+ * </p>
+ * <p>
+ * The lag is bounded: values that could not be replicated within the max lag are dropped (failed writes are
+ * retried until then), and new keys are dropped while the max number of pending keys is reached.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class RemoteReplicationStream {
+
+    private static final Log LOG = LogFactory.getLog( RemoteReplicationStream.class );
+
+    private final MemcachedClient _remote;
+    private final MemcachedNodesManager _remoteNodesManager;
+    private final Statistics _statistics;
+    private final SerializingTranscoder _transcoder;
+    private final int _batchSize;
+    private final long _interval;
+    private final long _maxLag;
+    private final int _maxPending;
+    private final long _operationTimeout;
+
+    private final ConcurrentMap<String, Entry> _pending = new ConcurrentHashMap<String, Entry>();
+    private final Queue<String> _queue = new ConcurrentLinkedQueue<String>();
+    /** keys of failed values, they're enqueued again with the next run */
+    private final Queue<String> _retries = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger _queueSize = new AtomicInteger();
+    private final ScheduledExecutorService _executor;
+
+    RemoteReplicationStream( @Nonnull final MemcachedClient remote,
+            @Nullable final MemcachedNodesManager remoteNodesManager,
+            @Nonnull final Statistics statistics,
+            final int batchSize,
+            final long interval,
+            final long maxLag,
+            final int maxPending,
+            final int compressionThreshold,
+            final long operationTimeout ) {
+        _remote = remote;
+        _remoteNodesManager = remoteNodesManager;
+        _statistics = statistics;
+        _batchSize = batchSize;
+        _interval = interval;
+        _maxLag = maxLag;
+        _maxPending = maxPending;
+        _operationTimeout = operationTimeout;
+        _transcoder = new SerializingTranscoder();
+        _transcoder.setCompressionThreshold( compressionThreshold );
+        _executor = Executors.newSingleThreadScheduledExecutor( new NamedThreadFactory( "msm-remote-replication" ) );
+    }
+
+    /**
+     * Creates the {@link RemoteReplicationStream} if remote memcached nodes are configured via
+     * {@link Configurations#REMOTE_MEMCACHED_NODES_KEY}, otherwise returns <code>null</code>.
+     * The remote nodes are configured like the local ones (same node ids if session ids contain the node id).
+     */
+    @CheckForNull
+    public static RemoteReplicationStream createFromSystemProperties( @Nonnull final StorageKeyFormat storageKeyFormat,
+            @Nonnull final String memcachedProtocol,
+            @Nullable final String username,
+            @Nullable final String password,
+            final long operationTimeout,
+            @Nonnull final Statistics statistics ) {
+        final String remoteNodes = System.getProperty( REMOTE_MEMCACHED_NODES_KEY );
+        if ( remoteNodes == null || remoteNodes.trim().isEmpty() ) {
+            return null;
+        }
+
+        final AtomicReference<MemcachedClient> remote = new AtomicReference<MemcachedClient>();
+        final MemcachedNodesManager remoteNodesManager = MemcachedNodesManager.createFor( remoteNodes.trim(), null, storageKeyFormat,
+                new MemcachedClientCallback() {
+                    @Override
+                    public Object get( final String key ) {
+                        final MemcachedClient client = remote.get();
+                        return client != null ? client.get( key ) : null;
+                    }
+                } );
+        final long maxReconnectDelay = getSystemProperty( MAX_RECONNECT_DELAY_KEY, DefaultConnectionFactory.DEFAULT_MAX_RECONNECT_DELAY );
+        final boolean quietWrites = getSystemProperty( BINARY_QUIET_WRITES_KEY, false );
+        // remote operations are not registered in the node statistics of the local nodes
+        remote.set( new MemcachedClientFactory().createMemcachedClient( remoteNodesManager, memcachedProtocol, username, password,
+                operationTimeout, maxReconnectDelay, quietWrites, Statistics.create( false ) ) );
+
+        final RemoteReplicationStream result = new RemoteReplicationStream( remote.get(), remoteNodesManager, statistics,
+                getSystemProperty( REMOTE_REPLICATION_BATCH_SIZE_KEY, 100 ),
+                getSystemProperty( REMOTE_REPLICATION_INTERVAL_KEY, 100L ),
+                getSystemProperty( REMOTE_REPLICATION_MAX_LAG_KEY, 60000L ),
+                getSystemProperty( REMOTE_REPLICATION_MAX_PENDING_KEY, 10000 ),
+                getSystemProperty( REMOTE_REPLICATION_COMPRESSION_THRESHOLD_KEY, 1024 ),
+                operationTimeout );
+        LOG.info( "Replicating sessions to remote memcached nodes " + remoteNodes );
+        return result;
+    }
+
+    /**
+     * Starts replicating enqueued values in the background.
+     */
+    public void start() {
+        _executor.scheduleWithFixedDelay( new Runnable() {
+            @Override
+            public void run() {
+                replicate();
+            }
+        }, _interval, _interval, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Enqueues the given value for replication, replaces a pending value of the same key.
+     * @param key the storage key
+     * @param expiration the memcached expiration
+     * @param data the serialized value
+     */
+    public void enqueue( @Nonnull final String key, final int expiration, @Nonnull final byte[] data ) {
+        doEnqueue( key, expiration, data );
+    }
+
+    /**
+     * Enqueues the deletion of the given key, replaces a pending value of the same key.
+     */
+    public void delete( @Nonnull final String key ) {
+        doEnqueue( key, 0, null );
+    }
+
+    private void doEnqueue( @Nonnull final String key, final int expiration, @Nullable final byte[] data ) {
+        final Entry previous = _pending.get( key );
+        if ( previous == null && _queueSize.get() >= _maxPending ) {
+            _statistics.remoteReplicationDropped();
+            return;
+        }
+        // the lag of a coalesced value is measured from the oldest version that was not replicated
+        final long enqueued = previous != null ? previous.enqueued : System.nanoTime();
+        if ( _pending.put( key, new Entry( expiration, data, enqueued ) ) == null ) {
+            _queueSize.incrementAndGet();
+            _queue.offer( key );
+        }
+        else {
+            _statistics.remoteReplicationCoalesced();
+        }
+    }
+
+    /**
+     * Returns the number of keys waiting for replication.
+     */
+    public int getPendingCount() {
+        return _queueSize.get();
+    }
+
+    /**
+     * Replicates all pending values batch by batch, values that failed in a former run are retried
+     * (values that fail in this run are retried with the next run).
+     */
+    void replicate() {
+        String retry;
+        while ( ( retry = _retries.poll() ) != null ) {
+            _queue.offer( retry );
+        }
+        try {
+            while ( !_queue.isEmpty() && !Thread.currentThread().isInterrupted() ) {
+                if ( replicateBatch() == 0 ) {
+                    return;
+                }
+            }
+        } catch ( final RuntimeException e ) {
+            LOG.warn( "Could not replicate sessions to remote memcached nodes", e );
+        }
+    }
+
+    /**
+     * Sends the next batch of pending values and waits until the batch is finished or the operation timeout elapsed.
+     * @return the number of values that were sent
+     */
+    int replicateBatch() {
+        final long now = System.nanoTime();
+        final List<String> keys = new ArrayList<String>( _batchSize );
+        final List<Entry> entries = new ArrayList<Entry>( _batchSize );
+        final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>( _batchSize );
+        String key;
+        while ( keys.size() < _batchSize && ( key = _queue.poll() ) != null ) {
+            _queueSize.decrementAndGet();
+            final Entry entry = _pending.remove( key );
+            if ( entry == null ) {
+                continue;
+            }
+            if ( now - entry.enqueued > TimeUnit.MILLISECONDS.toNanos( _maxLag ) ) {
+                _statistics.remoteReplicationDropped();
+                continue;
+            }
+            keys.add( key );
+            entries.add( entry );
+            futures.add( entry.data != null
+                ? _remote.set( key, entry.expiration, entry.data, _transcoder )
+                : _remote.delete( key ) );
+        }
+
+        final long deadline = System.currentTimeMillis() + _operationTimeout;
+        for ( int i = 0; i < futures.size(); i++ ) {
+            final Entry entry = entries.get( i );
+            if ( isSuccess( futures.get( i ), entry, deadline ) ) {
+                _statistics.remoteReplicated();
+                _statistics.registerSince( REMOTE_REPLICATION_LAG, entry.enqueued );
+            }
+            else {
+                retry( keys.get( i ), entry );
+            }
+        }
+        return futures.size();
+    }
+
+    private boolean isSuccess( @Nonnull final Future<Boolean> future, @Nonnull final Entry entry, final long deadline ) {
+        try {
+            final Boolean result = future.get( Math.max( 0, deadline - System.currentTimeMillis() ), TimeUnit.MILLISECONDS );
+            // a delete of a missing key is fine
+            return entry.data == null || Boolean.TRUE.equals( result );
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch ( final Exception e ) {
+            if ( LOG.isDebugEnabled() ) {
+                LOG.debug( "Could not replicate to remote memcached nodes", e );
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Keeps the failed value for the next run, unless a newer value of the same key is pending.
+     */
+    private void retry( @Nonnull final String key, @Nonnull final Entry entry ) {
+        if ( _pending.putIfAbsent( key, entry ) == null ) {
+            _queueSize.incrementAndGet();
+            _retries.offer( key );
+        }
+    }
+
+    /**
+     * Stops replication, pending values are discarded.
+     */
+    public void shutdown() {
+        _executor.shutdownNow();
+        _pending.clear();
+        _queue.clear();
+        _retries.clear();
+        _queueSize.set( 0 );
+        if ( _remoteNodesManager != null ) {
+            _remote.shutdown();
+            _remoteNodesManager.shutdown();
+        }
+    }
+
+    private static final class Entry {
+
+        final int expiration;
+        final byte[] data;
+        /** the {@link System#nanoTime()} when the value was enqueued */
+        final long enqueued;
+
+        Entry( final int expiration, @Nullable final byte[] data, final long enqueued ) {
+            this.expiration = expiration;
+            this.data = data;
+            this.enqueued = enqueued;
+        }
+
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Accumulates the time spent by msm in the phases of a single request, bound to the request thread
+ * via {@link CurrentRequest#startTimings()}. Only time spent in the request thread is recorded, e.g. for
+ * async session backups the serialization is not included.
+ * <p>
+ * The timings are rendered as <code>Server-Timing</code> header (see {@link #toServerTiming()}) by the
+ * {@link RequestTrackingHostValve} if enabled via {@link Configurations#SERVER_TIMING_KEY}.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public final class RequestTimings {
+
+    /**
+     * The measured phases, with their name in the <code>Server-Timing</code> header.
+     */
+    public static enum Phase {
+        /** Acquiring session locks (non-sticky sessions). */
+        LOCK( "msm-lock" ),
+        /** Loading the session from memcached (without deserialization). */
+        GET( "msm-get" ),
+        /** Deserializing loaded sessions. */
+        DESERIALIZATION( "msm-deserialize" ),
+        /** Serializing session attributes for a backup (included in {@link #BACKUP}). */
+        SERIALIZATION( "msm-serialize" ),
+        /** The synchronous part of the session backup at the end of the request. */
+        BACKUP( "msm-backup" );
+
+        private final String _metricName;
+
+        private Phase( @Nonnull final String metricName ) {
+            _metricName = metricName;
+        }
+
+        @Nonnull
+        public String getMetricName() {
+            return _metricName;
+        }
+    }
+
+    private final long[] _nanos = new long[Phase.values().length];
+
+    /**
+     * Adds the time since the given start (as returned by {@link System#nanoTime()}) to the given phase.
+     */
+    public void addSince( @Nonnull final Phase phase, final long startNanos ) {
+        _nanos[phase.ordinal()] += System.nanoTime() - startNanos;
+    }
+
+    /**
+     * The accumulated time of the given phase in nanoseconds.
+     */
+    public long getNanos( @Nonnull final Phase phase ) {
+        return _nanos[phase.ordinal()];
+    }
+
+    /**
+     * Renders the phases with recorded time as <code>Server-Timing</code> header value in millis with
+     * microsecond precision, e.g. <code>msm-lock;dur=1.250, msm-get;dur=0.830</code>.
+     * An empty string is returned if nothing was recorded.
+     */
+    @Nonnull
+    public String toServerTiming() {
+        final StringBuilder sb = new StringBuilder();
+        for ( final Phase phase : Phase.values() ) {
+            final long micros = _nanos[phase.ordinal()] / 1000;
+            if ( micros <= 0 ) {
+                continue;
+            }
+            if ( sb.length() > 0 ) {
+                sb.append( ", " );
+            }
+            sb.append( phase.getMetricName() ).append( ";dur=" ).append( micros / 1000 ).append( '.' );
+            final long fraction = micros % 1000;
+            if ( fraction < 100 ) {
+                sb.append( fraction < 10 ? "00" : "0" );
+            }
+            sb.append( fraction );
+        }
+        return sb.toString();
+    }
+
+}
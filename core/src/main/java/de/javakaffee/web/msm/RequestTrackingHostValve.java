@@ -16,6 +16,9 @@
  */
 package de.javakaffee.web.msm;
 
+import static de.javakaffee.web.msm.Configurations.SERVER_TIMING_KEY;
+import static de.javakaffee.web.msm.Configurations.getSystemProperty;
+
 import java.io.IOException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
@@ -62,7 +65,15 @@ public abstract class RequestTrackingHostValve extends ValveBase {
     private final CurrentRequest _currentRequest;
     private final Context _msmContext;
 
-    private static final String MSM_REQUEST_ID = "msm.requestId";
+    static final String MSM_REQUEST_ID = "msm.requestId";
+
+    /**
+     * The request attribute holding the <code>Server-Timing</code> value (if enabled), so that it can be
+     * written to the access log, e.g. with <code>%{msm.serverTiming}r</code>.
+     */
+    public static final String SERVER_TIMING_ATTRIBUTE = "msm.serverTiming";
+
+    private boolean _serverTiming = getSystemProperty( SERVER_TIMING_KEY, false );
 
     /**
      * Creates a new instance with the given ignore pattern and
@@ -135,7 +146,12 @@ public abstract class RequestTrackingHostValve extends ValveBase {
                 if(request.getNote(REQUEST_PROCESSED) == Boolean.TRUE) {
                     final String sessionId = getSessionId(request, response);
                     if(sessionId != null) {
-                        _sessionBackupService.requestFinished(sessionId, requestId);
+                        _currentRequest.startOperationBatch();
+                        try {
+                            _sessionBackupService.requestFinished(sessionId, requestId);
+                        } finally {
+                            flushOperationBatch();
+                        }
                     }
                 }
                 resetRequestThreadLocal();
@@ -151,12 +167,24 @@ public abstract class RequestTrackingHostValve extends ValveBase {
                 _log.debug( ">>>>>> Request starting: " + requestId + " (requestedSessionId "+ request.getRequestedSessionId() +") ==================" );
             }
 
+            final RequestTimings timings = _serverTiming ? _currentRequest.startTimings() : null;
             try {
                 storeRequestThreadLocal( request );
                 getNext().invoke( request, response );
             } finally {
+                final long startBackup = System.nanoTime();
                 final Boolean sessionIdChanged = (Boolean) request.getNote(SESSION_ID_CHANGED);
-                backupSession( request, response, sessionIdChanged == null ? false : sessionIdChanged.booleanValue() );
+                _currentRequest.startOperationBatch();
+                try {
+                    backupSession( request, response, sessionIdChanged == null ? false : sessionIdChanged.booleanValue() );
+                } finally {
+                    flushOperationBatch();
+                    if ( timings != null ) {
+                        timings.addSince( RequestTimings.Phase.BACKUP, startBackup );
+                        _currentRequest.endTimings();
+                        writeServerTiming( request, response, timings );
+                    }
+                }
                 resetRequestThreadLocal();
             }
 
@@ -169,6 +197,26 @@ public abstract class RequestTrackingHostValve extends ValveBase {
         }
     }
 
+    /**
+     * Sets the {@link RequestTimings} as request attribute and as <code>Server-Timing</code> header,
+     * unless the response is already committed.
+     */
+    private void writeServerTiming( final Request request, final Response response, final RequestTimings timings ) {
+        final String serverTiming = timings.toServerTiming();
+        request.setAttribute( SERVER_TIMING_ATTRIBUTE, serverTiming );
+        if ( serverTiming.length() > 0 && !response.isCommitted() ) {
+            response.addHeader( "Server-Timing", serverTiming );
+        }
+    }
+
+    /**
+     * Specifies if the time spent by msm is sent as <code>Server-Timing</code> header, by default
+     * configured via {@link Configurations#SERVER_TIMING_KEY}.
+     */
+    void setServerTiming( final boolean serverTiming ) {
+        _serverTiming = serverTiming;
+    }
+
     protected void logDebugRequestSessionCookie( final Request request ) {
         final Cookie[] cookies = request.getCookies();
         if ( cookies == null ) {
@@ -219,6 +267,18 @@ public abstract class RequestTrackingHostValve extends ValveBase {
         _currentRequest.set( request );
     }
 
+    /**
+     * Sends the memcached operations collected while finishing the request
+     * (the batch is only started after the request was processed, so that locks
+     * acquired/released during request processing are not affected).
+     */
+    private void flushOperationBatch() {
+        final MemcachedOperationBatch batch = _currentRequest.endOperationBatch();
+        if ( batch != null ) {
+            batch.flush( _statistics );
+        }
+    }
+
     private void backupSession( final Request request, final Response response, final boolean sessionIdChanged ) {
 
         /*
@@ -40,6 +40,7 @@ import org.apache.juli.logging.LogFactory;
 public class SessionIdFormat {
 
     private static final String BACKUP_PREFIX = "bak:";
+    private static final String REPLICA_PREFIX = "rep:";
 
     private static final Log LOG = LogFactory.getLog( SessionIdFormat.class );
 
@@ -246,4 +247,38 @@ public class SessionIdFormat {
         return key.startsWith( BACKUP_PREFIX );
     }
 
+    /**
+     * Returns the key of the original (primary) data for the given backup key (created via {@link #createBackupKey(String)}),
+     * i.e. the formatted original key.
+     */
+    @Nonnull
+    public String stripBackupPrefix( @Nonnull final String backupKey ) {
+        return backupKey.substring( BACKUP_PREFIX.length() );
+    }
+
+    /**
+     * Creates the key of the replica of the given (stored) key that is stored in the memcached node
+     * with the given id, e.g. <code>rep:n2:foo-n1</code>.
+     */
+    @Nonnull
+    public String createReplicaKey( @Nonnull final String key, @Nonnull final String nodeId ) {
+        return REPLICA_PREFIX + nodeId + ":" + key;
+    }
+
+    /**
+     * Determines, if the given key is a replica key, if it was created via {@link #createReplicaKey(String, String)}.
+     */
+    public boolean isReplicaKey( @Nonnull final String key ) {
+        return key.startsWith( REPLICA_PREFIX );
+    }
+
+    /**
+     * Returns the id of the memcached node that stores the given replica key
+     * (created via {@link #createReplicaKey(String, String)}).
+     */
+    @Nonnull
+    public String extractReplicaNodeId( @Nonnull final String replicaKey ) {
+        return replicaKey.substring( REPLICA_PREFIX.length(), replicaKey.indexOf( ':', REPLICA_PREFIX.length() ) );
+    }
+
 }
\ No newline at end of file
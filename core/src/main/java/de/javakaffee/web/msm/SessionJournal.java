@@ -0,0 +1,545 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.Configurations.JOURNAL_COMPACTION_INTERVAL_KEY;
+import static de.javakaffee.web.msm.Configurations.JOURNAL_DIRECTORY_KEY;
+import static de.javakaffee.web.msm.Configurations.JOURNAL_FLUSH_INTERVAL_KEY;
+import static de.javakaffee.web.msm.Configurations.JOURNAL_SEGMENT_SIZE_KEY;
+import static de.javakaffee.web.msm.Configurations.getSystemProperty;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import net.spy.memcached.MemcachedClient;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import de.javakaffee.web.msm.MemcachedSessionService.SessionManager;
+
+/**
+ * A local journal of serialized sessions (sticky sessions only), so that a restarted tomcat preloads its
+ * sessions from local disk instead of loading each session from memcached with its first request.
+ * <p>
+ * The serialized session data created by the {@link BackupSessionTask} is appended to memory mapped segment
+ * files (<code>journal-&lt;n&gt;.seg</code>), removed sessions are appended as tombstones. A new segment is
+ * started when the current one is full. Compaction copies the live sessions of the oldest segment to the
+ * current segment and deletes the oldest segment, as long as less than half of it is live. Records
+ * contain a checksum, so that a record that was written partially is ignored (together with the rest of
+ * its segment) when the journal is read.
+ * </p>
+ * <p>
+ * Preloaded sessions are checked against memcached in the background at a limited rate (see
+ * {@link #startVerification(MemcachedClient, StorageKeyFormat, SessionManager, Collection, int, long)}):
+ * a session that is missing in memcached or that is newer in memcached is removed from the local session
+ * map (and loaded from memcached with its next request).
+ * </p>
+ * <p>
+ * The current segment is flushed to disk when a new segment is started and periodically in the background
+ * (see {@link Configurations#JOURNAL_FLUSH_INTERVAL_KEY}), all segments are flushed on shutdown. Compacted segments
+ * are unmapped before they're deleted (if the JVM allows this, otherwise they're released by the garbage collector).
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SessionJournal {
+
+    private static final Log LOG = LogFactory.getLog( SessionJournal.class );
+
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_REMOVE = 2;
+
+    /**
+     * length (4), crc (4), type (1), id length (2), data length (4)
+     */
+    private static final int HEADER_SIZE = 15;
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final File _directory;
+    private final int _segmentSize;
+
+    private final LinkedList<Segment> _segments = new LinkedList<Segment>();
+    private final Map<String, Location> _index = new HashMap<String, Location>();
+    private Segment _current;
+    private int _nextSegmentId;
+    private boolean _dirty;
+
+    private final Queue<String> _unverified = new ConcurrentLinkedQueue<String>();
+    private final ScheduledExecutorService _executor;
+
+    SessionJournal( @Nonnull final File directory, final int segmentSize, final long compactionInterval ) throws IOException {
+        this( directory, segmentSize, compactionInterval, 0 );
+    }
+
+    SessionJournal( @Nonnull final File directory, final int segmentSize, final long compactionInterval, final long flushInterval )
+            throws IOException {
+        _directory = directory;
+        _segmentSize = segmentSize;
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException( "Could not create journal directory " + directory );
+        }
+        open();
+        _executor = Executors.newSingleThreadScheduledExecutor( new NamedThreadFactory( "msm-session-journal" ) );
+        if ( compactionInterval > 0 ) {
+            _executor.scheduleWithFixedDelay( new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } catch ( final Exception e ) {
+                        LOG.warn( "Could not compact session journal " + _directory, e );
+                    }
+                }
+            }, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS );
+        }
+        if ( flushInterval > 0 ) {
+            _executor.scheduleWithFixedDelay( new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, flushInterval, flushInterval, TimeUnit.MILLISECONDS );
+        }
+    }
+
+    /**
+     * Creates the {@link SessionJournal} in a sub directory (named after the given context name) of the
+     * directory configured via {@link Configurations#JOURNAL_DIRECTORY_KEY}, returns <code>null</code> if
+     * no directory is configured or if the journal cannot be opened.
+     */
+    @CheckForNull
+    public static SessionJournal createFromSystemProperties( @Nonnull final String contextName ) {
+        final String directory = System.getProperty( JOURNAL_DIRECTORY_KEY );
+        if ( directory == null || directory.trim().isEmpty() ) {
+            return null;
+        }
+        final File contextDirectory = new File( directory.trim(), contextName.replaceAll( "[^A-Za-z0-9._-]", "_" ) );
+        try {
+            final SessionJournal result = new SessionJournal( contextDirectory,
+                    getSystemProperty( JOURNAL_SEGMENT_SIZE_KEY, 64 * 1024 * 1024 ),
+                    getSystemProperty( JOURNAL_COMPACTION_INTERVAL_KEY, 60000L ),
+                    getSystemProperty( JOURNAL_FLUSH_INTERVAL_KEY, 1000L ) );
+            LOG.info( "Journaling sessions in " + contextDirectory + ", found " + result.getSessionCount() + " sessions." );
+            return result;
+        } catch ( final IOException e ) {
+            LOG.warn( "Could not open session journal in " + contextDirectory + ", sessions are not journaled.", e );
+            return null;
+        }
+    }
+
+    private void open() throws IOException {
+        final File[] files = _directory.listFiles( new FilenameFilter() {
+            @Override
+            public boolean accept( final File dir, final String name ) {
+                return name.startsWith( SEGMENT_PREFIX ) && name.endsWith( SEGMENT_SUFFIX );
+            }
+        } );
+        final List<Integer> ids = new ArrayList<Integer>();
+        for ( final File file : files ) {
+            try {
+                ids.add( Integer.valueOf( file.getName().substring( SEGMENT_PREFIX.length(), file.getName().length() - SEGMENT_SUFFIX.length() ) ) );
+            } catch ( final NumberFormatException e ) {
+                LOG.warn( "Ignoring unexpected file in session journal: " + file );
+            }
+        }
+        Collections.sort( ids );
+        for ( final Integer id : ids ) {
+            final File file = segmentFile( id );
+            final Segment segment = new Segment( file, map( file, file.length() ) );
+            _segments.add( segment );
+            readRecords( segment );
+            _nextSegmentId = id + 1;
+        }
+    }
+
+    private void readRecords( @Nonnull final Segment segment ) {
+        final ByteBuffer buffer = segment.buffer.duplicate();
+        int offset = 0;
+        while ( offset + HEADER_SIZE <= buffer.capacity() ) {
+            final int length = buffer.getInt( offset );
+            if ( length < HEADER_SIZE || offset + length > buffer.capacity() ) {
+                break;
+            }
+            final byte[] record = new byte[length - 8];
+            buffer.position( offset + 8 );
+            buffer.get( record );
+            if ( crc( record ) != buffer.getInt( offset + 4 ) ) {
+                LOG.warn( "Ignoring corrupt record at offset " + offset + " of session journal segment " + segment.file );
+                break;
+            }
+            final ByteBuffer body = ByteBuffer.wrap( record );
+            final byte type = body.get();
+            final byte[] id = new byte[body.getShort()];
+            body.getInt();
+            body.get( id );
+            final String sessionId = new String( id, UTF_8 );
+            unlink( sessionId );
+            if ( type == TYPE_PUT ) {
+                _index.put( sessionId, new Location( segment, offset, length ) );
+                segment.liveBytes += length;
+            }
+            offset += length;
+        }
+        segment.position = offset;
+    }
+
+    /**
+     * Appends the serialized session to the journal.
+     */
+    public void append( @Nonnull final String sessionId, @Nonnull final byte[] data ) {
+        write( TYPE_PUT, sessionId, data );
+    }
+
+    /**
+     * Appends the removal of the given session to the journal.
+     */
+    public void remove( @Nonnull final String sessionId ) {
+        synchronized ( this ) {
+            if ( !_index.containsKey( sessionId ) ) {
+                return;
+            }
+        }
+        write( TYPE_REMOVE, sessionId, null );
+    }
+
+    private void write( final byte type, @Nonnull final String sessionId, final byte[] data ) {
+        final byte[] id = sessionId.getBytes( UTF_8 );
+        final int dataLength = data != null ? data.length : 0;
+        final byte[] record = new byte[HEADER_SIZE - 8 + id.length + dataLength];
+        final ByteBuffer body = ByteBuffer.wrap( record );
+        body.put( type ).putShort( (short) id.length ).putInt( dataLength ).put( id );
+        if ( data != null ) {
+            body.put( data );
+        }
+        final int crc = crc( record );
+        synchronized ( this ) {
+            try {
+                final Location location = append( record, crc );
+                unlink( sessionId );
+                if ( type == TYPE_PUT ) {
+                    _index.put( sessionId, location );
+                    location.segment.liveBytes += location.length;
+                }
+            } catch ( final IOException e ) {
+                LOG.warn( "Could not append session " + sessionId + " to the session journal " + _directory, e );
+            }
+        }
+    }
+
+    private Location append( @Nonnull final byte[] record, final int crc ) throws IOException {
+        final int length = record.length + 8;
+        if ( _current == null || _current.position + length > _current.buffer.capacity() ) {
+            if ( _current != null ) {
+                _current.buffer.force();
+            }
+            _current = newSegment( Math.max( _segmentSize, length ) );
+        }
+        final Segment segment = _current;
+        final int offset = segment.position;
+        final ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position( offset + 8 );
+        buffer.put( record );
+        buffer.putInt( offset + 4, crc );
+        // the length is written last, a record without length is not read
+        buffer.putInt( offset, length );
+        segment.position += length;
+        _dirty = true;
+        return new Location( segment, offset, length );
+    }
+
+    private Segment newSegment( final int size ) throws IOException {
+        final int id = _nextSegmentId++;
+        final File file = segmentFile( id );
+        final Segment result = new Segment( file, map( file, size ) );
+        _segments.add( result );
+        return result;
+    }
+
+    private void unlink( @Nonnull final String sessionId ) {
+        final Location previous = _index.remove( sessionId );
+        if ( previous != null ) {
+            previous.segment.liveBytes -= previous.length;
+        }
+    }
+
+    /**
+     * Returns the serialized data of all sessions in the journal.
+     */
+    @Nonnull
+    public synchronized Map<String, byte[]> readAll() {
+        final Map<String, byte[]> result = new HashMap<String, byte[]>( _index.size() );
+        for ( final Map.Entry<String, Location> entry : _index.entrySet() ) {
+            result.put( entry.getKey(), entry.getValue().readData() );
+        }
+        return result;
+    }
+
+    /**
+     * Compacts the oldest segments as long as less than half of the oldest segment is live:
+     * the live sessions are copied to the current segment, then the oldest segment is deleted.
+     * Tombstones of the oldest segment are dropped, as there's no older segment they could shadow.
+     *
+     * @return the number of deleted segments
+     */
+    synchronized int compact() throws IOException {
+        int result = 0;
+        while ( _segments.size() > 1 && _segments.getFirst() != _current ) {
+            final Segment oldest = _segments.getFirst();
+            if ( oldest.position > 0 && oldest.liveBytes * 2 >= oldest.position ) {
+                break;
+            }
+            for ( final Map.Entry<String, Location> entry : _index.entrySet() ) {
+                final Location location = entry.getValue();
+                if ( location.segment == oldest ) {
+                    final byte[] record = location.readRecord();
+                    final Location copy = append( record, crc( record ) );
+                    oldest.liveBytes -= location.length;
+                    copy.segment.liveBytes += copy.length;
+                    entry.setValue( copy );
+                }
+            }
+            _segments.removeFirst();
+            unmap( oldest.buffer );
+            if ( !oldest.file.delete() ) {
+                LOG.warn( "Could not delete compacted session journal segment " + oldest.file );
+                oldest.file.deleteOnExit();
+            }
+            result++;
+        }
+        return result;
+    }
+
+    /**
+     * Checks the given preloaded sessions against memcached at the given rate (sessions per second) in the background:
+     * a session that is missing in memcached (e.g. because it was invalidated by another tomcat) or that is newer in memcached
+     * is removed from the local session map and from the journal, so that its next request loads it from memcached.
+     */
+    public void startVerification( @Nonnull final MemcachedClient memcached, @Nonnull final StorageKeyFormat storageKeyFormat,
+            @Nonnull final SessionManager manager, @Nonnull final Collection<String> sessionIds, final int rate, final long operationTimeout ) {
+        _unverified.addAll( sessionIds );
+        _executor.scheduleWithFixedDelay( new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    verify( memcached, storageKeyFormat, manager, rate, operationTimeout );
+                } catch ( final Exception e ) {
+                    LOG.warn( "Could not verify preloaded sessions in memcached", e );
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS );
+    }
+
+    /**
+     * Checks up to <code>count</code> preloaded sessions against memcached.
+     * @return the number of sessions that were removed
+     */
+    int verify( @Nonnull final MemcachedClient memcached, @Nonnull final StorageKeyFormat storageKeyFormat,
+            @Nonnull final SessionManager manager, final int count, final long operationTimeout ) throws Exception {
+        final Map<String, MemcachedBackupSession> sessions = new HashMap<String, MemcachedBackupSession>();
+        String sessionId;
+        while ( sessions.size() < count && ( sessionId = _unverified.poll() ) != null ) {
+            final MemcachedBackupSession session = manager.getSessionInternal( sessionId );
+            if ( session != null ) {
+                sessions.put( storageKeyFormat.format( sessionId ), session );
+            }
+        }
+        if ( sessions.isEmpty() ) {
+            return 0;
+        }
+        final Map<String, Object> loaded = memcached.asyncGetBulk( sessions.keySet() ).get( operationTimeout, TimeUnit.MILLISECONDS );
+        int result = 0;
+        for ( final Map.Entry<String, MemcachedBackupSession> entry : sessions.entrySet() ) {
+            final MemcachedBackupSession session = entry.getValue();
+            final Object data = loaded.get( entry.getKey() );
+            if ( !( data instanceof byte[] ) || TranscoderService.decodeLastBackupTime( (byte[]) data ) > session.getLastBackupTime() ) {
+                if ( LOG.isDebugEnabled() ) {
+                    LOG.debug( "Removing preloaded session " + session.getIdInternal() + ", it's " + ( data == null ? "missing" : "newer" ) + " in memcached." );
+                }
+                manager.removeInternal( session, false );
+                remove( session.getIdInternal() );
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of sessions in the journal.
+     */
+    public synchronized int getSessionCount() {
+        return _index.size();
+    }
+
+    /**
+     * Returns the number of segment files.
+     */
+    public synchronized int getSegmentCount() {
+        return _segments.size();
+    }
+
+    /**
+     * Flushes the current segment to disk, if it was written since the last flush.
+     */
+    synchronized void flush() {
+        if ( _dirty && _current != null ) {
+            _current.buffer.force();
+            _dirty = false;
+        }
+    }
+
+    /**
+     * Stops compaction and verification and flushes the mapped segments.
+     */
+    public void shutdown() {
+        _executor.shutdownNow();
+        synchronized ( this ) {
+            for ( final Segment segment : _segments ) {
+                segment.buffer.force();
+            }
+        }
+    }
+
+    private File segmentFile( final int id ) {
+        return new File( _directory, SEGMENT_PREFIX + String.format( "%08d", id ) + SEGMENT_SUFFIX );
+    }
+
+    private static MappedByteBuffer map( @Nonnull final File file, final long size ) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        try {
+            if ( raf.length() < size ) {
+                raf.setLength( size );
+            }
+            final FileChannel channel = raf.getChannel();
+            return channel.map( MapMode.READ_WRITE, 0, size );
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Releases the mapping of the given buffer, which must not be accessed afterwards. There's no public
+     * api for this, so this uses <code>sun.misc.Unsafe.invokeCleaner</code> (java 9+) or the cleaner of
+     * the buffer (java 8 and before). If both are not available, the mapping is released by the garbage collector.
+     */
+    private static void unmap( @Nonnull final MappedByteBuffer buffer ) {
+        try {
+            final Class<?> unsafeClass = Class.forName( "sun.misc.Unsafe" );
+            try {
+                final Method invokeCleaner = unsafeClass.getMethod( "invokeCleaner", ByteBuffer.class );
+                final Field theUnsafe = unsafeClass.getDeclaredField( "theUnsafe" );
+                theUnsafe.setAccessible( true );
+                invokeCleaner.invoke( theUnsafe.get( null ), buffer );
+                return;
+            } catch ( final NoSuchMethodException e ) {
+                // before java 9
+            }
+            final Method cleanerMethod = buffer.getClass().getMethod( "cleaner" );
+            cleanerMethod.setAccessible( true );
+            final Object cleaner = cleanerMethod.invoke( buffer );
+            if ( cleaner != null ) {
+                cleaner.getClass().getMethod( "clean" ).invoke( cleaner );
+            }
+        } catch ( final Exception e ) {
+            LOG.debug( "Could not unmap session journal segment, it's released by the garbage collector.", e );
+        }
+    }
+
+    private static int crc( @Nonnull final byte[] data ) {
+        final CRC32 crc = new CRC32();
+        crc.update( data );
+        return (int) crc.getValue();
+    }
+
+    private static final class Segment {
+
+        final File file;
+        final MappedByteBuffer buffer;
+        int position;
+        long liveBytes;
+
+        Segment( @Nonnull final File file, @Nonnull final MappedByteBuffer buffer ) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+    }
+
+    private static final class Location {
+
+        final Segment segment;
+        final int offset;
+        final int length;
+
+        Location( @Nonnull final Segment segment, final int offset, final int length ) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Returns the record without length and crc.
+         */
+        byte[] readRecord() {
+            final ByteBuffer buffer = segment.buffer.duplicate();
+            final byte[] result = new byte[length - 8];
+            buffer.position( offset + 8 );
+            buffer.get( result );
+            return result;
+        }
+
+        byte[] readData() {
+            final ByteBuffer buffer = segment.buffer.duplicate();
+            final int idLength = buffer.getShort( offset + 9 );
+            final byte[] result = new byte[buffer.getInt( offset + 11 )];
+            buffer.position( offset + HEADER_SIZE + idLength );
+            buffer.get( result );
+            return result;
+        }
+
+    }
+
+}
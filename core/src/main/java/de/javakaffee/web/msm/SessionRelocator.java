@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nonnull;
+
+import org.apache.catalina.Session;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import de.javakaffee.web.msm.BackupSessionTask.BackupResult;
+import de.javakaffee.web.msm.NodeAvailabilityCache.NodeAvailabilityListener;
+
+/**
+ * Relocates the local sessions of a memcached node that became unavailable to other nodes in the
+ * background (sticky sessions only). Otherwise each session would be relocated with the next request
+ * of the user, which has to pay for the id change and the forced backup.
+ * <p>
+ * Sessions are relocated in batches at the configured rate (sessions per second), each batch
+ * is backed up concurrently before the next batch is started. The old session ids are
+ * remembered by the {@link MemcachedSessionService}, so that a request with an old session id gets the
+ * relocated session (see {@link MemcachedSessionService#changeSessionIdOnMemcachedFailover(String)}).
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SessionRelocator implements NodeAvailabilityListener<String> {
+
+    private static final Log LOG = LogFactory.getLog( SessionRelocator.class );
+
+    private static final int BATCHES_PER_SECOND = 10;
+
+    private final MemcachedSessionService _sessionService;
+    private final int _sessionsPerSecond;
+    private final long _backupTimeout;
+    private final ExecutorService _executor = Executors.newSingleThreadExecutor( new NamedThreadFactory( "msm-relocation" ) );
+    private final Set<String> _pendingNodes = java.util.Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+
+    /**
+     * @param sessionService the session service providing the sessions to relocate.
+     * @param sessionsPerSecond the max number of sessions relocated per second.
+     * @param backupTimeout the time in millis to wait for a batch of session backups.
+     */
+    public SessionRelocator( @Nonnull final MemcachedSessionService sessionService, final int sessionsPerSecond, final long backupTimeout ) {
+        _sessionService = sessionService;
+        _sessionsPerSecond = Math.max( 1, sessionsPerSecond );
+        _backupTimeout = backupTimeout;
+    }
+
+    @Override
+    public void onNodeUnavailable( final String nodeId ) {
+        if ( !_pendingNodes.add( nodeId ) ) {
+            return;
+        }
+        try {
+            _executor.submit( new Runnable() {
+                @Override
+                public void run() {
+                    _pendingNodes.remove( nodeId );
+                    relocateSessions( nodeId );
+                }
+            } );
+        } catch ( final RejectedExecutionException e ) {
+            _pendingNodes.remove( nodeId );
+            LOG.debug( "Relocation was shut down, not relocating sessions of node " + nodeId );
+        }
+    }
+
+    /**
+     * Relocates the sessions of the given node, returns the number of relocated sessions.
+     */
+    int relocateSessions( @Nonnull final String nodeId ) {
+        final Session[] sessions = _sessionService.getManager().findSessions();
+        final int batchSize = Math.max( 1, _sessionsPerSecond / BATCHES_PER_SECOND );
+        final long batchInterval = TimeUnit.SECONDS.toMillis( 1 ) * batchSize / _sessionsPerSecond;
+        final List<Future<BackupResult>> batch = new ArrayList<Future<BackupResult>>( batchSize );
+        int relocated = 0;
+        long batchStart = System.currentTimeMillis();
+        for ( final Session session : sessions ) {
+            if ( Thread.currentThread().isInterrupted() ) {
+                break;
+            }
+            final Future<BackupResult> result = _sessionService.relocateSession( (MemcachedBackupSession) session, nodeId );
+            if ( result == null ) {
+                continue;
+            }
+            batch.add( result );
+            relocated++;
+            if ( batch.size() >= batchSize ) {
+                await( batch );
+                batchStart = pace( batchStart, batchInterval );
+            }
+        }
+        await( batch );
+        if ( relocated > 0 && LOG.isInfoEnabled() ) {
+            LOG.info( "Relocated " + relocated + " sessions from unavailable memcached node " + nodeId );
+        }
+        return relocated;
+    }
+
+    private void await( final List<Future<BackupResult>> batch ) {
+        final long deadline = System.currentTimeMillis() + _backupTimeout;
+        for ( final Future<BackupResult> future : batch ) {
+            try {
+                future.get( Math.max( 0, deadline - System.currentTimeMillis() ), TimeUnit.MILLISECONDS );
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch ( final ExecutionException e ) {
+                LOG.warn( "Could not backup relocated session.", e.getCause() );
+            } catch ( final TimeoutException e ) {
+                LOG.warn( "Backup of relocated session did not finish within " + _backupTimeout + " ms." );
+            }
+        }
+        batch.clear();
+    }
+
+    private static long pace( final long batchStart, final long batchInterval ) {
+        final long wait = batchStart + batchInterval - System.currentTimeMillis();
+        if ( wait > 0 ) {
+            try {
+                Thread.sleep( wait );
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Stops relocating sessions.
+     */
+    public void shutdown() {
+        _executor.shutdownNow();
+    }
+
+}
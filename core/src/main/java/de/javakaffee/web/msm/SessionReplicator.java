@@ -0,0 +1,523 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.Configurations.REPLICATION_FACTOR_KEY;
+import static de.javakaffee.web.msm.Configurations.REPLICATION_WRITE_QUORUM_KEY;
+import static de.javakaffee.web.msm.Configurations.getSystemProperty;
+import static de.javakaffee.web.msm.MemcachedUtil.toMemcachedExpiration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import net.spy.memcached.CASValue;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.OperationCompletionListener;
+import net.spy.memcached.internal.OperationFuture;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Stores sessions and their validity info in several memcached nodes: the primary node (encoded in the
+ * session id) and its successors (see {@link MemcachedNodesManager#getNextAvailableNodeId(String)}), so that
+ * sessions survive the loss of a memcached node without being reloaded from a secondary backup.
+ * <p>
+ * Writes are sent to all replicas in parallel and are finished when the write quorum acknowledged the write.
+ * Reads are sent to all replicas in parallel as well and wait for the read quorum of
+ * <code>replicationFactor - writeQuorum + 1</code> replicas, which overlaps with the write quorum of the
+ * last write, the newest value of the read quorum is returned. If less replicas can answer (because nodes
+ * failed), the newest of their values is returned. If the answers seen so far differ or some replicas did not
+ * answer yet, the answers of all replicas are compared in the background and stale or missing replicas are
+ * repaired with the newest value. At most {@value #MAX_PENDING_REPAIRS} repairs are pending, further repairs
+ * are dropped (see {@link Statistics#replicaRepairDropped()}). The version of a session is its <code>lastBackupTime</code>, the version
+ * of a validity info is its <code>thisAccessedTime</code>. Repairs are performed with <code>add</code>/<code>cas</code>,
+ * so that they don't overwrite a concurrent write.
+ * </p>
+ * <p>
+ * Replicas are stored with the key created by {@link SessionIdFormat#createReplicaKey(String, String)}, which
+ * is located by the node id contained in the key. Secondary backups (<code>bak:</code> keys) are not replicated.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SessionReplicator {
+
+    private static final Log LOG = LogFactory.getLog( SessionReplicator.class );
+
+    static final int MAX_PENDING_REPAIRS = 100;
+
+    /**
+     * The type of a replicated value, provides its version and expiration.
+     */
+    static enum ValueType {
+
+        SESSION {
+            @Override
+            long getVersion( final byte[] data ) {
+                return TranscoderService.decodeLastBackupTime( data );
+            }
+            @Override
+            int getExpiration( final byte[] data ) {
+                return getExpirationForMaxInactiveInterval( TranscoderService.decodeMaxInactiveInterval( data ) );
+            }
+        },
+
+        VALIDITY_INFO {
+            @Override
+            long getVersion( final byte[] data ) {
+                return SessionValidityInfo.decode( data ).getThisAccessedTime();
+            }
+            @Override
+            int getExpiration( final byte[] data ) {
+                return getExpirationForMaxInactiveInterval( SessionValidityInfo.decode( data ).getMaxInactiveInterval() );
+            }
+        };
+
+        abstract long getVersion( @Nonnull byte[] data );
+
+        /**
+         * The expiration for a repaired replica, as used for non-sticky sessions (as the remaining time of
+         * the session is not known without deserialization).
+         */
+        abstract int getExpiration( @Nonnull byte[] data );
+
+        private static int getExpirationForMaxInactiveInterval( final int maxInactiveInterval ) {
+            return maxInactiveInterval <= 0 ? 0 : 2 * maxInactiveInterval;
+        }
+
+    }
+
+    private final MemcachedClient _memcached;
+    private final MemcachedNodesManager _memcachedNodesManager;
+    private final SessionIdFormat _sessionIdFormat;
+    private final Statistics _statistics;
+    private final int _replicationFactor;
+    private final int _writeQuorum;
+    private final long _repairTimeout;
+    private final ThreadPoolExecutor _repairExecutor = new ThreadPoolExecutor( 1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>( MAX_PENDING_REPAIRS ), new NamedThreadFactory( "msm-read-repair" ) );
+
+    /**
+     * @param replicationFactor the number of nodes storing a value, including the primary node.
+     * @param writeQuorum the number of nodes that must acknowledge a write.
+     * @param repairTimeout the max time in millis to wait for the answers of all replicas before a repair.
+     */
+    public SessionReplicator( @Nonnull final MemcachedClient memcached, @Nonnull final MemcachedNodesManager memcachedNodesManager,
+            @Nonnull final Statistics statistics, final int replicationFactor, final int writeQuorum, final long repairTimeout ) {
+        if ( writeQuorum < 1 || writeQuorum > replicationFactor ) {
+            throw new IllegalArgumentException( "The write quorum must be between 1 and the replication factor ("
+                    + replicationFactor + "), but was " + writeQuorum );
+        }
+        _memcached = memcached;
+        _memcachedNodesManager = memcachedNodesManager;
+        _sessionIdFormat = memcachedNodesManager.getSessionIdFormat();
+        _statistics = statistics;
+        _replicationFactor = replicationFactor;
+        _writeQuorum = writeQuorum;
+        _repairTimeout = repairTimeout;
+    }
+
+    /**
+     * Creates the replicator as configured by system properties, returns <code>null</code> if
+     * {@value Configurations#REPLICATION_FACTOR_KEY} is not set or if node ids are not encoded in session ids.
+     */
+    @CheckForNull
+    public static SessionReplicator createFromSystemProperties( @Nonnull final MemcachedClient memcached,
+            @Nonnull final MemcachedNodesManager memcachedNodesManager, @Nonnull final Statistics statistics, final long repairTimeout ) {
+        final int replicationFactor = getSystemProperty( REPLICATION_FACTOR_KEY, 1 );
+        if ( replicationFactor <= 1 ) {
+            return null;
+        }
+        if ( !memcachedNodesManager.isEncodeNodeIdInSessionId() ) {
+            LOG.warn( "Replication requires node ids in session ids, ignoring " + REPLICATION_FACTOR_KEY + "=" + replicationFactor );
+            return null;
+        }
+        final int writeQuorum = getSystemProperty( REPLICATION_WRITE_QUORUM_KEY, replicationFactor / 2 + 1 );
+        return new SessionReplicator( memcached, memcachedNodesManager, statistics, replicationFactor,
+                Math.max( 1, Math.min( writeQuorum, replicationFactor ) ), repairTimeout );
+    }
+
+    /**
+     * Returns the ids of the nodes that store replicas of the given key, without the primary node: up to
+     * <code>replicationFactor - 1</code> available successors of the node id contained in the key.
+     */
+    @Nonnull
+    List<String> getReplicaNodeIds( @Nonnull final String key ) {
+        final List<String> result = new ArrayList<String>( _replicationFactor - 1 );
+        if ( _sessionIdFormat.isBackupKey( key ) || _sessionIdFormat.isReplicaKey( key ) ) {
+            return result;
+        }
+        final String primaryNodeId = _sessionIdFormat.extractMemcachedId( key );
+        if ( primaryNodeId == null ) {
+            return result;
+        }
+        try {
+            String nodeId = primaryNodeId;
+            while ( result.size() < _replicationFactor - 1
+                    && ( nodeId = _memcachedNodesManager.getNextAvailableNodeId( nodeId ) ) != null
+                    && !nodeId.equals( primaryNodeId ) && !result.contains( nodeId ) ) {
+                result.add( nodeId );
+            }
+        } catch ( final IllegalArgumentException e ) {
+            // the node id is not (any more) known
+            LOG.debug( "Could not determine replica nodes for key " + key, e );
+        }
+        return result;
+    }
+
+    /**
+     * Stores the given value in the primary node and all replicas.
+     *
+     * @return a future that is done when the write quorum acknowledged the write (with <code>true</code>)
+     *      or when the quorum cannot be reached any more (failing with an {@link ExecutionException}).
+     */
+    @Nonnull
+    public Future<Boolean> set( @Nonnull final String key, final int exp, @Nonnull final Object value ) {
+        final List<OperationFuture<Boolean>> futures = new ArrayList<OperationFuture<Boolean>>( _replicationFactor );
+        futures.add( _memcached.set( key, exp, value ) );
+        futures.addAll( setReplicas( key, exp, value ) );
+        return new QuorumFuture( futures, Math.min( _writeQuorum, futures.size() ) );
+    }
+
+    /**
+     * Stores the given value in the replicas of the given key only, e.g. if the primary node is
+     * written with an operation batch.
+     */
+    @Nonnull
+    public List<OperationFuture<Boolean>> setReplicas( @Nonnull final String key, final int exp, @Nonnull final Object value ) {
+        final List<String> nodeIds = getReplicaNodeIds( key );
+        final List<OperationFuture<Boolean>> result = new ArrayList<OperationFuture<Boolean>>( nodeIds.size() );
+        for ( final String nodeId : nodeIds ) {
+            result.add( _memcached.set( _sessionIdFormat.createReplicaKey( key, nodeId ), exp, value ) );
+        }
+        return result;
+    }
+
+    /**
+     * Deletes the given key in the primary node and all replicas.
+     *
+     * @return the future of the delete in the primary node.
+     */
+    @Nonnull
+    public Future<Boolean> delete( @Nonnull final String key ) {
+        final Future<Boolean> result = _memcached.delete( key );
+        for ( final String nodeId : getReplicaNodeIds( key ) ) {
+            _memcached.delete( _sessionIdFormat.createReplicaKey( key, nodeId ) );
+        }
+        return result;
+    }
+
+    /**
+     * Loads the value of the given key from the primary node and all replicas, and returns the newest value of
+     * the read quorum. Stale or missing replicas are repaired in the background.
+     *
+     * @return the value, or <code>null</code> if no node of the read quorum has a value for the key.
+     * @throws ExecutionException if all nodes failed.
+     * @throws TimeoutException if the read quorum did not answer in time.
+     */
+    @CheckForNull
+    public Object get( @Nonnull final String key, @Nonnull final ValueType type, final long timeoutInMillis )
+            throws InterruptedException, ExecutionException, TimeoutException {
+        final List<String> nodeIds = getReplicaNodeIds( key );
+        if ( nodeIds.isEmpty() ) {
+            return _memcached.asyncGet( key ).get( timeoutInMillis, TimeUnit.MILLISECONDS );
+        }
+        final List<String> keys = new ArrayList<String>( nodeIds.size() + 1 );
+        keys.add( key );
+        for ( final String nodeId : nodeIds ) {
+            keys.add( _sessionIdFormat.createReplicaKey( key, nodeId ) );
+        }
+        final BlockingQueue<Future<?>> completed = new LinkedBlockingQueue<Future<?>>();
+        final OperationCompletionListener listener = new OperationCompletionListener() {
+            @Override
+            public void onComplete( final OperationFuture<?> future ) {
+                completed.add( future );
+            }
+        };
+        final List<Future<CASValue<Object>>> futures = new ArrayList<Future<CASValue<Object>>>( keys.size() );
+        for ( final String k : keys ) {
+            final OperationFuture<CASValue<Object>> future = _memcached.asyncGets( k );
+            future.addListener( listener );
+            futures.add( future );
+        }
+
+        final int readQuorum = getReadQuorum( futures.size() );
+        final long deadline = System.currentTimeMillis() + timeoutInMillis;
+        Object result = null;
+        long resultVersion = Long.MIN_VALUE;
+        Long firstVersion = null;
+        boolean differs = false;
+        int answered = 0;
+        int processed = 0;
+        ExecutionException failure = null;
+        while ( processed < futures.size() ) {
+            // after the read quorum answered, only the answers that are already there are taken into account
+            final Future<?> future = answered < readQuorum
+                ? completed.poll( Math.max( 0, deadline - System.currentTimeMillis() ), TimeUnit.MILLISECONDS )
+                : completed.poll();
+            if ( future == null && answered >= readQuorum ) {
+                break;
+            }
+            if ( future == null ) {
+                for ( final Future<CASValue<Object>> f : futures ) {
+                    f.cancel( false );
+                }
+                throw new TimeoutException( "The read quorum for " + key + " did not answer within " + timeoutInMillis + " ms, "
+                        + answered + " of " + readQuorum + " replicas answered." );
+            }
+            processed++;
+            try {
+                final CASValue<?> casValue = (CASValue<?>) future.get();
+                answered++;
+                // a missing value is seen as version Long.MAX_VALUE, so that it differs from any value
+                long version = Long.MAX_VALUE;
+                if ( casValue != null && casValue.getValue() != null ) {
+                    version = casValue.getValue() instanceof byte[] ? type.getVersion( (byte[]) casValue.getValue() ) : Long.MIN_VALUE;
+                    if ( result == null || version > resultVersion ) {
+                        result = casValue.getValue();
+                        resultVersion = version;
+                    }
+                }
+                if ( firstVersion == null ) {
+                    firstVersion = version;
+                }
+                else if ( firstVersion.longValue() != version ) {
+                    differs = true;
+                }
+            } catch ( final ExecutionException e ) {
+                failure = e;
+            }
+        }
+        if ( answered == 0 && failure != null ) {
+            throw failure;
+        }
+        if ( answered < readQuorum && LOG.isDebugEnabled() ) {
+            LOG.debug( "Only " + answered + " of " + readQuorum + " replicas of " + key + " could answer, returning the newest of them." );
+        }
+        if ( result != null && ( differs || processed < futures.size() ) ) {
+            scheduleRepair( keys, futures, type );
+        }
+        return result;
+    }
+
+    /**
+     * The number of replicas that must answer a read, so that the read overlaps with the write quorum
+     * (<code>replicas - writeQuorum + 1</code>).
+     */
+    int getReadQuorum( final int replicas ) {
+        return replicas - Math.min( _writeQuorum, replicas ) + 1;
+    }
+
+    private void scheduleRepair( final List<String> keys, final List<Future<CASValue<Object>>> futures, final ValueType type ) {
+        try {
+            _repairExecutor.submit( new Runnable() {
+                @Override
+                public void run() {
+                    repair( keys, futures, type );
+                }
+            } );
+        } catch ( final RejectedExecutionException e ) {
+            if ( _repairExecutor.isShutdown() ) {
+                LOG.debug( "Read repair was shut down, not repairing replicas of " + keys.get( 0 ) );
+            }
+            else {
+                _statistics.replicaRepairDropped();
+                if ( LOG.isDebugEnabled() ) {
+                    LOG.debug( "Too many pending read repairs, not repairing replicas of " + keys.get( 0 ) );
+                }
+            }
+        }
+    }
+
+    /**
+     * The number of repairs that were scheduled so far (including running and pending ones).
+     */
+    long getScheduledRepairs() {
+        return _repairExecutor.getTaskCount();
+    }
+
+    /**
+     * Compares the answers of all replicas and stores the newest value in stale replicas (via cas) and
+     * missing replicas (via add). Replicas that did not answer are ignored.
+     *
+     * @return the number of repaired replicas.
+     */
+    int repair( @Nonnull final List<String> keys, @Nonnull final List<Future<CASValue<Object>>> futures, @Nonnull final ValueType type ) {
+        final long deadline = System.currentTimeMillis() + _repairTimeout;
+        final List<CASValue<Object>> values = new ArrayList<CASValue<Object>>( futures.size() );
+        final boolean[] answered = new boolean[futures.size()];
+        byte[] newest = null;
+        long newestVersion = Long.MIN_VALUE;
+        for ( int i = 0; i < futures.size(); i++ ) {
+            CASValue<Object> casValue = null;
+            try {
+                casValue = futures.get( i ).get( Math.max( 0, deadline - System.currentTimeMillis() ), TimeUnit.MILLISECONDS );
+                answered[i] = true;
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                return 0;
+            } catch ( final Exception e ) {
+                // the replica is not available, it's not repaired
+            }
+            values.add( casValue );
+            if ( casValue != null && casValue.getValue() instanceof byte[] ) {
+                final long version = type.getVersion( (byte[]) casValue.getValue() );
+                if ( version > newestVersion ) {
+                    newestVersion = version;
+                    newest = (byte[]) casValue.getValue();
+                }
+            }
+        }
+        if ( newest == null ) {
+            return 0;
+        }
+
+        final int exp = toMemcachedExpiration( type.getExpiration( newest ) );
+        int result = 0;
+        for ( int i = 0; i < keys.size(); i++ ) {
+            final CASValue<Object> casValue = values.get( i );
+            if ( !answered[i] || casValue != null && ( !( casValue.getValue() instanceof byte[] )
+                    || type.getVersion( (byte[]) casValue.getValue() ) >= newestVersion ) ) {
+                continue;
+            }
+            if ( casValue == null ) {
+                _memcached.add( keys.get( i ), exp, newest );
+            }
+            else {
+                _memcached.asyncCAS( keys.get( i ), casValue.getCas(), exp, newest, _memcached.getTranscoder() );
+            }
+            _statistics.replicaRepaired();
+            result++;
+        }
+        if ( result > 0 && LOG.isDebugEnabled() ) {
+            LOG.debug( "Repaired " + result + " replicas of " + keys.get( 0 ) );
+        }
+        return result;
+    }
+
+    /**
+     * Stops repairing replicas.
+     */
+    public void shutdown() {
+        _repairExecutor.shutdownNow();
+    }
+
+    /**
+     * A future that is done when the quorum of the given futures returned <code>true</code>,
+     * or when the quorum cannot be reached any more. The results are counted by a completion
+     * listener of each future, so that waiting for the quorum does not poll the futures.
+     */
+    static final class QuorumFuture implements Future<Boolean>, OperationCompletionListener {
+
+        private final List<OperationFuture<Boolean>> _futures;
+        private final int _quorum;
+        private final AtomicInteger _successes = new AtomicInteger();
+        private final AtomicInteger _failures = new AtomicInteger();
+        private final CountDownLatch _done = new CountDownLatch( 1 );
+        private volatile Throwable _cause;
+
+        QuorumFuture( @Nonnull final List<OperationFuture<Boolean>> futures, final int quorum ) {
+            _futures = futures;
+            _quorum = quorum;
+            for ( final OperationFuture<Boolean> future : futures ) {
+                future.addListener( this );
+            }
+        }
+
+        @Override
+        public void onComplete( final OperationFuture<?> future ) {
+            boolean success = false;
+            try {
+                success = Boolean.TRUE.equals( future.get() );
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            } catch ( final ExecutionException e ) {
+                _cause = e.getCause();
+            } catch ( final RuntimeException e ) {
+                // e.g. cancelled
+                _cause = e;
+            }
+            if ( success ? _successes.incrementAndGet() == _quorum
+                    : _failures.incrementAndGet() == _futures.size() - _quorum + 1 ) {
+                _done.countDown();
+            }
+        }
+
+        @Override
+        public boolean cancel( final boolean mayInterruptIfRunning ) {
+            boolean result = false;
+            for ( final Future<Boolean> future : _futures ) {
+                result |= future.cancel( mayInterruptIfRunning );
+            }
+            return result;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            for ( final Future<Boolean> future : _futures ) {
+                if ( !future.isCancelled() ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isDone() {
+            return _done.getCount() == 0;
+        }
+
+        @Override
+        public Boolean get() throws InterruptedException, ExecutionException {
+            _done.await();
+            return getResult();
+        }
+
+        @Override
+        public Boolean get( final long timeout, final TimeUnit unit ) throws InterruptedException, ExecutionException, TimeoutException {
+            if ( !_done.await( timeout, unit ) ) {
+                throw new TimeoutException( "The write quorum of " + _quorum + " was not reached within the timeout, "
+                        + _successes.get() + " of " + _futures.size() + " writes succeeded." );
+            }
+            return getResult();
+        }
+
+        private Boolean getResult() throws ExecutionException {
+            if ( _successes.get() >= _quorum ) {
+                return Boolean.TRUE;
+            }
+            throw new ExecutionException( "The write quorum of " + _quorum + " was not reached, "
+                    + _failures.get() + " of " + _futures.size() + " writes failed.", _cause );
+        }
+
+    }
+
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.internal.OperationCompletionListener;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * A {@link MemcachedClient} that spreads the operations over several clients, so that each
+ * memcached node is served by several connections (and spymemcached IO threads) instead of a single one.
+ * <p>
+ * The client for an operation is chosen by the hash of the session id contained in the key (the
+ * <code>lock:</code>, <code>validity:</code>, <code>bak:</code>, replica (<code>rep:&lt;nodeId&gt;:</code>)
+ * and storage key prefixes are ignored), so that the single key operations for a session go through the same
+ * connection and are still performed in order. This instance itself is the first shard.
+ * </p>
+ * <p>
+ * Optionally an additional "bulk" client can be used for sets of large values (session backups with at least
+ * <code>bulkThreshold</code> bytes), so that lock operations and gets are not queued behind them. To keep
+ * the operations for a session ordered, any other operation for a session waits until a pending bulk store
+ * of this session is finished (bounded by the operation timeout), e.g. the lock of a non-sticky session is not
+ * released before the session is stored.
+ * </p>
+ * <p>
+ * Only the single key operations used by msm (get, gets, set, add, cas, delete, touch) are routed. Other
+ * operations are performed by the first shard, e.g. the bulk gets (<code>asyncGetBulk</code>) used to
+ * preload or migrate sessions; these are not ordered with the writes of the sessions they read.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class ShardedMemcachedClient extends MemcachedClient {
+
+    private static final Log LOG = LogFactory.getLog( ShardedMemcachedClient.class );
+
+    private static final String[] RESERVED_PREFIXES = { "bak:", "validity:", "lock:" };
+    private static final String REPLICA_PREFIX = "rep:";
+
+    private final MemcachedClient[] _shards;
+    private final MemcachedClient _bulk;
+    private final int _bulkThreshold;
+    private final StorageKeyFormat _storageKeyFormat;
+    private final long _operationTimeout;
+    private final ConcurrentMap<String, OperationFuture<Boolean>> _pendingBulkStores = new ConcurrentHashMap<String, OperationFuture<Boolean>>();
+
+    /**
+     * Creates a new instance.
+     *
+     * @param connectionFactory the factory used for all clients
+     * @param addresses the addresses of the memcached nodes
+     * @param shards the number of clients (connections per memcached node), without the bulk client.
+     * @param bulkThreshold the min size of byte[] values to store via the bulk client, a value &lt;= 0 disables the bulk client.
+     * @param storageKeyFormat the format used for keys, its prefix is ignored for routing.
+     */
+    public ShardedMemcachedClient( @Nonnull final ConnectionFactory connectionFactory, @Nonnull final List<InetSocketAddress> addresses,
+            final int shards, final int bulkThreshold, @Nonnull final StorageKeyFormat storageKeyFormat ) throws IOException {
+        super( connectionFactory, addresses );
+        if ( shards < 1 ) {
+            throw new IllegalArgumentException( "The number of shards must be at least 1, but was " + shards );
+        }
+        _storageKeyFormat = storageKeyFormat;
+        _operationTimeout = connectionFactory.getOperationTimeout();
+        _bulkThreshold = bulkThreshold;
+        _shards = new MemcachedClient[shards];
+        _shards[0] = this;
+        try {
+            for ( int i = 1; i < shards; i++ ) {
+                _shards[i] = new MemcachedClient( connectionFactory, addresses );
+            }
+            _bulk = bulkThreshold > 0 ? new MemcachedClient( connectionFactory, addresses ) : null;
+        } catch ( final IOException e ) {
+            shutdownShards( -1, TimeUnit.MILLISECONDS );
+            super.shutdown( -1, TimeUnit.MILLISECONDS );
+            throw e;
+        }
+        LOG.info( "Created memcached client with " + shards + " connections per node"
+                + ( _bulk != null ? " and a bulk connection for values >= " + bulkThreshold + " bytes" : "" ) );
+    }
+
+    /**
+     * The number of clients used for routed operations (without the bulk client).
+     */
+    public int getShardCount() {
+        return _shards.length;
+    }
+
+    /**
+     * Returns the index of the shard that handles the given key.
+     */
+    int getShardIndex( @Nonnull final String key ) {
+        return shardIndex( routingKey( key, _storageKeyFormat ) );
+    }
+
+    private int shardIndex( @Nonnull final String routingKey ) {
+        return ( routingKey.hashCode() & Integer.MAX_VALUE ) % _shards.length;
+    }
+
+    /**
+     * Returns the part of the key that is used for routing, i.e. the key without
+     * prefixes added by msm for locks, validity info, backups, replicas and the storage key format.
+     */
+    static String routingKey( @Nonnull final String key, @Nonnull final StorageKeyFormat storageKeyFormat ) {
+        String result = key;
+        boolean stripped = true;
+        while ( stripped ) {
+            stripped = false;
+            if ( result.startsWith( REPLICA_PREFIX ) ) {
+                // the replica prefix is followed by the node id, see SessionIdFormat.createReplicaKey
+                final int end = result.indexOf( ':', REPLICA_PREFIX.length() );
+                if ( end > 0 ) {
+                    result = result.substring( end + 1 );
+                    stripped = true;
+                }
+            }
+            for ( final String prefix : RESERVED_PREFIXES ) {
+                if ( result.startsWith( prefix ) ) {
+                    result = result.substring( prefix.length() );
+                    stripped = true;
+                }
+            }
+            if ( storageKeyFormat.prefix != null && result.startsWith( storageKeyFormat.prefix ) ) {
+                result = result.substring( storageKeyFormat.prefix.length() );
+                stripped = true;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the shard for the given key, or <code>null</code> if it's this instance. Before, it waits until
+     * a pending bulk store for the same session is finished.
+     */
+    @CheckForNull
+    private MemcachedClient shardFor( @Nonnull final String key ) {
+        final String routingKey = routingKey( key, _storageKeyFormat );
+        if ( _bulk != null ) {
+            awaitBulkStore( routingKey );
+        }
+        final MemcachedClient shard = _shards[shardIndex( routingKey )];
+        return shard == this ? null : shard;
+    }
+
+    private boolean isBulk( final Object value ) {
+        return _bulk != null && value instanceof byte[] && ( (byte[]) value ).length >= _bulkThreshold;
+    }
+
+    /**
+     * Registers the given store on the bulk connection as pending for the session of the given key, until it's finished.
+     */
+    @Nonnull
+    OperationFuture<Boolean> bulkStored( @Nonnull final String key, @Nonnull final OperationFuture<Boolean> future ) {
+        final String routingKey = routingKey( key, _storageKeyFormat );
+        _pendingBulkStores.put( routingKey, future );
+        future.addListener( new OperationCompletionListener() {
+            @Override
+            public void onComplete( final OperationFuture<?> f ) throws Exception {
+                _pendingBulkStores.remove( routingKey, future );
+            }
+        } );
+        return future;
+    }
+
+    /**
+     * Waits until the pending bulk store (if any) for the given routing key is finished.
+     * Bulk stores of the same session need not wait, they use the same connection.
+     */
+    void awaitBulkStore( @Nonnull final String routingKey ) {
+        final OperationFuture<Boolean> future = _pendingBulkStores.get( routingKey );
+        if ( future == null || future.isDone() ) {
+            return;
+        }
+        try {
+            future.get( _operationTimeout, TimeUnit.MILLISECONDS );
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        } catch ( final TimeoutException e ) {
+            LOG.warn( "Bulk store of " + future.getKey() + " did not finish within " + _operationTimeout
+                    + " ms, following operations for this session are not ordered with it." );
+        } catch ( final ExecutionException e ) {
+            // the failure is reported to the caller of the store
+        } finally {
+            _pendingBulkStores.remove( routingKey, future );
+        }
+    }
+
+    /**
+     * The number of bulk stores that are not finished yet, for testing.
+     */
+    int getPendingBulkStores() {
+        return _pendingBulkStores.size();
+    }
+
+    @Override
+    public Object get( final String key ) {
+        final MemcachedClient shard = shardFor( key );
+        return shard == null ? super.get( key ) : shard.get( key );
+    }
+
+    @Override
+    public <T> T get( final String key, final Transcoder<T> tc ) {
+        final MemcachedClient shard = shardFor( key );
+        return shard == null ? super.get( key, tc ) : shard.get( key, tc );
+    }
+
+    @Override
+    public GetFuture<Object> asyncGet( final String key ) {
+        final MemcachedClient shard = shardFor( key );
+        return shard == null ? super.asyncGet( key ) : shard.asyncGet( key );
+    }
+
+    @Override
+    public <T> GetFuture<T> asyncGet( final String key, final Transcoder<T> tc ) {
+        final MemcachedClient shard = shardFor( key );
+        return shard == null ? super.asyncGet( key, tc ) : shard.asyncGet( key, tc );
+    }
+
+    @Override
+    public OperationFuture<CASValue<Object>> asyncGets( final String key ) {
+        final MemcachedClient shard = shardFor( key );
+        return shard == null ? super.asyncGets( key ) : shard.asyncGets( key );
+    }
+
+    @Override
+    public <T> OperationFuture<CASValue<T>> asyncGets( final String key, final Transcoder<T> tc ) {
+        final MemcachedClient shard = shardFor( key );
+        return shard == null ? super.asyncGets( key, tc ) : shard.asyncGets( key, tc );
+    }
+
+    @Override
+    public OperationFuture<CASResponse> asyncCAS( final String key, final long casId, final Object value ) {
+        final MemcachedClient shard = shardFor( key );
+        return shard == null ? super.asyncCAS( key, casId, value ) : shard.asyncCAS( key, casId, value );
+    }
+
+    @Override
+    public OperationFuture<CASResponse> asyncCAS( final String key, final long casId, final int exp, final Object value ) {
+        final MemcachedClient shard = shardFor( key );
+        return shard == null ? super.asyncCAS( key, casId, exp, value ) : shard.asyncCAS( key, casId, exp, value );
+    }
+
+    @Override
+    public <T> OperationFuture<CASResponse> asyncCAS( final String key, final long casId, final T value, final Transcoder<T> tc ) {
+        final MemcachedClient shard = shardFor( key );
+        return shard == null ? super.asyncCAS( key, casId, value, tc ) : shard.asyncCAS( key, casId, value, tc );
+    }
+
+    @Override
+    public <T> OperationFuture<CASResponse> asyncCAS( final String key, final long casId, final int exp, final T value, final Transcoder<T> tc ) {
+        final MemcachedClient shard = shardFor( key );
+        return shard == null ? super.asyncCAS( key, casId, exp, value, tc ) : shard.asyncCAS( key, casId, exp, value, tc );
+    }
+
+    @Override
+    public OperationFuture<Boolean> set( final String key, final int exp, final Object o ) {
+        if ( isBulk( o ) ) {
+            return bulkStored( key, _bulk.set( key, exp, o ) );
+        }
+        final MemcachedClient shard = shardFor( key );
+        return shard == null ? super.set( key, exp, o ) : shard.set( key, exp, o );
+    }
+
+    @Override
+    public <T> OperationFuture<Boolean> set( final String key, final int exp, final T o, final Transcoder<T> tc ) {
+        if ( isBulk( o ) ) {
+            return bulkStored( key, _bulk.set( key, exp, o, tc ) );
+        }
+        final MemcachedClient shard = shardFor( key );
+        return shard == null ? super.set( key, exp, o, tc ) : shard.set( key, exp, o, tc );
+    }
+
+    @Override
+    public OperationFuture<Boolean> add( final String key, final int exp, final Object o ) {
+        final MemcachedClient shard = shardFor( key );
+        return shard == null ? super.add( key, exp, o ) : shard.add( key, exp, o );
+    }
+
+    @Override
+    public <T> OperationFuture<Boolean> add( final String key, final int exp, final T o, final Transcoder<T> tc ) {
+        final MemcachedClient shard = shardFor( key );
+        return shard == null ? super.add( key, exp, o, tc ) : shard.add( key, exp, o, tc );
+    }
+
+    @Override
+    public OperationFuture<Boolean> delete( final String key ) {
+        final MemcachedClient shard = shardFor( key );
+        return shard == null ? super.delete( key ) : shard.delete( key );
+    }
+
+    @Override
+    public <T> OperationFuture<Boolean> touch( final String key, final int exp ) {
+        final MemcachedClient shard = shardFor( key );
+        return shard == null ? super.<T>touch( key, exp ) : shard.<T>touch( key, exp );
+    }
+
+    @Override
+    public <T> OperationFuture<Boolean> touch( final String key, final int exp, final Transcoder<T> tc ) {
+        final MemcachedClient shard = shardFor( key );
+        return shard == null ? super.touch( key, exp, tc ) : shard.touch( key, exp, tc );
+    }
+
+    @Override
+    public boolean shutdown( final long timeout, final TimeUnit unit ) {
+        final boolean result = shutdownShards( timeout, unit );
+        return super.shutdown( timeout, unit ) && result;
+    }
+
+    private boolean shutdownShards( final long timeout, final TimeUnit unit ) {
+        boolean result = true;
+        for ( int i = 1; i < _shards.length; i++ ) {
+            if ( _shards[i] != null ) {
+                result &= _shards[i].shutdown( timeout, unit );
+            }
+        }
+        if ( _bulk != null ) {
+            result &= _bulk.shutdown( timeout, unit );
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.Configurations.SHARED_RESOURCES_KEY;
+import static de.javakaffee.web.msm.Configurations.getSystemProperty;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nonnull;
+
+import net.spy.memcached.MemcachedClient;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import de.javakaffee.web.msm.MemcachedNodesManager.MemcachedClientCallback;
+
+/**
+ * A JVM wide registry for memcached clients and executors, so that several webapps (contexts)
+ * with compatible configuration can share them instead of each context creating its own IO threads,
+ * connections and thread pools. The sessions of the different contexts are still separated
+ * by the storage key prefix (see {@link StorageKeyFormat}).
+ * <p>
+ * A shared memcached client is created for its own {@link MemcachedNodesManager}, which locates nodes and tracks
+ * their availability for the client as long as any context uses it. Per context state is not part of the shared
+ * client: operations, queues and connections of the client are registered at the nodes managers of all contexts
+ * using it (node statistics, circuit breakers), and the statistics of the client (e.g. the cached data size) are
+ * registered at the statistics of all these contexts.
+ * </p>
+ * <p>
+ * Resources are reference counted: they are created when they're acquired the first time
+ * and shut down when the last user released them. Sharing is enabled via the system property
+ * {@value Configurations#SHARED_RESOURCES_KEY}.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public final class SharedResources {
+
+    private static final Log LOG = LogFactory.getLog( SharedResources.class );
+
+    /**
+     * Creates a resource if it's not yet registered.
+     */
+    public static interface Factory<T> {
+        T create();
+    }
+
+    /**
+     * Creates a shared memcached client for the given nodes manager and statistics, which are shared as well.
+     */
+    public static interface ClientFactory {
+        @Nonnull
+        MemcachedClient create( @Nonnull MemcachedNodesManager memcachedNodesManager, @Nonnull Statistics statistics );
+    }
+
+    private static final Map<String, Entry<MemcachedClient>> CLIENTS = new HashMap<String, Entry<MemcachedClient>>();
+    private static final Map<String, Entry<ExecutorService>> EXECUTORS = new HashMap<String, Entry<ExecutorService>>();
+    private static final Map<Object, String> KEYS = new IdentityHashMap<Object, String>();
+    private static final Map<MemcachedClient, SharedClient> SHARED_CLIENTS = new IdentityHashMap<MemcachedClient, SharedClient>();
+
+    private SharedResources() {
+    }
+
+    /**
+     * Determines if resources shall be shared across contexts.
+     */
+    public static boolean isEnabled() {
+        return getSystemProperty( SHARED_RESOURCES_KEY, false );
+    }
+
+    /**
+     * Returns the memcached client registered for the given key, or creates and registers a new one.
+     * The key must contain all configuration that is relevant for the client, e.g. memcached nodes,
+     * protocol and credentials. The given nodes manager and statistics of the context are attached to the client
+     * until it's released via {@link #shutdown(MemcachedClient, MemcachedNodesManager)}.
+     */
+    @Nonnull
+    public static synchronized MemcachedClient acquireClient( @Nonnull final String key,
+            @Nonnull final MemcachedNodesManager memcachedNodesManager, @Nonnull final Statistics statistics,
+            @Nonnull final ClientFactory factory ) {
+        final MemcachedClient result = acquire( CLIENTS, key, new Factory<MemcachedClient>() {
+            @Override
+            public MemcachedClient create() {
+                final SharedClient sharedClient = new SharedClient( memcachedNodesManager );
+                sharedClient.client = factory.create( sharedClient.memcachedNodesManager, Statistics.forwardingTo( sharedClient.statistics ) );
+                SHARED_CLIENTS.put( sharedClient.client, sharedClient );
+                return sharedClient.client;
+            }
+        } );
+        SHARED_CLIENTS.get( result ).attach( memcachedNodesManager, statistics );
+        return result;
+    }
+
+    /**
+     * Returns the fixed size thread pool registered for the given name and number of threads,
+     * or creates and registers a new one.
+     */
+    @Nonnull
+    public static synchronized ExecutorService acquireExecutor( @Nonnull final String name, final int threads ) {
+        return acquire( EXECUTORS, name + ":" + threads, new Factory<ExecutorService>() {
+            @Override
+            public ExecutorService create() {
+                return Executors.newFixedThreadPool( threads, new NamedThreadFactory( name ) );
+            }
+        } );
+    }
+
+    /**
+     * Shuts down the given client, if it's shared the nodes manager of the context is detached and the client
+     * (with its nodes manager) is only shut down when it's not used by another context.
+     */
+    public static void shutdown( @Nonnull final MemcachedClient client, @Nonnull final MemcachedNodesManager memcachedNodesManager ) {
+        final SharedClient sharedClient;
+        final boolean last;
+        synchronized ( SharedResources.class ) {
+            sharedClient = SHARED_CLIENTS.get( client );
+            if ( sharedClient != null ) {
+                sharedClient.detach( memcachedNodesManager );
+            }
+            last = release( CLIENTS, client );
+            if ( last ) {
+                SHARED_CLIENTS.remove( client );
+            }
+        }
+        if ( last ) {
+            client.shutdown();
+            if ( sharedClient != null ) {
+                sharedClient.memcachedNodesManager.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Shuts down the given executor, if it's shared it's only shut down when it's not used by another context.
+     */
+    public static void shutdown( @Nonnull final ExecutorService executor ) {
+        if ( release( EXECUTORS, executor ) ) {
+            executor.shutdown();
+        }
+    }
+
+    private static <T> T acquire( final Map<String, Entry<T>> registry, final String key, final Factory<T> factory ) {
+        Entry<T> entry = registry.get( key );
+        if ( entry == null ) {
+            entry = new Entry<T>( factory.create() );
+            registry.put( key, entry );
+            KEYS.put( entry.resource, key );
+            if ( LOG.isInfoEnabled() ) {
+                LOG.info( "Created shared " + entry.resource.getClass().getSimpleName() + " for " + key );
+            }
+        }
+        entry.references++;
+        return entry.resource;
+    }
+
+    /**
+     * Releases the given resource, returns <code>true</code> if the resource must be shut down, which is the case
+     * if this was the last reference or the resource is not registered (not shared).
+     */
+    private static synchronized <T> boolean release( final Map<String, Entry<T>> registry, final T resource ) {
+        final String key = KEYS.get( resource );
+        if ( key == null ) {
+            return true;
+        }
+        final Entry<T> entry = registry.get( key );
+        if ( --entry.references > 0 ) {
+            return false;
+        }
+        registry.remove( key );
+        KEYS.remove( resource );
+        if ( LOG.isInfoEnabled() ) {
+            LOG.info( "Shutting down shared " + resource.getClass().getSimpleName() + " for " + key );
+        }
+        return true;
+    }
+
+    /**
+     * The number of contexts using the given resource, <code>0</code> if it's not shared.
+     */
+    static synchronized int getReferences( @Nonnull final Object resource ) {
+        final String key = KEYS.get( resource );
+        if ( key == null ) {
+            return 0;
+        }
+        final Entry<?> entry = resource instanceof MemcachedClient ? CLIENTS.get( key ) : EXECUTORS.get( key );
+        return entry != null ? entry.references : 0;
+    }
+
+    /**
+     * The nodes manager of a shared client (for the memcached nodes configuration of the contexts) and
+     * the nodes managers and statistics of the contexts that are using the client.
+     */
+    private static final class SharedClient {
+        private final MemcachedNodesManager memcachedNodesManager;
+        private final List<Statistics> statistics = new CopyOnWriteArrayList<Statistics>();
+        private final Map<MemcachedNodesManager, Statistics> contexts = new IdentityHashMap<MemcachedNodesManager, Statistics>();
+        private volatile MemcachedClient client;
+
+        SharedClient( final MemcachedNodesManager contextNodesManager ) {
+            final StringBuilder failoverNodes = new StringBuilder();
+            for ( final String nodeId : contextNodesManager.getFailoverNodeIds() ) {
+                failoverNodes.append( failoverNodes.length() > 0 ? "," : "" ).append( nodeId );
+            }
+            memcachedNodesManager = MemcachedNodesManager.createFor( contextNodesManager.getMemcachedNodes(),
+                    failoverNodes.toString(), StorageKeyFormat.EMPTY, new MemcachedClientCallback() {
+                        @Override
+                        public Object get( final String key ) {
+                            final MemcachedClient memcached = client;
+                            return memcached != null ? memcached.get( key ) : null;
+                        }
+                    } );
+        }
+
+        void attach( final MemcachedNodesManager contextNodesManager, final Statistics contextStatistics ) {
+            contexts.put( contextNodesManager, contextStatistics );
+            statistics.add( contextStatistics );
+            memcachedNodesManager.attach( contextNodesManager );
+        }
+
+        void detach( final MemcachedNodesManager contextNodesManager ) {
+            final Statistics contextStatistics = contexts.remove( contextNodesManager );
+            if ( contextStatistics != null ) {
+                statistics.remove( contextStatistics );
+                memcachedNodesManager.detach( contextNodesManager );
+            }
+        }
+    }
+
+    private static final class Entry<T> {
+        private final T resource;
+        private int references;
+        Entry( final T resource ) {
+            this.resource = resource;
+        }
+    }
+
+}
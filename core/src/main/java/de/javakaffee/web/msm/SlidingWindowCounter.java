@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts events in a ring of fixed size time slots (e.g. 60 slots of 1 second), so that the number of
+ * events of the recent time window is available. A slot is cleared lazily when it's used for a
+ * new interval, so there's no background thread; adding is an index calculation plus an atomic increment.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SlidingWindowCounter {
+
+    private final int _slots;
+    private final long _slotMillis;
+    private final AtomicLongArray _counts;
+    private final AtomicLongArray _intervals;
+
+    /**
+     * @param slots the number of slots
+     * @param slotMillis the time in millis covered by a slot
+     */
+    public SlidingWindowCounter( final int slots, final long slotMillis ) {
+        _slots = slots;
+        _slotMillis = slotMillis;
+        _counts = new AtomicLongArray( slots );
+        _intervals = new AtomicLongArray( slots );
+        for ( int i = 0; i < slots; i++ ) {
+            _intervals.set( i, -1 );
+        }
+    }
+
+    /**
+     * Returns the time in millis covered by this window.
+     */
+    public long getWindowMillis() {
+        return _slots * _slotMillis;
+    }
+
+    /**
+     * Adds the given number of events at the given time.
+     */
+    public void add( final long now, final long delta ) {
+        final long interval = now / _slotMillis;
+        final int slot = (int) ( interval % _slots );
+        if ( _intervals.get( slot ) != interval ) {
+            rotate( slot, interval );
+        }
+        _counts.addAndGet( slot, delta );
+    }
+
+    private synchronized void rotate( final int slot, final long interval ) {
+        if ( _intervals.get( slot ) < interval ) {
+            _counts.set( slot, 0 );
+            _intervals.set( slot, interval );
+        }
+    }
+
+    /**
+     * Returns the number of events of the window that ends at the given time (including the current,
+     * not yet completed slot).
+     */
+    public long getSum( final long now ) {
+        final long interval = now / _slotMillis;
+        long result = 0;
+        for ( int i = 0; i < _slots; i++ ) {
+            final long slotInterval = _intervals.get( i );
+            if ( slotInterval > interval - _slots && slotInterval <= interval ) {
+                result += _counts.get( i );
+            }
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Records values in a ring of {@link Histogram}s of fixed size time slots, so that percentiles of the
+ * recent time window are available. Like the {@link SlidingWindowCounter} slots are cleared lazily, the
+ * histogram of a slot is only created when the first value is recorded, so that unused probes don't
+ * take memory.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SlidingWindowHistogram {
+
+    private final int _slots;
+    private final long _slotMillis;
+    private final AtomicReferenceArray<Histogram> _histograms;
+    private final AtomicLongArray _intervals;
+
+    /**
+     * @param slots the number of slots
+     * @param slotMillis the time in millis covered by a slot
+     */
+    public SlidingWindowHistogram( final int slots, final long slotMillis ) {
+        _slots = slots;
+        _slotMillis = slotMillis;
+        _histograms = new AtomicReferenceArray<Histogram>( slots );
+        _intervals = new AtomicLongArray( slots );
+        for ( int i = 0; i < slots; i++ ) {
+            _intervals.set( i, -1 );
+        }
+    }
+
+    /**
+     * Returns the time in millis covered by this window.
+     */
+    public long getWindowMillis() {
+        return _slots * _slotMillis;
+    }
+
+    /**
+     * Records the given value at the given time.
+     */
+    public void record( final long now, final long value ) {
+        final long interval = now / _slotMillis;
+        final int slot = (int) ( interval % _slots );
+        Histogram histogram = _histograms.get( slot );
+        if ( histogram == null || _intervals.get( slot ) != interval ) {
+            histogram = rotate( slot, interval );
+        }
+        histogram.record( value );
+    }
+
+    private synchronized Histogram rotate( final int slot, final long interval ) {
+        Histogram result = _histograms.get( slot );
+        if ( result == null ) {
+            result = new Histogram();
+            _histograms.set( slot, result );
+        }
+        if ( _intervals.get( slot ) < interval ) {
+            result.reset();
+            _intervals.set( slot, interval );
+        }
+        return result;
+    }
+
+    /**
+     * Returns the values of the window that ends at the given time (including the current,
+     * not yet completed slot), merged into a new {@link Histogram}.
+     */
+    @Nonnull
+    public Histogram getSnapshot( final long now ) {
+        final long interval = now / _slotMillis;
+        final Histogram result = new Histogram();
+        for ( int i = 0; i < _slots; i++ ) {
+            final long slotInterval = _intervals.get( i );
+            final Histogram histogram = _histograms.get( i );
+            if ( histogram != null && slotInterval > interval - _slots && slotInterval <= interval ) {
+                result.add( histogram );
+            }
+        }
+        return result;
+    }
+
+}
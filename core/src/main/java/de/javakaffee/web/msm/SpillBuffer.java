@@ -0,0 +1,371 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.Configurations.SPILL_BUFFER_SIZE_KEY;
+import static de.javakaffee.web.msm.Configurations.SPILL_REPLAY_RATE_KEY;
+import static de.javakaffee.web.msm.Configurations.getSystemProperty;
+import static de.javakaffee.web.msm.MemcachedUtil.toMemcachedExpiration;
+import static de.javakaffee.web.msm.Statistics.StatsType.SPILL_REPLAY;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.MemcachedClient;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import de.javakaffee.web.msm.SessionReplicator.ValueType;
+
+/**
+ * Keeps the latest serialized version of sessions that could not be stored in memcached (because the
+ * memcached node was not available) and replays them when the memcached node is available again. Otherwise
+ * such a session only lives in the local session map (sticky sessions), or it's lost (non-sticky sessions).
+ * <p>
+ * The session data is copied to direct (off-heap) buffers, the overall size is bounded, sessions that
+ * don't fit are not spilled. A spilled session is dropped from the buffer when it's stored successfully
+ * later on, when it's deleted or when it expired. Sessions are replayed with their remaining expiration time.
+ * </p>
+ * <p>
+ * A background thread replays spilled sessions of available nodes at the configured rate (sessions per second)
+ * in batches; the sessions of a batch are sent concurrently (pipelined by the memcached client). A session is
+ * replayed with <code>add</code>, if memcached already has the session the newer version wins (compared by the
+ * <code>lastBackupTime</code>, written with <code>cas</code>), so that replay does not overwrite a session that was
+ * stored after the outage. If the <code>cas</code> fails (because of a concurrent write) the session is kept and
+ * compared again with the next replay.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SpillBuffer {
+
+    private static final Log LOG = LogFactory.getLog( SpillBuffer.class );
+
+    private static final int BATCHES_PER_SECOND = 10;
+
+    private final MemcachedSessionService _sessionService;
+    private final Statistics _statistics;
+    private final long _maxBytes;
+    private final int _batchSize;
+    private final long _operationTimeout;
+
+    private final ConcurrentMap<String, Entry> _entries = new ConcurrentHashMap<String, Entry>();
+    private final AtomicLong _bytes = new AtomicLong();
+    private final ScheduledExecutorService _executor;
+
+    /**
+     * @param sessionService provides the current memcached client and nodes
+     * @param statistics registers spilled and replayed sessions
+     * @param maxBytes the max overall size of spilled sessions
+     * @param sessionsPerSecond the max number of sessions replayed per second
+     * @param operationTimeout the time in millis to wait for a batch of replayed sessions
+     */
+    public SpillBuffer( @Nonnull final MemcachedSessionService sessionService, @Nonnull final Statistics statistics,
+            final long maxBytes, final int sessionsPerSecond, final long operationTimeout ) {
+        _sessionService = sessionService;
+        _statistics = statistics;
+        _maxBytes = maxBytes;
+        _batchSize = Math.max( 1, sessionsPerSecond / BATCHES_PER_SECOND );
+        _operationTimeout = operationTimeout;
+        _executor = Executors.newSingleThreadScheduledExecutor( new NamedThreadFactory( "msm-spill-replay" ) );
+    }
+
+    /**
+     * Creates the {@link SpillBuffer} if a size is configured via {@link Configurations#SPILL_BUFFER_SIZE_KEY},
+     * otherwise returns <code>null</code>.
+     */
+    @CheckForNull
+    public static SpillBuffer createFromSystemProperties( @Nonnull final MemcachedSessionService sessionService,
+            @Nonnull final Statistics statistics, final long operationTimeout ) {
+        final long maxBytes = getSystemProperty( SPILL_BUFFER_SIZE_KEY, 0L );
+        if ( maxBytes <= 0 ) {
+            return null;
+        }
+        return new SpillBuffer( sessionService, statistics, maxBytes, getSystemProperty( SPILL_REPLAY_RATE_KEY, 100 ), operationTimeout );
+    }
+
+    /**
+     * Starts replaying spilled sessions in the background.
+     */
+    public void start() {
+        final long interval = 1000 / BATCHES_PER_SECOND;
+        _executor.scheduleWithFixedDelay( new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replay();
+                } catch ( final Exception e ) {
+                    LOG.warn( "Could not replay spilled sessions", e );
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Keeps the given session data until it's replayed, replaces a formerly spilled version.
+     * @param key the storage key of the session
+     * @param nodeId the memcached node of the session, <code>null</code> if node ids are not encoded in session ids
+     * @param expirationInSeconds the expiration time of the session in seconds, <code>0</code> if it does not expire
+     * @param data the serialized session
+     * @return <code>false</code> if the buffer is full
+     */
+    public boolean spill( @Nonnull final String key, @Nullable final String nodeId, final int expirationInSeconds, @Nonnull final byte[] data ) {
+        final Entry previous = _entries.get( key );
+        final long required = data.length - ( previous != null ? previous.size() : 0 );
+        if ( _bytes.addAndGet( required ) > _maxBytes ) {
+            _bytes.addAndGet( -required );
+            _statistics.spillRejected();
+            return false;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocateDirect( data.length );
+        buffer.put( data );
+        final long expiresAt = expirationInSeconds > 0 ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis( expirationInSeconds ) : 0;
+        final Entry replaced = _entries.put( key, new Entry( nodeId, expiresAt, buffer ) );
+        if ( replaced != previous ) {
+            // a concurrent spill or remove of the same key, fix the accounting
+            _bytes.addAndGet( ( previous != null ? previous.size() : 0 ) - ( replaced != null ? replaced.size() : 0 ) );
+        }
+        _statistics.sessionSpilled();
+        return true;
+    }
+
+    /**
+     * Drops the spilled version of the given session, e.g. because a newer version was stored or the session was deleted.
+     */
+    public void remove( @Nonnull final String key ) {
+        final Entry removed = _entries.remove( key );
+        if ( removed != null ) {
+            _bytes.addAndGet( -removed.size() );
+        }
+    }
+
+    private boolean remove( @Nonnull final String key, @Nonnull final Entry entry ) {
+        if ( _entries.remove( key, entry ) ) {
+            _bytes.addAndGet( -entry.size() );
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of spilled sessions.
+     */
+    public int getBacklogSize() {
+        return _entries.size();
+    }
+
+    /**
+     * Returns the overall size in bytes of spilled sessions.
+     */
+    public long getBacklogBytes() {
+        return _bytes.get();
+    }
+
+    /**
+     * Replays the next batch of spilled sessions whose memcached node is available.
+     * @return the number of sessions that were replayed
+     */
+    int replay() throws InterruptedException {
+        if ( _entries.isEmpty() ) {
+            return 0;
+        }
+        final long start = System.nanoTime();
+        final long now = System.currentTimeMillis();
+        final MemcachedClient memcached = _sessionService.getMemcached();
+        final MemcachedNodesManager nodesManager = _sessionService.getMemcachedNodesManager();
+
+        final List<String> keys = new ArrayList<String>( _batchSize );
+        final List<Entry> entries = new ArrayList<Entry>( _batchSize );
+        final List<Future<Boolean>> adds = new ArrayList<Future<Boolean>>( _batchSize );
+        for ( final Map.Entry<String, Entry> item : _entries.entrySet() ) {
+            if ( keys.size() >= _batchSize ) {
+                break;
+            }
+            final Entry entry = item.getValue();
+            if ( entry.isExpired( now ) ) {
+                if ( LOG.isDebugEnabled() ) {
+                    LOG.debug( "Dropping spilled session " + item.getKey() + ", it expired." );
+                }
+                remove( item.getKey(), entry );
+                continue;
+            }
+            if ( !isNodeAvailable( nodesManager, item.getKey(), entry ) ) {
+                continue;
+            }
+            keys.add( item.getKey() );
+            entries.add( entry );
+            adds.add( memcached.add( item.getKey(), entry.getExpiration( now ), entry.data() ) );
+        }
+        if ( keys.isEmpty() ) {
+            return 0;
+        }
+
+        final long deadline = System.currentTimeMillis() + _operationTimeout;
+        final List<Integer> existing = new ArrayList<Integer>();
+        final List<Future<CASValue<Object>>> gets = new ArrayList<Future<CASValue<Object>>>();
+        int result = 0;
+        for ( int i = 0; i < adds.size(); i++ ) {
+            final Boolean added = get( adds.get( i ), deadline );
+            if ( added == null ) {
+                // the node is probably gone again, try later
+                continue;
+            }
+            if ( added ) {
+                result += replayed( keys.get( i ), entries.get( i ) );
+            }
+            else {
+                existing.add( i );
+                gets.add( memcached.asyncGets( keys.get( i ) ) );
+            }
+        }
+
+        final List<Integer> updated = new ArrayList<Integer>();
+        final List<Future<CASResponse>> cases = new ArrayList<Future<CASResponse>>();
+        for ( int j = 0; j < existing.size(); j++ ) {
+            final int i = existing.get( j );
+            final CASValue<Object> casValue = get( gets.get( j ), deadline );
+            if ( casValue == null || !( casValue.getValue() instanceof byte[] ) ) {
+                continue;
+            }
+            final byte[] data = entries.get( i ).data();
+            if ( ValueType.SESSION.getVersion( data ) > ValueType.SESSION.getVersion( (byte[]) casValue.getValue() ) ) {
+                updated.add( i );
+                cases.add( memcached.asyncCAS( keys.get( i ), casValue.getCas(), entries.get( i ).getExpiration( System.currentTimeMillis() ),
+                        data, memcached.getTranscoder() ) );
+            }
+            else {
+                // memcached has a newer version
+                remove( keys.get( i ), entries.get( i ) );
+            }
+        }
+
+        for ( int j = 0; j < updated.size(); j++ ) {
+            final int i = updated.get( j );
+            final CASResponse response = get( cases.get( j ), deadline );
+            if ( response == CASResponse.OK ) {
+                result += replayed( keys.get( i ), entries.get( i ) );
+            }
+            else if ( LOG.isDebugEnabled() ) {
+                LOG.debug( "Could not replay spilled session " + keys.get( i ) + " (" + response + "), trying again later." );
+            }
+        }
+        _statistics.registerSince( SPILL_REPLAY, start );
+        return result;
+    }
+
+    private int replayed( @Nonnull final String key, @Nonnull final Entry entry ) {
+        if ( remove( key, entry ) ) {
+            _statistics.spillReplayed();
+            return 1;
+        }
+        return 0;
+    }
+
+    private boolean isNodeAvailable( @Nonnull final MemcachedNodesManager nodesManager, @Nonnull final String key, @Nonnull final Entry entry ) {
+        if ( entry.nodeId == null ) {
+            return true;
+        }
+        try {
+            return nodesManager.isNodeAvailable( entry.nodeId );
+        } catch ( final IllegalArgumentException e ) {
+            // the node was removed from the configuration
+            LOG.info( "Dropping spilled session " + key + ", its memcached node " + entry.nodeId + " is not configured any more." );
+            remove( key, entry );
+            return false;
+        }
+    }
+
+    @CheckForNull
+    private static <T> T get( @Nonnull final Future<T> future, final long deadline ) throws InterruptedException {
+        try {
+            return future.get( Math.max( 0, deadline - System.currentTimeMillis() ), TimeUnit.MILLISECONDS );
+        } catch ( final InterruptedException e ) {
+            throw e;
+        } catch ( final Exception e ) {
+            if ( LOG.isDebugEnabled() ) {
+                LOG.debug( "Could not replay spilled session", e );
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Stops replaying, spilled sessions are discarded.
+     */
+    public void shutdown() {
+        _executor.shutdownNow();
+        _entries.clear();
+        _bytes.set( 0 );
+    }
+
+    private static final class Entry {
+
+        final String nodeId;
+        private final long expiresAt;
+        private final ByteBuffer buffer;
+
+        Entry( @Nullable final String nodeId, final long expiresAt, @Nonnull final ByteBuffer buffer ) {
+            this.nodeId = nodeId;
+            this.expiresAt = expiresAt;
+            this.buffer = buffer;
+        }
+
+        boolean isExpired( final long now ) {
+            return expiresAt > 0 && expiresAt <= now;
+        }
+
+        /**
+         * The memcached expiration for the remaining time of the session.
+         */
+        int getExpiration( final long now ) {
+            if ( expiresAt <= 0 ) {
+                return 0;
+            }
+            return toMemcachedExpiration( (int) Math.max( 1, TimeUnit.MILLISECONDS.toSeconds( expiresAt - now + 999 ) ) );
+        }
+
+        int size() {
+            return buffer.capacity();
+        }
+
+        byte[] data() {
+            final byte[] result = new byte[buffer.capacity()];
+            final ByteBuffer source = buffer.duplicate();
+            source.clear();
+            source.get( result );
+            return result;
+        }
+
+    }
+
+}
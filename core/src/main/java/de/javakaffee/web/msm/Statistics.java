@@ -16,9 +16,12 @@
  */
 package de.javakaffee.web.msm;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nonnull;
@@ -28,26 +31,45 @@ import javax.annotation.Nonnull;
  */
 public class Statistics {
 
-    private final AtomicLong _numRequestsWithoutSession = new AtomicLong();
-    private final AtomicLong _numRequestsWithTomcatFailover = new AtomicLong();
-    private final AtomicLong _numRequestsWithSession = new AtomicLong();
-    private final AtomicLong _numRequestsWithMemcachedFailover = new AtomicLong();
-    private final AtomicLong _numRequestsWithBackupFailure = new AtomicLong();
-    private final AtomicLong _numRequestsWithoutSessionAccess = new AtomicLong();
-    private final AtomicLong _numRequestsWithoutAttributesAccess = new AtomicLong();
-    private final AtomicLong _numRequestsWithoutSessionModification = new AtomicLong();
-    private final AtomicLong _numNonStickySessionsPingFailed = new AtomicLong();
-    private final AtomicLong _numNonStickySessionsReadOnlyRequest = new AtomicLong();
+    private final Map<String, Counter> _counters = new LinkedHashMap<String, Counter>();
+
+    private final Counter _numRequestsWithoutSession = counter( "requestsWithoutSession" );
+    private final Counter _numRequestsWithTomcatFailover = counter( "requestsWithTomcatFailover" );
+    private final Counter _numRequestsWithSession = counter( "requestsWithSession" );
+    private final Counter _numRequestsWithMemcachedFailover = counter( "requestsWithMemcachedFailover" );
+    private final Counter _numRequestsWithBackupFailure = counter( "requestsWithBackupFailure" );
+    private final Counter _numRequestsWithoutSessionAccess = counter( "requestsWithoutSessionAccess" );
+    private final Counter _numRequestsWithoutAttributesAccess = counter( "requestsWithoutAttributesAccess" );
+    private final Counter _numRequestsWithoutSessionModification = counter( "requestsWithoutSessionModification" );
+    private final Counter _numNonStickySessionsPingFailed = counter( "nonStickySessionsPingFailed" );
+    private final Counter _numNonStickySessionsReadOnlyRequest = counter( "nonStickySessionsReadOnlyRequest" );
+    private final Counter _numHedgedReads = counter( "hedgedReads" );
+    private final Counter _numHedgedReadsFromBackup = counter( "hedgedReadsFromBackup" );
+    private final Counter _numReplicaRepairs = counter( "replicaRepairs" );
+    private final Counter _numReplicaRepairsDropped = counter( "replicaRepairsDropped" );
+    private final Counter _numRemoteReplicated = counter( "remoteReplicated" );
+    private final Counter _numRemoteReplicationDropped = counter( "remoteReplicationDropped" );
+    private final Counter _numRemoteReplicationCoalesced = counter( "remoteReplicationCoalesced" );
+    private final Counter _numSessionsSpilled = counter( "sessionsSpilled" );
+    private final Counter _numSpillRejected = counter( "spillRejected" );
+    private final Counter _numSpillReplayed = counter( "spillReplayed" );
 
     private final Map<StatsType, MinMaxAvgProbe> _probes;
 
     private Statistics() {
         _probes = new ConcurrentHashMap<Statistics.StatsType, Statistics.MinMaxAvgProbe>();
         for( final StatsType item : StatsType.values() ) {
-            _probes.put( item, new MinMaxAvgProbe() );
+            _probes.put( item, new MinMaxAvgProbe( item.getUnit() ) );
         }
     }
 
+    @Nonnull
+    private Counter counter( @Nonnull final String name ) {
+        final Counter result = new Counter();
+        _counters.put( name, result );
+        return result;
+    }
+
     /**
      * Creates a new (enabled) {@link Statistics} instance.
      * @return a new instance.
@@ -67,15 +89,32 @@ public class Statistics {
         return enabled ? new Statistics() : DISABLED_STATS;
     }
 
+    /**
+     * Creates a {@link Statistics} instance that registers probe values at all of the given
+     * statistics, e.g. for a memcached client that is shared by several contexts.
+     *
+     * @param targets the statistics to forward to, may be modified later on (must be thread safe then).
+     */
+    static Statistics forwardingTo( @Nonnull final Collection<Statistics> targets ) {
+        return new Statistics() {
+            @Override
+            public void register( final StatsType statsType, final long value ) {
+                for ( final Statistics target : targets ) {
+                    target.register( statsType, value );
+                }
+            }
+        };
+    }
+
     /**
      * A utility method that calculates the difference of the time
-     * between the given <code>startInMillis</code> and {@link System#currentTimeMillis()}
+     * between the given <code>startInNanos</code> and {@link System#nanoTime()}
      * and registers the difference via {@link #register(long)} for the probe of the given {@link StatsType}.
      * @param statsType the specific execution type that is measured.
-     * @param startInMillis the time in millis that shall be subtracted from {@link System#currentTimeMillis()}.
+     * @param startInNanos the time in nanos that shall be subtracted from {@link System#nanoTime()}.
      */
-    public void registerSince( @Nonnull final StatsType statsType, final long startInMillis ) {
-        register( statsType, System.currentTimeMillis() - startInMillis );
+    public void registerSince( @Nonnull final StatsType statsType, final long startInNanos ) {
+        register( statsType, System.nanoTime() - startInNanos );
     }
 
     /**
@@ -92,6 +131,32 @@ public class Statistics {
         return _probes.get( statsType );
     }
 
+    /**
+     * The counters by name, e.g. <code>requestsWithBackupFailure</code>.
+     */
+    @Nonnull
+    Map<String, Counter> getCounters() {
+        return _counters;
+    }
+
+    /**
+     * Returns the counters and probes of the given recent time window, e.g. to alert on bursts of backup failures.
+     */
+    @Nonnull
+    public WindowSnapshot getWindowSnapshot( @Nonnull final Window window ) {
+        final long now = System.currentTimeMillis();
+        final Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for ( final Map.Entry<String, Counter> entry : _counters.entrySet() ) {
+            counts.put( entry.getKey(), entry.getValue().get( window, now ) );
+        }
+        final Map<String, ProbeSnapshot> probes = new LinkedHashMap<String, ProbeSnapshot>();
+        for ( final StatsType statsType : StatsType.values() ) {
+            probes.put( statsType.name(), new ProbeSnapshot( getProbe( statsType ).getWindowSnapshot( window, now ),
+                    window.getProbeWindowMillis(), statsType.getUnit() ) );
+        }
+        return new WindowSnapshot( window, counts, probes );
+    }
+
     public void requestWithoutSession() {
         _numRequestsWithoutSession.incrementAndGet();
     }
@@ -155,6 +220,141 @@ public class Statistics {
         return _numNonStickySessionsReadOnlyRequest.get();
     }
 
+    /**
+     * Registers a session load that requested the secondary backup because the primary node was slow.
+     */
+    public void hedgedRead() {
+        _numHedgedReads.incrementAndGet();
+    }
+    public long getHedgedReads() {
+        return _numHedgedReads.get();
+    }
+
+    /**
+     * Registers a hedged session load that was answered by the secondary backup.
+     */
+    public void hedgedReadFromBackup() {
+        _numHedgedReadsFromBackup.incrementAndGet();
+    }
+    public long getHedgedReadsFromBackup() {
+        return _numHedgedReadsFromBackup.get();
+    }
+
+    /**
+     * Registers a stale or missing session replica that was repaired after a read.
+     */
+    public void replicaRepaired() {
+        _numReplicaRepairs.incrementAndGet();
+    }
+    public long getReplicaRepairs() {
+        return _numReplicaRepairs.get();
+    }
+
+    /**
+     * Registers a read repair that was not performed because too many repairs were pending.
+     */
+    public void replicaRepairDropped() {
+        _numReplicaRepairsDropped.incrementAndGet();
+    }
+    public long getReplicaRepairsDropped() {
+        return _numReplicaRepairsDropped.get();
+    }
+
+    /**
+     * Registers a session (or validity info) that was replicated to the remote memcached nodes.
+     */
+    public void remoteReplicated() {
+        _numRemoteReplicated.incrementAndGet();
+    }
+    public long getRemoteReplicated() {
+        return _numRemoteReplicated.get();
+    }
+
+    /**
+     * Registers a session that was not replicated to the remote memcached nodes because the
+     * max lag or the max number of pending sessions was exceeded.
+     */
+    public void remoteReplicationDropped() {
+        _numRemoteReplicationDropped.incrementAndGet();
+    }
+    public long getRemoteReplicationDropped() {
+        return _numRemoteReplicationDropped.get();
+    }
+
+    /**
+     * Registers a session that replaced a former version waiting for replication to the remote memcached nodes.
+     */
+    public void remoteReplicationCoalesced() {
+        _numRemoteReplicationCoalesced.incrementAndGet();
+    }
+    public long getRemoteReplicationCoalesced() {
+        return _numRemoteReplicationCoalesced.get();
+    }
+
+    /**
+     * Registers a session that could not be stored in memcached and was kept in the {@link SpillBuffer}.
+     */
+    public void sessionSpilled() {
+        _numSessionsSpilled.incrementAndGet();
+    }
+    public long getSessionsSpilled() {
+        return _numSessionsSpilled.get();
+    }
+
+    /**
+     * Registers a session that could not be stored in memcached and did not fit into the {@link SpillBuffer}.
+     */
+    public void spillRejected() {
+        _numSpillRejected.incrementAndGet();
+    }
+    public long getSpillRejected() {
+        return _numSpillRejected.get();
+    }
+
+    /**
+     * Registers a spilled session that was stored in memcached after its node was available again.
+     */
+    public void spillReplayed() {
+        _numSpillReplayed.incrementAndGet();
+    }
+    public long getSpillReplayed() {
+        return _numSpillReplayed.get();
+    }
+
+    /**
+     * The unit of the values registered for a {@link StatsType}.
+     */
+    public static enum Unit {
+
+        /**
+         * Durations, measured via {@link System#nanoTime()}.
+         */
+        NANOSECONDS( "ns" ),
+
+        /**
+         * Sizes, e.g. of serialized sessions.
+         */
+        BYTES( "bytes" );
+
+        private final String _symbol;
+
+        private Unit( @Nonnull final String symbol ) {
+            _symbol = symbol;
+        }
+
+        /**
+         * The symbol of this unit, appended to values in info strings.
+         */
+        @Nonnull
+        public String getSymbol() {
+            return _symbol;
+        }
+
+    }
+
+    /**
+     * The probes, durations are registered in {@link Unit#NANOSECONDS}, sizes in {@link Unit#BYTES}.
+     */
     public static enum StatsType {
 
         /**
@@ -178,7 +378,7 @@ public class Statistics {
         MEMCACHED_UPDATE,
         LOAD_FROM_MEMCACHED,
         DELETE_FROM_MEMCACHED,
-        CACHED_DATA_SIZE,
+        CACHED_DATA_SIZE( Unit.BYTES ),
 
         /**
          * Lock acquiration in non-sticky session mode.
@@ -215,26 +415,329 @@ public class Statistics {
         /**
          * Tasks executed for non-sticky sessions after a session was deleted from memcached (delete validity info and backup data).
          */
-        NON_STICKY_AFTER_DELETE_FROM_MEMCACHED
+        NON_STICKY_AFTER_DELETE_FROM_MEMCACHED,
+
+        /**
+         * The time from enqueuing a session until it was replicated to the remote memcached nodes.
+         */
+        REMOTE_REPLICATION_LAG,
+
+        /**
+         * The time required to replay a batch of spilled sessions, see {@link SpillBuffer}.
+         */
+        SPILL_REPLAY;
+
+        private final Unit _unit;
+
+        private StatsType() {
+            this( Unit.NANOSECONDS );
+        }
+
+        private StatsType( @Nonnull final Unit unit ) {
+            _unit = unit;
+        }
+
+        /**
+         * The unit of the values registered for this type.
+         */
+        @Nonnull
+        public Unit getUnit() {
+            return _unit;
+        }
+
+    }
+
+    /**
+     * The recent time windows of counters and probes, see {@link Statistics#getWindowSnapshot(Window)}.
+     */
+    public static enum Window {
+
+        /**
+         * The last minute: counters are kept in 60 slots of 1 second, probes in 12 slots of 5 seconds.
+         */
+        LAST_MINUTE( 60, 1000, 12, 5000 ),
+
+        /**
+         * The last hour: counters are kept in 60 slots of 1 minute, probes in 12 slots of 5 minutes.
+         */
+        LAST_HOUR( 60, 60000, 12, 300000 );
+
+        private final int _counterSlots;
+        private final long _counterSlotMillis;
+        private final int _probeSlots;
+        private final long _probeSlotMillis;
+
+        private Window( final int counterSlots, final long counterSlotMillis, final int probeSlots, final long probeSlotMillis ) {
+            _counterSlots = counterSlots;
+            _counterSlotMillis = counterSlotMillis;
+            _probeSlots = probeSlots;
+            _probeSlotMillis = probeSlotMillis;
+        }
+
+        long getCounterWindowMillis() {
+            return _counterSlots * _counterSlotMillis;
+        }
+
+        long getProbeWindowMillis() {
+            return _probeSlots * _probeSlotMillis;
+        }
+
+        @Nonnull
+        SlidingWindowCounter newCounter() {
+            return new SlidingWindowCounter( _counterSlots, _counterSlotMillis );
+        }
+
+        @Nonnull
+        SlidingWindowHistogram newHistogram() {
+            return new SlidingWindowHistogram( _probeSlots, _probeSlotMillis );
+        }
+
+    }
+
+    /**
+     * A counter of events since startup and of the recent {@link Window}s.
+     */
+    static final class Counter {
+
+        private final AtomicLong _total = new AtomicLong();
+        private final SlidingWindowCounter[] _windows = new SlidingWindowCounter[Window.values().length];
+
+        Counter() {
+            for ( final Window window : Window.values() ) {
+                _windows[window.ordinal()] = window.newCounter();
+            }
+        }
+
+        long incrementAndGet() {
+            final long now = System.currentTimeMillis();
+            for ( final SlidingWindowCounter window : _windows ) {
+                window.add( now, 1 );
+            }
+            return _total.incrementAndGet();
+        }
+
+        long get() {
+            return _total.get();
+        }
+
+        long get( @Nonnull final Window window, final long now ) {
+            return _windows[window.ordinal()].getSum( now );
+        }
+
+    }
+
+    /**
+     * The counters and probes of a recent {@link Window}, the getters are exposed as composite data via JMX
+     * (see {@link StatisticsView}).
+     */
+    public static final class WindowSnapshot {
+
+        private final Window _window;
+        private final Map<String, Long> _counts;
+        private final Map<String, ProbeSnapshot> _probes;
+
+        WindowSnapshot( @Nonnull final Window window, @Nonnull final Map<String, Long> counts,
+                @Nonnull final Map<String, ProbeSnapshot> probes ) {
+            _window = window;
+            _counts = counts;
+            _probes = probes;
+        }
+
+        /**
+         * The length of the window of counters in seconds.
+         */
+        public long getWindowSeconds() {
+            return _window.getCounterWindowMillis() / 1000;
+        }
+
+        /**
+         * The number of events of the window by counter, e.g. <code>requestsWithBackupFailure</code>.
+         */
+        @Nonnull
+        public Map<String, Long> getCounts() {
+            return _counts;
+        }
+
+        /**
+         * The events per second of the window by counter.
+         */
+        @Nonnull
+        public Map<String, Double> getRates() {
+            final Map<String, Double> result = new LinkedHashMap<String, Double>();
+            for ( final Map.Entry<String, Long> entry : _counts.entrySet() ) {
+                result.put( entry.getKey(), (double) entry.getValue() / getWindowSeconds() );
+            }
+            return result;
+        }
+
+        /**
+         * The ratio of requests with session that failed in the window: <code>backupFailure</code>
+         * (session backup failed) and <code>memcachedFailover</code> (session was loaded from a failover node).
+         */
+        @Nonnull
+        public Map<String, Double> getErrorRatios() {
+            final long requests = count( "requestsWithSession" );
+            final Map<String, Double> result = new LinkedHashMap<String, Double>();
+            result.put( "backupFailure", ratio( count( "requestsWithBackupFailure" ), requests ) );
+            result.put( "memcachedFailover", ratio( count( "requestsWithMemcachedFailover" ), requests ) );
+            return result;
+        }
+
+        /**
+         * The ratio of failed session backups to requests with session in the window.
+         */
+        public double getBackupFailureRatio() {
+            return getErrorRatios().get( "backupFailure" );
+        }
+
+        /**
+         * The values of the probes in the window by {@link StatsType} name.
+         */
+        @Nonnull
+        public Map<String, ProbeSnapshot> getProbes() {
+            return _probes;
+        }
+
+        private long count( @Nonnull final String name ) {
+            final Long result = _counts.get( name );
+            return result != null ? result : 0;
+        }
+
+        private static double ratio( final long count, final long total ) {
+            return total > 0 ? (double) count / total : 0;
+        }
+
+        /**
+         * Returns a string array with labels and values of the counters (with rates), error ratios and the probes
+         * that registered values in the window.
+         * @return a String array.
+         */
+        @Nonnull
+        public String[] getInfo() {
+            final List<String> result = new ArrayList<String>();
+            final Map<String, Double> rates = getRates();
+            for ( final Map.Entry<String, Long> entry : _counts.entrySet() ) {
+                result.add( entry.getKey() + " = " + entry.getValue() + " (" + String.format( "%.2f", rates.get( entry.getKey() ) ) + "/s)" );
+            }
+            for ( final Map.Entry<String, Double> entry : getErrorRatios().entrySet() ) {
+                result.add( entry.getKey() + "Ratio = " + String.format( "%.4f", entry.getValue() ) );
+            }
+            for ( final Map.Entry<String, ProbeSnapshot> entry : _probes.entrySet() ) {
+                final ProbeSnapshot probe = entry.getValue();
+                if ( probe.getCount() > 0 ) {
+                    final String unit = " " + probe.getUnit().getSymbol();
+                    result.add( entry.getKey() + ": Count = " + probe.getCount() + ", Avg = " + probe.getMean() + unit + ", Max = " + probe.getMax() + unit
+                            + ", P50 = " + probe.getP50() + unit + ", P90 = " + probe.getP90() + unit + ", P99 = " + probe.getP99() + unit
+                            + ", P999 = " + probe.getP999() + unit );
+                }
+            }
+            return result.toArray( new String[result.size()] );
+        }
+
+    }
+
+    /**
+     * The values of a probe in a recent {@link Window}.
+     */
+    public static final class ProbeSnapshot {
+
+        private final Histogram _histogram;
+        private final long _windowMillis;
+        private final Unit _unit;
+
+        ProbeSnapshot( @Nonnull final Histogram histogram, final long windowMillis, @Nonnull final Unit unit ) {
+            _histogram = histogram;
+            _windowMillis = windowMillis;
+            _unit = unit;
+        }
+
+        /**
+         * The unit of the values.
+         */
+        @Nonnull
+        public Unit getUnit() {
+            return _unit;
+        }
+
+        public long getCount() {
+            return _histogram.getCount();
+        }
+
+        /**
+         * The registered values per second.
+         */
+        public double getRate() {
+            return _histogram.getCount() * 1000d / _windowMillis;
+        }
+
+        public double getMean() {
+            return _histogram.getMean();
+        }
+
+        public long getMax() {
+            return _histogram.getMax();
+        }
+
+        public long getP50() {
+            return _histogram.getPercentile( 50 );
+        }
+
+        public long getP90() {
+            return _histogram.getPercentile( 90 );
+        }
+
+        public long getP99() {
+            return _histogram.getPercentile( 99 );
+        }
+
+        public long getP999() {
+            return _histogram.getPercentile( 99.9 );
+        }
 
     }
 
+    /**
+     * Provides count, min, avg, max and percentiles of the registered values. Values are recorded
+     * lock-free in {@link Histogram}s, which are striped by thread to reduce contention of concurrent
+     * backup threads. Durations are registered in nanoseconds, see {@link Unit}.
+     */
     public static class MinMaxAvgProbe {
 
-        private boolean _first = true;
-        private final AtomicInteger _count = new AtomicInteger();
-        private long _min;
-        private long _max;
-        private double _avg;
+        private static final int STRIPES = stripes();
+
+        private final Histogram[] _stripes = new Histogram[STRIPES];
+        private final AtomicLong _min = new AtomicLong( Long.MAX_VALUE );
+        private final SlidingWindowHistogram[] _windows = new SlidingWindowHistogram[Window.values().length];
+        private final Unit _unit;
+        private Histogram _lastInterval = new Histogram();
+
+        public MinMaxAvgProbe() {
+            this( Unit.NANOSECONDS );
+        }
+
+        public MinMaxAvgProbe( @Nonnull final Unit unit ) {
+            _unit = unit;
+            for ( int i = 0; i < STRIPES; i++ ) {
+                _stripes[i] = new Histogram();
+            }
+            for ( final Window window : Window.values() ) {
+                _windows[window.ordinal()] = window.newHistogram();
+            }
+        }
+
+        private static int stripes() {
+            final int processors = Math.min( 4, Runtime.getRuntime().availableProcessors() );
+            return Integer.highestOneBit( Math.max( 1, processors ) );
+        }
 
         /**
          * A utility method that calculates the difference of the time
-         * between the given <code>startInMillis</code> and {@link System#currentTimeMillis()}
+         * between the given <code>startInNanos</code> and {@link System#nanoTime()}
          * and registers the difference via {@link #register(long)}.
-         * @param startInMillis the time in millis that shall be subtracted from {@link System#currentTimeMillis()}.
+         * @param startInNanos the time in nanos that shall be subtracted from {@link System#nanoTime()}.
          */
-        public void registerSince( final long startInMillis ) {
-            register( System.currentTimeMillis() - startInMillis );
+        public void registerSince( final long startInNanos ) {
+            register( System.nanoTime() - startInNanos );
         }
 
         /**
@@ -242,69 +745,147 @@ public class Statistics {
          * @param value the value to register.
          */
         public void register( final long value ) {
-            if ( value < _min || _first ) {
-                _min = value;
+            _stripes[(int) Thread.currentThread().getId() & ( STRIPES - 1 )].record( value );
+            final long now = System.currentTimeMillis();
+            for ( final SlidingWindowHistogram window : _windows ) {
+                window.record( now, value );
             }
-            if ( value > _max || _first ) {
-                _max = value;
+            long min;
+            while ( value < ( min = _min.get() ) && !_min.compareAndSet( min, value ) ) {
+                // retry
             }
-            _avg = ( _avg * _count.get() + value ) / _count.incrementAndGet();
-            _first = false;
+        }
+
+        /**
+         * @return the unit of the registered values
+         */
+        @Nonnull
+        public Unit getUnit() {
+            return _unit;
         }
 
         /**
          * @return the count
          */
         int getCount() {
-            return _count.get();
+            long result = 0;
+            for ( final Histogram stripe : _stripes ) {
+                result += stripe.getCount();
+            }
+            return (int) result;
+        }
+
+        /**
+         * @return the sum of the registered values
+         */
+        long getSum() {
+            long result = 0;
+            for ( final Histogram stripe : _stripes ) {
+                result += stripe.getSum();
+            }
+            return result;
         }
 
         /**
          * @return the min
          */
         long getMin() {
-            return _min;
+            final long min = _min.get();
+            return min == Long.MAX_VALUE ? 0 : min;
         }
 
         /**
          * @return the max
          */
         long getMax() {
-            return _max;
+            long result = 0;
+            for ( final Histogram stripe : _stripes ) {
+                result = Math.max( result, stripe.getMax() );
+            }
+            return result;
         }
 
         /**
          * @return the avg
          */
         double getAvg() {
-            return _avg;
+            final int count = getCount();
+            return count == 0 ? 0 : (double) getSum() / count;
+        }
+
+        /**
+         * Returns the value at the given percentile (between 0 and 100, e.g. 99.9), see {@link Histogram#getPercentile(double)}.
+         */
+        public long getPercentile( final double percentile ) {
+            return Histogram.getPercentile( percentile, _stripes );
+        }
+
+        /**
+         * Returns all values registered so far as a single {@link Histogram}.
+         */
+        @Nonnull
+        public Histogram getTotal() {
+            final Histogram result = new Histogram();
+            for ( final Histogram stripe : _stripes ) {
+                result.add( stripe );
+            }
+            return result;
+        }
+
+        /**
+         * Returns the values registered since the last invocation of this method (or since the
+         * probe was created).
+         */
+        @Nonnull
+        public synchronized Histogram getIntervalSnapshot() {
+            final Histogram total = getTotal();
+            final Histogram result = total.subtract( _lastInterval );
+            _lastInterval = total;
+            return result;
+        }
+
+        /**
+         * Returns the values registered in the given recent time window.
+         */
+        @Nonnull
+        Histogram getWindowSnapshot( @Nonnull final Window window, final long now ) {
+            return _windows[window.ordinal()].getSnapshot( now );
         }
 
         /**
-         * Returns a string array with labels and values of count, min, avg and max.
+         * Returns a string array with labels and values of count, min, avg, max and the percentiles 50, 90, 99 and 99.9,
+         * the values are followed by their {@link Unit#getSymbol() unit}.
          * @return a String array.
          */
         public String[] getInfo() {
+            final Histogram total = getTotal();
+            final String unit = " " + _unit.getSymbol();
             return new String[] {
-                    "Count = " + _count.get(),
-                    "Min = "+ _min,
-                    "Avg = "+ _avg,
-                    "Max = "+ _max
+                    "Count = " + total.getCount(),
+                    "Min = "+ getMin() + unit,
+                    "Avg = "+ total.getMean() + unit,
+                    "Max = "+ total.getMax() + unit,
+                    "P50 = " + total.getPercentile( 50 ) + unit,
+                    "P90 = " + total.getPercentile( 90 ) + unit,
+                    "P99 = " + total.getPercentile( 99 ) + unit,
+                    "P999 = " + total.getPercentile( 99.9 ) + unit
             };
         }
 
     }
 
+    private static final MinMaxAvgProbe DISABLED_PROBE = new MinMaxAvgProbe();
+
     private static final Statistics DISABLED_STATS = new Statistics() {
 
         @Override
-        public void registerSince(final StatsType statsType, final long startInMillis) {};
+        public void registerSince(final StatsType statsType, final long startInNanos) {};
 
         @Override
-        public void register(final StatsType statsType, final long startInMillis) {};
+        public void register(final StatsType statsType, final long value) {};
 
         public MinMaxAvgProbe getProbe( @Nonnull final StatsType statsType ) {
-            return new MinMaxAvgProbe();
+            return DISABLED_PROBE;
         }
 
         /**
@@ -368,6 +949,46 @@ public class Statistics {
         public void requestWithoutAttributesAccess() {
         }
 
+        @Override
+        public void hedgedRead() {
+        }
+
+        @Override
+        public void hedgedReadFromBackup() {
+        }
+
+        @Override
+        public void replicaRepaired() {
+        }
+
+        @Override
+        public void replicaRepairDropped() {
+        }
+
+        @Override
+        public void remoteReplicated() {
+        }
+
+        @Override
+        public void remoteReplicationDropped() {
+        }
+
+        @Override
+        public void remoteReplicationCoalesced() {
+        }
+
+        @Override
+        public void sessionSpilled() {
+        }
+
+        @Override
+        public void spillRejected() {
+        }
+
+        @Override
+        public void spillReplayed() {
+        }
+
     };
 
 }
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import javax.annotation.Nonnull;
+
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.OperationFactory;
+import net.spy.memcached.ops.CancelledOperationStatus;
+import net.spy.memcached.ops.DeleteOperation;
+import net.spy.memcached.ops.GetOperation;
+import net.spy.memcached.ops.KeyedOperation;
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationCallback;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.StoreOperation;
+import net.spy.memcached.ops.StoreType;
+import net.spy.memcached.ops.TimedOutOperationStatus;
+import net.spy.memcached.protocol.ascii.AsciiOperationFactory;
+import net.spy.memcached.protocol.binary.BinaryOperationFactory;
+
+import de.javakaffee.web.msm.NodeStatistics.OperationType;
+
+/**
+ * Provides {@link OperationFactory}s that decorate the operations used by msm (get, store, delete, touch)
+ * so that their latency and errors are registered per memcached node in the {@link NodeStatistics}
+ * of the {@link MemcachedNodesManager}. All other operations are created as is.
+ * <p>
+ * The factories extend the spymemcached binary/ascii factories (instead of wrapping them), as
+ * spymemcached determines the protocol by the type of the operation factory.
+ * </p>
+ * <p>
+ * The latency is measured from the creation of the operation until it's completed, so it includes
+ * the time the operation was queued in the client.
+ * An operation is counted as failed if it was cancelled, timed out or memcached responded with an error
+ * (a cache miss or a failed add are not counted as error).
+ * </p>
+ * <p>
+ * Additionally the {@link OperationType}, timeouts and the number of value bytes read (gets) and written
+ * (stores) are registered.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public final class StatisticsOperationFactory {
+
+    private StatisticsOperationFactory() {
+    }
+
+    /**
+     * Creates a binary protocol {@link OperationFactory} registering operations at the {@link NodeStatistics}
+     * of the given {@link MemcachedNodesManager}.
+     */
+    @Nonnull
+    public static OperationFactory binary( @Nonnull final MemcachedNodesManager memcachedNodesManager ) {
+        return new Binary( memcachedNodesManager );
+    }
+
+    /**
+     * Creates an ascii (text) protocol {@link OperationFactory} registering operations at the {@link NodeStatistics}
+     * of the given {@link MemcachedNodesManager}.
+     */
+    @Nonnull
+    public static OperationFactory ascii( @Nonnull final MemcachedNodesManager memcachedNodesManager ) {
+        return new Ascii( memcachedNodesManager );
+    }
+
+    static final class Binary extends BinaryOperationFactory {
+
+        private final MemcachedNodesManager _memcachedNodesManager;
+
+        Binary( final MemcachedNodesManager memcachedNodesManager ) {
+            _memcachedNodesManager = memcachedNodesManager;
+        }
+
+        @Override
+        public GetOperation get( final String key, final GetOperation.Callback callback ) {
+            final TimingGetCallback timingCallback = new TimingGetCallback( callback, _memcachedNodesManager );
+            return timingCallback.setOperation( super.get( key, timingCallback ) );
+        }
+
+        @Override
+        public StoreOperation store( final StoreType storeType, final String key, final int flags, final int exp, final byte[] data,
+                final StoreOperation.Callback callback ) {
+            final TimingStoreCallback timingCallback = new TimingStoreCallback( callback, _memcachedNodesManager, storeType, data.length );
+            return timingCallback.setOperation( super.store( storeType, key, flags, exp, data, timingCallback ) );
+        }
+
+        @Override
+        public DeleteOperation delete( final String key, final DeleteOperation.Callback callback ) {
+            final TimingDeleteCallback timingCallback = new TimingDeleteCallback( callback, _memcachedNodesManager );
+            return timingCallback.setOperation( super.delete( key, timingCallback ) );
+        }
+
+        @Override
+        public KeyedOperation touch( final String key, final int expiration, final OperationCallback callback ) {
+            final TimingCallback<OperationCallback> timingCallback = new TimingCallback<OperationCallback>( callback, _memcachedNodesManager,
+                    OperationType.TOUCH, 0 );
+            return timingCallback.setOperation( super.touch( key, expiration, timingCallback ) );
+        }
+
+    }
+
+    static final class Ascii extends AsciiOperationFactory {
+
+        private final MemcachedNodesManager _memcachedNodesManager;
+
+        Ascii( final MemcachedNodesManager memcachedNodesManager ) {
+            _memcachedNodesManager = memcachedNodesManager;
+        }
+
+        @Override
+        public GetOperation get( final String key, final GetOperation.Callback callback ) {
+            final TimingGetCallback timingCallback = new TimingGetCallback( callback, _memcachedNodesManager );
+            return timingCallback.setOperation( super.get( key, timingCallback ) );
+        }
+
+        @Override
+        public StoreOperation store( final StoreType storeType, final String key, final int flags, final int exp, final byte[] data,
+                final StoreOperation.Callback callback ) {
+            final TimingStoreCallback timingCallback = new TimingStoreCallback( callback, _memcachedNodesManager, storeType, data.length );
+            return timingCallback.setOperation( super.store( storeType, key, flags, exp, data, timingCallback ) );
+        }
+
+        @Override
+        public DeleteOperation delete( final String key, final DeleteOperation.Callback callback ) {
+            final TimingDeleteCallback timingCallback = new TimingDeleteCallback( callback, _memcachedNodesManager );
+            return timingCallback.setOperation( super.delete( key, timingCallback ) );
+        }
+
+        @Override
+        public KeyedOperation touch( final String key, final int expiration, final OperationCallback callback ) {
+            final TimingCallback<OperationCallback> timingCallback = new TimingCallback<OperationCallback>( callback, _memcachedNodesManager,
+                    OperationType.TOUCH, 0 );
+            return timingCallback.setOperation( super.touch( key, expiration, timingCallback ) );
+        }
+
+    }
+
+    /**
+     * Determines if the given status represents an error (and not just e.g. a cache miss).
+     */
+    static boolean isError( final OperationStatus status ) {
+        if ( status instanceof CancelledOperationStatus || status instanceof TimedOutOperationStatus ) {
+            return true;
+        }
+        if ( status.isSuccess() || status.getMessage() == null ) {
+            return false;
+        }
+        final String message = status.getMessage().toLowerCase();
+        return message.contains( "error" ) || message.contains( "memory" );
+    }
+
+    private static class TimingCallback<T extends OperationCallback> implements OperationCallback {
+
+        protected final T _callback;
+        private final MemcachedNodesManager _memcachedNodesManager;
+        private final OperationType _type;
+        private final int _bytesOut;
+        private final long _start = System.nanoTime();
+        private volatile Operation _operation;
+        private volatile boolean _error;
+        private volatile boolean _timeout;
+        protected volatile int _bytesIn;
+
+        TimingCallback( final T callback, final MemcachedNodesManager memcachedNodesManager, final OperationType type, final int bytesOut ) {
+            _callback = callback;
+            _memcachedNodesManager = memcachedNodesManager;
+            _type = type;
+            _bytesOut = bytesOut;
+        }
+
+        <O extends Operation> O setOperation( final O operation ) {
+            _operation = operation;
+            return operation;
+        }
+
+        @Override
+        public void receivedStatus( final OperationStatus status ) {
+            if ( isError( status ) ) {
+                _error = true;
+            }
+            if ( status instanceof TimedOutOperationStatus ) {
+                _timeout = true;
+            }
+            _callback.receivedStatus( status );
+        }
+
+        @Override
+        public void complete() {
+            try {
+                final Operation operation = _operation;
+                final MemcachedNode node = operation != null ? operation.getHandlingNode() : null;
+                if ( node != null ) {
+                    _memcachedNodesManager.registerOperation( node.getSocketAddress(), _type, ( System.nanoTime() - _start ) / 1000,
+                            _error, _timeout, _bytesIn, _bytesOut );
+                }
+            } finally {
+                _callback.complete();
+            }
+        }
+
+    }
+
+    private static final class TimingGetCallback extends TimingCallback<GetOperation.Callback> implements GetOperation.Callback {
+        TimingGetCallback( final GetOperation.Callback callback, final MemcachedNodesManager memcachedNodesManager ) {
+            super( callback, memcachedNodesManager, OperationType.GET, 0 );
+        }
+        @Override
+        public void gotData( final String key, final int flags, final byte[] data ) {
+            _bytesIn = data.length;
+            _callback.gotData( key, flags, data );
+        }
+    }
+
+    private static final class TimingStoreCallback extends TimingCallback<StoreOperation.Callback> implements StoreOperation.Callback {
+        TimingStoreCallback( final StoreOperation.Callback callback, final MemcachedNodesManager memcachedNodesManager,
+                final StoreType storeType, final int bytesOut ) {
+            super( callback, memcachedNodesManager, storeType == StoreType.add ? OperationType.ADD : OperationType.SET, bytesOut );
+        }
+        @Override
+        public void gotData( final String key, final long cas ) {
+            _callback.gotData( key, cas );
+        }
+    }
+
+    private static final class TimingDeleteCallback extends TimingCallback<DeleteOperation.Callback> implements DeleteOperation.Callback {
+        TimingDeleteCallback( final DeleteOperation.Callback callback, final MemcachedNodesManager memcachedNodesManager ) {
+            super( callback, memcachedNodesManager, OperationType.DELETE, 0 );
+        }
+        @Override
+        public void gotData( final long cas ) {
+            _callback.gotData( cas );
+        }
+    }
+
+}
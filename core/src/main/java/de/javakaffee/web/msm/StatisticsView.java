@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import java.lang.management.ManagementFactory;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import de.javakaffee.web.msm.Statistics.Window;
+import de.javakaffee.web.msm.Statistics.WindowSnapshot;
+
+/**
+ * Exposes the recent time windows of the {@link Statistics} of a context as composite data via JMX, registered
+ * as <code>de.javakaffee.web.msm:type=Statistics,host=&lt;host&gt;,context=&lt;context&gt;</code>.
+ * In contrast to the <code>msmStat*</code> attributes of the session manager these show the last minute/hour
+ * instead of the time since startup, e.g. to alert on bursts of backup failures.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class StatisticsView implements StatisticsViewMXBean {
+
+    private static final Log LOG = LogFactory.getLog( StatisticsView.class );
+
+    private final Statistics _statistics;
+    private ObjectName _objectName;
+
+    public StatisticsView( @Nonnull final Statistics statistics ) {
+        _statistics = statistics;
+    }
+
+    /**
+     * Registers a view of the given statistics at the platform mbean server.
+     * @return the registered view or <code>null</code> if it could not be registered.
+     */
+    @CheckForNull
+    public static StatisticsView register( @Nonnull final Statistics statistics, @Nullable final String hostName,
+            @Nullable final String contextName ) {
+        final StatisticsView result = new StatisticsView( statistics );
+        try {
+            final ObjectName objectName = new ObjectName( "de.javakaffee.web.msm:type=Statistics,host="
+                    + ObjectName.quote( String.valueOf( hostName ) ) + ",context=" + ObjectName.quote( String.valueOf( contextName ) ) );
+            ManagementFactory.getPlatformMBeanServer().registerMBean( result, objectName );
+            result._objectName = objectName;
+            return result;
+        } catch ( final Exception e ) {
+            LOG.warn( "Could not register statistics view for context " + contextName, e );
+            return null;
+        }
+    }
+
+    /**
+     * Unregisters this view from the platform mbean server.
+     */
+    public void unregister() {
+        if ( _objectName == null ) {
+            return;
+        }
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if ( server.isRegistered( _objectName ) ) {
+                server.unregisterMBean( _objectName );
+            }
+        } catch ( final Exception e ) {
+            LOG.warn( "Could not unregister statistics view " + _objectName, e );
+        }
+        _objectName = null;
+    }
+
+    @Override
+    public WindowSnapshot getLastMinute() {
+        return _statistics.getWindowSnapshot( Window.LAST_MINUTE );
+    }
+
+    @Override
+    public WindowSnapshot getLastHour() {
+        return _statistics.getWindowSnapshot( Window.LAST_HOUR );
+    }
+
+}
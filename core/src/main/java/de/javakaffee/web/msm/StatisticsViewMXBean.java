@@ -0,0 +1,37 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import de.javakaffee.web.msm.Statistics.WindowSnapshot;
+
+/**
+ * The JMX interface of the {@link StatisticsView}, the {@link WindowSnapshot}s are mapped to composite data.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public interface StatisticsViewMXBean {
+
+    /**
+     * The counters and probes of the last minute.
+     */
+    WindowSnapshot getLastMinute();
+
+    /**
+     * The counters and probes of the last hour.
+     */
+    WindowSnapshot getLastHour();
+
+}
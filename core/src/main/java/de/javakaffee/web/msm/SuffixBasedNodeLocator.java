@@ -103,6 +103,9 @@ class SuffixBasedNodeLocator implements NodeLocator {
     }
 
     private String getNodeId( final String key ) {
+        if ( _sessionIdFormat.isReplicaKey( key ) ) {
+            return _sessionIdFormat.extractReplicaNodeId( key );
+        }
         final String nodeId = _sessionIdFormat.extractMemcachedId( key );
         if ( !_sessionIdFormat.isBackupKey( key ) ) {
             return nodeId;
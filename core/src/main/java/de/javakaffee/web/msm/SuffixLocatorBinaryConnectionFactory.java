@@ -18,17 +18,21 @@ package de.javakaffee.web.msm;
 
 import java.net.SocketAddress;
 import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
 
 import net.spy.memcached.BinaryConnectionFactory;
+import net.spy.memcached.ConnectionObserver;
 import net.spy.memcached.DefaultConnectionFactory;
 import net.spy.memcached.FailureMode;
 import net.spy.memcached.MemcachedNode;
 import net.spy.memcached.NodeLocator;
 import net.spy.memcached.OperationFactory;
 import net.spy.memcached.auth.AuthDescriptor;
+import net.spy.memcached.ops.Operation;
 import net.spy.memcached.protocol.binary.BinaryMemcachedNodeImpl;
-import net.spy.memcached.protocol.binary.BinaryOperationFactory;
 import net.spy.memcached.transcoders.SerializingTranscoder;
 import net.spy.memcached.transcoders.Transcoder;
 
@@ -47,6 +51,7 @@ public final class SuffixLocatorBinaryConnectionFactory extends DefaultConnectio
     private final Statistics _statistics;
     private final long _operationTimeout;
     private final long _maxReconnectDelay;
+    private final boolean _quietWrites;
     private final AuthDescriptor _authDescriptor;
 
     /**
@@ -55,17 +60,47 @@ public final class SuffixLocatorBinaryConnectionFactory extends DefaultConnectio
      *            the memcached nodes manager holding list of nodeIds
      * @param sessionIdFormat
      *            the {@link SessionIdFormat}
+     * @param quietWrites
+     *            specifies if sets shall be sent as quiet sets, see {@link #shouldOptimize()}.
      */
     public SuffixLocatorBinaryConnectionFactory( final MemcachedNodesManager memcachedNodesManager, final SessionIdFormat sessionIdFormat,
-            final Statistics statistics, final long operationTimeout, final long maxReconnectDelay, final AuthDescriptor authDescriptor) {
+            final Statistics statistics, final long operationTimeout, final long maxReconnectDelay, final boolean quietWrites,
+            final AuthDescriptor authDescriptor) {
         _memcachedNodesManager = memcachedNodesManager;
         _sessionIdFormat = sessionIdFormat;
         _statistics = statistics;
         _operationTimeout = operationTimeout;
         _maxReconnectDelay = maxReconnectDelay;
+        _quietWrites = quietWrites;
         _authDescriptor = authDescriptor;
     }
 
+    /**
+     * Creates a new instance passing an auth descriptor.
+     * @param memcachedNodesManager
+     *            the memcached nodes manager holding list of nodeIds
+     * @param sessionIdFormat
+     *            the {@link SessionIdFormat}
+     */
+    public SuffixLocatorBinaryConnectionFactory( final MemcachedNodesManager memcachedNodesManager, final SessionIdFormat sessionIdFormat,
+            final Statistics statistics, final long operationTimeout, final long maxReconnectDelay, final AuthDescriptor authDescriptor) {
+        this(memcachedNodesManager, sessionIdFormat, statistics, operationTimeout, maxReconnectDelay, false, authDescriptor);
+    }
+
+    /**
+     * Creates a new instance.
+     * @param memcachedNodesManager
+     *            the memcached nodes manager holding list of nodeIds
+     * @param sessionIdFormat
+     *            the {@link SessionIdFormat}
+     * @param quietWrites
+     *            specifies if sets shall be sent as quiet sets, see {@link #shouldOptimize()}.
+     */
+    public SuffixLocatorBinaryConnectionFactory( final MemcachedNodesManager memcachedNodesManager, final SessionIdFormat sessionIdFormat,
+            final Statistics statistics, final long operationTimeout, final long maxReconnectDelay, final boolean quietWrites ) {
+        this(memcachedNodesManager, sessionIdFormat, statistics, operationTimeout, maxReconnectDelay, quietWrites, null);
+    }
+
     /**
      * Creates a new instance.
      * @param memcachedNodesManager
@@ -113,17 +148,29 @@ public final class SuffixLocatorBinaryConnectionFactory extends DefaultConnectio
             final SocketChannel c, final int bufSize) {
         final boolean doAuth = _authDescriptor != null;
         final long defaultOpTimeout = getOperationTimeout();
+        final BlockingQueue<Operation> readQueue = createReadOperationQueue();
+        final BlockingQueue<Operation> writeQueue = createWriteOperationQueue();
+        final BlockingQueue<Operation> inputQueue = createOperationQueue();
+        _memcachedNodesManager.registerQueues( sa, inputQueue, writeQueue, readQueue );
         return new BinaryMemcachedNodeImpl(sa, c, bufSize,
-            createReadOperationQueue(),
-            createWriteOperationQueue(),
-            createOperationQueue(),
+            readQueue,
+            writeQueue,
+            inputQueue,
             getOpQueueMaxBlockTime(),
             doAuth, defaultOpTimeout);
     }
 
+    /**
+     * Registers reconnects in the {@link NodeStatistics}.
+     */
+    @Override
+    public Collection<ConnectionObserver> getInitialObservers() {
+        return Collections.<ConnectionObserver>singleton( new NodeStatisticsConnectionObserver( _memcachedNodesManager ) );
+    }
+
     @Override
     public OperationFactory getOperationFactory() {
-        return new BinaryOperationFactory();
+        return StatisticsOperationFactory.binary( _memcachedNodesManager );
     }
 
     @Override
@@ -131,6 +178,17 @@ public final class SuffixLocatorBinaryConnectionFactory extends DefaultConnectio
         return _operationTimeout;
     }
 
+    /**
+     * If quiet writes are enabled, spymemcached combines the sets queued for a node (session backups,
+     * validity info updates, secondary backups) into quiet sets (setq) followed by a noop, so that memcached
+     * only responds to failed sets and the noop instead of sending a response for each set.
+     * Failures are still reported to the future of the failed set.
+     */
+    @Override
+    public boolean shouldOptimize() {
+        return _quietWrites;
+    }
+
     @Override
     public long getMaxReconnectDelay() {
         return _maxReconnectDelay;
@@ -16,12 +16,21 @@
  */
 package de.javakaffee.web.msm;
 
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
 
+import net.spy.memcached.ConnectionObserver;
 import net.spy.memcached.DefaultConnectionFactory;
 import net.spy.memcached.FailureMode;
 import net.spy.memcached.MemcachedNode;
 import net.spy.memcached.NodeLocator;
+import net.spy.memcached.OperationFactory;
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.protocol.ascii.AsciiMemcachedNodeImpl;
 import net.spy.memcached.transcoders.SerializingTranscoder;
 import net.spy.memcached.transcoders.Transcoder;
 
@@ -84,6 +93,33 @@ public final class SuffixLocatorConnectionFactory extends DefaultConnectionFacto
         return new TranscoderWrapperStatisticsSupport( _statistics, transcoder );
     }
 
+    /**
+     * Creates the node as {@link DefaultConnectionFactory} does for the ascii protocol and
+     * registers its operation queues in the {@link NodeStatistics}.
+     */
+    @Override
+    public MemcachedNode createMemcachedNode( final SocketAddress sa, final SocketChannel c, final int bufSize ) {
+        final BlockingQueue<Operation> readQueue = createReadOperationQueue();
+        final BlockingQueue<Operation> writeQueue = createWriteOperationQueue();
+        final BlockingQueue<Operation> inputQueue = createOperationQueue();
+        _memcachedNodesManager.registerQueues( sa, inputQueue, writeQueue, readQueue );
+        return new AsciiMemcachedNodeImpl( sa, c, bufSize, readQueue, writeQueue, inputQueue,
+                getOpQueueMaxBlockTime(), getOperationTimeout() );
+    }
+
+    /**
+     * Registers reconnects in the {@link NodeStatistics}.
+     */
+    @Override
+    public Collection<ConnectionObserver> getInitialObservers() {
+        return Collections.<ConnectionObserver>singleton( new NodeStatisticsConnectionObserver( _memcachedNodesManager ) );
+    }
+
+    @Override
+    public OperationFactory getOperationFactory() {
+        return StatisticsOperationFactory.ascii( _memcachedNodesManager );
+    }
+
     @Override
     public long getOperationTimeout() {
     	return _operationTimeout;
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.Configurations.TOPOLOGY_MIGRATION_RATE_KEY;
+import static de.javakaffee.web.msm.Configurations.TOPOLOGY_TRANSITION_PERIOD_KEY;
+import static de.javakaffee.web.msm.Configurations.getSystemProperty;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.spy.memcached.MemcachedClient;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * A managed change of the memcached nodes at runtime: the memcached client of the former nodes is kept
+ * for a transition period, so that sessions stored in nodes that were removed (draining nodes) are
+ * migrated to the new nodes instead of being lost.
+ * <p>
+ * During the transition the session of a request with the id of a draining node is read from the former
+ * node (session and validity info with a single multi-get), gets a new session id for one of the new nodes
+ * and is stored there at the end of the request (see
+ * {@link MemcachedSessionService#changeSessionIdOnMemcachedFailover(String)}). For sticky sessions the local
+ * sessions of draining nodes are additionally migrated in the background by a {@link SessionRelocator}, the old
+ * session ids are then rewritten with the next request. Non-sticky sessions of draining nodes are only
+ * migrated with their next request, as memcached does not allow to enumerate stored sessions.
+ * </p>
+ * <p>
+ * After the transition period the former memcached client and nodes manager are shut down.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class TopologyTransition {
+
+    private static final Log LOG = LogFactory.getLog( TopologyTransition.class );
+
+    static final int DEFAULT_MIGRATION_RATE = 100;
+
+    private final MemcachedClient _memcached;
+    private final MemcachedNodesManager _formerNodesManager;
+    private final StorageKeyFormat _storageKeyFormat;
+    private final SessionIdFormat _sessionIdFormat;
+    private final Set<String> _drainingNodeIds;
+    private final long _periodInMillis;
+    private final long _operationTimeout;
+    private final SessionRelocator _migrator;
+    private final ScheduledExecutorService _executor = Executors.newSingleThreadScheduledExecutor(
+            new NamedThreadFactory( "msm-topology-transition" ) );
+    private final AtomicBoolean _finished = new AtomicBoolean();
+
+    /**
+     * @param memcached the memcached client of the former nodes, it's shut down when the transition is finished.
+     * @param formerNodesManager the nodes manager of the former nodes, it's shut down when the transition is finished.
+     * @param drainingNodeIds the ids of the former nodes that are not part of the new nodes.
+     * @param periodInMillis the duration of the transition.
+     * @param operationTimeout the timeout for reading sessions from the former nodes.
+     * @param migrator migrates local sessions of draining nodes in the background, or <code>null</code>.
+     */
+    public TopologyTransition( @Nonnull final MemcachedClient memcached, @Nonnull final MemcachedNodesManager formerNodesManager,
+            @Nonnull final Set<String> drainingNodeIds, final long periodInMillis, final long operationTimeout,
+            @Nullable final SessionRelocator migrator ) {
+        _memcached = memcached;
+        _formerNodesManager = formerNodesManager;
+        _storageKeyFormat = formerNodesManager.getStorageKeyFormat();
+        _sessionIdFormat = formerNodesManager.getSessionIdFormat();
+        _drainingNodeIds = Collections.unmodifiableSet( new LinkedHashSet<String>( drainingNodeIds ) );
+        _periodInMillis = periodInMillis;
+        _operationTimeout = operationTimeout;
+        _migrator = migrator;
+    }
+
+    /**
+     * Creates the transition from the former to the new nodes as configured by system properties. Returns <code>null</code>
+     * if {@value Configurations#TOPOLOGY_TRANSITION_PERIOD_KEY} is not set, if node ids are not encoded in session ids
+     * or if no node was removed.
+     *
+     * @param sessionService the session service providing the local sessions that are migrated in the background (sticky only).
+     */
+    @CheckForNull
+    public static TopologyTransition createFromSystemProperties( @Nonnull final MemcachedClient memcached,
+            @Nonnull final MemcachedNodesManager formerNodesManager, @Nonnull final MemcachedNodesManager newNodesManager,
+            @Nonnull final MemcachedSessionService sessionService, final long operationTimeout, final long backupTimeout ) {
+        final long period = getSystemProperty( TOPOLOGY_TRANSITION_PERIOD_KEY, 0L );
+        if ( period <= 0 || !formerNodesManager.isEncodeNodeIdInSessionId() || !newNodesManager.isEncodeNodeIdInSessionId() ) {
+            return null;
+        }
+        final Set<String> drainingNodeIds = getDrainingNodeIds( formerNodesManager, newNodesManager );
+        if ( drainingNodeIds.isEmpty() ) {
+            return null;
+        }
+        final SessionRelocator migrator = sessionService.isSticky()
+            ? new SessionRelocator( sessionService, getSystemProperty( TOPOLOGY_MIGRATION_RATE_KEY, DEFAULT_MIGRATION_RATE ), backupTimeout )
+            : null;
+        return new TopologyTransition( memcached, formerNodesManager, drainingNodeIds, period, operationTimeout, migrator );
+    }
+
+    /**
+     * Returns the ids of the former nodes (primary and failover) that are not part of the new nodes.
+     */
+    @Nonnull
+    static Set<String> getDrainingNodeIds( @Nonnull final MemcachedNodesManager formerNodesManager,
+            @Nonnull final MemcachedNodesManager newNodesManager ) {
+        final Set<String> result = new LinkedHashSet<String>( formerNodesManager.getPrimaryNodeIds() );
+        result.addAll( formerNodesManager.getFailoverNodeIds() );
+        result.removeAll( newNodesManager.getPrimaryNodeIds() );
+        result.removeAll( newNodesManager.getFailoverNodeIds() );
+        return result;
+    }
+
+    /**
+     * Starts the transition: schedules the end of the transition and starts the background
+     * migration of local sessions of draining nodes. Must be invoked when the new nodes are in use.
+     */
+    public void start() {
+        LOG.info( "Starting memcached topology transition for " + _periodInMillis + " ms, draining nodes: " + _drainingNodeIds );
+        try {
+            _executor.schedule( new Runnable() {
+                @Override
+                public void run() {
+                    LOG.info( "Memcached topology transition finished, former nodes " + _drainingNodeIds + " are not used any more." );
+                    shutdown();
+                }
+            }, _periodInMillis, TimeUnit.MILLISECONDS );
+        } catch ( final RejectedExecutionException e ) {
+            LOG.debug( "Topology transition was shut down already." );
+            return;
+        }
+        if ( _migrator != null ) {
+            for ( final String nodeId : _drainingNodeIds ) {
+                _migrator.onNodeUnavailable( nodeId );
+            }
+        }
+    }
+
+    /**
+     * Specifies if the transition is still running and the given node was removed.
+     */
+    public boolean isDraining( @CheckForNull final String nodeId ) {
+        return nodeId != null && !_finished.get() && _drainingNodeIds.contains( nodeId );
+    }
+
+    /**
+     * The ids of the former nodes that are not part of the new nodes.
+     */
+    @Nonnull
+    public Set<String> getDrainingNodeIds() {
+        return _drainingNodeIds;
+    }
+
+    /**
+     * Reads the session with the given id and its validity info from the former nodes, with a single
+     * (pipelined) multi-get.
+     *
+     * @return the session data and validity info, or <code>null</code> if the session was not found.
+     */
+    @CheckForNull
+    public Result load( @Nonnull final String sessionId ) throws InterruptedException, ExecutionException, TimeoutException {
+        final String key = _storageKeyFormat.format( sessionId );
+        final String validityKey = _sessionIdFormat.createValidityInfoKeyName( sessionId );
+        final Map<String, Object> values = _memcached.asyncGetBulk( key, validityKey ).get( _operationTimeout, TimeUnit.MILLISECONDS );
+        final Object data = values.get( key );
+        if ( !( data instanceof byte[] ) ) {
+            return null;
+        }
+        final Object validityData = values.get( validityKey );
+        return new Result( (byte[]) data, validityData instanceof byte[] ? SessionValidityInfo.decode( (byte[]) validityData ) : null );
+    }
+
+    /**
+     * Finishes the transition: stops the background migration and shuts down the former memcached client
+     * and nodes manager.
+     */
+    public void shutdown() {
+        if ( !_finished.compareAndSet( false, true ) ) {
+            return;
+        }
+        if ( _migrator != null ) {
+            _migrator.shutdown();
+        }
+        _executor.shutdownNow();
+        SharedResources.shutdown( _memcached, _formerNodesManager );
+        _formerNodesManager.shutdown();
+    }
+
+    /**
+     * A session read from a draining node.
+     */
+    public static final class Result {
+
+        private final byte[] _data;
+        private final SessionValidityInfo _validityInfo;
+
+        Result( @Nonnull final byte[] data, @Nullable final SessionValidityInfo validityInfo ) {
+            _data = data;
+            _validityInfo = validityInfo;
+        }
+
+        /**
+         * The serialized session.
+         */
+        @Nonnull
+        public byte[] getData() {
+            return _data;
+        }
+
+        /**
+         * The validity info of the session, only stored for non-sticky sessions.
+         */
+        @CheckForNull
+        public SessionValidityInfo getValidityInfo() {
+            return _validityInfo;
+        }
+
+    }
+
+}
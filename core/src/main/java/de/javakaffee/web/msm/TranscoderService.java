@@ -35,6 +35,9 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.catalina.Manager;
@@ -72,6 +75,7 @@ public class TranscoderService {
             + 8; // lastBackupTime
 
     private final SessionAttributesTranscoder _attributesTranscoder;
+    private volatile AttributeProfiler _attributeProfiler;
 
     /**
      * Creates a new {@link TranscoderService}.
@@ -82,6 +86,21 @@ public class TranscoderService {
         _attributesTranscoder = attributesTranscoder;
     }
 
+    /**
+     * Sets the profiler that is notified about serialized session attributes, <code>null</code> disables profiling.
+     */
+    public void setAttributeProfiler( @Nullable final AttributeProfiler attributeProfiler ) {
+        _attributeProfiler = attributeProfiler;
+    }
+
+    /**
+     * Returns the profiler of session attributes, <code>null</code> if not enabled.
+     */
+    @CheckForNull
+    public AttributeProfiler getAttributeProfiler() {
+        return _attributeProfiler;
+    }
+
     /**
      * Serialize the given session to a byte array. This is a shortcut for
      * <code><pre>
@@ -125,8 +144,16 @@ public class TranscoderService {
         try {
             final DeserializationResult deserializationResult = deserializeSessionFields( data, manager );
             final byte[] attributesData = deserializationResult.getAttributesData();
-            final Map<String, Object> attributes = deserializeAttributes( attributesData );
             final MemcachedBackupSession session = deserializationResult.getSession();
+            final OperationEvent event = OperationEvent.begin( OperationEvent.Type.DESERIALIZATION );
+            final Map<String, Object> attributes;
+            try {
+                attributes = deserializeAttributes( attributesData );
+            } catch ( final RuntimeException e ) {
+                endEvent( event, session, attributesData, OperationEvent.Outcome.FAILURE );
+                throw e;
+            }
+            endEvent( event, session, attributesData, OperationEvent.Outcome.SUCCESS );
             session.setAttributesInternal( attributes );
             session.setDataHashCode( Arrays.hashCode( attributesData ) );
             session.setManager( manager );
@@ -152,7 +179,25 @@ public class TranscoderService {
      * @see de.javakaffee.web.msm.SessionAttributesTranscoder#serializeAttributes(MemcachedBackupSession, Map)
      */
     public byte[] serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
-        return _attributesTranscoder.serializeAttributes( session, attributes );
+        final OperationEvent event = OperationEvent.begin( OperationEvent.Type.SERIALIZATION );
+        byte[] result = null;
+        try {
+            result = _attributesTranscoder.serializeAttributes( session, attributes );
+        } finally {
+            endEvent( event, session, result, result != null ? OperationEvent.Outcome.SUCCESS : OperationEvent.Outcome.FAILURE );
+        }
+        final AttributeProfiler attributeProfiler = _attributeProfiler;
+        if ( attributeProfiler != null && result != null ) {
+            attributeProfiler.onSerialized( session, attributes, result.length, _attributesTranscoder );
+        }
+        return result;
+    }
+
+    private static void endEvent( @Nullable final OperationEvent event, @Nonnull final MemcachedBackupSession session,
+            @Nullable final byte[] data, @Nonnull final OperationEvent.Outcome outcome ) {
+        if ( event != null ) {
+            event.end( session.getIdInternal(), null, data != null ? data.length : 0, outcome );
+        }
     }
 
 
@@ -253,6 +298,30 @@ public class TranscoderService {
         return data;
     }
 
+    /**
+     * Reads the thisAccessedTime from the given serialized session (as created by {@link #serialize(MemcachedBackupSession)})
+     * without deserializing it.
+     */
+    static long decodeThisAccessedTime( final byte[] data ) {
+        return decodeNum( data, 26, 8 );
+    }
+
+    /**
+     * Reads the lastBackupTime from the given serialized session (as created by {@link #serialize(MemcachedBackupSession)})
+     * without deserializing it.
+     */
+    static long decodeLastBackupTime( final byte[] data ) {
+        return decodeNum( data, 34, 8 );
+    }
+
+    /**
+     * Reads the maxInactiveInterval from the given serialized session (as created by {@link #serialize(MemcachedBackupSession)})
+     * without deserializing it.
+     */
+    static int decodeMaxInactiveInterval( final byte[] data ) {
+        return (int) decodeNum( data, 20, 4 );
+    }
+
     static DeserializationResult deserializeSessionFields( final byte[] data, final SessionManager manager ) throws InvalidVersionException {
         final MemcachedBackupSession result = manager.newMemcachedBackupSession();
 
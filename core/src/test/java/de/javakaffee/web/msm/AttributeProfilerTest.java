@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link AttributeProfiler}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class AttributeProfilerTest {
+
+    /**
+     * "Serializes" attributes to their string value.
+     */
+    private static final SessionAttributesTranscoder TRANSCODER = new SessionAttributesTranscoder() {
+
+        @Override
+        public byte[] serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
+            int size = 0;
+            for ( final Object value : attributes.values() ) {
+                size += value.toString().length();
+            }
+            return new byte[size];
+        }
+
+        @Override
+        public Map<String, Object> deserializeAttributes( final byte[] data ) {
+            throw new UnsupportedOperationException();
+        }
+
+    };
+
+    @Test
+    public void testSampledSessionsAreProfiledPerAttribute() {
+        final AttributeProfiler cut = new AttributeProfiler( 2, 10 );
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put( "small", "x" );
+        attributes.put( "large", "xxxxxxxxxx" );
+
+        final MemcachedBackupSession session = session( "s1" );
+        cut.onSerialized( session, attributes, 11, TRANSCODER );
+        assertNull( cut.getStatsOf( "large" ) );
+
+        cut.onSerialized( session, attributes, 11, TRANSCODER );
+        final Histogram[] large = cut.getStatsOf( "large" );
+        assertNotNull( large );
+        assertEquals( large[0].getCount(), 1 );
+        assertEquals( large[0].getMax(), 10 );
+
+        final String[] top = cut.getTopAttributesInfo();
+        assertEquals( top.length, 2 );
+        assertTrue( top[0].startsWith( "large: Count = 1" ), top[0] );
+        assertTrue( top[1].startsWith( "small: Count = 1" ), top[1] );
+    }
+
+    @Test
+    public void testNumberOfAttributeNamesIsBounded() {
+        final AttributeProfiler cut = new AttributeProfiler( 1, 10 );
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        for ( int i = 0; i < AttributeProfiler.MAX_ATTRIBUTES + 10; i++ ) {
+            attributes.put( "a" + i, "x" );
+        }
+        cut.onSerialized( session( "s1" ), attributes, 110, TRANSCODER );
+        assertEquals( cut.getStatsOf( AttributeProfiler.OTHER )[0].getCount(), 10 );
+    }
+
+    @Test
+    public void testLargestSessionsAreKept() {
+        final AttributeProfiler cut = new AttributeProfiler( 1000, 2 );
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        cut.onSerialized( session( "s1" ), attributes, 100, TRANSCODER );
+        cut.onSerialized( session( "s2" ), attributes, 300, TRANSCODER );
+        cut.onSerialized( session( "s3" ), attributes, 200, TRANSCODER );
+        cut.onSerialized( session( "s4" ), attributes, 50, TRANSCODER );
+        cut.onSerialized( session( "s3" ), attributes, 400, TRANSCODER );
+
+        final String[] largest = cut.getLargestSessionsInfo();
+        assertEquals( largest.length, 2 );
+        assertEquals( largest[0], "s3 = 400" );
+        assertEquals( largest[1], "s2 = 300" );
+    }
+
+    private static MemcachedBackupSession session( final String id ) {
+        final MemcachedBackupSession result = new MemcachedBackupSession();
+        result.setIdInternal( id );
+        return result;
+    }
+
+}
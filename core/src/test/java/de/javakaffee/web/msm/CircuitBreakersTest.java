@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.CircuitBreakers.State;
+
+/**
+ * Tests the {@link CircuitBreakers}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class CircuitBreakersTest {
+
+    private static final long OPEN_DURATION = 5000;
+
+    private CircuitBreakers _cut;
+
+    @BeforeMethod
+    public void setUp() {
+        _cut = new CircuitBreakers( 0.5, 100000, 10, OPEN_DURATION, 2 );
+    }
+
+    @Test
+    public void testOpensOnErrorRate() {
+        final long now = System.currentTimeMillis();
+        for ( int i = 0; i < 10; i++ ) {
+            _cut.register( "n1", 100, i % 2 == 0, now );
+        }
+        assertEquals( _cut.getState( "n1" ), State.CLOSED, "The breaker should be evaluated after the evaluation interval." );
+        _cut.register( "n1", 100, true, now + 1000 );
+        assertEquals( _cut.getState( "n1" ), State.OPEN );
+        assertFalse( _cut.allowRequest( "n1", now + 1000 ) );
+        assertTrue( _cut.allowRequest( "n2", now + 1000 ) );
+    }
+
+    @Test
+    public void testOpensOnLatency() {
+        final long now = System.currentTimeMillis();
+        for ( int i = 0; i < 20; i++ ) {
+            _cut.register( "n1", i < 18 ? 100 : 200000, false, now );
+        }
+        _cut.register( "n1", 100, false, now + 1000 );
+        assertEquals( _cut.getState( "n1" ), State.OPEN );
+    }
+
+    @Test
+    public void testStaysClosedWithoutEnoughOperations() {
+        final long now = System.currentTimeMillis();
+        for ( int i = 0; i < 5; i++ ) {
+            _cut.register( "n1", 100, true, now );
+        }
+        _cut.register( "n1", 100, true, now + 1000 );
+        assertEquals( _cut.getState( "n1" ), State.CLOSED );
+        assertTrue( _cut.allowRequest( "n1", now + 1000 ) );
+    }
+
+    @Test
+    public void testHalfOpenClosesAfterSuccessfulTrials() {
+        final long now = open( "n1" );
+        assertFalse( _cut.allowRequest( "n1", now + OPEN_DURATION - 1 ) );
+        assertTrue( _cut.allowRequest( "n1", now + OPEN_DURATION ) );
+        assertEquals( _cut.getState( "n1" ), State.HALF_OPEN );
+        assertTrue( _cut.allowRequest( "n1", now + OPEN_DURATION ) );
+        assertFalse( _cut.allowRequest( "n1", now + OPEN_DURATION ), "Only two trial requests should be allowed." );
+
+        _cut.register( "n1", 100, false, now + OPEN_DURATION );
+        assertEquals( _cut.getState( "n1" ), State.HALF_OPEN );
+        _cut.register( "n1", 100, false, now + OPEN_DURATION );
+        assertEquals( _cut.getState( "n1" ), State.CLOSED );
+        assertTrue( _cut.allowRequest( "n1", now + OPEN_DURATION ) );
+    }
+
+    @Test
+    public void testHalfOpenReopensOnSlowTrial() {
+        final long now = open( "n1" );
+        assertTrue( _cut.allowRequest( "n1", now + OPEN_DURATION ) );
+        _cut.register( "n1", 200000, false, now + OPEN_DURATION );
+        assertEquals( _cut.getState( "n1" ), State.OPEN );
+        assertFalse( _cut.allowRequest( "n1", now + OPEN_DURATION + 1 ) );
+    }
+
+    @Test
+    public void testHalfOpenStartsNewRoundIfTrialsDidNotComplete() {
+        final long now = open( "n1" );
+        assertTrue( _cut.allowRequest( "n1", now + OPEN_DURATION ) );
+        assertTrue( _cut.allowRequest( "n1", now + OPEN_DURATION ) );
+        assertFalse( _cut.allowRequest( "n1", now + OPEN_DURATION ) );
+        assertTrue( _cut.allowRequest( "n1", now + 2 * OPEN_DURATION ) );
+    }
+
+    private long open( final String node ) {
+        final long now = System.currentTimeMillis();
+        for ( int i = 0; i < 10; i++ ) {
+            _cut.register( node, 100, true, now - 1000 );
+        }
+        _cut.register( node, 100, true, now );
+        assertEquals( _cut.getState( node ), State.OPEN );
+        return now;
+    }
+
+}
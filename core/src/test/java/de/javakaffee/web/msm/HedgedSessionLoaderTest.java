@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationStatus;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link HedgedSessionLoader}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class HedgedSessionLoaderTest {
+
+    private static final String SESSION_ID = "foo-n1";
+    private static final byte[] PRIMARY = new byte[] { 1 };
+
+    private final SessionIdFormat _sessionIdFormat = new SessionIdFormat();
+    private final String _backupKey = _sessionIdFormat.createBackupKey( SESSION_ID );
+    private final String _backupValidityKey = _sessionIdFormat.createBackupKey( _sessionIdFormat.createValidityInfoKeyName( SESSION_ID ) );
+
+    private MemcachedClient _memcached;
+    private Statistics _statistics;
+    private ScheduledExecutorService _scheduler;
+    private ExecutorService _listenerExecutor;
+    private HedgedSessionLoader _cut;
+
+    @BeforeMethod
+    public void setUp() {
+        _memcached = mock( MemcachedClient.class );
+        _statistics = Statistics.create();
+        _scheduler = Executors.newSingleThreadScheduledExecutor();
+        _listenerExecutor = Executors.newSingleThreadExecutor();
+        _cut = new HedgedSessionLoader( _memcached, new NodeStatistics(), _sessionIdFormat, _statistics, 99, 20 );
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        _scheduler.shutdownNow();
+        _listenerExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testFastPrimaryDoesNotHedge() throws Exception {
+        when( _memcached.asyncGet( SESSION_ID ) ).thenReturn( future( SESSION_ID, PRIMARY, 0 ) );
+
+        final HedgedSessionLoader.Result result = _cut.load( SESSION_ID, SESSION_ID, 1000 );
+        assertEquals( result.getData(), PRIMARY );
+        assertFalse( result.isBackup() );
+        verify( _memcached, never() ).asyncGet( _backupKey );
+        assertEquals( _statistics.getHedgedReads(), 0 );
+    }
+
+    @Test
+    public void testSlowPrimaryIsAnsweredByBackup() throws Exception {
+        final byte[] backup = serializedSession( 1000 );
+        when( _memcached.asyncGet( SESSION_ID ) ).thenReturn( future( SESSION_ID, PRIMARY, 2000 ) );
+        when( _memcached.asyncGet( _backupKey ) ).thenReturn( future( _backupKey, backup, 0 ) );
+        when( _memcached.asyncGet( _backupValidityKey ) ).thenReturn( future( _backupValidityKey, validityInfo( 1000 ), 0 ) );
+
+        final long start = System.currentTimeMillis();
+        final HedgedSessionLoader.Result result = _cut.load( SESSION_ID, SESSION_ID, 1000 );
+        assertTrue( System.currentTimeMillis() - start < 500 );
+        assertEquals( result.getData(), backup );
+        assertTrue( result.isBackup() );
+        assertEquals( result.getBackupValidityInfo().getThisAccessedTime(), System.currentTimeMillis() - 1000, 500 );
+        assertEquals( _statistics.getHedgedReads(), 1 );
+        assertEquals( _statistics.getHedgedReadsFromBackup(), 1 );
+    }
+
+    @Test
+    public void testBackupNewerThanValidityInfoIsIgnored() throws Exception {
+        when( _memcached.asyncGet( SESSION_ID ) ).thenReturn( future( SESSION_ID, PRIMARY, 200 ) );
+        when( _memcached.asyncGet( _backupKey ) ).thenReturn( future( _backupKey, serializedSession( 1000 ), 0 ) );
+        when( _memcached.asyncGet( _backupValidityKey ) ).thenReturn( future( _backupValidityKey, validityInfo( 5000 ), 0 ) );
+
+        final HedgedSessionLoader.Result result = _cut.load( SESSION_ID, SESSION_ID, 1000 );
+        assertEquals( result.getData(), PRIMARY );
+        assertFalse( result.isBackup() );
+        assertEquals( _statistics.getHedgedReads(), 1 );
+        assertEquals( _statistics.getHedgedReadsFromBackup(), 0 );
+    }
+
+    @Test
+    public void testPrimaryMissIsAuthoritative() throws Exception {
+        when( _memcached.asyncGet( SESSION_ID ) ).thenReturn( future( SESSION_ID, null, 100 ) );
+        when( _memcached.asyncGet( _backupKey ) ).thenReturn( future( _backupKey, serializedSession( 1000 ), 300 ) );
+        when( _memcached.asyncGet( _backupValidityKey ) ).thenReturn( future( _backupValidityKey, validityInfo( 1000 ), 0 ) );
+
+        final HedgedSessionLoader.Result result = _cut.load( SESSION_ID, SESSION_ID, 1000 );
+        assertNull( result.getData() );
+    }
+
+    @Test
+    public void testPrimaryIsNotCancelledOrTimedOutByHedging() throws Exception {
+        final byte[] backup = serializedSession( 1000 );
+        final Operation primaryOperation = mock( Operation.class );
+        final GetFuture<Object> primary = future( SESSION_ID, PRIMARY, 300, primaryOperation );
+        when( _memcached.asyncGet( SESSION_ID ) ).thenReturn( primary );
+        when( _memcached.asyncGet( _backupKey ) ).thenReturn( future( _backupKey, backup, 50 ) );
+        when( _memcached.asyncGet( _backupValidityKey ) ).thenReturn( future( _backupValidityKey, validityInfo( 1000 ), 100 ) );
+
+        assertTrue( _cut.load( SESSION_ID, SESSION_ID, 1000 ).isBackup() );
+        assertFalse( primary.isDone() );
+        assertFalse( primary.isCancelled() );
+        assertEquals( primary.get( 1, TimeUnit.SECONDS ), PRIMARY );
+        verify( primaryOperation, never() ).timeOut();
+        verify( primaryOperation, never() ).cancel();
+    }
+
+    @Test( expectedExceptions = TimeoutException.class )
+    public void testTimeoutIfNothingAnswers() throws Exception {
+        when( _memcached.asyncGet( anyString() ) ).thenReturn( future( SESSION_ID, PRIMARY, 2000 ) );
+        _cut.load( SESSION_ID, SESSION_ID, 200 );
+    }
+
+    private GetFuture<Object> future( final String key, final Object value, final long delayInMillis ) {
+        return future( key, value, delayInMillis, mock( Operation.class ) );
+    }
+
+    private GetFuture<Object> future( final String key, final Object value, final long delayInMillis, final Operation operation ) {
+        final CountDownLatch latch = new CountDownLatch( 1 );
+        final GetFuture<Object> result = new GetFuture<Object>( latch, 5000, key, _listenerExecutor );
+        result.setOperation( operation );
+        final Runnable complete = new Runnable() {
+            @Override
+            public void run() {
+                result.set( new BackupSessionService.SimpleFuture<Object>( value ), new OperationStatus( true, "END" ) );
+                latch.countDown();
+            }
+        };
+        if ( delayInMillis <= 0 ) {
+            complete.run();
+        }
+        else {
+            _scheduler.schedule( complete, delayInMillis, TimeUnit.MILLISECONDS );
+        }
+        return result;
+    }
+
+    private static byte[] serializedSession( final long accessedAgoInMillis ) {
+        final byte[] result = new byte[64];
+        TranscoderService.encodeNum( System.currentTimeMillis() - accessedAgoInMillis, result, 26, 8 );
+        return result;
+    }
+
+    private static byte[] validityInfo( final long accessedAgoInMillis ) {
+        final long accessed = System.currentTimeMillis() - accessedAgoInMillis;
+        return SessionValidityInfo.encode( 1800, accessed, accessed );
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link Histogram}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class HistogramTest {
+
+    @Test
+    public void testBucketBounds() {
+        for ( long value = 0; value < 100000; value++ ) {
+            final int index = Histogram.bucketIndex( value );
+            assertTrue( value <= Histogram.bucketUpperBound( index ), "value " + value + ", index " + index );
+            if ( index > 0 ) {
+                assertTrue( value > Histogram.bucketUpperBound( index - 1 ), "value " + value + ", index " + index );
+            }
+        }
+        assertEquals( Histogram.bucketUpperBound( Histogram.bucketIndex( Long.MAX_VALUE ) ), Long.MAX_VALUE );
+    }
+
+    @Test
+    public void testPercentiles() {
+        final Histogram cut = new Histogram();
+        assertEquals( cut.getPercentile( 99 ), 0 );
+        for ( int i = 1; i <= 1000; i++ ) {
+            cut.record( i );
+        }
+        assertEquals( cut.getCount(), 1000 );
+        assertEquals( cut.getMax(), 1000 );
+        assertEquals( cut.getMean(), 500.5, 0.001 );
+        assertWithinRelativeError( cut.getPercentile( 50 ), 500 );
+        assertWithinRelativeError( cut.getPercentile( 99 ), 990 );
+        assertEquals( cut.getPercentile( 100 ), 1000 );
+    }
+
+    @Test
+    public void testPercentileOfSeveralHistograms() {
+        final Histogram fast = new Histogram();
+        final Histogram slow = new Histogram();
+        for ( int i = 0; i < 90; i++ ) {
+            fast.record( 10 );
+        }
+        for ( int i = 0; i < 10; i++ ) {
+            slow.record( 1000 );
+        }
+        assertWithinRelativeError( Histogram.getPercentile( 50, fast, slow ), 10 );
+        assertWithinRelativeError( Histogram.getPercentile( 95, fast, slow ), 1000 );
+
+        fast.add( slow );
+        assertEquals( fast.getCount(), 100 );
+        assertWithinRelativeError( fast.getPercentile( 95 ), 1000 );
+
+        fast.reset();
+        assertEquals( fast.getCount(), 0 );
+        assertEquals( fast.getPercentile( 50 ), 0 );
+    }
+
+    @Test
+    public void testSubtract() {
+        final Histogram earlier = new Histogram();
+        for ( int i = 0; i < 10; i++ ) {
+            earlier.record( 1000 );
+        }
+        final Histogram later = new Histogram();
+        later.add( earlier );
+        for ( int i = 0; i < 90; i++ ) {
+            later.record( 10 );
+        }
+        final Histogram delta = later.subtract( earlier );
+        assertEquals( delta.getCount(), 90 );
+        assertEquals( delta.getMean(), 10, 0.001 );
+        assertWithinRelativeError( delta.getPercentile( 99 ), 10 );
+        assertWithinRelativeError( delta.getMax(), 10 );
+    }
+
+    private static void assertWithinRelativeError( final long actual, final long expected ) {
+        assertTrue( actual >= expected && actual <= expected * 1.125, "Expected " + expected + " (+12.5%) but got " + actual );
+    }
+
+}
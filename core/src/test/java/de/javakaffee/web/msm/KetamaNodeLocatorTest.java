@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import net.spy.memcached.MemcachedNode;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link KetamaNodeLocator}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class KetamaNodeLocatorTest {
+
+    private static final int KEYS = 10000;
+
+    private final SessionIdFormat _sessionIdFormat = new SessionIdFormat();
+
+    @Test
+    public void testAddingNodeRemapsAboutOneNth() {
+        final List<MemcachedNode> nodes = nodes( 4 );
+        final KetamaNodeLocator before = new KetamaNodeLocator( nodes, _sessionIdFormat, noWeights(), 160 );
+        final KetamaNodeLocator after = new KetamaNodeLocator( nodes( 5 ), _sessionIdFormat, noWeights(), 160 );
+
+        int moved = 0;
+        for ( int i = 0; i < KEYS; i++ ) {
+            final String key = "session" + i;
+            if ( !name( before.getPrimary( key ) ).equals( name( after.getPrimary( key ) ) ) ) {
+                moved++;
+            }
+        }
+        // ideally 1/5 of the keys move to the new node
+        assertTrue( moved > KEYS / 10 && moved < KEYS * 3 / 10, "Unexpected number of moved keys: " + moved );
+    }
+
+    @Test
+    public void testKeysAreDistributedByWeight() {
+        final List<MemcachedNode> nodes = nodes( 2 );
+        final Map<String, Double> weights = new HashMap<String, Double>();
+        weights.put( name( nodes.get( 0 ) ), 3d );
+        final KetamaNodeLocator cut = new KetamaNodeLocator( nodes, _sessionIdFormat, weights, 160 );
+
+        int first = 0;
+        for ( int i = 0; i < KEYS; i++ ) {
+            if ( cut.getPrimary( "session" + i ) == nodes.get( 0 ) ) {
+                first++;
+            }
+        }
+        // expected is 3/4 of the keys
+        assertTrue( first > KEYS * 65 / 100 && first < KEYS * 85 / 100, "Unexpected number of keys for weighted node: " + first );
+    }
+
+    @Test
+    public void testBackupKeyIsLocatedAtSuccessor() {
+        final KetamaNodeLocator cut = new KetamaNodeLocator( nodes( 3 ), _sessionIdFormat, noWeights(), 160 );
+        for ( int i = 0; i < 100; i++ ) {
+            final String key = "session" + i;
+            final List<MemcachedNode> replicas = cut.getReplicas( key, 2 );
+            assertEquals( replicas.size(), 2 );
+            assertSame( cut.getPrimary( key ), replicas.get( 0 ) );
+            assertNotSame( replicas.get( 0 ), replicas.get( 1 ) );
+            assertSame( cut.getPrimary( _sessionIdFormat.createBackupKey( key ) ), replicas.get( 1 ) );
+        }
+    }
+
+    @Test
+    public void testSequenceContainsOtherNodes() {
+        final List<MemcachedNode> nodes = nodes( 3 );
+        final KetamaNodeLocator cut = new KetamaNodeLocator( nodes, _sessionIdFormat, noWeights(), 160 );
+        final MemcachedNode primary = cut.getPrimary( "foo" );
+        final Iterator<MemcachedNode> sequence = cut.getSequence( "foo" );
+        final List<MemcachedNode> others = new ArrayList<MemcachedNode>();
+        while ( sequence.hasNext() ) {
+            others.add( sequence.next() );
+        }
+        assertEquals( others.size(), 2 );
+        assertFalse( others.contains( primary ) );
+        assertEquals( new HashSet<MemcachedNode>( others ).size(), 2 );
+    }
+
+    @Test
+    public void testSingleNode() {
+        final List<MemcachedNode> nodes = nodes( 1 );
+        final KetamaNodeLocator cut = new KetamaNodeLocator( nodes, _sessionIdFormat, noWeights(), 160 );
+        assertSame( cut.getPrimary( "foo" ), nodes.get( 0 ) );
+        assertSame( cut.getPrimary( _sessionIdFormat.createBackupKey( "foo" ) ), nodes.get( 0 ) );
+        assertFalse( cut.getSequence( "foo" ).hasNext() );
+    }
+
+    @Test
+    public void testGetNodeName() {
+        assertEquals( KetamaNodeLocator.getNodeName( new InetSocketAddress( "localhost", 11211 ) ), "localhost:11211" );
+        assertEquals( KetamaNodeLocator.getNodeName( new InetSocketAddress( "127.0.0.1", 11212 ) ), "127.0.0.1:11212" );
+    }
+
+    private static Map<String, Double> noWeights() {
+        return Collections.emptyMap();
+    }
+
+    private static List<MemcachedNode> nodes( final int count ) {
+        final List<MemcachedNode> result = new ArrayList<MemcachedNode>();
+        for ( int i = 0; i < count; i++ ) {
+            final MemcachedNode node = mock( MemcachedNode.class );
+            when( node.getSocketAddress() ).thenReturn( InetSocketAddress.createUnresolved( "host" + i, 11211 ) );
+            result.add( node );
+        }
+        return result;
+    }
+
+    private static String name( final MemcachedNode node ) {
+        return KetamaNodeLocator.getNodeName( node.getSocketAddress() );
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.OperationFuture;
+
+import org.apache.catalina.connector.Request;
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.MemcachedNodesManager.MemcachedClientCallback;
+import de.javakaffee.web.msm.MemcachedSessionService.LockStatus;
+
+/**
+ * Tests the {@link LockContentionProfiler}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class LockContentionProfilerTest {
+
+    @Test
+    public void testNormalize() {
+        assertEquals( LockContentionProfiler.normalize( null ), LockContentionProfiler.UNKNOWN );
+        assertEquals( LockContentionProfiler.normalize( "GET /app/orders/42?foo=bar" ), "GET /app/orders/{id}" );
+        assertEquals( LockContentionProfiler.normalize( "GET /app/orders/42/items" ), "GET /app/orders/{id}/items" );
+        assertEquals( LockContentionProfiler.normalize( "GET /app/cart/0a1b2c3d-4e5f-6789-abcd-ef0123456789" ), "GET /app/cart/{id}" );
+        assertEquals( LockContentionProfiler.normalize( "POST /app/v2/checkout" ), "POST /app/v2/checkout" );
+    }
+
+    @Test
+    public void testRecord() {
+        final LockContentionProfiler cut = new LockContentionProfiler( 2 );
+        cut.record( "GET /a", "POST /b", 100, 3, false );
+        cut.record( "GET /a", null, 50, 2, true );
+        cut.record( "GET /c", "POST /b", 10, 1, false );
+
+        final long[] a = cut.getContentionOf( "GET /a" );
+        assertEquals( a[0], 2 );
+        assertEquals( a[1], 150 );
+        assertEquals( a[2], 5 );
+        assertEquals( a[3], 1 );
+
+        final String[] info = cut.getTopContentionsInfo();
+        assertEquals( info.length, 2 );
+        assertTrue( info[0].startsWith( "GET /a: Contended = 2, Timeouts = 1, Retries = 5, Avg wait = 75, Max wait = 100, Total wait = 150" ), info[0] );
+        assertTrue( info[0].contains( "POST /b=1" ), info[0] );
+        assertTrue( info[0].contains( LockContentionProfiler.UNKNOWN + "=1" ), info[0] );
+        assertTrue( info[1].startsWith( "GET /c: " ), info[1] );
+    }
+
+    @Test
+    public void testTopKIsBounded() {
+        final LockContentionProfiler cut = new LockContentionProfiler( 1 );
+        cut.record( "GET /hot", null, 1000, 1, false );
+        for ( int i = 0; i < 100; i++ ) {
+            cut.record( "GET /cold" + i, null, 1, 1, false );
+        }
+        // the capacity is 2 (twice the top k), the cold requests replace each other
+        assertEquals( cut.getContentionOf( "GET /hot" )[1], 1000 );
+        assertNull( cut.getContentionOf( "GET /cold0" ) );
+        final String[] info = cut.getTopContentionsInfo();
+        assertEquals( info.length, 1 );
+        assertTrue( info[0].startsWith( "GET /hot: " ), info[0] );
+
+        // a cold request that's recorded again inherits the wait time of the replaced one
+        cut.record( "GET /cold99", null, 2000, 1, false );
+        assertTrue( cut.getTopContentionsInfo()[0].startsWith( "GET /cold99: " ) );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    @Test
+    public void testLockingStrategyRecordsContention() throws Exception {
+        final MemcachedClient memcached = mock( MemcachedClient.class );
+        final OperationFuture<Boolean> failed = mock( OperationFuture.class );
+        when( failed.get() ).thenReturn( false );
+        final OperationFuture<Boolean> succeeded = mock( OperationFuture.class );
+        when( succeeded.get() ).thenReturn( true );
+        when( memcached.add( anyString(), anyInt(), anyString() ) ).thenReturn( failed, failed, succeeded );
+        when( memcached.get( anyString() ) ).thenReturn( "POST /app/cart" );
+
+        final MemcachedNodesManager nodesManager = MemcachedNodesManager.createFor( "n1:localhost:11211", null, StorageKeyFormat.EMPTY,
+                mock( MemcachedClientCallback.class ) );
+        final CurrentRequest currentRequest = new CurrentRequest();
+        final Request request = mock( Request.class );
+        when( request.getNote( anyString() ) ).thenReturn( "GET /app/cart/42?x=y" );
+        currentRequest.set( request );
+        final LockingStrategy lockingStrategy = new LockingStrategyAll( mock( MemcachedSessionService.class ), nodesManager, memcached,
+                new LRUCache<String, Boolean>( 10 ), false, Statistics.create(), currentRequest );
+        final LockContentionProfiler cut = new LockContentionProfiler( 10 );
+        lockingStrategy.setLockContentionProfiler( cut );
+        try {
+            assertEquals( lockingStrategy.lock( "foo-n1", 1000, TimeUnit.MILLISECONDS ), LockStatus.LOCKED );
+        } finally {
+            lockingStrategy.shutdown();
+            currentRequest.reset();
+        }
+
+        verify( memcached ).get( anyString() );
+        verify( memcached, times( 3 ) ).add( anyString(), anyInt(), eq( "GET /app/cart/{id}" ) );
+        final long[] contention = cut.getContentionOf( "GET /app/cart/{id}" );
+        assertEquals( contention[0], 1 );
+        assertEquals( contention[2], 2 );
+        assertEquals( contention[3], 0 );
+        assertTrue( cut.getTopContentionsInfo()[0].contains( "POST /app/cart=1" ), cut.getTopContentionsInfo()[0] );
+    }
+
+}
@@ -86,7 +86,9 @@ public class MemcachedNodesManagerTest {
                 { "http://10.10.0.1:8091/pools,http://10.10.0.2:8091/pools", 2},
                 { "n1:localhost:11211", 1 },
 				{ "n1:localhost:11211,n2:localhost:11212", 2 },
-				{ "n1:localhost:11211 n2:localhost:11212", 2 }
+				{ "n1:localhost:11211 n2:localhost:11212", 2 },
+				{ "localhost:11211 localhost:11212", 2 },
+				{ "localhost:11211,127.0.0.1:11212,localhost:11213", 3 }
 		};
 	}
 
@@ -144,7 +146,8 @@ public class MemcachedNodesManagerTest {
                 { "http://localhost:8091/pools", null, false },
                 { "http://10.10.0.1:8091/pools,http://10.10.0.2:8091/pools", null, false },
 				{ "n1:localhost:11211", null, true },
-				{ "n1:localhost:11211,n2:localhost:11212", "n1", true }
+				{ "n1:localhost:11211,n2:localhost:11212", "n1", true },
+				{ "localhost:11211 localhost:11212", null, false }
 		};
 	}
 
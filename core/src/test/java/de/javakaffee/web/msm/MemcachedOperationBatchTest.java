@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.OperationFuture;
+
+import org.mockito.InOrder;
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.Statistics.StatsType;
+
+/**
+ * Tests the {@link MemcachedOperationBatch}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class MemcachedOperationBatchTest {
+
+    @SuppressWarnings( "unchecked" )
+    @Test
+    public void testFlushSendsAllOperationsBeforeAwaitingResults() throws Exception {
+        final MemcachedClient memcached = mock( MemcachedClient.class );
+        final OperationFuture<Boolean> setFuture = mock( OperationFuture.class );
+        final OperationFuture<Boolean> deleteFuture = mock( OperationFuture.class );
+        when( memcached.set( eq( "validity:foo" ), eq( 10 ), any() ) ).thenReturn( setFuture );
+        when( memcached.delete( "lock:foo" ) ).thenReturn( deleteFuture );
+
+        final MemcachedOperationBatch cut = new MemcachedOperationBatch();
+        cut.set( memcached, "validity:foo", 10, new byte[] { 1 }, 0, null );
+        cut.delete( memcached, "lock:foo", 100, StatsType.RELEASE_LOCK );
+
+        verifyZeroInteractions( memcached );
+        assertEquals( cut.size(), 2 );
+
+        final Statistics statistics = Statistics.create();
+        assertEquals( cut.flush( statistics ), 2 );
+        assertEquals( cut.size(), 0 );
+
+        final InOrder inOrder = inOrder( memcached, deleteFuture );
+        inOrder.verify( memcached ).set( eq( "validity:foo" ), eq( 10 ), any() );
+        inOrder.verify( memcached ).delete( "lock:foo" );
+        inOrder.verify( deleteFuture ).get( anyLong(), eq( TimeUnit.MILLISECONDS ) );
+        verify( setFuture, never() ).get( anyLong(), any( TimeUnit.class ) );
+        assertEquals( statistics.getProbe( StatsType.RELEASE_LOCK ).getCount(), 1 );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    @Test
+    public void testFlushContinuesAfterTimeout() throws Exception {
+        final MemcachedClient memcached = mock( MemcachedClient.class );
+        final OperationFuture<Boolean> timingOut = mock( OperationFuture.class );
+        final OperationFuture<Boolean> ok = mock( OperationFuture.class );
+        when( timingOut.get( anyLong(), any( TimeUnit.class ) ) ).thenThrow( new TimeoutException() );
+        when( memcached.delete( "lock:foo" ) ).thenReturn( timingOut );
+        when( memcached.delete( "lock:bar" ) ).thenReturn( ok );
+
+        final MemcachedOperationBatch cut = new MemcachedOperationBatch();
+        cut.delete( memcached, "lock:foo", 100, null );
+        cut.delete( memcached, "lock:bar", 100, null );
+        assertEquals( cut.flush( Statistics.create() ), 2 );
+
+        verify( ok ).get( anyLong(), any( TimeUnit.class ) );
+    }
+
+    @Test
+    public void testCurrentRequestBindsBatchToThread() {
+        final CurrentRequest currentRequest = new CurrentRequest();
+        assertNull( currentRequest.getOperationBatch() );
+        final MemcachedOperationBatch batch = currentRequest.startOperationBatch();
+        assertSame( currentRequest.getOperationBatch(), batch );
+        assertSame( currentRequest.endOperationBatch(), batch );
+        assertNull( currentRequest.getOperationBatch() );
+    }
+
+}
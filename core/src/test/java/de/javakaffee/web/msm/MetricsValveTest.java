@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import static java.util.Arrays.asList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.Valve;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.NodeStatistics.OperationType;
+import de.javakaffee.web.msm.Statistics.StatsType;
+
+/**
+ * Tests the {@link MetricsValve}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class MetricsValveTest {
+
+    @Test
+    public void testMetricName() {
+        assertEquals( MetricsValve.metricName( "requestsWithBackupFailure" ), "msm_requests_with_backup_failure" );
+        assertEquals( MetricsValve.metricName( "ACQUIRE_LOCK" ), "msm_acquire_lock" );
+    }
+
+    @Test
+    public void testRender() throws Exception {
+        final Statistics statistics = Statistics.create();
+        statistics.requestWithBackupFailure();
+        statistics.requestWithBackupFailure();
+        statistics.register( StatsType.BACKUP, TimeUnit.MILLISECONDS.toNanos( 10 ) );
+        statistics.register( StatsType.BACKUP, TimeUnit.MILLISECONDS.toNanos( 30 ) );
+        statistics.register( StatsType.CACHED_DATA_SIZE, 1024 );
+
+        final MemcachedNodesManager nodesManager = mock( MemcachedNodesManager.class );
+        when( nodesManager.isEncodeNodeIdInSessionId() ).thenReturn( true );
+        when( nodesManager.getPrimaryNodeIds() ).thenReturn( NodeIdList.create( "n1", "n2" ) );
+        when( nodesManager.getFailoverNodeIds() ).thenReturn( Collections.<String>emptyList() );
+        when( nodesManager.getUnavailableNodeIds() ).thenReturn( Collections.singleton( "n2" ) );
+        final NodeStatistics nodeStatistics = new NodeStatistics();
+        nodeStatistics.register( "n1", OperationType.GET, 200, false, false, 100, 0 );
+        nodeStatistics.register( "n1", OperationType.SET, 500, true, true, 0, 300 );
+        nodeStatistics.connectionEstablished( "n1", 1 );
+        nodeStatistics.setQueues( "n1", asList( "op" ), Collections.emptyList(), Collections.emptyList() );
+        when( nodesManager.getNodeStatistics() ).thenReturn( nodeStatistics );
+        final MemcachedSessionService service = mock( MemcachedSessionService.class );
+        when( service.getStatistics() ).thenReturn( statistics );
+        when( service.getMemcachedNodesManager() ).thenReturn( nodesManager );
+        when( service.getBackupQueueSize() ).thenReturn( 3 );
+
+        final StringWriter out = new StringWriter();
+        final List<Pair<String, MemcachedSessionService>> services = asList( Pair.of( "localhost/\"app\"", service ) );
+        MetricsValve.render( services, out );
+        final String result = out.toString();
+
+        assertTrue( result.contains( "# TYPE msm_requests_with_backup_failure counter\n"
+                + "msm_requests_with_backup_failure_total{context=\"localhost/\\\"app\\\"\"} 2\n" ), result );
+        assertTrue( result.contains( "# TYPE msm_backup_seconds summary\n" ), result );
+        assertTrue( result.contains( "msm_backup_seconds{context=\"localhost/\\\"app\\\"\",quantile=\"0.99\"} 0.03\n" ), result );
+        assertTrue( result.contains( "msm_backup_seconds_sum{context=\"localhost/\\\"app\\\"\"} 0.04\n" ), result );
+        assertTrue( result.contains( "msm_backup_seconds_count{context=\"localhost/\\\"app\\\"\"} 2\n" ), result );
+        assertTrue( result.contains( "# TYPE msm_cached_data_size_bytes summary\n" ), result );
+        assertTrue( result.contains( "msm_cached_data_size_bytes_sum{context=\"localhost/\\\"app\\\"\"} 1024\n" ), result );
+        assertTrue( result.contains( "msm_memcached_node_available{context=\"localhost/\\\"app\\\"\",node=\"n1\"} 1\n" ), result );
+        assertTrue( result.contains( "msm_memcached_node_available{context=\"localhost/\\\"app\\\"\",node=\"n2\"} 0\n" ), result );
+        assertTrue( result.contains( "msm_backup_queue_size{context=\"localhost/\\\"app\\\"\"} 3\n" ), result );
+        assertTrue( result.contains( "# TYPE msm_memcached_node_latency_seconds summary\n" ), result );
+        assertTrue( result.contains( "msm_memcached_node_latency_seconds{context=\"localhost/\\\"app\\\"\",node=\"n1\",operation=\"get\",quantile=\"0.99\"} 2.0E-4\n" ), result );
+        assertTrue( result.contains( "msm_memcached_node_latency_seconds_count{context=\"localhost/\\\"app\\\"\",node=\"n1\",operation=\"set\"} 1\n" ), result );
+        assertTrue( result.contains( "msm_memcached_node_timeouts_total{context=\"localhost/\\\"app\\\"\",node=\"n1\"} 1\n" ), result );
+        assertTrue( result.contains( "msm_memcached_node_read_bytes_total{context=\"localhost/\\\"app\\\"\",node=\"n1\"} 100\n" ), result );
+        assertTrue( result.contains( "msm_memcached_node_written_bytes_total{context=\"localhost/\\\"app\\\"\",node=\"n1\"} 300\n" ), result );
+        assertTrue( result.contains( "msm_memcached_node_reconnects_total{context=\"localhost/\\\"app\\\"\",node=\"n1\"} 1\n" ), result );
+        assertTrue( result.contains( "msm_memcached_node_queue_size{context=\"localhost/\\\"app\\\"\",node=\"n1\",queue=\"input\"} 1\n" ), result );
+        assertTrue( result.endsWith( "# EOF\n" ), result );
+    }
+
+    @Test
+    public void testOtherRequestsArePassedOn() throws Exception {
+        final MetricsValve cut = new MetricsValve();
+        final Valve next = mock( Valve.class );
+        cut.setNext( next );
+        final Request request = mock( Request.class );
+        final Response response = mock( Response.class );
+
+        when( request.getRequestURI() ).thenReturn( "/app/foo" );
+        cut.invoke( request, response );
+        verify( next ).invoke( request, response );
+
+        final StringWriter out = new StringWriter();
+        when( request.getRequestURI() ).thenReturn( "/msm-metrics" );
+        when( response.getWriter() ).thenReturn( new PrintWriter( out ) );
+        cut.invoke( request, response );
+        verify( response ).setContentType( MetricsValve.CONTENT_TYPE );
+        verify( next, times( 1 ) ).invoke( request, response );
+        assertTrue( out.toString().endsWith( "# EOF\n" ) );
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.NodeAvailabilityCache.CacheLoader;
+
+/**
+ * Tests the {@link NodeAvailabilityCache}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class NodeAvailabilityCacheTest {
+
+    @Test
+    public void testLoadsExpiredEntriesWithoutProbing() throws InterruptedException {
+        final CountingCacheLoader loader = new CountingCacheLoader();
+        final NodeAvailabilityCache<String> cut = new NodeAvailabilityCache<String>( 10, 10, loader );
+        assertFalse( cut.isProbing() );
+        assertTrue( cut.isNodeAvailable( "n1" ) );
+        assertTrue( cut.isNodeAvailable( "n1" ) );
+        assertEquals( loader.loads.get(), 1 );
+        Thread.sleep( 20 );
+        assertTrue( cut.isNodeAvailable( "n1" ) );
+        assertEquals( loader.loads.get(), 2 );
+    }
+
+    @Test
+    public void testProbingDoesNotLoadOnRequest() throws InterruptedException {
+        final CountingCacheLoader loader = new CountingCacheLoader();
+        final NodeAvailabilityCache<String> cut = new NodeAvailabilityCache<String>( 10, 10, loader, 60000, 60000 );
+        try {
+            assertTrue( cut.isProbing() );
+            assertTrue( cut.isNodeAvailable( "n1" ) );
+            Thread.sleep( 20 );
+            assertTrue( cut.isNodeAvailable( "n1" ) );
+            assertEquals( loader.loads.get(), 0, "An unknown node must not be loaded on the request thread." );
+            assertEquals( cut.getKeys(), Collections.singletonList( "n1" ) );
+
+            cut.setNodeAvailable( "n1", false );
+            assertFalse( cut.isNodeAvailable( "n1" ) );
+            assertEquals( cut.getUnavailableNodes(), Collections.singleton( "n1" ) );
+            assertEquals( loader.loads.get(), 0 );
+        } finally {
+            cut.shutdown();
+        }
+    }
+
+    @Test
+    public void testProbingUpdatesAvailability() throws InterruptedException {
+        final CountingCacheLoader loader = new CountingCacheLoader();
+        final NodeAvailabilityCache<String> cut = new NodeAvailabilityCache<String>( 10, 10, loader, 10, 20 );
+        try {
+            assertTrue( cut.isNodeAvailable( "n1" ) );
+            loader.available.set( false );
+            waitForAvailability( cut, "n1", false );
+            loader.available.set( true );
+            waitForAvailability( cut, "n1", true );
+            assertTrue( loader.loads.get() > 1 );
+        } finally {
+            cut.shutdown();
+        }
+    }
+
+    @Test
+    public void testConfiguredNodesAreAvailableUntilProbed() throws InterruptedException {
+        final CountingCacheLoader loader = new CountingCacheLoader();
+        loader.available.set( false );
+        final NodeAvailabilityCache<String> cut = new NodeAvailabilityCache<String>( 10, 10, loader, 50, 100 );
+        try {
+            cut.probe( Arrays.asList( "n1", "n2" ) );
+            assertEquals( new HashSet<String>( cut.getKeys() ), new HashSet<String>( Arrays.asList( "n1", "n2" ) ) );
+            assertTrue( cut.isNodeAvailable( "n2" ) );
+            assertEquals( loader.loads.get(), 0 );
+            waitForAvailability( cut, "n1", false );
+            waitForAvailability( cut, "n2", false );
+        } finally {
+            cut.shutdown();
+        }
+    }
+
+    @Test
+    public void testProbeDelayWithBackoffAndJitter() {
+        final NodeAvailabilityCache<String> cut = new NodeAvailabilityCache<String>( 10, 10, new CountingCacheLoader(), 1000, 10000 );
+        for ( int i = 0; i < 100; i++ ) {
+            assertBetween( cut.nextProbeDelay( 0 ), 800, 1200 );
+            assertBetween( cut.nextProbeDelay( 1 ), 1600, 2400 );
+            assertBetween( cut.nextProbeDelay( 3 ), 6400, 9600 );
+            assertBetween( cut.nextProbeDelay( 100 ), 8000, 12000 );
+        }
+    }
+
+    private static void assertBetween( final long actual, final long min, final long max ) {
+        assertTrue( actual >= min && actual <= max, "Expected " + actual + " to be between " + min + " and " + max );
+    }
+
+    private static void waitForAvailability( final NodeAvailabilityCache<String> cut, final String node, final boolean available )
+            throws InterruptedException {
+        final long timeout = System.currentTimeMillis() + 2000;
+        while ( cut.isNodeAvailable( node ) != available && System.currentTimeMillis() < timeout ) {
+            Thread.sleep( 5 );
+        }
+        assertEquals( cut.isNodeAvailable( node ), available );
+    }
+
+    private static final class CountingCacheLoader implements CacheLoader<String> {
+
+        private final AtomicInteger loads = new AtomicInteger();
+        private final AtomicBoolean available = new AtomicBoolean( true );
+
+        @Override
+        public boolean isNodeAvailable( final String key ) {
+            loads.incrementAndGet();
+            return available.get();
+        }
+
+    }
+
+}
@@ -20,6 +20,7 @@ package de.javakaffee.web.msm;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNull;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -190,6 +191,35 @@ public class NodeIdServiceTest {
         return new NodeAvailabilityCache<String>( 10, 100, new DummyCacheLoader( unavailable ) );
     }
 
+    @Test
+    public final void testGetMemcachedNodeIdUsesNodeSelectionPolicyForAvailableNodes() {
+        final NodeIdService cut = new NodeIdService( new NodeAvailabilityCache<String>( 10, 100, new DummyCacheLoader( Arrays.asList( "n1" ) ) ),
+                NodeIdList.create( "n1", "n2", "n3" ), Collections.<String> emptyList() );
+        final List<List<String>> selectedFrom = new ArrayList<List<String>>();
+        cut.setNodeSelectionPolicy( new NodeSelectionPolicy() {
+            @Override
+            public String select( final List<String> availableNodeIds ) {
+                selectedFrom.add( availableNodeIds );
+                return availableNodeIds.get( availableNodeIds.size() - 1 );
+            }
+        } );
+        assertEquals( cut.getMemcachedNodeId(), "n3" );
+        assertEquals( selectedFrom, Arrays.asList( Arrays.asList( "n2", "n3" ) ) );
+    }
+
+    @Test
+    public final void testGetMemcachedNodeIdWithNodeSelectionPolicyFallsBackToFailoverNodes() {
+        final NodeIdService cut = new NodeIdService( new NodeAvailabilityCache<String>( 10, 100, new DummyCacheLoader( Arrays.asList( "n1" ) ) ),
+                NodeIdList.create( "n1" ), Arrays.asList( "n2" ) );
+        cut.setNodeSelectionPolicy( new NodeSelectionPolicy() {
+            @Override
+            public String select( final List<String> availableNodeIds ) {
+                throw new AssertionError( "No primary node is available." );
+            }
+        } );
+        assertEquals( cut.getMemcachedNodeId(), "n2" );
+    }
+
     private static final class DummyCacheLoader implements CacheLoader<String> {
 
         private final List<String> _unavailable;
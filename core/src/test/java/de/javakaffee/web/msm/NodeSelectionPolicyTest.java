@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.spy.memcached.MemcachedClient;
+
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.MemcachedNodesManager.MemcachedClientCallback;
+
+/**
+ * Tests the {@link NodeSelectionPolicy}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class NodeSelectionPolicyTest {
+
+    private static final List<String> NODES = Arrays.asList( "n1", "n2" );
+
+    @Test
+    public void testCreate() {
+        final MemcachedNodesManager nodesManager = MemcachedNodesManager.createFor( "n1:localhost:11211,n2:localhost:11212", null, null,
+                mock( MemcachedClientCallback.class ) );
+        final MemcachedClient memcached = mock( MemcachedClient.class );
+        assertNull( NodeSelectionPolicy.create( null, nodesManager, memcached ) );
+        assertNull( NodeSelectionPolicy.create( "random", nodesManager, memcached ) );
+        assertTrue( NodeSelectionPolicy.create( "p2c", nodesManager, memcached ) instanceof NodeSelectionPolicy.PowerOfTwoChoices );
+        assertTrue( NodeSelectionPolicy.create( "weighted:n1=1,n2=2", nodesManager, memcached ) instanceof NodeSelectionPolicy.Weighted );
+    }
+
+    @Test( expectedExceptions = IllegalArgumentException.class )
+    public void testCreateWithInvalidWeights() {
+        NodeSelectionPolicy.create( "weighted:n1=a", mock( MemcachedNodesManager.class ), mock( MemcachedClient.class ) );
+    }
+
+    @Test
+    public void testPowerOfTwoChoicesPrefersFasterNode() {
+        final NodeStatistics nodeStatistics = new NodeStatistics();
+        for ( int i = 0; i < 100; i++ ) {
+            nodeStatistics.register( "n1", 10000, false );
+            nodeStatistics.register( "n2", 100, false );
+        }
+        final NodeSelectionPolicy cut = new NodeSelectionPolicy.PowerOfTwoChoices( nodeStatistics );
+        for ( int i = 0; i < 100; i++ ) {
+            assertEquals( cut.select( NODES ), "n2" );
+        }
+    }
+
+    @Test
+    public void testPowerOfTwoChoicesAvoidsFailingNode() {
+        final NodeStatistics nodeStatistics = new NodeStatistics();
+        for ( int i = 0; i < 100; i++ ) {
+            nodeStatistics.register( "n1", 100, i % 2 == 0 );
+            nodeStatistics.register( "n2", 300, false );
+        }
+        assertEquals( new NodeSelectionPolicy.PowerOfTwoChoices( nodeStatistics ).select( NODES ), "n2" );
+    }
+
+    @Test
+    public void testWeighted() {
+        final NodeSelectionPolicy cut = NodeSelectionPolicy.create( "weighted:n1=0,n2=1", mock( MemcachedNodesManager.class ),
+                mock( MemcachedClient.class ) );
+        for ( int i = 0; i < 100; i++ ) {
+            assertEquals( cut.select( NODES ), "n2" );
+        }
+        // without any weight nodes are selected randomly
+        final List<String> unweighted = Arrays.asList( "n1", "n3" );
+        assertTrue( unweighted.contains( cut.select( unweighted ) ) );
+    }
+
+    @Test
+    public void testCapacityWeights() {
+        final MemcachedNodesManager nodesManager = MemcachedNodesManager.createFor( "n1:localhost:11211,n2:localhost:11212", null, null,
+                mock( MemcachedClientCallback.class ) );
+        final NodeSelectionPolicy.Capacity cut = new NodeSelectionPolicy.Capacity( nodesManager, mock( MemcachedClient.class ), 60000 );
+        try {
+            final Map<SocketAddress, Map<String, String>> stats = new HashMap<SocketAddress, Map<String, String>>();
+            stats.put( new InetSocketAddress( "localhost", 11211 ), stats( "limit_maxbytes", "1000", "bytes", "1000" ) );
+            stats.put( new InetSocketAddress( "localhost", 11212 ), stats( "limit_maxbytes", "1000", "bytes", "400" ) );
+            final Map<String, Double> weights = cut.computeWeights( stats );
+            assertEquals( weights.get( "n1" ), 0d );
+            assertEquals( weights.get( "n2" ), 600d );
+        } finally {
+            cut.shutdown();
+        }
+    }
+
+    private static Map<String, String> stats( final String ... keysAndValues ) {
+        final Map<String, String> result = new HashMap<String, String>();
+        for ( int i = 0; i < keysAndValues.length; i += 2 ) {
+            result.put( keysAndValues[i], keysAndValues[i + 1] );
+        }
+        return result;
+    }
+
+}
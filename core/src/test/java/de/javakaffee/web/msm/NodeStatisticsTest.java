@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.NodeStatistics.NodeStats;
+import de.javakaffee.web.msm.NodeStatistics.OperationType;
+
+/**
+ * Tests the {@link NodeStatistics}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class NodeStatisticsTest {
+
+    @Test
+    public void testRegisterOperations() {
+        final NodeStatistics cut = new NodeStatistics();
+        assertNull( cut.get( "n1" ) );
+
+        cut.register( "n1", OperationType.GET, 100, false, false, 500, 0 );
+        cut.register( "n1", OperationType.GET, 300, false, false, 0, 0 );
+        cut.register( "n1", OperationType.SET, 1000, true, true, 0, 700 );
+        cut.register( "n1", null, 50, false, false, 0, 0 );
+        cut.register( "n2", OperationType.DELETE, 10, false, false, 0, 0 );
+
+        final NodeStats stats = cut.get( "n1" );
+        assertEquals( stats.getOperations(), 4 );
+        assertEquals( stats.getErrors(), 1 );
+        assertEquals( stats.getTimeouts(), 1 );
+        assertEquals( stats.getBytesIn(), 500 );
+        assertEquals( stats.getBytesOut(), 700 );
+        assertEquals( stats.getLatencies( OperationType.GET ).getCount(), 2 );
+        assertEquals( stats.getLatencies( OperationType.GET ).getMax(), 300 );
+        assertEquals( stats.getLatencies( OperationType.SET ).getCount(), 1 );
+        assertEquals( stats.getLatencies( OperationType.ADD ).getCount(), 0 );
+        assertEquals( cut.get( "n2" ).getLatencies( OperationType.DELETE ).getCount(), 1 );
+    }
+
+    @Test
+    public void testConnectionsAndQueues() {
+        final NodeStatistics cut = new NodeStatistics();
+        cut.connectionEstablished( "n1", 0 );
+        cut.connectionLost( "n1" );
+        cut.connectionEstablished( "n1", 2 );
+        assertEquals( cut.get( "n1" ).getReconnects(), 1 );
+        assertEquals( cut.get( "n1" ).getConnectionsLost(), 1 );
+
+        assertEquals( cut.get( "n1" ).getInputQueueSize(), 0 );
+        final List<String> input = new ArrayList<String>( Arrays.asList( "a", "b" ) );
+        cut.setQueues( "n1", input, Arrays.asList( "c" ), new ArrayList<String>() );
+        assertEquals( cut.get( "n1" ).getInputQueueSize(), 2 );
+        assertEquals( cut.get( "n1" ).getWriteQueueSize(), 1 );
+        assertEquals( cut.get( "n1" ).getReadQueueSize(), 0 );
+        input.clear();
+        assertEquals( cut.get( "n1" ).getInputQueueSize(), 0 );
+    }
+
+    @Test
+    public void testInfo() {
+        final NodeStatistics cut = new NodeStatistics();
+        cut.register( "n2", OperationType.GET, 100, false, false, 0, 0 );
+        cut.register( "n1", OperationType.ADD, 200, false, false, 0, 10 );
+        final String[] info = cut.getInfo();
+        assertEquals( info.length, 2 );
+        assertTrue( info[0].startsWith( "n1: Operations = 1, Errors = 0, Timeouts = 0, Bytes in = 0, Bytes out = 10" ), info[0] );
+        assertTrue( info[0].contains( "ADD P50/P99 = 200/200" ), info[0] );
+        assertTrue( !info[0].contains( "GET" ), info[0] );
+        assertTrue( info[1].startsWith( "n2: " ), info[1] );
+    }
+
+}
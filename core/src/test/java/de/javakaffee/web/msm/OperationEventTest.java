@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.OperationEvent.Outcome;
+import de.javakaffee.web.msm.OperationEvent.Type;
+
+/**
+ * Tests the {@link OperationEvent}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class OperationEventTest {
+
+    private RecordingListener _listener;
+
+    @BeforeMethod
+    public void setUp() {
+        _listener = new RecordingListener();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        OperationEvent.setListener( null, 0 );
+    }
+
+    @Test
+    public void testEventIsPassedToListener() {
+        OperationEvent.setListener( _listener, 0 );
+        final OperationEvent event = OperationEvent.begin( Type.LOAD );
+        assertEquals( _listener.begun, 1 );
+        event.end( "foo-n1", "n1", 42, Outcome.SUCCESS );
+
+        assertEquals( _listener.ended.size(), 1 );
+        assertEquals( event.getType(), Type.LOAD );
+        assertEquals( event.getSessionIdHash(), "foo-n1".hashCode() );
+        assertEquals( event.getNodeId(), "n1" );
+        assertEquals( event.getBytes(), 42 );
+        assertEquals( event.getOutcome(), Outcome.SUCCESS );
+        assertTrue( event.getDurationNanos() >= 0 );
+    }
+
+    @Test
+    public void testEventsBelowThresholdAreDropped() {
+        OperationEvent.setListener( _listener, 60000 );
+        OperationEvent.begin( Type.BACKUP ).end( "foo", null, 0, Outcome.SKIPPED );
+        assertEquals( _listener.begun, 1 );
+        assertTrue( _listener.ended.isEmpty() );
+    }
+
+    @Test
+    public void testSerializationEmitsEvent() {
+        OperationEvent.setListener( _listener, 0 );
+        final SessionAttributesTranscoder transcoder = mock( SessionAttributesTranscoder.class );
+        final MemcachedBackupSession session = new MemcachedBackupSession();
+        session.setIdInternal( "foo" );
+        final Map<String, Object> attributes = Collections.emptyMap();
+        when( transcoder.serializeAttributes( session, attributes ) ).thenReturn( new byte[10] );
+
+        new TranscoderService( transcoder ).serializeAttributes( session, attributes );
+        assertEquals( _listener.ended.size(), 1 );
+        final OperationEvent event = _listener.ended.get( 0 );
+        assertEquals( event.getType(), Type.SERIALIZATION );
+        assertEquals( event.getSessionIdHash(), "foo".hashCode() );
+        assertEquals( event.getBytes(), 10 );
+        assertEquals( event.getOutcome(), Outcome.SUCCESS );
+    }
+
+    private static class RecordingListener implements OperationListener {
+
+        int begun;
+        final List<OperationEvent> ended = new ArrayList<OperationEvent>();
+
+        @Override
+        public void begin( final OperationEvent event ) {
+            begun++;
+        }
+
+        @Override
+        public void end( final OperationEvent event ) {
+            ended.add( event );
+        }
+
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.integration.TestUtils.future;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link RemoteReplicationStream}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class RemoteReplicationStreamTest {
+
+    private MemcachedClient _remote;
+    private Statistics _statistics;
+    private RemoteReplicationStream _cut;
+
+    @BeforeMethod
+    public void setUp() {
+        _remote = mock( MemcachedClient.class );
+        _statistics = Statistics.create();
+        _cut = new RemoteReplicationStream( _remote, null, _statistics, 2, 100, 60000, 3, 1024, 100 );
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        _cut.shutdown();
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testPendingValuesAreCoalesced() {
+        final byte[] first = new byte[] { 1 };
+        final byte[] second = new byte[] { 2 };
+        final OperationFuture<Boolean> success = future( Boolean.TRUE );
+        when( _remote.set( anyString(), anyInt(), any(), any( Transcoder.class ) ) ).thenReturn( success );
+
+        _cut.enqueue( "foo", 10, first );
+        _cut.enqueue( "foo", 20, second );
+        assertEquals( _cut.getPendingCount(), 1 );
+
+        _cut.replicate();
+        verify( _remote ).set( eq( "foo" ), eq( 20 ), eq( second ), any( Transcoder.class ) );
+        verify( _remote, never() ).set( eq( "foo" ), anyInt(), eq( first ), any( Transcoder.class ) );
+        assertEquals( _cut.getPendingCount(), 0 );
+        assertEquals( _statistics.getRemoteReplicated(), 1 );
+        assertEquals( _statistics.getRemoteReplicationCoalesced(), 1 );
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testValuesAreSentInBatches() {
+        final OperationFuture<Boolean> success = future( Boolean.TRUE );
+        when( _remote.set( anyString(), anyInt(), any(), any( Transcoder.class ) ) ).thenReturn( success );
+
+        _cut.enqueue( "a", 0, new byte[0] );
+        _cut.enqueue( "b", 0, new byte[0] );
+        _cut.enqueue( "c", 0, new byte[0] );
+
+        assertEquals( _cut.replicateBatch(), 2 );
+        assertEquals( _cut.getPendingCount(), 1 );
+        assertEquals( _cut.replicateBatch(), 1 );
+        verify( _remote, times( 3 ) ).set( anyString(), anyInt(), any(), any( Transcoder.class ) );
+    }
+
+    @Test
+    public void testNewKeysAreDroppedIfMaxPendingIsReached() {
+        for( int i = 0; i < 4; i++ ) {
+            _cut.enqueue( "key" + i, 0, new byte[0] );
+        }
+        assertEquals( _cut.getPendingCount(), 3 );
+        assertEquals( _statistics.getRemoteReplicationDropped(), 1 );
+
+        // the value of a pending key is still replaced
+        _cut.enqueue( "key0", 0, new byte[0] );
+        assertEquals( _statistics.getRemoteReplicationDropped(), 1 );
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testFailedValuesAreRetriedUntilMaxLag() throws Exception {
+        final OperationFuture<Boolean> failure = future( Boolean.FALSE );
+        when( _remote.set( anyString(), anyInt(), any(), any( Transcoder.class ) ) ).thenReturn( failure );
+
+        final RemoteReplicationStream cut = new RemoteReplicationStream( _remote, null, _statistics, 2, 100, 50, 3, 1024, 100 );
+        try {
+            cut.enqueue( "foo", 0, new byte[0] );
+            // the failed value is not sent again in the same run
+            cut.replicate();
+            verify( _remote, times( 1 ) ).set( anyString(), anyInt(), any(), any( Transcoder.class ) );
+            assertEquals( cut.getPendingCount(), 1 );
+            assertEquals( _statistics.getRemoteReplicated(), 0 );
+
+            Thread.sleep( 100 );
+            cut.replicate();
+            assertEquals( cut.getPendingCount(), 0 );
+            assertEquals( _statistics.getRemoteReplicationDropped(), 1 );
+            verify( _remote, times( 1 ) ).set( anyString(), anyInt(), any(), any( Transcoder.class ) );
+        } finally {
+            cut.shutdown();
+        }
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testFailedValuesAreRetriedWithTheNextRun() {
+        final OperationFuture<Boolean> failure = future( Boolean.FALSE );
+        final OperationFuture<Boolean> success = future( Boolean.TRUE );
+        when( _remote.set( anyString(), anyInt(), any(), any( Transcoder.class ) ) ).thenReturn( failure, success );
+
+        _cut.enqueue( "foo", 0, new byte[0] );
+        _cut.replicate();
+        assertEquals( _cut.getPendingCount(), 1 );
+
+        _cut.replicate();
+        verify( _remote, times( 2 ) ).set( anyString(), anyInt(), any(), any( Transcoder.class ) );
+        assertEquals( _cut.getPendingCount(), 0 );
+        assertEquals( _statistics.getRemoteReplicated(), 1 );
+    }
+
+    @Test
+    public void testDeleteReplacesPendingValue() {
+        final OperationFuture<Boolean> notFound = future( Boolean.FALSE );
+        when( _remote.delete( "foo" ) ).thenReturn( notFound );
+
+        _cut.enqueue( "foo", 0, new byte[0] );
+        _cut.delete( "foo" );
+        _cut.replicate();
+
+        verify( _remote ).delete( "foo" );
+        assertEquals( _cut.getPendingCount(), 0 );
+        assertEquals( _statistics.getRemoteReplicated(), 1 );
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Host;
+import org.apache.catalina.Valve;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.MemcachedSessionService.SessionManager;
+import de.javakaffee.web.msm.RequestTimings.Phase;
+
+/**
+ * Tests the {@link RequestTimings} and their rendering by the {@link RequestTrackingHostValve}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class RequestTimingsTest {
+
+    @Test
+    public void testToServerTiming() {
+        final RequestTimings cut = new RequestTimings();
+        assertEquals( cut.toServerTiming(), "" );
+
+        final long now = System.nanoTime();
+        cut.addSince( Phase.LOCK, now - 1250000 );
+        cut.addSince( Phase.BACKUP, now - 2005000 );
+        final String[] timings = cut.toServerTiming().split( ", " );
+        assertEquals( timings.length, 2, cut.toServerTiming() );
+        assertTrue( timings[0].matches( "msm-lock;dur=1\\.2[0-9]{2}" ), timings[0] );
+        assertTrue( timings[1].matches( "msm-backup;dur=2\\.[0-9]{3}" ), timings[1] );
+        assertTrue( cut.getNanos( Phase.LOCK ) >= 1250000 );
+        assertEquals( cut.getNanos( Phase.GET ), 0 );
+    }
+
+    @Test
+    public void testCurrentRequestBindsTimingsToThread() throws Exception {
+        final CurrentRequest currentRequest = new CurrentRequest();
+        assertNull( currentRequest.getTimings() );
+        final RequestTimings timings = currentRequest.startTimings();
+        assertEquals( currentRequest.getTimings(), timings );
+        final Thread other = new Thread() {
+            @Override
+            public void run() {
+                assertNull( currentRequest.getTimings() );
+            }
+        };
+        other.start();
+        other.join();
+        currentRequest.endTimings();
+        assertNull( currentRequest.getTimings() );
+    }
+
+    @Test
+    public void testValveSetsServerTimingHeader() throws Exception {
+        final CurrentRequest currentRequest = new CurrentRequest();
+        final Context context = mock( Context.class );
+        final RequestTrackingHostValve cut = createValve( currentRequest, context );
+        final Request request = createRequest( context );
+        final Response response = mock( Response.class );
+
+        final Valve next = mock( Valve.class );
+        doAnswer( new Answer<Void>() {
+            @Override
+            public Void answer( final InvocationOnMock invocation ) throws Throwable {
+                final RequestTimings timings = currentRequest.getTimings();
+                assertNotNull( timings );
+                timings.addSince( Phase.LOCK, System.nanoTime() - 3000000 );
+                return null;
+            }
+        } ).when( next ).invoke( request, response );
+        cut.setNext( next );
+
+        cut.setServerTiming( true );
+        cut.invoke( request, response );
+        verify( response ).addHeader( eq( "Server-Timing" ), startsWith( "msm-lock;dur=3." ) );
+        verify( request ).setAttribute( eq( RequestTrackingHostValve.SERVER_TIMING_ATTRIBUTE ), startsWith( "msm-lock;dur=3." ) );
+        assertNull( currentRequest.getTimings() );
+    }
+
+    @Test
+    public void testValveWithoutServerTiming() throws Exception {
+        final CurrentRequest currentRequest = new CurrentRequest();
+        final Context context = mock( Context.class );
+        final RequestTrackingHostValve cut = createValve( currentRequest, context );
+        final Request request = createRequest( context );
+        final Response response = mock( Response.class );
+        cut.setNext( mock( Valve.class ) );
+
+        cut.invoke( request, response );
+        verify( response, never() ).addHeader( eq( "Server-Timing" ), anyString() );
+    }
+
+    private static RequestTrackingHostValve createValve( final CurrentRequest currentRequest, final Context context ) {
+        final MemcachedSessionService service = mock( MemcachedSessionService.class );
+        final SessionManager manager = mock( SessionManager.class );
+        when( service.getManager() ).thenReturn( manager );
+        when( manager.getContainer() ).thenReturn( context );
+        when( context.getParent() ).thenReturn( mock( Host.class ) );
+        return new RequestTrackingHostValve( null, "JSESSIONID", service, Statistics.create(), new AtomicBoolean( true ), currentRequest ) {
+            @Override
+            protected String[] getSetCookieHeaders( final Response response ) {
+                return null;
+            }
+        };
+    }
+
+    private static Request createRequest( final Context context ) {
+        final Request request = mock( Request.class );
+        when( request.getContext() ).thenReturn( context );
+        when( request.getRequestURI() ).thenReturn( "/foo" );
+        when( request.getMethod() ).thenReturn( "GET" );
+        return request;
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.integration.TestUtils.serializedSession;
+import static java.util.Arrays.asList;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.BulkFuture;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.MemcachedSessionService.SessionManager;
+
+/**
+ * Tests the {@link SessionJournal}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SessionJournalTest {
+
+    private File _directory;
+    private SessionJournal _cut;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        _directory = File.createTempFile( "msm-journal", "" );
+        _directory.delete();
+        _cut = new SessionJournal( _directory, 256, 0 );
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        _cut.shutdown();
+        for ( final File file : _directory.listFiles() ) {
+            file.delete();
+        }
+        _directory.delete();
+    }
+
+    @Test
+    public void testSessionsAreReadAfterReopen() throws IOException {
+        _cut.append( "s1", new byte[] { 1 } );
+        _cut.append( "s2", new byte[] { 2 } );
+        _cut.append( "s1", new byte[] { 3 } );
+        _cut.remove( "s2" );
+        _cut.shutdown();
+
+        _cut = new SessionJournal( _directory, 256, 0 );
+        final Map<String, byte[]> sessions = _cut.readAll();
+        assertEquals( sessions.size(), 1 );
+        assertEquals( sessions.get( "s1" ), new byte[] { 3 } );
+    }
+
+    @Test
+    public void testSegmentsAreRotatedAndCompacted() throws IOException {
+        final byte[] data = new byte[100];
+        _cut.append( "s1", data );
+        _cut.append( "s2", data );
+        _cut.append( "s3", data );
+        _cut.append( "s2", data );
+        _cut.append( "s3", data );
+        assertEquals( _cut.getSegmentCount(), 3 );
+
+        // s1 is the only live session of the first segment, half of it is live
+        assertEquals( _cut.compact(), 0 );
+        _cut.append( "s4", data );
+        _cut.remove( "s4" );
+        _cut.append( "s1", data );
+        assertEquals( _cut.compact(), 1 );
+        assertEquals( _cut.getSegmentCount(), 3 );
+        assertEquals( _cut.getSessionCount(), 3 );
+        assertEquals( _directory.listFiles().length, 3, "The compacted segment should be deleted." );
+        assertEquals( _cut.readAll().keySet(), new HashSet<String>( asList( "s1", "s2", "s3" ) ) );
+
+        _cut.shutdown();
+        _cut = new SessionJournal( _directory, 256, 0 );
+        assertEquals( _cut.readAll().keySet(), new HashSet<String>( asList( "s1", "s2", "s3" ) ) );
+    }
+
+    @Test
+    public void testCorruptRecordIsIgnored() throws IOException {
+        _cut.append( "s1", new byte[] { 1 } );
+        _cut.append( "s2", new byte[] { 2 } );
+        _cut.shutdown();
+
+        final File segment = _directory.listFiles()[0];
+        final RandomAccessFile raf = new RandomAccessFile( segment, "rw" );
+        try {
+            // the data of the 2nd record
+            raf.seek( 18 + 17 );
+            raf.write( 42 );
+        } finally {
+            raf.close();
+        }
+
+        _cut = new SessionJournal( _directory, 256, 0 );
+        final Map<String, byte[]> sessions = _cut.readAll();
+        assertEquals( sessions.size(), 1 );
+        assertEquals( sessions.get( "s1" ), new byte[] { 1 } );
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testVerificationRemovesSessionsThatAreNewerOrMissingInMemcached() throws Exception {
+        final SessionManager manager = mock( SessionManager.class );
+        final MemcachedBackupSession current = session( manager, "current", 1000 );
+        final MemcachedBackupSession outdated = session( manager, "outdated", 1000 );
+        final MemcachedBackupSession missing = session( manager, "missing", 1000 );
+        _cut.append( "current", new byte[0] );
+        _cut.append( "outdated", new byte[0] );
+        _cut.append( "missing", new byte[0] );
+
+        final Map<String, Object> loaded = new HashMap<String, Object>();
+        loaded.put( "current", serializedSession( 1000 ) );
+        loaded.put( "outdated", serializedSession( 2000 ) );
+        final BulkFuture<Map<String, Object>> future = mock( BulkFuture.class );
+        when( future.get( anyLong(), any( TimeUnit.class ) ) ).thenReturn( loaded );
+        final MemcachedClient memcached = mock( MemcachedClient.class );
+        when( memcached.asyncGetBulk( anyCollectionOf( String.class ) ) ).thenReturn( future );
+
+        _cut.startVerification( memcached, StorageKeyFormat.EMPTY, manager, asList( "current", "outdated", "missing" ), 100, 1000 );
+        assertEquals( _cut.verify( memcached, StorageKeyFormat.EMPTY, manager, 100, 1000 ), 2 );
+
+        verify( manager ).removeInternal( outdated, false );
+        verify( manager ).removeInternal( missing, false );
+        verify( manager, never() ).removeInternal( current, false );
+        assertEquals( _cut.getSessionCount(), 1 );
+        assertFalse( _cut.readAll().containsKey( "missing" ) );
+    }
+
+    private static MemcachedBackupSession session( final SessionManager manager, final String id, final long lastBackupTime ) {
+        final MemcachedBackupSession result = new MemcachedBackupSession();
+        result.setIdInternal( id );
+        result.setLastBackupTime( lastBackupTime );
+        when( manager.getSessionInternal( id ) ).thenReturn( result );
+        return result;
+    }
+
+}
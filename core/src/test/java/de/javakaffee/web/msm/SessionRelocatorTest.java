@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.Future;
+
+import org.apache.catalina.Session;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.BackupSessionTask.BackupResult;
+import de.javakaffee.web.msm.MemcachedSessionService.SessionManager;
+
+/**
+ * Tests the {@link SessionRelocator}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SessionRelocatorTest {
+
+    private MemcachedSessionService _service;
+    private SessionManager _manager;
+    private SessionRelocator _cut;
+
+    @BeforeMethod
+    public void setUp() {
+        _service = mock( MemcachedSessionService.class );
+        _manager = mock( SessionManager.class );
+        when( _service.getManager() ).thenReturn( _manager );
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        if ( _cut != null ) {
+            _cut.shutdown();
+        }
+    }
+
+    @Test
+    public void testRelocatesOnlySessionsAcceptedByService() {
+        _cut = new SessionRelocator( _service, 1000, 1000 );
+        final MemcachedBackupSession relocated = mock( MemcachedBackupSession.class );
+        final MemcachedBackupSession skipped = mock( MemcachedBackupSession.class );
+        when( _manager.findSessions() ).thenReturn( new Session[] { relocated, skipped } );
+        when( _service.relocateSession( relocated, "n1" ) ).thenReturn( new BackupSessionService.SimpleFuture<BackupResult>( BackupResult.SKIPPED ) );
+        when( _service.relocateSession( skipped, "n1" ) ).thenReturn( null );
+
+        assertEquals( _cut.relocateSessions( "n1" ), 1 );
+        verify( _service ).relocateSession( relocated, "n1" );
+        verify( _service ).relocateSession( skipped, "n1" );
+    }
+
+    @Test
+    public void testRelocationIsRateLimited() {
+        _cut = new SessionRelocator( _service, 20, 1000 );
+        final Session[] sessions = new Session[6];
+        for ( int i = 0; i < sessions.length; i++ ) {
+            sessions[i] = mock( MemcachedBackupSession.class );
+        }
+        when( _manager.findSessions() ).thenReturn( sessions );
+        when( _service.relocateSession( any( MemcachedBackupSession.class ), eq( "n1" ) ) )
+            .thenReturn( new BackupSessionService.SimpleFuture<BackupResult>( BackupResult.SKIPPED ) );
+
+        final long start = System.currentTimeMillis();
+        assertEquals( _cut.relocateSessions( "n1" ), 6 );
+        // 3 batches of 2 sessions at 20 sessions/sec, the last one is not followed by a pause
+        assertTrue( System.currentTimeMillis() - start >= 200, "Relocation was not rate limited." );
+    }
+
+    @Test
+    public void testNodeUnavailableTriggersRelocation() throws Exception {
+        _cut = new SessionRelocator( _service, 1000, 1000 );
+        final MemcachedBackupSession session = mock( MemcachedBackupSession.class );
+        when( _manager.findSessions() ).thenReturn( new Session[] { session } );
+        final Future<BackupResult> result = new BackupSessionService.SimpleFuture<BackupResult>( BackupResult.SKIPPED );
+        when( _service.relocateSession( session, "n1" ) ).thenReturn( result );
+
+        _cut.onNodeUnavailable( "n1" );
+        Thread.sleep( 200 );
+
+        verify( _service, times( 1 ) ).relocateSession( session, "n1" );
+        verify( _service, never() ).relocateSession( session, "n2" );
+    }
+
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.MemcachedNodesManager.createFor;
+import static de.javakaffee.web.msm.integration.TestUtils.future;
+import static de.javakaffee.web.msm.integration.TestUtils.serializedSession;
+import static java.util.Arrays.asList;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.spy.memcached.CASValue;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.MemcachedNodesManager.MemcachedClientCallback;
+import de.javakaffee.web.msm.SessionReplicator.ValueType;
+
+/**
+ * Tests the {@link SessionReplicator}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SessionReplicatorTest {
+
+    private static final String KEY = "foo-n1";
+
+    private MemcachedClient _memcached;
+    private MemcachedNodesManager _memcachedNodesManager;
+    private Statistics _statistics;
+    private SessionReplicator _cut;
+
+    @BeforeMethod
+    public void setUp() {
+        _memcached = mock( MemcachedClient.class );
+        _memcachedNodesManager = createFor( "n1:localhost:11211 n2:localhost:11212 n3:localhost:11213", null, StorageKeyFormat.EMPTY,
+                mock( MemcachedClientCallback.class ) );
+        _statistics = Statistics.create();
+        _cut = new SessionReplicator( _memcached, _memcachedNodesManager, _statistics, 3, 2, 1000 );
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        _cut.shutdown();
+        _memcachedNodesManager.shutdown();
+    }
+
+    @Test
+    public void testReplicasAreStoredInSuccessors() {
+        assertEquals( _cut.getReplicaNodeIds( KEY ), asList( "n2", "n3" ) );
+        assertEquals( _cut.getReplicaNodeIds( "foo-n3" ), asList( "n1", "n2" ) );
+        assertTrue( _cut.getReplicaNodeIds( _memcachedNodesManager.getSessionIdFormat().createBackupKey( KEY ) ).isEmpty() );
+    }
+
+    @Test
+    public void testReplicaKeyIsLocatedByNodeId() {
+        final SessionIdFormat format = _memcachedNodesManager.getSessionIdFormat();
+        final String replicaKey = format.createReplicaKey( "validity:" + KEY, "n3" );
+        assertTrue( format.isReplicaKey( replicaKey ) );
+        assertEquals( format.extractReplicaNodeId( replicaKey ), "n3" );
+    }
+
+    @Test
+    public void testSetSucceedsWithWriteQuorum() throws Exception {
+        final byte[] data = serializedSession( 1000 );
+        final OperationFuture<Boolean> primary = future( Boolean.TRUE );
+        when( _memcached.set( KEY, 0, data ) ).thenReturn( primary );
+        final OperationFuture<Boolean> replica2 = future( Boolean.FALSE );
+        when( _memcached.set( replicaKey( "n2" ), 0, data ) ).thenReturn( replica2 );
+        final OperationFuture<Boolean> replica3 = future( Boolean.TRUE );
+        when( _memcached.set( replicaKey( "n3" ), 0, data ) ).thenReturn( replica3 );
+
+        assertEquals( _cut.set( KEY, 0, data ).get( 100, TimeUnit.MILLISECONDS ), Boolean.TRUE );
+    }
+
+    @Test( expectedExceptions = ExecutionException.class )
+    public void testSetFailsWithoutWriteQuorum() throws Exception {
+        final byte[] data = serializedSession( 1000 );
+        final OperationFuture<Boolean> primary = future( Boolean.TRUE );
+        when( _memcached.set( KEY, 0, data ) ).thenReturn( primary );
+        final OperationFuture<Boolean> replica2 = future( Boolean.FALSE );
+        when( _memcached.set( replicaKey( "n2" ), 0, data ) ).thenReturn( replica2 );
+        final OperationFuture<Boolean> replica3 = future( Boolean.FALSE );
+        when( _memcached.set( replicaKey( "n3" ), 0, data ) ).thenReturn( replica3 );
+
+        _cut.set( KEY, 0, data ).get( 100, TimeUnit.MILLISECONDS );
+    }
+
+    @Test
+    public void testGetReturnsValueOfAnyReplica() throws Exception {
+        final byte[] data = serializedSession( 1000 );
+        final OperationFuture<CASValue<Object>> primary = future( (CASValue<Object>) null );
+        when( _memcached.asyncGets( KEY ) ).thenReturn( primary );
+        final OperationFuture<CASValue<Object>> replica2 = future( new CASValue<Object>( 1, data ) );
+        when( _memcached.asyncGets( replicaKey( "n2" ) ) ).thenReturn( replica2 );
+        final OperationFuture<CASValue<Object>> replica3 = future( (CASValue<Object>) null );
+        when( _memcached.asyncGets( replicaKey( "n3" ) ) ).thenReturn( replica3 );
+
+        assertEquals( _cut.get( KEY, ValueType.SESSION, 100 ), data );
+    }
+
+    @Test
+    public void testGetReturnsNewestValueOfReadQuorum() throws Exception {
+        final byte[] stale = serializedSession( 1000 );
+        final byte[] newest = serializedSession( 2000 );
+        final OperationFuture<CASValue<Object>> primary = future( new CASValue<Object>( 1, stale ) );
+        when( _memcached.asyncGets( KEY ) ).thenReturn( primary );
+        final OperationFuture<CASValue<Object>> replica2 = future( new CASValue<Object>( 2, newest ) );
+        when( _memcached.asyncGets( replicaKey( "n2" ) ) ).thenReturn( replica2 );
+        final OperationFuture<CASValue<Object>> replica3 = pendingGet();
+        when( _memcached.asyncGets( replicaKey( "n3" ) ) ).thenReturn( replica3 );
+
+        assertEquals( _cut.getReadQuorum( 3 ), 2 );
+        assertEquals( _cut.get( KEY, ValueType.SESSION, 100 ), newest );
+    }
+
+    @Test( expectedExceptions = TimeoutException.class )
+    public void testGetDoesNotReturnStaleReplicaWithoutReadQuorum() throws Exception {
+        final OperationFuture<CASValue<Object>> primary = future( new CASValue<Object>( 1, serializedSession( 1000 ) ) );
+        when( _memcached.asyncGets( KEY ) ).thenReturn( primary );
+        final OperationFuture<CASValue<Object>> replica2 = pendingGet();
+        when( _memcached.asyncGets( replicaKey( "n2" ) ) ).thenReturn( replica2 );
+        final OperationFuture<CASValue<Object>> replica3 = pendingGet();
+        when( _memcached.asyncGets( replicaKey( "n3" ) ) ).thenReturn( replica3 );
+
+        _cut.get( KEY, ValueType.SESSION, 100 );
+    }
+
+    @Test
+    public void testGetReturnsNullIfNoReplicaHasValue() throws Exception {
+        final OperationFuture<CASValue<Object>> miss = future( (CASValue<Object>) null );
+        when( _memcached.asyncGets( anyString() ) ).thenReturn( miss );
+        assertNull( _cut.get( KEY, ValueType.SESSION, 100 ) );
+    }
+
+    @Test
+    public void testGetDoesNotRepairIfAllReplicasAgree() throws Exception {
+        final OperationFuture<CASValue<Object>> value = future( new CASValue<Object>( 1, serializedSession( 1000 ) ) );
+        when( _memcached.asyncGets( anyString() ) ).thenReturn( value );
+
+        _cut.get( KEY, ValueType.SESSION, 100 );
+        assertEquals( _cut.getScheduledRepairs(), 0 );
+    }
+
+    @Test
+    public void testGetRepairsIfReplicasDiffer() throws Exception {
+        final OperationFuture<CASValue<Object>> value = future( new CASValue<Object>( 1, serializedSession( 1000 ) ) );
+        when( _memcached.asyncGets( anyString() ) ).thenReturn( value );
+        final OperationFuture<CASValue<Object>> miss = future( (CASValue<Object>) null );
+        when( _memcached.asyncGets( replicaKey( "n3" ) ) ).thenReturn( miss );
+
+        _cut.get( KEY, ValueType.SESSION, 100 );
+        assertEquals( _cut.getScheduledRepairs(), 1 );
+    }
+
+    @Test
+    public void testRepairsAreDroppedIfTooManyArePending() throws Exception {
+        final OperationFuture<CASValue<Object>> value = future( new CASValue<Object>( 1, serializedSession( 1000 ) ) );
+        when( _memcached.asyncGets( anyString() ) ).thenReturn( value );
+        final CountDownLatch slowReplica = new CountDownLatch( 1 );
+        final OperationFuture<CASValue<Object>> slow = pendingGet();
+        when( slow.get( anyLong(), any( TimeUnit.class ) ) ).thenAnswer( new Answer<CASValue<Object>>() {
+            @Override
+            public CASValue<Object> answer( final InvocationOnMock invocation ) throws Throwable {
+                slowReplica.await();
+                return null;
+            }
+        } );
+        when( _memcached.asyncGets( replicaKey( "n3" ) ) ).thenReturn( slow );
+
+        try {
+            // one repair is running (waiting for the slow replica), the others are pending
+            for ( int i = 0; i < SessionReplicator.MAX_PENDING_REPAIRS + 3; i++ ) {
+                _cut.get( KEY, ValueType.SESSION, 100 );
+            }
+            assertTrue( _statistics.getReplicaRepairsDropped() >= 2 );
+            assertTrue( _cut.getScheduledRepairs() <= SessionReplicator.MAX_PENDING_REPAIRS + 1 );
+        } finally {
+            slowReplica.countDown();
+        }
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testRepairUpdatesStaleAndMissingReplicas() {
+        final byte[] newest = serializedSession( 2000 );
+        final byte[] stale = serializedSession( 1000 );
+        final List<String> keys = asList( KEY, replicaKey( "n2" ), replicaKey( "n3" ) );
+        final List<Future<CASValue<Object>>> futures = new ArrayList<Future<CASValue<Object>>>();
+        futures.add( future( new CASValue<Object>( 1, newest ) ) );
+        futures.add( future( new CASValue<Object>( 42, stale ) ) );
+        futures.add( future( (CASValue<Object>) null ) );
+
+        assertEquals( _cut.repair( keys, futures, ValueType.SESSION ), 2 );
+        verify( _memcached ).asyncCAS( eq( replicaKey( "n2" ) ), eq( 42L ), eq( 3600 ), eq( newest ), any( Transcoder.class ) );
+        verify( _memcached ).add( replicaKey( "n3" ), 3600, newest );
+        verify( _memcached, never() ).add( eq( KEY ), anyInt(), any() );
+        assertEquals( _statistics.getReplicaRepairs(), 2 );
+    }
+
+    @Test
+    public void testQuorumFutureIsDoneWithQuorum() {
+        final List<OperationFuture<Boolean>> futures = new ArrayList<OperationFuture<Boolean>>();
+        futures.add( future( Boolean.TRUE ) );
+        futures.add( future( Boolean.TRUE ) );
+        futures.add( pending() );
+        assertTrue( new SessionReplicator.QuorumFuture( futures, 2 ).isDone() );
+    }
+
+    @Test
+    public void testQuorumFutureIsDoneWhenPendingWriteCompletes() throws Exception {
+        final OperationFuture<Boolean> pending = pending();
+        final List<OperationFuture<Boolean>> futures = new ArrayList<OperationFuture<Boolean>>();
+        futures.add( future( Boolean.TRUE ) );
+        futures.add( future( Boolean.FALSE ) );
+        futures.add( pending );
+        final SessionReplicator.QuorumFuture cut = new SessionReplicator.QuorumFuture( futures, 2 );
+        assertFalse( cut.isDone() );
+        try {
+            cut.get( 10, TimeUnit.MILLISECONDS );
+            fail( "Expected TimeoutException" );
+        } catch ( final TimeoutException e ) {
+            // expected
+        }
+
+        when( pending.get() ).thenReturn( Boolean.TRUE );
+        cut.onComplete( pending );
+        assertTrue( cut.isDone() );
+        assertEquals( cut.get( 10, TimeUnit.MILLISECONDS ), Boolean.TRUE );
+    }
+
+    private String replicaKey( final String nodeId ) {
+        return _memcachedNodesManager.getSessionIdFormat().createReplicaKey( KEY, nodeId );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static OperationFuture<CASValue<Object>> pendingGet() {
+        final OperationFuture<CASValue<Object>> result = mock( OperationFuture.class );
+        when( result.isDone() ).thenReturn( false );
+        return result;
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static OperationFuture<Boolean> pending() {
+        final OperationFuture<Boolean> result = mock( OperationFuture.class );
+        when( result.isDone() ).thenReturn( false );
+        return result;
+    }
+
+}
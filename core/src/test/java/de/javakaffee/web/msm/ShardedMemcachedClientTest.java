@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.ShardedMemcachedClient.routingKey;
+import static de.javakaffee.web.msm.integration.TestUtils.createDaemon;
+import static java.util.Arrays.asList;
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.DefaultConnectionFactory;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.Operation;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.thimbleware.jmemcached.MemCacheDaemon;
+
+/**
+ * Tests the {@link ShardedMemcachedClient}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class ShardedMemcachedClientTest {
+
+    private MemCacheDaemon<?> _daemon;
+    private ShardedMemcachedClient _client;
+    private ExecutorService _executor;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        final InetSocketAddress address = new InetSocketAddress( "localhost", 21221 );
+        _daemon = createDaemon( address );
+        _daemon.start();
+        _client = new ShardedMemcachedClient( new DefaultConnectionFactory(), asList( address ), 2, 100, StorageKeyFormat.EMPTY );
+        _executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        _executor.shutdownNow();
+        _client.shutdown();
+        _daemon.stop();
+    }
+
+    @Test
+    public void testRoutingKeyWithoutStorageKeyPrefix() {
+        final SessionIdFormat format = new SessionIdFormat();
+        final String sessionId = "12345678-n1";
+        assertEquals( routingKey( sessionId, StorageKeyFormat.EMPTY ), sessionId );
+        assertEquals( routingKey( format.createLockName( sessionId ), StorageKeyFormat.EMPTY ), sessionId );
+        assertEquals( routingKey( format.createValidityInfoKeyName( sessionId ), StorageKeyFormat.EMPTY ), sessionId );
+        assertEquals( routingKey( format.createBackupKey( sessionId ), StorageKeyFormat.EMPTY ), sessionId );
+        assertEquals( routingKey( format.createBackupKey( format.createValidityInfoKeyName( sessionId ) ), StorageKeyFormat.EMPTY ), sessionId );
+        assertEquals( routingKey( format.createReplicaKey( sessionId, "n2" ), StorageKeyFormat.EMPTY ), sessionId );
+        assertEquals( routingKey( format.createReplicaKey( format.createValidityInfoKeyName( sessionId ), "n2" ), StorageKeyFormat.EMPTY ), sessionId );
+    }
+
+    @Test
+    public void testRoutingKeyWithStorageKeyPrefix() {
+        final StorageKeyFormat storageKeyFormat = StorageKeyFormat.of( "static:x,context", "hst", "ctxt", null );
+        final SessionIdFormat format = new SessionIdFormat( storageKeyFormat );
+        final String sessionId = "12345678-n1";
+        assertEquals( routingKey( storageKeyFormat.format( sessionId ), storageKeyFormat ), sessionId );
+        assertEquals( routingKey( format.createLockName( sessionId ), storageKeyFormat ), sessionId );
+        assertEquals( routingKey( format.createValidityInfoKeyName( sessionId ), storageKeyFormat ), sessionId );
+        assertEquals( routingKey( format.createBackupKey( format.createValidityInfoKeyName( sessionId ) ), storageKeyFormat ), sessionId );
+        assertEquals( routingKey( format.createReplicaKey( storageKeyFormat.format( sessionId ), "n2" ), storageKeyFormat ), sessionId );
+    }
+
+    /**
+     * The lock of a session must not be released before a pending bulk store of the session is finished,
+     * otherwise another tomcat could load the former session.
+     */
+    @Test
+    public void testLockIsReleasedAfterPendingBulkStore() throws Exception {
+        final String sessionId = "12345678-n1";
+        final SessionIdFormat format = new SessionIdFormat();
+        final CountDownLatch bulkStoreFinished = new CountDownLatch( 1 );
+        final OperationFuture<Boolean> bulkStore = new OperationFuture<Boolean>( sessionId, bulkStoreFinished, 1000, _executor );
+        bulkStore.setOperation( mock( Operation.class ) );
+        _client.bulkStored( sessionId, bulkStore );
+
+        final CountDownLatch lockReleased = new CountDownLatch( 1 );
+        _executor.submit( new Runnable() {
+            @Override
+            public void run() {
+                _client.delete( format.createLockName( sessionId ) );
+                lockReleased.countDown();
+            }
+        } );
+
+        // operations for other sessions are not affected
+        assertTrue( _client.delete( format.createLockName( "87654321-n1" ) ).get( 1, TimeUnit.SECONDS ) != null );
+
+        assertFalse( lockReleased.await( 200, TimeUnit.MILLISECONDS ) );
+        bulkStoreFinished.countDown();
+        assertTrue( lockReleased.await( 1, TimeUnit.SECONDS ) );
+        assertEquals( _client.getPendingBulkStores(), 0 );
+    }
+
+    /**
+     * Reads and cas updates of replicas (read repair) must see a pending bulk store of the session.
+     */
+    @Test
+    public void testGetsOfReplicaIsSentAfterPendingBulkStore() throws Exception {
+        final String sessionId = "12345678-n1";
+        final SessionIdFormat format = new SessionIdFormat();
+        final CountDownLatch bulkStoreFinished = new CountDownLatch( 1 );
+        final OperationFuture<Boolean> bulkStore = new OperationFuture<Boolean>( sessionId, bulkStoreFinished, 1000, _executor );
+        bulkStore.setOperation( mock( Operation.class ) );
+        _client.bulkStored( sessionId, bulkStore );
+
+        final CountDownLatch getsSent = new CountDownLatch( 1 );
+        _executor.submit( new Runnable() {
+            @Override
+            public void run() {
+                _client.asyncGets( format.createReplicaKey( sessionId, "n1" ) );
+                getsSent.countDown();
+            }
+        } );
+
+        assertFalse( getsSent.await( 200, TimeUnit.MILLISECONDS ) );
+        bulkStoreFinished.countDown();
+        assertTrue( getsSent.await( 1, TimeUnit.SECONDS ) );
+    }
+
+    @Test
+    public void testLargeValuesAreStoredViaBulkConnection() throws Exception {
+        final String sessionId = "12345678-n1";
+        assertTrue( _client.set( sessionId, 0, new byte[200] ).get( 1, TimeUnit.SECONDS ) );
+        assertTrue( _client.set( new SessionIdFormat().createValidityInfoKeyName( sessionId ), 0, new byte[10] ).get( 1, TimeUnit.SECONDS ) );
+        assertEquals( ( (byte[]) _client.get( sessionId ) ).length, 200 );
+        assertEquals( _client.getPendingBulkStores(), 0 );
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.spy.memcached.MemcachedClient;
+
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.MemcachedNodesManager.MemcachedClientCallback;
+import de.javakaffee.web.msm.Statistics.StatsType;
+
+/**
+ * Tests the {@link SharedResources}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SharedResourcesTest {
+
+    @Test
+    public void testExecutorIsSharedAndShutdownWithLastReference() {
+        final ExecutorService first = SharedResources.acquireExecutor( "msm-test", 2 );
+        final ExecutorService second = SharedResources.acquireExecutor( "msm-test", 2 );
+        assertSame( second, first );
+        final ExecutorService other = SharedResources.acquireExecutor( "msm-test", 3 );
+        assertNotSame( other, first, "A different thread count must not share the executor" );
+        SharedResources.shutdown( other );
+        assertEquals( SharedResources.getReferences( first ), 2 );
+
+        SharedResources.shutdown( first );
+        assertFalse( first.isShutdown() );
+        SharedResources.shutdown( second );
+        assertTrue( first.isShutdown() );
+        assertEquals( SharedResources.getReferences( first ), 0 );
+
+        final ExecutorService recreated = SharedResources.acquireExecutor( "msm-test", 2 );
+        assertNotSame( recreated, first );
+        SharedResources.shutdown( recreated );
+    }
+
+    @Test
+    public void testClientIsSharedAndShutdownWithLastReference() {
+        final MemcachedClient client = mock( MemcachedClient.class );
+        final MemcachedNodesManager nodesManager = newNodesManager();
+        final Statistics statistics = Statistics.create();
+        final SharedResources.ClientFactory factory = new SharedResources.ClientFactory() {
+            @Override
+            public MemcachedClient create( final MemcachedNodesManager memcachedNodesManager, final Statistics statistics ) {
+                return client;
+            }
+        };
+        assertSame( SharedResources.acquireClient( "n1:localhost:11211", nodesManager, statistics, factory ), client );
+        assertSame( SharedResources.acquireClient( "n1:localhost:11211", nodesManager, statistics, factory ), client );
+
+        SharedResources.shutdown( client, nodesManager );
+        verify( client, never() ).shutdown();
+        SharedResources.shutdown( client, nodesManager );
+        verify( client ).shutdown();
+    }
+
+    @Test
+    public void testSharedClientReportsToRemainingContextWhenFirstContextStops() {
+        final MemcachedClient client = mock( MemcachedClient.class );
+        final MemcachedNodesManager[] sharedNodesManager = new MemcachedNodesManager[1];
+        final Statistics[] sharedStatistics = new Statistics[1];
+        final SharedResources.ClientFactory factory = new SharedResources.ClientFactory() {
+            @Override
+            public MemcachedClient create( final MemcachedNodesManager memcachedNodesManager, final Statistics statistics ) {
+                sharedNodesManager[0] = memcachedNodesManager;
+                sharedStatistics[0] = statistics;
+                return client;
+            }
+        };
+        final String key = "n1:localhost:11211 n2:localhost:11212";
+        final MemcachedNodesManager first = newNodesManager();
+        final Statistics firstStatistics = Statistics.create();
+        final MemcachedNodesManager second = newNodesManager();
+        final Statistics secondStatistics = Statistics.create();
+        assertSame( SharedResources.acquireClient( key, first, firstStatistics, factory ), client );
+        assertSame( SharedResources.acquireClient( key, second, secondStatistics, factory ), client );
+        assertNotSame( sharedNodesManager[0], first, "The shared client must not use the nodes manager of a context" );
+
+        final InetSocketAddress n1 = new InetSocketAddress( "localhost", 11211 );
+        sharedNodesManager[0].registerOperation( n1, 100, false );
+        sharedStatistics[0].register( StatsType.CACHED_DATA_SIZE, 42 );
+        assertEquals( first.getNodeStats( "n1" ).getOperations(), 1 );
+        assertEquals( second.getNodeStats( "n1" ).getOperations(), 1 );
+        assertEquals( firstStatistics.getProbe( StatsType.CACHED_DATA_SIZE ).getCount(), 1 );
+        assertEquals( secondStatistics.getProbe( StatsType.CACHED_DATA_SIZE ).getCount(), 1 );
+
+        SharedResources.shutdown( client, first );
+        first.shutdown();
+        verify( client, never() ).shutdown();
+
+        sharedNodesManager[0].registerOperation( n1, 100, false );
+        sharedStatistics[0].register( StatsType.CACHED_DATA_SIZE, 42 );
+        assertEquals( first.getNodeStats( "n1" ).getOperations(), 1 );
+        assertEquals( second.getNodeStats( "n1" ).getOperations(), 2 );
+        assertEquals( firstStatistics.getProbe( StatsType.CACHED_DATA_SIZE ).getCount(), 1 );
+        assertEquals( secondStatistics.getProbe( StatsType.CACHED_DATA_SIZE ).getCount(), 2 );
+        assertTrue( sharedNodesManager[0].isNodeAvailable( "n2" ) );
+
+        SharedResources.shutdown( client, second );
+        verify( client ).shutdown();
+        assertEquals( SharedResources.getReferences( client ), 0 );
+    }
+
+    @Test
+    public void testUnsharedResourcesAreShutdown() {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        SharedResources.shutdown( executor );
+        assertTrue( executor.isShutdown() );
+    }
+
+    private static MemcachedNodesManager newNodesManager() {
+        return MemcachedNodesManager.createFor( "n1:localhost:11211 n2:localhost:11212", null, StorageKeyFormat.EMPTY,
+                mock( MemcachedClientCallback.class ) );
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link SlidingWindowCounter}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SlidingWindowCounterTest {
+
+    @Test
+    public void testEventsLeaveTheWindow() {
+        final SlidingWindowCounter cut = new SlidingWindowCounter( 60, 1000 );
+        assertEquals( cut.getWindowMillis(), 60000 );
+        assertEquals( cut.getSum( 100000 ), 0 );
+
+        cut.add( 100000, 1 );
+        cut.add( 100500, 2 );
+        cut.add( 130000, 4 );
+        assertEquals( cut.getSum( 130000 ), 7 );
+        assertEquals( cut.getSum( 159999 ), 7 );
+        assertEquals( cut.getSum( 160000 ), 4 );
+        assertEquals( cut.getSum( 190000 ), 0 );
+    }
+
+    @Test
+    public void testSlotIsClearedWhenReused() {
+        final SlidingWindowCounter cut = new SlidingWindowCounter( 60, 1000 );
+        cut.add( 100000, 5 );
+        // the same slot one minute later
+        cut.add( 160000, 1 );
+        assertEquals( cut.getSum( 160000 ), 1 );
+        // an earlier time does not see the newer interval
+        assertEquals( cut.getSum( 100000 ), 0 );
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link SlidingWindowHistogram}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SlidingWindowHistogramTest {
+
+    @Test
+    public void testPercentilesOfTheWindow() {
+        final SlidingWindowHistogram cut = new SlidingWindowHistogram( 12, 5000 );
+        assertEquals( cut.getSnapshot( 100000 ).getCount(), 0 );
+
+        for ( int i = 0; i < 100; i++ ) {
+            cut.record( 100000, 1000 );
+        }
+        for ( int i = 0; i < 100; i++ ) {
+            cut.record( 130000, 10 );
+        }
+        final Histogram all = cut.getSnapshot( 130000 );
+        assertEquals( all.getCount(), 200 );
+        assertEquals( all.getMax(), 1000 );
+
+        // the slow values left the window
+        final Histogram recent = cut.getSnapshot( 165000 );
+        assertEquals( recent.getCount(), 100 );
+        assertEquals( recent.getPercentile( 99 ), 10 );
+
+        // the slot of the slow values is reused
+        cut.record( 160000, 20 );
+        assertEquals( cut.getSnapshot( 160000 ).getCount(), 101 );
+        assertEquals( cut.getSnapshot( 160000 ).getMax(), 20 );
+    }
+
+}
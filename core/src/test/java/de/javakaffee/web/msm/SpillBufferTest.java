@@ -0,0 +1,181 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.integration.TestUtils.future;
+import static de.javakaffee.web.msm.integration.TestUtils.serializedSession;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link SpillBuffer}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SpillBufferTest {
+
+    private MemcachedClient _memcached;
+    private MemcachedNodesManager _nodesManager;
+    private MemcachedSessionService _sessionService;
+    private Statistics _statistics;
+    private SpillBuffer _cut;
+
+    @BeforeMethod
+    public void setUp() {
+        _memcached = mock( MemcachedClient.class );
+        _nodesManager = mock( MemcachedNodesManager.class );
+        _sessionService = mock( MemcachedSessionService.class );
+        when( _sessionService.getMemcached() ).thenReturn( _memcached );
+        when( _sessionService.getMemcachedNodesManager() ).thenReturn( _nodesManager );
+        _statistics = Statistics.create();
+        _cut = new SpillBuffer( _sessionService, _statistics, 200, 100, 1000 );
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        _cut.shutdown();
+    }
+
+    @Test
+    public void testLatestVersionIsKeptWithinMaxSize() {
+        assertTrue( _cut.spill( "foo-n1", "n1", 0, new byte[100] ) );
+        assertTrue( _cut.spill( "foo-n1", "n1", 0, new byte[150] ) );
+        assertEquals( _cut.getBacklogSize(), 1 );
+        assertEquals( _cut.getBacklogBytes(), 150 );
+
+        assertFalse( _cut.spill( "bar-n1", "n1", 0, new byte[100] ) );
+        assertEquals( _statistics.getSpillRejected(), 1 );
+
+        _cut.remove( "foo-n1" );
+        assertEquals( _cut.getBacklogSize(), 0 );
+        assertEquals( _cut.getBacklogBytes(), 0 );
+    }
+
+    @Test
+    public void testSessionsAreReplayedWhenNodeIsAvailable() throws Exception {
+        final byte[] data = serializedSession( 1000 );
+        _cut.spill( "foo-n1", "n1", 10, data );
+        when( _nodesManager.isNodeAvailable( "n1" ) ).thenReturn( false );
+        assertEquals( _cut.replay(), 0 );
+        verify( _memcached, never() ).add( "foo-n1", 10, data );
+
+        final OperationFuture<Boolean> added = future( Boolean.TRUE );
+        when( _memcached.add( "foo-n1", 10, data ) ).thenReturn( added );
+        when( _nodesManager.isNodeAvailable( "n1" ) ).thenReturn( true );
+        assertEquals( _cut.replay(), 1 );
+        assertEquals( _cut.getBacklogSize(), 0 );
+        assertEquals( _statistics.getSpillReplayed(), 1 );
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testNewerVersionInMemcachedWins() throws Exception {
+        final byte[] spilled = serializedSession( 1000 );
+        final byte[] stored = serializedSession( 2000 );
+        _cut.spill( "foo-n1", "n1", 10, spilled );
+        when( _nodesManager.isNodeAvailable( "n1" ) ).thenReturn( true );
+        final OperationFuture<Boolean> notAdded = future( Boolean.FALSE );
+        when( _memcached.add( "foo-n1", 10, spilled ) ).thenReturn( notAdded );
+        final OperationFuture<CASValue<Object>> existing = future( new CASValue<Object>( 42, stored ) );
+        when( _memcached.asyncGets( "foo-n1" ) ).thenReturn( existing );
+
+        assertEquals( _cut.replay(), 0 );
+        verify( _memcached, never() ).asyncCAS( eq( "foo-n1" ), anyLong(), any( Integer.class ), any(), any( Transcoder.class ) );
+        assertEquals( _cut.getBacklogSize(), 0 );
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testSpilledVersionReplacesOlderVersion() throws Exception {
+        final byte[] spilled = serializedSession( 2000 );
+        final byte[] stored = serializedSession( 1000 );
+        _cut.spill( "foo-n1", "n1", 10, spilled );
+        when( _nodesManager.isNodeAvailable( "n1" ) ).thenReturn( true );
+        final OperationFuture<Boolean> notAdded = future( Boolean.FALSE );
+        when( _memcached.add( "foo-n1", 10, spilled ) ).thenReturn( notAdded );
+        final OperationFuture<CASValue<Object>> existing = future( new CASValue<Object>( 42, stored ) );
+        when( _memcached.asyncGets( "foo-n1" ) ).thenReturn( existing );
+        final OperationFuture<CASResponse> cas = future( CASResponse.OK );
+        when( _memcached.asyncCAS( eq( "foo-n1" ), eq( 42L ), eq( 10 ), eq( spilled ), any( Transcoder.class ) ) ).thenReturn( cas );
+
+        assertEquals( _cut.replay(), 1 );
+        verify( _memcached ).asyncCAS( eq( "foo-n1" ), eq( 42L ), eq( 10 ), eq( spilled ), any( Transcoder.class ) );
+        assertEquals( _cut.getBacklogSize(), 0 );
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testSessionIsKeptIfCasFails() throws Exception {
+        final byte[] spilled = serializedSession( 2000 );
+        _cut.spill( "foo-n1", "n1", 10, spilled );
+        when( _nodesManager.isNodeAvailable( "n1" ) ).thenReturn( true );
+        final OperationFuture<Boolean> notAdded = future( Boolean.FALSE );
+        when( _memcached.add( "foo-n1", 10, spilled ) ).thenReturn( notAdded );
+        final OperationFuture<CASValue<Object>> existing = future( new CASValue<Object>( 42, serializedSession( 1000 ) ) );
+        when( _memcached.asyncGets( "foo-n1" ) ).thenReturn( existing );
+        final OperationFuture<CASResponse> cas = future( CASResponse.EXISTS );
+        when( _memcached.asyncCAS( eq( "foo-n1" ), eq( 42L ), eq( 10 ), eq( spilled ), any( Transcoder.class ) ) ).thenReturn( cas );
+
+        assertEquals( _cut.replay(), 0 );
+        assertEquals( _cut.getBacklogSize(), 1, "The session must be replayed again after a concurrent write." );
+        assertEquals( _statistics.getSpillReplayed(), 0 );
+    }
+
+    @Test
+    public void testExpiredSessionsAreDroppedAndOthersReplayedWithRemainingExpiration() throws Exception {
+        final byte[] expiring = serializedSession( 1000 );
+        final byte[] data = serializedSession( 2000 );
+        _cut.spill( "foo-n1", "n1", 1, expiring );
+        _cut.spill( "bar-n1", "n1", 3, data );
+        when( _nodesManager.isNodeAvailable( "n1" ) ).thenReturn( true );
+        final OperationFuture<Boolean> added = future( Boolean.TRUE );
+        when( _memcached.add( "bar-n1", 2, data ) ).thenReturn( added );
+
+        Thread.sleep( 1100 );
+        assertEquals( _cut.replay(), 1 );
+        verify( _memcached ).add( "bar-n1", 2, data );
+        verify( _memcached, never() ).add( eq( "foo-n1" ), any( Integer.class ), any() );
+        assertEquals( _cut.getBacklogSize(), 0 );
+    }
+
+    @Test
+    public void testSessionsOfRemovedNodesAreDropped() throws Exception {
+        _cut.spill( "foo-n3", "n3", 0, new byte[10] );
+        when( _nodesManager.isNodeAvailable( "n3" ) ).thenThrow( new IllegalArgumentException( "unknown node" ) );
+        assertEquals( _cut.replay(), 0 );
+        assertEquals( _cut.getBacklogSize(), 0 );
+    }
+
+}
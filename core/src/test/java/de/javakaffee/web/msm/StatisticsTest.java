@@ -17,13 +17,26 @@
 package de.javakaffee.web.msm;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
 
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
 
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import de.javakaffee.web.msm.Statistics.MinMaxAvgProbe;
+import de.javakaffee.web.msm.Statistics.StatsType;
+import de.javakaffee.web.msm.Statistics.Window;
+import de.javakaffee.web.msm.Statistics.WindowSnapshot;
 
 /**
  * Test the {@link Statistics}.
@@ -92,6 +105,96 @@ public class StatisticsTest {
         assertValues( cut, 4, 0, 4, 1.5 );
     }
 
+    @Test
+    public void testMinMaxAvgProbePercentilesAndIntervals() throws InterruptedException {
+        final MinMaxAvgProbe cut = new MinMaxAvgProbe();
+        final Thread[] threads = new Thread[4];
+        for ( int i = 0; i < threads.length; i++ ) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for ( int value = 1; value <= 1000; value++ ) {
+                        cut.register( value );
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for ( final Thread thread : threads ) {
+            thread.join();
+        }
+        assertEquals( cut.getCount(), 4000 );
+        assertEquals( cut.getMin(), 1 );
+        assertEquals( cut.getMax(), 1000 );
+        assertEquals( cut.getAvg(), 500.5, 0.001 );
+        assertEquals( cut.getPercentile( 50 ), 500, 500 * 0.13 );
+        assertEquals( cut.getPercentile( 99.9 ), 999, 999 * 0.13 );
+        assertEquals( cut.getInfo().length, 8 );
+
+        assertEquals( cut.getIntervalSnapshot().getCount(), 4000 );
+        cut.register( 5000 );
+        final Histogram interval = cut.getIntervalSnapshot();
+        assertEquals( interval.getCount(), 1 );
+        assertEquals( interval.getMean(), 5000, 0.001 );
+        assertEquals( cut.getIntervalSnapshot().getCount(), 0 );
+    }
+
+    @Test
+    public void testDurationsAreRegisteredInNanos() throws InterruptedException {
+        final Statistics cut = Statistics.create();
+        final long start = System.nanoTime();
+        Thread.sleep( 5 );
+        cut.registerSince( StatsType.BACKUP, start );
+        cut.register( StatsType.CACHED_DATA_SIZE, 1024 );
+
+        assertTrue( cut.getProbe( StatsType.BACKUP ).getMin() >= TimeUnit.MILLISECONDS.toNanos( 5 ) );
+        assertEquals( cut.getProbe( StatsType.BACKUP ).getInfo()[1], "Min = " + cut.getProbe( StatsType.BACKUP ).getMin() + " ns" );
+        assertEquals( cut.getProbe( StatsType.CACHED_DATA_SIZE ).getInfo()[1], "Min = 1024 bytes" );
+    }
+
+    @Test
+    public void testWindowSnapshot() {
+        final Statistics cut = Statistics.create();
+        for ( int i = 0; i < 10; i++ ) {
+            cut.requestWithSession();
+        }
+        cut.requestWithBackupFailure();
+        cut.register( StatsType.BACKUP, 42 );
+
+        final WindowSnapshot snapshot = cut.getWindowSnapshot( Window.LAST_MINUTE );
+        assertEquals( snapshot.getWindowSeconds(), 60 );
+        assertEquals( snapshot.getCounts().get( "requestsWithSession" ).longValue(), 10 );
+        assertEquals( snapshot.getCounts().get( "requestsWithBackupFailure" ).longValue(), 1 );
+        assertEquals( snapshot.getRates().get( "requestsWithSession" ), 10d / 60, 0.0001 );
+        assertEquals( snapshot.getBackupFailureRatio(), 0.1, 0.0001 );
+        assertEquals( snapshot.getProbes().get( StatsType.BACKUP.name() ).getCount(), 1 );
+        assertEquals( snapshot.getProbes().get( StatsType.BACKUP.name() ).getP99(), 42 );
+        assertEquals( cut.getWindowSnapshot( Window.LAST_HOUR ).getCounts().get( "requestsWithSession" ).longValue(), 10 );
+    }
+
+    @Test
+    public void testStatisticsViewIsRegisteredViaJmx() throws Exception {
+        final Statistics statistics = Statistics.create();
+        statistics.requestWithSession();
+        statistics.register( StatsType.BACKUP, 1 );
+        final StatisticsView cut = StatisticsView.register( statistics, "localhost", "/test" );
+        assertNotNull( cut );
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName objectName = new ObjectName( "de.javakaffee.web.msm:type=Statistics,host=\"localhost\",context=\"/test\"" );
+        try {
+            final CompositeData lastMinute = (CompositeData) server.getAttribute( objectName, "LastMinute" );
+            assertEquals( lastMinute.get( "windowSeconds" ), 60L );
+            final TabularData counts = (TabularData) lastMinute.get( "counts" );
+            assertEquals( counts.get( new Object[] { "requestsWithSession" } ).get( "value" ), 1L );
+            final TabularData probes = (TabularData) lastMinute.get( "probes" );
+            final CompositeData backup = (CompositeData) probes.get( new Object[] { StatsType.BACKUP.name() } ).get( "value" );
+            assertEquals( backup.get( "count" ), 1L );
+        } finally {
+            cut.unregister();
+        }
+        assertFalse( server.isRegistered( objectName ) );
+    }
+
     private void assertValues( final MinMaxAvgProbe cut, final int count, final int min, final int max, final double avg ) {
         assertEquals( cut.getCount(), count );
         assertEquals( cut.getMin(), min );
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.MemcachedNodesManager.createFor;
+import static java.util.Arrays.asList;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.BulkFuture;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.MemcachedNodesManager.MemcachedClientCallback;
+
+/**
+ * Tests the {@link TopologyTransition}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class TopologyTransitionTest {
+
+    private static final String SESSION_ID = "foo-n3";
+
+    private MemcachedClient _memcached;
+    private MemcachedNodesManager _formerNodesManager;
+    private SessionIdFormat _sessionIdFormat;
+
+    @BeforeMethod
+    public void setUp() {
+        _memcached = mock( MemcachedClient.class );
+        _formerNodesManager = spy( createFor( "n1:localhost:11211 n2:localhost:11212 n3:localhost:11213", null, StorageKeyFormat.EMPTY,
+                mock( MemcachedClientCallback.class ) ) );
+        _sessionIdFormat = _formerNodesManager.getSessionIdFormat();
+    }
+
+    @Test
+    public void testDrainingNodeIdsAreRemovedNodes() {
+        final MemcachedClientCallback callback = mock( MemcachedClientCallback.class );
+        final MemcachedNodesManager former = createFor( "n1:localhost:11211 n2:localhost:11212 n3:localhost:11213", "n3", null, callback );
+        final MemcachedNodesManager changed = createFor( "n1:localhost:11211 n4:localhost:11214", null, null, callback );
+        assertEquals( TopologyTransition.getDrainingNodeIds( former, changed ), new HashSet<String>( asList( "n2", "n3" ) ) );
+        assertTrue( TopologyTransition.getDrainingNodeIds( former, former ).isEmpty() );
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testLoadReadsSessionAndValidityInfoFromFormerNodes() throws Exception {
+        final byte[] data = new byte[] { 1, 2, 3 };
+        final long accessed = System.currentTimeMillis();
+        final String validityKey = _sessionIdFormat.createValidityInfoKeyName( SESSION_ID );
+        final Map<String, Object> values = new HashMap<String, Object>();
+        values.put( SESSION_ID, data );
+        values.put( validityKey, SessionValidityInfo.encode( 1800, accessed, accessed ) );
+        final BulkFuture<Map<String, Object>> future = mock( BulkFuture.class );
+        when( future.get( anyLong(), any( TimeUnit.class ) ) ).thenReturn( values );
+        when( _memcached.asyncGetBulk( SESSION_ID, validityKey ) ).thenReturn( future );
+
+        final TopologyTransition cut = newTransition( "n3" );
+        final TopologyTransition.Result result = cut.load( SESSION_ID );
+        assertEquals( result.getData(), data );
+        assertEquals( result.getValidityInfo().getThisAccessedTime(), accessed );
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testLoadReturnsNullForMissingSession() throws Exception {
+        final BulkFuture<Map<String, Object>> future = mock( BulkFuture.class );
+        when( future.get( anyLong(), any( TimeUnit.class ) ) ).thenReturn( Collections.<String, Object>emptyMap() );
+        when( _memcached.asyncGetBulk( SESSION_ID, _sessionIdFormat.createValidityInfoKeyName( SESSION_ID ) ) ).thenReturn( future );
+
+        assertNull( newTransition( "n3" ).load( SESSION_ID ) );
+    }
+
+    @Test
+    public void testNodesAreNotDrainingAfterTransition() throws Exception {
+        final TopologyTransition cut = newTransition( "n3" );
+        assertTrue( cut.isDraining( "n3" ) );
+        assertFalse( cut.isDraining( "n1" ) );
+        assertFalse( cut.isDraining( null ) );
+
+        cut.start();
+        Thread.sleep( 200 );
+
+        assertFalse( cut.isDraining( "n3" ) );
+        verify( _memcached ).shutdown();
+        verify( _formerNodesManager ).shutdown();
+    }
+
+    private TopologyTransition newTransition( final String... drainingNodeIds ) {
+        final Set<String> nodeIds = new HashSet<String>( asList( drainingNodeIds ) );
+        return new TopologyTransition( _memcached, _formerNodesManager, nodeIds, 50, 1000, null );
+    }
+
+}
@@ -19,6 +19,10 @@ package de.javakaffee.web.msm.integration;
 import static de.javakaffee.web.msm.Configurations.NODE_AVAILABILITY_CACHE_TTL_KEY;
 import static de.javakaffee.web.msm.integration.TestUtils.Predicates.elementAt;
 import static de.javakaffee.web.msm.integration.TestUtils.Predicates.notNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertTrue;
@@ -47,6 +51,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.LogManager;
 
 import javax.annotation.Nonnull;
@@ -55,6 +60,8 @@ import javax.servlet.http.HttpSessionActivationListener;
 import javax.servlet.http.HttpSessionEvent;
 
 import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.OperationCompletionListener;
+import net.spy.memcached.internal.OperationFuture;
 
 import org.apache.catalina.core.StandardContext;
 import org.apache.catalina.core.StandardEngine;
@@ -83,6 +90,8 @@ import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.apache.juli.logging.LogFactory;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 
@@ -96,6 +105,7 @@ import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap.EvictionP
 
 import de.javakaffee.web.msm.MemcachedBackupSession;
 import de.javakaffee.web.msm.MemcachedSessionService;
+import de.javakaffee.web.msm.TranscoderService;
 
 /**
  * Integration test utils.
@@ -702,6 +712,43 @@ public abstract class TestUtils<T extends TomcatBuilder<?>> {
         return session;
     }
 
+    /**
+     * Creates the serialized data of a session (as stored in memcached) with the given last backup time,
+     * as far as it's read by the memcached session manager to compare versions of a session.
+     */
+    @Nonnull
+    public static byte[] serializedSession( final long lastBackupTime ) {
+        final byte[] result = new byte[64];
+        TranscoderService.encodeNum( 1800, result, 20, 4 );
+        TranscoderService.encodeNum( lastBackupTime, result, 34, 8 );
+        return result;
+    }
+
+    /**
+     * Creates a mocked {@link OperationFuture} that is done with the given value, completion listeners
+     * are notified immediately.
+     */
+    @SuppressWarnings( "unchecked" )
+    @Nonnull
+    public static <V> OperationFuture<V> future( @Nullable final V value ) {
+        final OperationFuture<V> result = mock( OperationFuture.class );
+        try {
+            when( result.isDone() ).thenReturn( true );
+            when( result.get() ).thenReturn( value );
+            when( result.get( anyLong(), any( TimeUnit.class ) ) ).thenReturn( value );
+        } catch ( final Exception e ) {
+            throw new RuntimeException( e );
+        }
+        when( result.addListener( any( OperationCompletionListener.class ) ) ).thenAnswer( new Answer<OperationFuture<V>>() {
+            @Override
+            public OperationFuture<V> answer( final InvocationOnMock invocation ) throws Throwable {
+                ( (OperationCompletionListener) invocation.getArguments()[0] ).onComplete( result );
+                return result;
+            }
+        } );
+        return result;
+    }
+
 
     public static void waitForReconnect( final MemcachedClient client, final int expectedNumServers, final long timeToWait )
             throws InterruptedException, RuntimeException {
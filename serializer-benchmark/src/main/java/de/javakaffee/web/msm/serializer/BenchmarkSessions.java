@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+package de.javakaffee.web.msm.serializer;
+
+import java.util.Calendar;
+
+import javax.annotation.Nonnull;
+
+import org.apache.catalina.Manager;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.loader.WebappLoader;
+
+import de.javakaffee.web.msm.JavaSerializationTranscoder;
+import de.javakaffee.web.msm.MemcachedBackupSession;
+import de.javakaffee.web.msm.MemcachedBackupSessionManager;
+import de.javakaffee.web.msm.SessionAttributesTranscoder;
+import de.javakaffee.web.msm.serializer.TestClasses.Address;
+import de.javakaffee.web.msm.serializer.TestClasses.Component;
+import de.javakaffee.web.msm.serializer.TestClasses.Person;
+import de.javakaffee.web.msm.serializer.TestClasses.Person.Gender;
+import de.javakaffee.web.msm.serializer.javolution.JavolutionTranscoder;
+import de.javakaffee.web.msm.serializer.json.JSONTranscoder;
+import de.javakaffee.web.msm.serializer.kryo.KryoTranscoder;
+import de.javakaffee.web.msm.serializer.xstream.XStreamTranscoder;
+
+/**
+ * The sessions and serialization strategies used by the serializer benchmarks.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public final class BenchmarkSessions {
+
+    static final String SESSION_ID = "123456789abcdefghijk987654321";
+
+    private BenchmarkSessions() {
+    }
+
+    /**
+     * The serialization strategies, one for each {@link SessionAttributesTranscoder}.
+     */
+    public static enum Serializer {
+        JAVA {
+            @Override
+            SessionAttributesTranscoder createTranscoder( final Manager manager ) {
+                return new JavaSerializationTranscoder();
+            }
+        },
+        KRYO {
+            @Override
+            SessionAttributesTranscoder createTranscoder( final Manager manager ) {
+                return new KryoTranscoder();
+            }
+        },
+        JAVOLUTION {
+            @Override
+            SessionAttributesTranscoder createTranscoder( final Manager manager ) {
+                return new JavolutionTranscoder( Thread.currentThread().getContextClassLoader(), false );
+            }
+        },
+        XSTREAM {
+            @Override
+            SessionAttributesTranscoder createTranscoder( final Manager manager ) {
+                return new XStreamTranscoder( manager );
+            }
+        },
+        FLEXJSON {
+            @Override
+            SessionAttributesTranscoder createTranscoder( final Manager manager ) {
+                return new JSONTranscoder( manager );
+            }
+        };
+
+        @Nonnull
+        abstract SessionAttributesTranscoder createTranscoder( @Nonnull Manager manager );
+    }
+
+    /**
+     * The shape of the benchmarked session: the number of persons (each one with a friend, an address
+     * and several emails) and the number of nodes per edge of the component tree.
+     */
+    public static enum SessionShape {
+        /** 10 persons, 7 components */
+        SMALL( 10, 2 ),
+        /** 100 persons, 13 components */
+        MEDIUM( 100, 3 ),
+        /** 500 persons, 21 components */
+        LARGE( 500, 4 );
+
+        private final int _countPersons;
+        private final int _nodesPerEdge;
+
+        private SessionShape( final int countPersons, final int nodesPerEdge ) {
+            _countPersons = countPersons;
+            _nodesPerEdge = nodesPerEdge;
+        }
+
+        @Nonnull
+        MemcachedBackupSession createSession( @Nonnull final MemcachedBackupSessionManager manager ) {
+            return BenchmarkSessions.createSession( manager, SESSION_ID, _countPersons, _nodesPerEdge );
+        }
+    }
+
+    @Nonnull
+    static MemcachedBackupSession createSession( final MemcachedBackupSessionManager manager, final String id,
+            final int countPersons, final int countNodesPerEdge ) {
+        final MemcachedBackupSession session = manager.createEmptySession();
+        session.setId( id );
+        session.setValid( true );
+
+        session.setAttribute( "stringbuffer", new StringBuffer( "<string\n&buffer/>" ) );
+        session.setAttribute( "stringbuilder", new StringBuilder( "<string\n&buffer/>" ) );
+
+        session.setAttribute( "persons", createPersons( countPersons ) );
+        session.setAttribute( "mycontainer", new TestClasses.MyContainer() );
+
+        session.setAttribute( "component", createComponents( countNodesPerEdge ) );
+
+        return session;
+    }
+
+    private static Component createComponents( final int countNodesPerEdge ) {
+        final Component root = new Component( "root" );
+        for ( int i = 0; i < countNodesPerEdge; i++ ) {
+            final Component node = new Component( "child" + i );
+            addChildren( node, countNodesPerEdge );
+            root.addChild( node );
+        }
+        return root;
+    }
+
+    private static void addChildren( final Component node, final int count ) {
+        for ( int i = 0; i < count; i++ ) {
+            node.addChild( new Component( node.getName() + "-" + i ) );
+        }
+    }
+
+    private static Person[] createPersons( final int countPersons ) {
+        final Person[] persons = new Person[countPersons];
+        for( int i = 0; i < countPersons; i++ ) {
+            final Calendar dateOfBirth = Calendar.getInstance();
+            dateOfBirth.set( Calendar.YEAR, dateOfBirth.get( Calendar.YEAR ) - 42 );
+            final Person person = TestClasses.createPerson( "Firstname" + i + " Lastname" + i,
+                    i % 2 == 0 ? Gender.FEMALE : Gender.MALE,
+                        dateOfBirth,
+                        "email" + i + "-1@example.org", "email" + i + "-2@example.org", "email" + i + "-3@example.org" );
+            person.addAddress( new Address( "route66", "123456", "sincity", "sincountry" ) );
+
+            if ( i > 0 ) {
+                person.addFriend( persons[i - 1] );
+            }
+
+            persons[i] = person;
+        }
+        return persons;
+    }
+
+    /**
+     * Creates a manager with a context that uses the context class loader, so that
+     * the deserialization of sessions works without a running tomcat.
+     */
+    @Nonnull
+    static MemcachedBackupSessionManager createManager() {
+        final MemcachedBackupSessionManager manager = new MemcachedBackupSessionManager();
+
+        final StandardContext container = new StandardContext();
+        manager.setContainer( container );
+
+        final WebappLoader webappLoader = new WebappLoader() {
+            @Override
+            public ClassLoader getClassLoader() {
+                return Thread.currentThread().getContextClassLoader();
+            }
+        };
+        manager.getContainer().setLoader( webappLoader );
+
+        return manager;
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+package de.javakaffee.web.msm.serializer;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+
+import javax.annotation.Nonnull;
+
+import de.javakaffee.web.msm.MemcachedBackupSession;
+import de.javakaffee.web.msm.MemcachedBackupSessionManager;
+import de.javakaffee.web.msm.SessionAttributesTranscoder;
+import de.javakaffee.web.msm.TranscoderService;
+import de.javakaffee.web.msm.serializer.BenchmarkSessions.SessionShape;
+import de.javakaffee.web.msm.serializer.BenchmarkSessions.Serializer;
+
+/**
+ * Writes the serialized size of the attributes and of the whole session for each {@link Serializer}
+ * and {@link SessionShape} as csv, to the file given as argument or to stdout.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class PayloadSizes {
+
+    public static void main( final String[] args ) throws FileNotFoundException {
+        if ( args.length > 0 ) {
+            final PrintStream out = new PrintStream( args[0] );
+            try {
+                write( out );
+            } finally {
+                out.close();
+            }
+        }
+        else {
+            write( System.out );
+        }
+    }
+
+    static void write( @Nonnull final PrintStream out ) {
+        final MemcachedBackupSessionManager manager = BenchmarkSessions.createManager();
+        out.println( "Serializer,Shape,Attributes-Size,Session-Size" );
+        for ( final SessionShape shape : SessionShape.values() ) {
+            final MemcachedBackupSession session = shape.createSession( manager );
+            for ( final Serializer serializer : Serializer.values() ) {
+                final SessionAttributesTranscoder transcoder = serializer.createTranscoder( manager );
+                final int attributesSize = transcoder.serializeAttributes( session, session.getAttributesInternal() ).length;
+                final int sessionSize = new TranscoderService( transcoder ).serialize( session ).length;
+                out.println( serializer + "," + shape + "," + attributesSize + "," + sessionSize );
+            }
+        }
+    }
+
+}
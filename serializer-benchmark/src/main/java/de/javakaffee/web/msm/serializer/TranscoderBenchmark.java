@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.javakaffee.web.msm;
+package de.javakaffee.web.msm.serializer;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.javakaffee.web.msm.MemcachedBackupSession;
+import de.javakaffee.web.msm.MemcachedBackupSessionManager;
+import de.javakaffee.web.msm.SessionAttributesTranscoder;
+import de.javakaffee.web.msm.TranscoderService;
+import de.javakaffee.web.msm.serializer.BenchmarkSessions.SessionShape;
+import de.javakaffee.web.msm.serializer.BenchmarkSessions.Serializer;
+
+/**
+ * Measures (de)serialization of session attributes by each {@link SessionAttributesTranscoder}, and of whole
+ * sessions via {@link TranscoderService} (attributes plus session fields), for each {@link SessionShape}.
+ * <p>
+ * The transcoder and session are shared by all benchmark threads like in the session manager, so running
+ * with several threads (<code>-t</code>) shows contention inside the transcoders. Use {@link SerializerBenchmarks}
+ * to run with the default thread counts, allocation profiling and json output, or the jmh options directly:
+ * <code><pre>
+ * java -cp target/benchmarks.jar org.openjdk.jmh.Main TranscoderBenchmark -p serializer=KRYO -t 4 -prof gc -rf json
+ * </pre></code>
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 10, time = 1 )
+@Fork( 2 )
+public class TranscoderBenchmark {
+
+    @Param
+    public Serializer serializer;
+
+    @Param
+    public SessionShape shape;
+
+    private MemcachedBackupSessionManager _manager;
+    private SessionAttributesTranscoder _transcoder;
+    private TranscoderService _transcoderService;
+    private MemcachedBackupSession _session;
+    private Map<String, Object> _attributes;
+    private byte[] _attributesData;
+    private byte[] _sessionData;
+
+    @Setup( Level.Trial )
+    public void setUp() {
+        _manager = BenchmarkSessions.createManager();
+        _transcoder = serializer.createTranscoder( _manager );
+        _transcoderService = new TranscoderService( _transcoder );
+        _session = shape.createSession( _manager );
+        _attributes = _session.getAttributesInternal();
+        _attributesData = _transcoder.serializeAttributes( _session, _attributes );
+        _sessionData = _transcoderService.serialize( _session );
+        if ( _transcoderService.deserialize( _sessionData, _manager ) == null ) {
+            throw new IllegalStateException( "Could not deserialize session serialized by " + serializer );
+        }
+    }
+
+    @Benchmark
+    public byte[] serializeAttributes() {
+        return _transcoder.serializeAttributes( _session, _attributes );
+    }
+
+    @Benchmark
+    public Map<String, Object> deserializeAttributes() {
+        return _transcoder.deserializeAttributes( _attributesData );
+    }
+
+    @Benchmark
+    public byte[] serializeSession() {
+        return _transcoderService.serialize( _session );
+    }
+
+    @Benchmark
+    public MemcachedBackupSession deserializeSession() {
+        return _transcoderService.deserialize( _sessionData, _manager );
+    }
+
+}
@@ -496,6 +496,15 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         _msm.setStorageKeyPrefix(storageKeyPrefix);
     }
 
+    /**
+     * Specifies how the memcached node for a new session is selected, one of <code>random</code> (default),
+     * <code>p2c</code>, <code>weighted:&lt;nodeId&gt;=&lt;weight&gt;,...</code> or <code>capacity</code>.
+     * @see MemcachedSessionService#setNodeSelectionPolicy(String)
+     */
+    public void setNodeSelectionPolicy( @Nullable final String nodeSelectionPolicy ) {
+        _msm.setNodeSelectionPolicy( nodeSelectionPolicy );
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -670,6 +679,97 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         return _msm.getStatistics().getNonStickySessionsReadOnlyRequest();
     }
 
+    /**
+     * Returns the number of sessions that could not be stored in memcached and wait for their memcached node.
+     * @see MemcachedSessionService#getSpillBacklogSize()
+     */
+    public int getMsmStatSpillBacklogSize() {
+        return _msm.getSpillBacklogSize();
+    }
+
+    /**
+     * Returns the overall size in bytes of sessions that wait for their memcached node.
+     * @see MemcachedSessionService#getSpillBacklogBytes()
+     */
+    public long getMsmStatSpillBacklogBytes() {
+        return _msm.getSpillBacklogBytes();
+    }
+
+    /**
+     * @see de.javakaffee.web.msm.Statistics#getSpillReplayed()
+     */
+    public long getMsmStatNumSpillReplayed() {
+        return _msm.getStatistics().getSpillReplayed();
+    }
+
+    /**
+     * Returns a string array with labels and values of count, min, avg and max
+     * of the time that took the replay of a batch of spilled sessions.
+     */
+    public String[] getMsmStatSpillReplayInfo() {
+        return _msm.getStatistics().getProbe( SPILL_REPLAY ).getInfo();
+    }
+
+    /**
+     * Returns the counters (with rates), error ratios and probe percentiles of the last minute.
+     * @see de.javakaffee.web.msm.Statistics#getWindowSnapshot(Statistics.Window)
+     */
+    public String[] getMsmStatLastMinuteInfo() {
+        return _msm.getStatistics().getWindowSnapshot( Statistics.Window.LAST_MINUTE ).getInfo();
+    }
+
+    /**
+     * Returns the counters (with rates), error ratios and probe percentiles of the last hour.
+     * @see de.javakaffee.web.msm.Statistics#getWindowSnapshot(Statistics.Window)
+     */
+    public String[] getMsmStatLastHourInfo() {
+        return _msm.getStatistics().getWindowSnapshot( Statistics.Window.LAST_HOUR ).getInfo();
+    }
+
+    /**
+     * Returns the ratio of failed session backups to requests with session in the last minute.
+     */
+    public double getMsmStatBackupFailureRatioLastMinute() {
+        return _msm.getStatistics().getWindowSnapshot( Statistics.Window.LAST_MINUTE ).getBackupFailureRatio();
+    }
+
+    /**
+     * Returns the requests with the highest lock wait time, if lock contention profiling is enabled.
+     * @see de.javakaffee.web.msm.LockContentionProfiler#getTopContentionsInfo()
+     */
+    public String[] getMsmStatLockContentionInfo() {
+        final LockContentionProfiler profiler = _msm.getLockContentionProfiler();
+        return profiler != null ? profiler.getTopContentionsInfo() : new String[0];
+    }
+
+    /**
+     * Returns the statistics per memcached node: operations, errors, timeouts, bytes in/out, reconnects,
+     * spymemcached queue sizes and latencies per operation type.
+     * @see de.javakaffee.web.msm.NodeStatistics#getInfo()
+     */
+    public String[] getMsmStatNodesInfo() {
+        final MemcachedNodesManager nodesManager = _msm.getMemcachedNodesManager();
+        return nodesManager != null ? nodesManager.getNodeStatistics().getInfo() : new String[0];
+    }
+
+    /**
+     * Returns the session attributes with the highest overall serialized size (sampled), if attribute profiling is enabled.
+     * @see de.javakaffee.web.msm.AttributeProfiler#getTopAttributesInfo()
+     */
+    public String[] getMsmStatTopAttributesInfo() {
+        final AttributeProfiler profiler = _msm.getAttributeProfiler();
+        return profiler != null ? profiler.getTopAttributesInfo() : new String[0];
+    }
+
+    /**
+     * Returns the largest sessions with their size, if attribute profiling is enabled.
+     * @see de.javakaffee.web.msm.AttributeProfiler#getLargestSessionsInfo()
+     */
+    public String[] getMsmStatLargestSessionsInfo() {
+        final AttributeProfiler profiler = _msm.getAttributeProfiler();
+        return profiler != null ? profiler.getLargestSessionsInfo() : new String[0];
+    }
+
     /**
      * Returns a string array with labels and values of count, min, avg and max
      * of the time that took the attributes serialization.